@@ -0,0 +1,97 @@
+package de.tum.i13.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+
+/**
+ * Read Balancer
+ * Spreads the gets of a key over its coordinator and its replicas. The ranges are taken from the answer to
+ * keyrange_read, which lists every range once for its coordinator and once for each replica:
+ *
+ * &lt;range_from&gt;,&lt;range_to&gt;,&lt;ip:port&gt;;&lt;range_from&gt;,&lt;range_to&gt;,&lt;replica ip:port&gt;;...
+ *
+ * A get is sent to the server of its range with the fewest outstanding requests, servers with equally many are
+ * chosen round robin. Replicas receive puts asynchronously, so a get from a replica may return an older value.
+ *
+ * @version 0.1
+ * @since   2022-01-18
+ */
+public class ReadBalancer {
+
+    // end of range -> address:port of coordinator and replicas
+    private final TreeMap<String, List<String>> ranges = new TreeMap<>();
+    private final AtomicInteger nextRound = new AtomicInteger();
+
+    /**
+     * Replaces the known ranges.
+     *
+     * @param keyRangeRead answer to keyrange_read (or keyrange) without the trailing \r\n.
+     */
+    public synchronized void update(String keyRangeRead) {
+        ranges.clear();
+        for (String range : keyRangeRead.trim().split(";")) {
+            String[] parts = range.split(",");
+            if (parts.length < 3)
+                continue;
+            List<String> servers = ranges.computeIfAbsent(parts[1].trim(), k -> new ArrayList<>(3));
+            String server = parts[2].trim();
+            if (!servers.contains(server))
+                servers.add(server);
+        }
+    }
+
+    /**
+     * Forgets the known ranges, e.g. because a server answered server_not_responsible.
+     */
+    public synchronized void clear() {
+        ranges.clear();
+    }
+
+    /**
+     * @return true if no ranges are known yet.
+     */
+    public synchronized boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    /**
+     * @param keyHash hash of the Base64 encoded key.
+     * @return address:port of coordinator and replicas of the key, empty if no ranges are known.
+     */
+    public synchronized List<String> servers(String keyHash) {
+        if (ranges.isEmpty())
+            return Collections.emptyList();
+        Map.Entry<String, List<String>> range = ranges.ceilingEntry(keyHash);
+        return range == null ? ranges.firstEntry().getValue() : range.getValue();
+    }
+
+    /**
+     * Chooses the server a get of the key is sent to.
+     *
+     * @param keyHash     hash of the Base64 encoded key.
+     * @param outstanding returns the number of outstanding requests of a server.
+     * @return address:port of the chosen server, null if no ranges are known.
+     */
+    public String choose(String keyHash, ToIntFunction<String> outstanding) {
+        List<String> servers = servers(keyHash);
+        if (servers.isEmpty())
+            return null;
+        int start = Math.floorMod(nextRound.getAndIncrement(), servers.size());
+        String chosen = null;
+        int fewest = Integer.MAX_VALUE;
+        for (int i = 0; i < servers.size(); i++) {
+            String server = servers.get((start + i) % servers.size());
+            int count = outstanding.applyAsInt(server);
+            if (count < fewest) {
+                fewest = count;
+                chosen = server;
+            }
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,161 @@
+package de.tum.i13.client;
+
+import de.tum.i13.server.kv.KVMessage;
+
+import javax.naming.SizeLimitExceededException;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+
+/**
+ * Request Pipeline
+ * Keeps many requests in flight on a single connection to a KVServer. Every request is prefixed with a request id
+ * (#&lt;id&gt;), which the server echoes in front of its answer. As the server answers requests as soon as its worker
+ * threads complete them, answers can arrive in a different order than the requests were sent. A reader thread
+ * matches every answer to its request by the id and completes the corresponding future.
+ *
+ * @version 0.1
+ * @since 2022-01-12
+ */
+public class RequestPipeline {
+
+    private static final Logger LOGGER = Logger.getLogger(RequestPipeline.class.getName());
+
+    private final SocketCommunicator communicator;
+    private final Map<Long, CompletableFuture<KVMessage>> inFlight;
+    private final AtomicLong nextId;
+    private volatile boolean running;
+
+    /**
+     * Opens a new connection to the given server and starts reading answers.
+     *
+     * @param host The host to connect to.
+     * @param port The port to use for the connection.
+     * @throws IOException if there is an IOException during the connect.
+     */
+    public RequestPipeline(String host, int port) throws IOException {
+        this.communicator = new SocketCommunicator();
+        this.inFlight = new ConcurrentHashMap<>();
+        this.nextId = new AtomicLong();
+
+        communicator.connect(host, port);
+        // read the connection greeting of the server
+        communicator.receive();
+
+        running = true;
+        Thread reader = new Thread(this::readAnswers, "RequestPipeline-" + host + ":" + port);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Sends a command without waiting for the answer.
+     *
+     * @param command the command line to send, without request id and \r\n, e.g. "GET a2V5".
+     * @return a future which is completed with the decoded answer of the server.
+     * @throws IOException                if there is an IOException during the send.
+     * @throws IllegalStateException      if the pipeline is not connected.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    public CompletableFuture<KVMessage> submit(String command) throws IOException, IllegalStateException, SizeLimitExceededException {
+        long id = nextId.incrementAndGet();
+        CompletableFuture<KVMessage> answer = new CompletableFuture<>();
+        inFlight.put(id, answer);
+
+        byte[] data = ("#" + id + " " + command + "\r\n").getBytes(TELNET_ENCODING);
+        try {
+            synchronized (communicator) {
+                communicator.send(data);
+            }
+        } catch (IOException | IllegalStateException | SizeLimitExceededException e) {
+            inFlight.remove(id);
+            throw e;
+        }
+        return answer;
+    }
+
+    /**
+     * @return the number of requests which were sent but not yet answered.
+     */
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * @return the address of the server this pipeline is connected to.
+     */
+    public String getAddress() {
+        return communicator.getAddress();
+    }
+
+    /**
+     * @return the port of the server this pipeline is connected to.
+     */
+    public int getPort() {
+        return communicator.getPort();
+    }
+
+    /**
+     * Closes the connection. Requests still in flight are completed exceptionally.
+     */
+    public void close() {
+        running = false;
+        try {
+            communicator.disconnect();
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.fine("Pipeline already disconnected");
+        }
+        failInFlight(new IllegalStateException("Pipeline closed"));
+    }
+
+    private void readAnswers() {
+        while (running) {
+            String answer;
+            try {
+                answer = new String(communicator.receive(), TELNET_ENCODING);
+            } catch (IOException | IllegalStateException e) {
+                if (running)
+                    LOGGER.warning("Connection of pipeline lost: " + e.getMessage());
+                running = false;
+                failInFlight(e);
+                return;
+            }
+            answer = answer.substring(0, answer.length() - 2);
+
+            int separator = answer.indexOf(' ');
+            if (!answer.startsWith("#") || separator < 0) {
+                LOGGER.warning("Answer without request id: " + answer);
+                continue;
+            }
+            CompletableFuture<KVMessage> request;
+            try {
+                request = inFlight.remove(Long.parseLong(answer.substring(1, separator)));
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Answer with invalid request id: " + answer);
+                continue;
+            }
+            if (request == null) {
+                LOGGER.warning("Answer for unknown request: " + answer);
+                continue;
+            }
+            try {
+                request.complete(TestStore.parseKVMessage(answer.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                request.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void failInFlight(Exception cause) {
+        for (Long id : inFlight.keySet()) {
+            CompletableFuture<KVMessage> request = inFlight.remove(id);
+            if (request != null)
+                request.completeExceptionally(cause);
+        }
+    }
+}
@@ -196,7 +196,10 @@ public class SocketCommunicator implements KVCommunicator {
                 byte lastByte = 0;
                 while (lastByte != '\r' || readByte != '\n') {
                     lastByte = readByte;
-                    readByte = (byte) input.read();
+                    int read = input.read();
+                    if (read < 0)
+                        throw new EOFException("Connection closed by server");
+                    readByte = (byte) read;
                     data.write(readByte);
                 }
             } catch (IOException e) {
@@ -1,6 +1,7 @@
 package de.tum.i13.client;
 
 import de.tum.i13.server.kv.KVMessage;
+import de.tum.i13.server.kv.KVServerInfo;
 import de.tum.i13.server.kv.KVStore;
 import de.tum.i13.server.stripe.StripedExecutorService;
 import de.tum.i13.shared.*;
@@ -9,11 +10,23 @@ import javax.naming.SizeLimitExceededException;
 import java.io.IOException;
 import java.net.Socket;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
 import static de.tum.i13.shared.Constants.TELNET_ENCODING;
@@ -29,8 +42,23 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 public class TestStore implements KVStore {
 
     private Metadata metadata;
+    // epoch of the ranges in metadata, 0 if unknown
+    private volatile long metadataEpoch;
     private final SocketCommunicator communicator;
     private final SocketCommunicator brokerComunicator;
+    private RequestPipeline pipeline;
+    private final Map<String, SocketCommunicator> batchConnections = new HashMap<>();
+    private final ReadBalancer readBalancer = new ReadBalancer();
+    private final Map<String, RequestPipeline> readPipelines = new ConcurrentHashMap<>();
+    private volatile boolean readBalancing;
+    // keys the servers reported as hot -> answer to the last get and when it arrived, see setHotKeyCaching
+    private final Map<String, Pair<KVMessage, Long>> hotValues = new ConcurrentHashMap<>();
+    private volatile Set<String> hotKeys = Collections.emptySet();
+    private volatile long hotKeysFetchedAt;
+    private volatile long hotKeyCacheMillis;
+    private static final long HOT_KEYS_REFRESH_MILLIS = 1000;
+    // stay below the 128 kB limit of a single message
+    private static final int BATCH_BYTES = 120 * 1024;
     private static final Logger LOGGER = Logger.getLogger(TestStore.class.getName());
     public static inputPassword inputPassword = new inputPassword(false, 0);
 
@@ -73,6 +101,20 @@ public class TestStore implements KVStore {
      * @return a message informing about the disconnect.
      */
     public String disconnect() throws IOException, IllegalStateException {
+        synchronized (this) {
+            if (pipeline != null) {
+                pipeline.close();
+                pipeline = null;
+            }
+            for (RequestPipeline readPipeline : readPipelines.values())
+                readPipeline.close();
+            readPipelines.clear();
+        }
+        for (SocketCommunicator connection : batchConnections.values()) {
+            if (connection.isConnected())
+                connection.disconnect();
+        }
+        batchConnections.clear();
         communicator.disconnect();
         return "Disconnected from KVServer successfully.";
     }
@@ -141,6 +183,34 @@ public class TestStore implements KVStore {
         }
     }
 
+    /**
+     * Fetches the ranges from the connected server with keyrange_epoch. Ranges of an older epoch than the known ones
+     * are ignored, the connected server did not apply the latest change of the ring yet. Servers without epochs are
+     * asked with keyrange.
+     *
+     * @return true if the ranges were updated.
+     * @throws IOException                if there is an IOException during the sending.
+     * @throws IllegalStateException      if currently not connected to a Server.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    private boolean refreshMetadata() throws IOException, IllegalStateException, SizeLimitExceededException {
+        String[] answer = sendKeyRange("keyrange_epoch").split(" ", 3);
+        if (!answer[0].equalsIgnoreCase("keyrange_epoch")) {
+            metadata.updateClientMetadata(sendKeyRange("keyrange "));
+            return true;
+        }
+        long epoch = Long.parseLong(answer[1]);
+        if (epoch < metadataEpoch) {
+            LOGGER.info("Ignoring ranges of epoch " + epoch + ", epoch " + metadataEpoch + " is known");
+            return false;
+        }
+        if (answer.length < 3 || answer[2].isEmpty())
+            return false;
+        metadata.updateClientMetadata(answer[2]);
+        metadataEpoch = epoch;
+        return true;
+    }
+
     /**
      * Will send activate password protection command to the connected server.
      * @param command Command to send to the server.
@@ -168,8 +238,7 @@ public class TestStore implements KVStore {
     private String _getCorrectServer(String key) throws NullPointerException, NoSuchAlgorithmException, IOException {
 
         try {
-            String keyrange = sendKeyRange("keyrange ");
-            metadata.updateClientMetadata(keyrange);
+            refreshMetadata();
 
         } catch (SizeLimitExceededException e) {
             LOGGER.info("Exception getting keyrange while searching for the correct server.");
@@ -299,15 +368,11 @@ public class TestStore implements KVStore {
      */
     @Override
     public KVMessage put(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        hotValues.remove(msg.getKey());
         // convert key and value to Base64
-        String b64Key = B64Util.b64encode(msg.getKey());
-        String b64Value = B64Util.b64encode(msg.getValue());
-        String b64Pass = "";
-        if(inputPassword.isInputPassword())
-            b64Pass = B64Util.b64encode(msg.getPassword());
         // put message to server has the following format
         // PUT <Base64 encoded key> <Base64 encoded value>
-        String message = String.format("PUT %s %s %s \r\n", b64Key, b64Value, b64Pass);
+        String message = putCommand(msg) + "\r\n";
         LOGGER.info(String.format("Message to server: %s", message));
 
         // try to send data, exceptions will be rethrown
@@ -320,9 +385,9 @@ public class TestStore implements KVStore {
         KVMessage retMsg = receiveKVMessage();
         int attempts = 0;
         while (attempts < 3) {
-            if (retMsg.getStatus()== KVMessage.StatusType.SERVER_STOPPED) {
+            if (isRetryable(retMsg)) {
                 try {
-                    MILLISECONDS.sleep((int) (Math.random() * Math.min(1024, Math.pow(2, attempts++))));
+                    MILLISECONDS.sleep(backoffMillis(retMsg, attempts++));
                     communicator.send(message.getBytes(TELNET_ENCODING));
                     retMsg = receiveKVMessage();
                 } catch (InterruptedException e) {
@@ -347,13 +412,64 @@ public class TestStore implements KVStore {
      */
     @Override
     public KVMessage get(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        if (hotKeyCacheMillis <= 0 || !isHotKey(msg.getKey()))
+            return fetch(msg);
+        Pair<KVMessage, Long> cached = hotValues.get(msg.getKey());
+        if (cached != null && System.currentTimeMillis() - cached.getValue() < hotKeyCacheMillis)
+            return cached.getKey();
+        KVMessage answer = fetch(msg);
+        if (answer != null && answer.getStatus() == KVMessage.StatusType.GET_SUCCESS)
+            hotValues.put(msg.getKey(), new Pair<>(answer, System.currentTimeMillis()));
+        return answer;
+    }
+
+    /**
+     * Enables or disables caching the values of hot keys. The servers copy keys which get very many requests to all
+     * servers and report them with hotkeys, this client then answers gets of such keys from its own cache. A cached
+     * value may miss the latest puts of other clients for up to the given time.
+     *
+     * @param millis how long a value of a hot key is used, 0 disables the cache.
+     */
+    public void setHotKeyCaching(long millis) {
+        this.hotKeyCacheMillis = millis;
+        if (millis <= 0)
+            hotValues.clear();
+    }
+
+    /**
+     * @return true if the key was hot when the hot keys were fetched last, they are fetched again every
+     * {@link #HOT_KEYS_REFRESH_MILLIS}.
+     */
+    private boolean isHotKey(String key) throws IOException, IllegalStateException, SizeLimitExceededException {
+        long now = System.currentTimeMillis();
+        if (now - hotKeysFetchedAt >= HOT_KEYS_REFRESH_MILLIS) {
+            hotKeysFetchedAt = now;
+            String[] answer = sendKeyRange("hotkeys").trim().split(" ");
+            Set<String> keys = new HashSet<>();
+            // servers which do not know hotkeys answer with an error
+            if (answer[0].equalsIgnoreCase("hotkeys"))
+                for (int i = 1; i < answer.length; i++)
+                    keys.add(B64Util.b64decode(answer[i]));
+            hotKeys = keys;
+            // cooled down keys are read from the servers again
+            hotValues.keySet().retainAll(keys);
+        }
+        return hotKeys.contains(key);
+    }
+
+    /**
+     * Sends a get to the servers, see {@link #get(KVMessage)}.
+     */
+    private KVMessage fetch(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        if (readBalancing) {
+            KVMessage balanced = balancedGet(msg);
+            if (balanced != null)
+                return balanced;
+        }
         // convert key to Base64
         // get message to server has the following format
         // GET <Base64 encoded key>
-        String b64Pass = "";
-        if(inputPassword.isInputPassword())
-            b64Pass = B64Util.b64encode(msg.getPassword());
-        String message = String.format("GET %s %s\r\n", B64Util.b64encode(msg.getKey()),b64Pass);
+        String message = getCommand(msg) + "\r\n";
         LOGGER.info(String.format("Message to server: %s", message));
 
         // try to send data, exceptions will be rethrown
@@ -366,9 +482,9 @@ public class TestStore implements KVStore {
         KVMessage retMsg = receiveKVMessage();
         int attempts = 0;
         while (attempts < 4) {
-            if (retMsg.getStatus()== KVMessage.StatusType.SERVER_STOPPED) {
+            if (isRetryable(retMsg)) {
                 try {
-                    MILLISECONDS.sleep((int) (Math.random() * Math.min(1024, Math.pow(2, attempts++))));
+                    MILLISECONDS.sleep(backoffMillis(retMsg, attempts++));
                     communicator.send(message.getBytes(TELNET_ENCODING));
                     retMsg = receiveKVMessage();
                 } catch (InterruptedException e) {
@@ -393,13 +509,11 @@ public class TestStore implements KVStore {
      */
     @Override
     public KVMessage delete(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        hotValues.remove(msg.getKey());
         // convert key to Base64
         // delete message to server has the following format
         // DELETE <Base64 encoded key>
-        String b64Pass = "";
-        if(inputPassword.isInputPassword())
-            b64Pass = B64Util.b64encode(msg.getPassword());
-        String message = String.format("DELETE %s %s\r\n", B64Util.b64encode(msg.getKey()),b64Pass);
+        String message = deleteCommand(msg) + "\r\n";
         LOGGER.info(String.format("Message to server: %s", message));
 
         // try to send data, exceptions will be rethrown
@@ -412,9 +526,9 @@ public class TestStore implements KVStore {
         KVMessage retMsg = receiveKVMessage();
         int attempts = 0;
         while (attempts < 4) {
-            if (retMsg.getStatus()== KVMessage.StatusType.SERVER_STOPPED) {
+            if (isRetryable(retMsg)) {
                 try {
-                    MILLISECONDS.sleep((int) (Math.random() * Math.min(1024, Math.pow(2, attempts++))));
+                    MILLISECONDS.sleep(backoffMillis(retMsg, attempts++));
                     communicator.send(message.getBytes(TELNET_ENCODING));
                     retMsg = receiveKVMessage();
                 } catch (InterruptedException e) {
@@ -428,6 +542,488 @@ public class TestStore implements KVStore {
         return retMsg;
     }
 
+    /**
+     * Inserts a key-value pair which expires after the given time to live.
+     *
+     * @param msg        KVMessage containing key and value to put into the store.
+     * @param ttlSeconds time to live of the pair in seconds.
+     * @return a message that confirms the insertion of the tuple or an error.
+     * @throws IOException                if there is an IOException during the put.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    public KVMessage put(KVMessage msg, long ttlSeconds) throws IOException, IllegalStateException, SizeLimitExceededException {
+        hotValues.remove(msg.getKey());
+        // put with ttl message to server has the following format
+        // PUT_TTL <Base64 encoded key> <seconds> <Base64 encoded value>
+        String b64Pass = "";
+        if(inputPassword.isInputPassword())
+            b64Pass = B64Util.b64encode(msg.getPassword());
+        String message = String.format("PUT_TTL %s %d %s %s \r\n", B64Util.b64encode(msg.getKey()), ttlSeconds, B64Util.b64encode(msg.getValue()), b64Pass);
+        LOGGER.info(String.format("Message to server: %s", message));
+        return sendRetrying(msg.getKey(), message);
+    }
+
+    /**
+     * Replaces the value of a key only if its current value equals the expected value. Comparison and write are
+     * executed atomically by the server.
+     *
+     * @param msg      KVMessage containing the key and the new value.
+     * @param expected the expected current value, null if the key must not exist yet.
+     * @return CAS_SUCCESS, CAS_FAILED with the current value or an error.
+     * @throws IOException                if there is an IOException during the cas.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    public KVMessage cas(KVMessage msg, String expected) throws IOException, IllegalStateException, SizeLimitExceededException {
+        hotValues.remove(msg.getKey());
+        // cas message to server has the following format
+        // CAS <Base64 encoded key> <Base64 encoded expected value or -> <Base64 encoded new value>
+        String message = String.format("CAS %s %s %s\r\n", B64Util.b64encode(msg.getKey()),
+                expected == null ? "-" : B64Util.b64encode(expected), B64Util.b64encode(msg.getValue()));
+        LOGGER.info(String.format("Message to server: %s", message));
+        return sendRetrying(msg.getKey(), message);
+    }
+
+    /**
+     * Atomically adds a delta to the numeric value of a key, a missing key counts as 0.
+     *
+     * @param key   the key of the counter.
+     * @param delta the value to add, may be negative.
+     * @return INCR_SUCCESS with the new value or an error.
+     * @throws IOException                if there is an IOException during the incr.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    public KVMessage incr(String key, long delta) throws IOException, IllegalStateException, SizeLimitExceededException {
+        hotValues.remove(key);
+        // incr message to server has the following format
+        // INCR <Base64 encoded key> <decimal delta>
+        String message = String.format("INCR %s %d\r\n", B64Util.b64encode(key), delta);
+        LOGGER.info(String.format("Message to server: %s", message));
+        return sendRetrying(key, message);
+    }
+
+    /**
+     * Sends a message and retries with backoff while the server is stopped or busy. If the server is not responsible
+     * for the key, the message is sent again to the responsible server like a put or get of {@link TestClient}.
+     */
+    private KVMessage sendRetrying(String key, String message) throws IOException, IllegalStateException, SizeLimitExceededException {
+        communicator.send(message.getBytes(TELNET_ENCODING));
+        KVMessage retMsg = receiveKVMessage();
+        int attempts = 0;
+        while (attempts < 3 && retMsg != null && (isRetryable(retMsg) || retMsg.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)) {
+            try {
+                if (retMsg.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)
+                    getCorrectServer(key);
+                MILLISECONDS.sleep(backoffMillis(retMsg, attempts++));
+                communicator.send(message.getBytes(TELNET_ENCODING));
+                retMsg = receiveKVMessage();
+            } catch (InterruptedException e) {
+                LOGGER.warning("Error while retrying to send request");
+            }
+        }
+        return retMsg;
+    }
+
+    /**
+     * @return true if the server did not process the request and it should be sent again after a backoff.
+     */
+    private static boolean isRetryable(KVMessage msg) {
+        return msg != null && (msg.getStatus() == KVMessage.StatusType.SERVER_STOPPED
+                || msg.getStatus() == KVMessage.StatusType.SERVER_BUSY);
+    }
+
+    /**
+     * Returns the time to wait before the next attempt, an exponential backoff with jitter. If the server answered
+     * server_busy, its retry-after hint is added, so the client never retries before the server expects to have
+     * capacity again.
+     *
+     * @param msg     the last answer of the server.
+     * @param attempt number of attempts made so far.
+     * @return backoff in milliseconds.
+     */
+    private static long backoffMillis(KVMessage msg, int attempt) {
+        long backoff = (long) (Math.random() * Math.min(1024, Math.pow(2, attempt)));
+        if (msg != null && msg.getStatus() == KVMessage.StatusType.SERVER_BUSY)
+            backoff += retryAfterMillis(msg.getValue());
+        return backoff;
+    }
+
+    /**
+     * @param hint the retry-after token of a server_busy answer.
+     * @return the retry-after hint in milliseconds, 0 if the token is missing or invalid.
+     */
+    private static long retryAfterMillis(String hint) {
+        try {
+            return Math.max(0, Long.parseLong(hint));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Sends a put request without waiting for the answer, see {@link RequestPipeline}.
+     *
+     * @param msg KVMessage containing key and value to put into the store.
+     * @return a future which is completed with the answer of the server.
+     * @throws IOException                if there is an IOException during the send.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    public CompletableFuture<KVMessage> putAsync(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        hotValues.remove(msg.getKey());
+        return pipeline().submit(putCommand(msg));
+    }
+
+    /**
+     * Sends a get request without waiting for the answer, see {@link RequestPipeline}.
+     *
+     * @param msg KVMessage containing the key to get from the store.
+     * @return a future which is completed with the answer of the server.
+     * @throws IOException                if there is an IOException during the send.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    public CompletableFuture<KVMessage> getAsync(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        if (readBalancing) {
+            RequestPipeline readPipeline = readPipeline(msg);
+            if (readPipeline != null)
+                return readPipeline.submit(getCommand(msg));
+        }
+        return pipeline().submit(getCommand(msg));
+    }
+
+    /**
+     * Enables or disables spreading gets over the coordinator and the replicas of a key, see {@link ReadBalancer}.
+     * With read balancing, a get may return a value which the replica has not yet replaced by the latest put.
+     *
+     * @param readBalancing true to send gets to the server of the key with the fewest outstanding requests.
+     */
+    public void setReadBalancing(boolean readBalancing) {
+        this.readBalancing = readBalancing;
+    }
+
+    /**
+     * Sends a get to the server chosen by the read balancer.
+     *
+     * @return the answer, null if the get has to be sent to the connected server instead.
+     */
+    private KVMessage balancedGet(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        RequestPipeline readPipeline = readPipeline(msg);
+        if (readPipeline == null)
+            return null;
+        KVMessage answer;
+        try {
+            answer = readPipeline.submit(getCommand(msg)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | IOException | IllegalStateException e) {
+            LOGGER.warning("Balanced get failed: " + e.getMessage());
+            readPipelines.values().remove(readPipeline);
+            readPipeline.close();
+            return null;
+        }
+        if (answer.getStatus() == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE || isRetryable(answer)) {
+            // the ring changed or the server is not ready, fetch the ranges again for the next get
+            readBalancer.clear();
+            return null;
+        }
+        return answer;
+    }
+
+    /**
+     * Returns the pipeline to the server of the key with the fewest outstanding requests, the ranges are fetched
+     * with keyrange_read and the pipeline is opened if necessary.
+     *
+     * @return the pipeline, null if no server could be chosen or reached.
+     */
+    private synchronized RequestPipeline readPipeline(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        if (readBalancer.isEmpty())
+            readBalancer.update(sendKeyRange("keyrange_read"));
+        String server = readBalancer.choose(Util.calculateHash(B64Util.b64encode(msg.getKey())), this::outstanding);
+        if (server == null)
+            return null;
+        RequestPipeline readPipeline = readPipelines.get(server);
+        if (readPipeline != null)
+            return readPipeline;
+        try {
+            int separator = server.lastIndexOf(':');
+            readPipeline = new RequestPipeline(server.substring(0, separator), Integer.parseInt(server.substring(separator + 1)));
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.warning("Could not connect to " + server);
+            readBalancer.clear();
+            return null;
+        }
+        readPipelines.put(server, readPipeline);
+        return readPipeline;
+    }
+
+    private int outstanding(String server) {
+        RequestPipeline readPipeline = readPipelines.get(server);
+        return readPipeline == null ? 0 : readPipeline.inFlight();
+    }
+
+    /**
+     * Sends a delete request without waiting for the answer, see {@link RequestPipeline}.
+     *
+     * @param msg KVMessage containing the key to delete from the store.
+     * @return a future which is completed with the answer of the server.
+     * @throws IOException                if there is an IOException during the send.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the message is greater than 128 kB.
+     */
+    public CompletableFuture<KVMessage> deleteAsync(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
+        hotValues.remove(msg.getKey());
+        return pipeline().submit(deleteCommand(msg));
+    }
+
+    /**
+     * Gets the values of many keys. The keys are grouped by their responsible server and every server gets one
+     * mget request, all requests are sent before the first answer is read.
+     *
+     * @param msgs KVMessages containing the keys to get.
+     * @return the answers in the order of the requests, null for keys that could not be answered.
+     * @throws IOException                if there is an IOException while fetching the metadata.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the keyrange request is greater than 128 kB.
+     */
+    public List<KVMessage> mget(List<KVMessage> msgs) throws IOException, IllegalStateException, SizeLimitExceededException {
+        return batch("MGET", msgs);
+    }
+
+    /**
+     * Inserts many key-value pairs with one mput request per responsible server, see {@link #mget(List)}.
+     *
+     * @param msgs KVMessages containing the keys and values to put.
+     * @return the answers in the order of the requests, null for pairs that could not be written.
+     * @throws IOException                if there is an IOException while fetching the metadata.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the keyrange request is greater than 128 kB.
+     */
+    public List<KVMessage> mput(List<KVMessage> msgs) throws IOException, IllegalStateException, SizeLimitExceededException {
+        return batch("MPUT", msgs);
+    }
+
+    /**
+     * Deletes many keys with one mdelete request per responsible server, see {@link #mget(List)}.
+     *
+     * @param msgs KVMessages containing the keys to delete.
+     * @return the answers in the order of the requests, null for keys that could not be deleted.
+     * @throws IOException                if there is an IOException while fetching the metadata.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if the keyrange request is greater than 128 kB.
+     */
+    public List<KVMessage> mdelete(List<KVMessage> msgs) throws IOException, IllegalStateException, SizeLimitExceededException {
+        return batch("MDELETE", msgs);
+    }
+
+    private List<KVMessage> batch(String command, List<KVMessage> msgs) throws IOException, IllegalStateException, SizeLimitExceededException {
+        List<KVMessage> results = new ArrayList<>(Collections.nCopies(msgs.size(), null));
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < msgs.size(); i++)
+            pending.add(i);
+
+        int attempts = 0;
+        long retryAfter = 0;
+        while (!pending.isEmpty() && attempts < 3) {
+            if (attempts > 0) {
+                try {
+                    MILLISECONDS.sleep((long) (Math.random() * Math.min(1024, Math.pow(2, attempts))) + retryAfter);
+                } catch (InterruptedException e) {
+                    LOGGER.warning("Error while retrying to send " + command + " request");
+                }
+            }
+            attempts++;
+            // the known ranges are tried first, they are fetched again once a server rejected a key
+            if (attempts > 1 || metadata.isEmpty())
+                refreshMetadata();
+
+            // group keys by responsible server and split the groups into frames below the size limit
+            Map<String, List<List<Integer>>> frames = new LinkedHashMap<>();
+            Map<String, Integer> frameBytes = new HashMap<>();
+            for (int i : pending) {
+                String b64Key = B64Util.b64encode(msgs.get(i).getKey());
+                int bytes = b64Key.length() + 1;
+                if (command.equals("MPUT"))
+                    bytes += B64Util.b64encode(msgs.get(i).getValue()).length() + 1;
+                Pair<String, Integer> responsible = metadata.getServerResponsible(Util.calculateHash(b64Key));
+                String server = responsible.getFirst() + ":" + responsible.getSecond();
+                List<List<Integer>> serverFrames = frames.computeIfAbsent(server, k -> new ArrayList<>());
+                if (serverFrames.isEmpty() || frameBytes.get(server) + bytes > BATCH_BYTES) {
+                    serverFrames.add(new ArrayList<>());
+                    frameBytes.put(server, 0);
+                }
+                serverFrames.get(serverFrames.size() - 1).add(i);
+                frameBytes.put(server, frameBytes.get(server) + bytes);
+            }
+
+            // send all frames first, so the servers work on them in parallel
+            List<Pair<SocketCommunicator, List<Integer>>> sent = new ArrayList<>();
+            for (Map.Entry<String, List<List<Integer>>> server : frames.entrySet()) {
+                SocketCommunicator connection = batchConnection(server.getKey());
+                if (connection == null)
+                    continue;
+                for (List<Integer> frame : server.getValue()) {
+                    StringBuilder message = new StringBuilder(command);
+                    for (int i : frame) {
+                        message.append(' ').append(B64Util.b64encode(msgs.get(i).getKey()));
+                        if (command.equals("MPUT"))
+                            message.append(' ').append(B64Util.b64encode(msgs.get(i).getValue()));
+                    }
+                    message.append("\r\n");
+                    try {
+                        connection.send(message.toString().getBytes(TELNET_ENCODING));
+                        sent.add(new Pair<>(connection, frame));
+                    } catch (IOException e) {
+                        LOGGER.warning("Could not send batch to " + server.getKey());
+                        batchConnections.remove(server.getKey());
+                        break;
+                    }
+                }
+            }
+
+            pending = new ArrayList<>();
+            retryAfter = 0;
+            for (Pair<SocketCommunicator, List<Integer>> frame : sent) {
+                String[] answer;
+                try {
+                    String msg = new String(frame.getFirst().receive(), TELNET_ENCODING);
+                    answer = msg.substring(0, msg.length() - 2).split(" ");
+                } catch (IOException | IllegalStateException e) {
+                    LOGGER.warning("Connection lost while waiting for batch answer");
+                    batchConnections.values().remove(frame.getFirst());
+                    pending.addAll(frame.getSecond());
+                    continue;
+                }
+                if (KVMessage.parseStatus(answer[0]) != KVMessage.StatusType.BATCH_RESULT || answer.length != frame.getSecond().size() + 1) {
+                    // server stopped, busy, write lock or error, retry the whole frame
+                    LOGGER.info("Batch not executed: " + answer[0]);
+                    if (KVMessage.parseStatus(answer[0]) == KVMessage.StatusType.SERVER_BUSY && answer.length > 1)
+                        retryAfter = Math.max(retryAfter, retryAfterMillis(answer[1]));
+                    pending.addAll(frame.getSecond());
+                    continue;
+                }
+                for (int j = 0; j < frame.getSecond().size(); j++) {
+                    int i = frame.getSecond().get(j);
+                    String[] entry = answer[j + 1].split(":", -1);
+                    KVMessage.StatusType status = KVMessage.parseStatus(entry[0]);
+                    if (status == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE)
+                        pending.add(i);
+                    else
+                        results.set(i, new ClientMessage(status, B64Util.b64decode(entry[1]), B64Util.b64decode(entry[2])));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Streams all key-value pairs of the store to the consumer. Every server is scanned page by page in hash order,
+     * so neither the client nor the servers hold more than one page in memory.
+     *
+     * @param pageSize number of pairs requested per page.
+     * @param consumer receives every pair as a KVMessage with status SCAN_ENTRY.
+     * @return the number of pairs passed to the consumer.
+     * @throws IOException                if a server is not reachable or the scan fails.
+     * @throws IllegalStateException      if currently not connected to a KVServer.
+     * @throws SizeLimitExceededException if a request is greater than 128 kB.
+     */
+    public int scan(int pageSize, Consumer<KVMessage> consumer) throws IOException, IllegalStateException, SizeLimitExceededException {
+        refreshMetadata();
+        int count = 0;
+        // a server with several tokens returns the pairs of all of them in one scan
+        Set<String> servers = new LinkedHashSet<>();
+        for (KVServerInfo info : metadata.getServerMap().values())
+            servers.add(info.getServerId());
+        for (String server : servers) {
+            SocketCommunicator connection = batchConnection(server);
+            if (connection == null)
+                throw new IOException("Could not connect to " + server);
+
+            String token = "-";
+            do {
+                connection.send(String.format("SCAN %s - %d\r\n", token, pageSize).getBytes(TELNET_ENCODING));
+                token = null;
+                while (token == null) {
+                    String msg = new String(connection.receive(), TELNET_ENCODING);
+                    String[] answer = msg.substring(0, msg.length() - 2).split(" ");
+                    KVMessage.StatusType status = KVMessage.parseStatus(answer[0]);
+                    if (status == KVMessage.StatusType.SCAN_ENTRY) {
+                        consumer.accept(new ClientMessage(status, B64Util.b64decode(answer[1]), B64Util.b64decode(answer[2])));
+                        count++;
+                    } else if (status == KVMessage.StatusType.SCAN_END) {
+                        token = answer[1];
+                    } else {
+                        throw new IOException("Scan failed at " + server + ": " + answer[0]);
+                    }
+                }
+            } while (!token.equals("-"));
+        }
+        return count;
+    }
+
+    /**
+     * Returns a connection to the given server used for batch and scan requests, the connection is opened if necessary.
+     *
+     * @param server address and port of the server, separated by a colon.
+     * @return the connection, null if the server is not reachable.
+     */
+    private SocketCommunicator batchConnection(String server) {
+        SocketCommunicator connection = batchConnections.get(server);
+        if (connection != null && connection.isConnected())
+            return connection;
+        connection = new SocketCommunicator();
+        try {
+            int separator = server.lastIndexOf(':');
+            connection.connect(server.substring(0, separator), Integer.parseInt(server.substring(separator + 1)));
+            // read the connection greeting of the server
+            connection.receive();
+        } catch (IOException | IllegalStateException e) {
+            LOGGER.warning("Could not connect to " + server);
+            return null;
+        }
+        batchConnections.put(server, connection);
+        return connection;
+    }
+
+    /**
+     * Returns the pipeline to the currently connected server, the pipeline is (re)opened if necessary.
+     */
+    private synchronized RequestPipeline pipeline() throws IOException, IllegalStateException {
+        if (!communicator.isConnected())
+            throw new IllegalStateException("Not connected to KVServer!");
+        if (pipeline != null && (!pipeline.getAddress().equals(communicator.getAddress()) || pipeline.getPort() != communicator.getPort())) {
+            pipeline.close();
+            pipeline = null;
+        }
+        if (pipeline == null)
+            pipeline = new RequestPipeline(communicator.getAddress(), communicator.getPort());
+        return pipeline;
+    }
+
+    private String putCommand(KVMessage msg) {
+        String b64Pass = "";
+        if(inputPassword.isInputPassword())
+            b64Pass = B64Util.b64encode(msg.getPassword());
+        return String.format("PUT %s %s %s ", B64Util.b64encode(msg.getKey()), B64Util.b64encode(msg.getValue()), b64Pass);
+    }
+
+    private String getCommand(KVMessage msg) {
+        String b64Pass = "";
+        if(inputPassword.isInputPassword())
+            b64Pass = B64Util.b64encode(msg.getPassword());
+        return String.format("GET %s %s", B64Util.b64encode(msg.getKey()), b64Pass);
+    }
+
+    private String deleteCommand(KVMessage msg) {
+        String b64Pass = "";
+        if(inputPassword.isInputPassword())
+            b64Pass = B64Util.b64encode(msg.getPassword());
+        return String.format("DELETE %s %s", B64Util.b64encode(msg.getKey()), b64Pass);
+    }
+
     @Override
     public KVMessage unknownCommand(KVMessage msg) throws IOException, IllegalStateException, SizeLimitExceededException {
         // convert key to Base64
@@ -456,7 +1052,17 @@ public class TestStore implements KVStore {
      */
     private KVMessage receiveKVMessage() throws IOException, IllegalStateException {
         String msg = new String(communicator.receive(), TELNET_ENCODING);
-        String[] rcvMsg = msg.substring(0, msg.length() - 2).split("\\s");
+        return parseKVMessage(msg.substring(0, msg.length() - 2));
+    }
+
+    /**
+     * Decodes an answer of the KVServer into a KVMessage.
+     *
+     * @param msg answer of the server without request id and \r\n.
+     * @return Decoded KVMessage, null if the answer is an error or cannot be decoded.
+     */
+    static KVMessage parseKVMessage(String msg) {
+        String[] rcvMsg = msg.split("\\s");
         if (KVMessage.parseStatus(rcvMsg[0]) == null)
             return null;
 
@@ -477,6 +1083,10 @@ public class TestStore implements KVStore {
         if (status == KVMessage.StatusType.SERVER_STOPPED) {
             return new ClientMessage(status, null, null);
         }
+        if (status == KVMessage.StatusType.SERVER_BUSY) {
+            // server_busy <retry-after in ms>
+            return new ClientMessage(status, null, rcvMsg.length > 1 ? rcvMsg[1] : null);
+        }
         if (status == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE) {
             return new ClientMessage(status, null, null);
         } else {
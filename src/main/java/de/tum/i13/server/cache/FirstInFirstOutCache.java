@@ -118,10 +118,10 @@ public class FirstInFirstOutCache implements Cache{
         if (msg.getStatus() != KVMessage.StatusType.GET)
             return new ServerMessage(KVMessage.StatusType.GET_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
 
-        LOGGER.info("Getting cache value for " + msg.getKey());
+        LOGGER.fine("Getting cache value for " + msg.getKey());
         String value = cache.get(msg.getKey());
         if (value == null) {
-            LOGGER.info("Key not in cache: " + msg.getKey());
+            LOGGER.fine("Key not in cache: " + msg.getKey());
             return new ServerMessage(KVMessage.StatusType.GET_ERROR, msg.getKey(), B64Util.b64encode("Key not in cache!"));
         }
 
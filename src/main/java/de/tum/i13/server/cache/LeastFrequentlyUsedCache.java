@@ -136,7 +136,7 @@ public class LeastFrequentlyUsedCache implements Cache {
 
         String key = msg.getKey();
         CacheItem item = cache.get(key);
-        LOGGER.info("Getting from cache: " + key);
+        LOGGER.fine("Getting from cache: " + key);
 
         if (item != null) {
             // lock item to get current value
@@ -4,15 +4,12 @@ import de.tum.i13.server.kv.KVMessage;
 import de.tum.i13.server.kv.ServerMessage;
 import de.tum.i13.shared.B64Util;
 
-import java.util.Deque;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.LinkedHashMap;
 import java.util.logging.Logger;
 
 /**
- * Class implementing an LRU cache to store kv-pairs.
+ * Class implementing an LRU cache to store kv-pairs. The pairs are kept in a LinkedHashMap in access order, so every
+ * operation takes constant time. A get also runs on the I/O thread, so all operations hold the monitor only briefly.
  *
  * @version 0.1
  * @since   2021-11-06
@@ -21,20 +18,17 @@ public class LeastRecentlyUsedCache implements Cache{
 
     private final static Logger LOGGER = Logger.getLogger(LeastRecentlyUsedCache.class.getName());
 
-    private Map<String, String> cache;
-    private Deque<String> lru;
-    private int maxSize;
-    private AtomicInteger currentSize;
+    // guarded by this, iterates from the least to the most recently used key
+    private final LinkedHashMap<String, String> cache;
+    private volatile int maxSize;
 
     private static class Holder {
         private static final Cache INSTANCE = new LeastRecentlyUsedCache();
     }
 
     private LeastRecentlyUsedCache() {
-        cache = new ConcurrentHashMap<>();
-        lru = new ConcurrentLinkedDeque<>();
+        cache = new LinkedHashMap<>(16, 0.75f, true);
         this.maxSize = -1;
-        currentSize = new AtomicInteger();
     }
 
     /**
@@ -51,7 +45,7 @@ public class LeastRecentlyUsedCache implements Cache{
      *
      * @param maxSize the maximum number of keys to store in the cache.
      */
-    public void initCache(int maxSize) {
+    public synchronized void initCache(int maxSize) {
         // only init if cache is null
         if (this.maxSize < 0) {
             LOGGER.info(String.format("Created LRU cache with size %d", maxSize));
@@ -76,32 +70,18 @@ public class LeastRecentlyUsedCache implements Cache{
         if (msg.getStatus() != KVMessage.StatusType.PUT)
             return new ServerMessage(KVMessage.StatusType.PUT_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
 
-        LOGGER.info(String.format("Put into cache: <%s, %s>", msg.getKey(), msg.getValue()));
-        LOGGER.finer("LRU before put: " + lru);
-        // insert into lru
-        lru.add(msg.getKey());
-
-        // insert into map
-        if (cache.put(msg.getKey(), msg.getValue()) == null) {
-            if (currentSize.getAndAccumulate(maxSize, (current, max) -> {
-                if (current < max)
-                    return ++current;
-                return current;
-            }) >= maxSize) {
-                LOGGER.info("Cache full, removing least recently used...");
-                // key not in lru and cache exceeding size --> remove last element
-                cache.remove(lru.remove());
+        LOGGER.fine(String.format("Put into cache: <%s, %s>", msg.getKey(), msg.getValue()));
+        synchronized (this) {
+            // an update moves the key to the most recently used end
+            if (cache.put(msg.getKey(), msg.getValue()) != null)
+                return new ServerMessage(KVMessage.StatusType.PUT_UPDATE, msg.getKey(), msg.getValue());
+            if (cache.size() > maxSize) {
+                String eldest = cache.keySet().iterator().next();
+                LOGGER.fine("Cache full, removing least recently used key " + eldest);
+                cache.remove(eldest);
             }
-            LOGGER.finer("LRU after put: " + lru);
-            return new ServerMessage(KVMessage.StatusType.PUT_SUCCESS, msg.getKey(), msg.getValue());
         }
-
-        LOGGER.finer("Key already in cache, removing duplicate: " + msg.getKey());
-        // key in lru --> remove duplicate
-        lru.remove(msg.getKey());
-
-        LOGGER.finer("LRU after put: " + lru);
-        return new ServerMessage(KVMessage.StatusType.PUT_UPDATE, msg.getKey(), msg.getValue());
+        return new ServerMessage(KVMessage.StatusType.PUT_SUCCESS, msg.getKey(), msg.getValue());
     }
 
     /**
@@ -121,16 +101,13 @@ public class LeastRecentlyUsedCache implements Cache{
         if (msg.getStatus() != KVMessage.StatusType.DELETE)
             return new ServerMessage(KVMessage.StatusType.DELETE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
 
-        LOGGER.info(String.format("Deleting key from cache: %s", msg.getKey()));
-        LOGGER.finer("LRU before delete: " + lru);
-        String value = cache.remove(msg.getKey());
-        lru.remove(msg.getKey());
-
-        LOGGER.finer("LRU after delete: " + lru);
-        if (value != null) {
-            currentSize.decrementAndGet();
-            return new ServerMessage(KVMessage.StatusType.DELETE_SUCCESS, msg.getKey(), msg.getValue());
+        LOGGER.fine(String.format("Deleting key from cache: %s", msg.getKey()));
+        String value;
+        synchronized (this) {
+            value = cache.remove(msg.getKey());
         }
+        if (value != null)
+            return new ServerMessage(KVMessage.StatusType.DELETE_SUCCESS, msg.getKey(), msg.getValue());
         return new ServerMessage(KVMessage.StatusType.DELETE_ERROR, msg.getKey(), B64Util.b64encode("Key not in cache!"));
     }
 
@@ -151,22 +128,13 @@ public class LeastRecentlyUsedCache implements Cache{
         if (msg.getStatus() != KVMessage.StatusType.GET)
             return new ServerMessage(KVMessage.StatusType.GET_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
 
-        LOGGER.info(String.format("Getting cache value for %s", msg.getKey()));
-        LOGGER.finer("LRU before get: " + lru);
-        String value = cache.get(msg.getKey());
-
-        if (value == null) {
-            LOGGER.info("Key not in cache");
-            LOGGER.finer("LRU after get: " + lru);
-            return new ServerMessage(KVMessage.StatusType.GET_ERROR, msg.getKey(), B64Util.b64encode("Key not in cache!"));
+        String value;
+        synchronized (this) {
+            // an access moves the key to the most recently used end
+            value = cache.get(msg.getKey());
         }
-
-        // insert at tail of lru
-        lru.add(msg.getKey());
-        // delete old entry
-        lru.remove(msg.getKey());
-        LOGGER.finer("LRU after get: " + lru);
-
+        if (value == null)
+            return new ServerMessage(KVMessage.StatusType.GET_ERROR, msg.getKey(), B64Util.b64encode("Key not in cache!"));
         return new ServerMessage(KVMessage.StatusType.GET_SUCCESS, msg.getKey(), value);
     }
 }
@@ -0,0 +1,112 @@
+package de.tum.i13.server.cache;
+
+import de.tum.i13.shared.Pair;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Space-Saving sketch
+ * Finds the most requested keys with a fixed number of counters, see Metwally et al., "Efficient Computation of
+ * Frequent and Top-k Elements in Data Streams". A key without counter takes over the counter with the lowest count
+ * once all counters are in use, and remembers that count as its possible overestimation. A key requested more than
+ * total / capacity times is therefore always counted, and count - error never exceeds its true number of requests.
+ *
+ * @version 0.1
+ * @since   2022-01-21
+ */
+public class SpaceSaving {
+
+    private static class Counter implements Comparable<Counter> {
+        private final String key;
+        private final long seq;
+        private final long count;
+        private final long error;
+
+        private Counter(String key, long seq, long count, long error) {
+            this.key = key;
+            this.seq = seq;
+            this.count = count;
+            this.error = error;
+        }
+
+        public int compareTo(Counter other) {
+            int cmp = Long.compare(count, other.count);
+            return cmp != 0 ? cmp : Long.compare(seq, other.seq);
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, Counter> counters = new HashMap<>();
+    // ordered by count, the first counter is replaced next
+    private final TreeSet<Counter> byCount = new TreeSet<>();
+    private long nextSeq;
+
+    /**
+     * @param capacity number of counters, at least 1.
+     */
+    public SpaceSaving(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("At least one counter is needed");
+        this.capacity = capacity;
+    }
+
+    /**
+     * Counts a request of the key.
+     */
+    public synchronized void offer(String key) {
+        Counter counter = counters.get(key);
+        Counter updated;
+        if (counter != null) {
+            byCount.remove(counter);
+            updated = new Counter(key, counter.seq, counter.count + 1, counter.error);
+        } else if (counters.size() < capacity) {
+            updated = new Counter(key, nextSeq++, 1, 0);
+        } else {
+            Counter lowest = byCount.pollFirst();
+            counters.remove(lowest.key);
+            updated = new Counter(key, nextSeq++, lowest.count + 1, lowest.count);
+        }
+        counters.put(key, updated);
+        byCount.add(updated);
+    }
+
+    /**
+     * @return number of requests the key got at least, 0 if it has no counter.
+     */
+    public synchronized long guaranteed(String key) {
+        Counter counter = counters.get(key);
+        return counter == null ? 0 : counter.count - counter.error;
+    }
+
+    /**
+     * @param minimum number of requests a key needs at least.
+     * @return key and guaranteed number of requests of every key with at least the minimum, most requested first.
+     */
+    public synchronized List<Pair<String, Long>> top(long minimum) {
+        List<Pair<String, Long>> top = new ArrayList<>();
+        Iterator<Counter> descending = byCount.descendingIterator();
+        while (descending.hasNext()) {
+            Counter counter = descending.next();
+            // the guaranteed count is at most the count, no later counter can reach the minimum
+            if (counter.count < minimum)
+                break;
+            if (counter.count - counter.error >= minimum)
+                top.add(new Pair<>(counter.key, counter.count - counter.error));
+        }
+        top.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return top;
+    }
+
+    /**
+     * Forgets all counts, e.g. to count the requests of the next interval.
+     */
+    public synchronized void clear() {
+        counters.clear();
+        byCount.clear();
+    }
+}
@@ -6,7 +6,11 @@ import de.tum.i13.shared.B64Util;
 
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 
 import static de.tum.i13.shared.Constants.TELNET_ENCODING;
@@ -151,6 +155,8 @@ public class DiskManager implements IDiskManager {
         try {
             if (dFile.exists()) {
                 byte[] value = Files.readAllBytes(Paths.get(filepath));
+                // an expiration belongs to the value, remove it together with the value
+                Files.deleteIfExists(Paths.get(getW_path() + msg.getKey() + ".ttl"));
                 if (dFile.delete())
                     return new ServerMessage(KVMessage.StatusType.DELETE_SUCCESS, msg.getKey(), new String(value, TELNET_ENCODING));
                 else
@@ -166,4 +172,74 @@ public class DiskManager implements IDiskManager {
 
     }
 
+    /**
+     * Stores the expiration time of a key next to its value in a &lt;key&gt;.ttl file.
+     *
+     * @param key      the key of the value.
+     * @param expiresAt expiration time in milliseconds since the epoch, 0 removes the expiration.
+     * @return true if the expiration was written or removed successfully.
+     */
+    public boolean writeExpiry(String key, long expiresAt) {
+        if (this.w_path == null)
+            return false;
+
+        Path path = Paths.get(getW_path() + key + ".ttl");
+        try {
+            if (expiresAt <= 0)
+                Files.deleteIfExists(path);
+            else
+                Files.write(path, Long.toString(expiresAt).getBytes(TELNET_ENCODING));
+            return true;
+        } catch (IOException e) {
+            LOGGER.info("IOException occurred while writing the expiration of " + key);
+            return false;
+        }
+    }
+
+    /**
+     * Reads the expiration times of all keys stored on disk.
+     *
+     * @return map from key to expiration time in milliseconds since the epoch.
+     */
+    public Map<String, Long> readExpirations() {
+        Map<String, Long> expirations = new HashMap<>();
+        if (this.w_path == null)
+            return expirations;
+
+        File[] files = new File(getW_path()).listFiles((dir, name) -> name.endsWith(".ttl"));
+        if (files == null)
+            return expirations;
+        for (File file : files) {
+            String key = file.getName().substring(0, file.getName().length() - 4);
+            try {
+                expirations.put(key, Long.parseLong(new String(Files.readAllBytes(file.toPath()), TELNET_ENCODING).trim()));
+            } catch (IOException | NumberFormatException e) {
+                LOGGER.info("Ignoring unreadable expiration of " + key);
+            }
+        }
+        return expirations;
+    }
+
+    /**
+     * Calls the consumer with key and value of every pair stored on disk.
+     *
+     * @param consumer called with key and value.
+     */
+    public void forEachContent(BiConsumer<String, String> consumer) {
+        if (this.w_path == null)
+            return;
+
+        File[] files = new File(getW_path()).listFiles((dir, name) -> name.endsWith(".dat"));
+        if (files == null)
+            return;
+        for (File file : files) {
+            String key = file.getName().substring(0, file.getName().length() - 4);
+            try {
+                consumer.accept(key, new String(Files.readAllBytes(file.toPath()), TELNET_ENCODING));
+            } catch (IOException e) {
+                LOGGER.info("Ignoring unreadable value of " + key);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,138 @@
+package de.tum.i13.server.disk;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Hint Store
+ * Keeps hints, i.e. mutations a replica has not received yet, in one append-only file per replica, so that a replica
+ * which is unreachable or too slow does not fill the memory of its coordinator. Hints are read back in the order they
+ * were appended, a file is deleted as soon as all of its hints were read.
+ *
+ * Every hint is one line and must not contain a line break. Hints left over from a previous run are deleted when the
+ * store is created, they are addressed to intra ports which do not exist anymore.
+ *
+ * @version 0.1
+ * @since   2022-01-19
+ */
+public class HintStore {
+
+    private static final Logger LOGGER = Logger.getLogger(HintStore.class.getName());
+
+    private static class Hints {
+        private final Path file;
+        private final BufferedWriter writer;
+        private final BufferedReader reader;
+        private int pending;
+
+        private Hints(Path file) throws IOException {
+            this.file = file;
+            this.writer = Files.newBufferedWriter(file, StandardCharsets.ISO_8859_1, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            this.reader = Files.newBufferedReader(file, StandardCharsets.ISO_8859_1);
+        }
+
+        private void close() {
+            try {
+                writer.close();
+                reader.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                LOGGER.info("IOException occurred while deleting " + file);
+            }
+        }
+    }
+
+    private final Path dir;
+    private final Map<String, Hints> hints = new HashMap<>();
+
+    /**
+     * Creates a store which keeps its files in the given directory.
+     *
+     * @param dir directory of the hint files, created if it does not exist.
+     * @throws IOException if the directory cannot be created or cleaned up.
+     */
+    public HintStore(Path dir) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.hints")) {
+            for (Path file : files)
+                Files.delete(file);
+        }
+    }
+
+    /**
+     * Appends a hint for a replica and writes it to the file.
+     *
+     * @param replica address:port of the replica.
+     * @param hint    the hint, without line break.
+     * @throws IOException if the hint could not be written.
+     */
+    public synchronized void append(String replica, String hint) throws IOException {
+        Hints h = hints.get(replica);
+        if (h == null) {
+            h = new Hints(dir.resolve(replica.replace(':', '_') + ".hints"));
+            hints.put(replica, h);
+        }
+        h.writer.write(hint);
+        h.writer.write('\n');
+        h.writer.flush();
+        h.pending++;
+    }
+
+    /**
+     * Reads the oldest hint of a replica which was not read yet.
+     *
+     * @param replica address:port of the replica.
+     * @return the hint, null if the replica has no hints left.
+     * @throws IOException if the file could not be read, the remaining hints of the replica are discarded.
+     */
+    public synchronized String poll(String replica) throws IOException {
+        Hints h = hints.get(replica);
+        if (h == null)
+            return null;
+        String hint;
+        try {
+            hint = h.reader.readLine();
+        } catch (IOException e) {
+            discard(replica);
+            throw e;
+        }
+        if (hint == null) {
+            // every appended hint is flushed, so the reader only reaches the end after the last one
+            discard(replica);
+            return null;
+        }
+        h.pending--;
+        return hint;
+    }
+
+    /**
+     * @param replica address:port of the replica.
+     * @return number of hints of the replica which were not read yet.
+     */
+    public synchronized int size(String replica) {
+        Hints h = hints.get(replica);
+        return h == null ? 0 : h.pending;
+    }
+
+    /**
+     * Deletes all hints of a replica, e.g. because it left the ring.
+     *
+     * @param replica address:port of the replica.
+     */
+    public synchronized void discard(String replica) {
+        Hints h = hints.remove(replica);
+        if (h != null)
+            h.close();
+    }
+}
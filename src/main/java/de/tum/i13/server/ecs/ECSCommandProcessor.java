@@ -10,6 +10,8 @@ import java.nio.channels.SelectionKey;
 import java.util.StringJoiner;
 import java.util.logging.Logger;
 
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+
 public class ECSCommandProcessor implements CommandProcessor {
     private static final Logger LOGGER = Logger.getLogger(ECSCommandProcessor.class.getName());
 
@@ -19,6 +21,18 @@ public class ECSCommandProcessor implements CommandProcessor {
         this.ecs = ecs;
     }
 
+    /**
+     * Servers may send several messages at once, e.g. the last rebalance_progress and rebalance_success, every line
+     * is processed on its own.
+     */
+    @Override
+    public void process(SelectionKey selectionKey, byte[] data, int offset, int length) throws Exception {
+        for (String command : new String(data, offset, length, TELNET_ENCODING).split("\r\n")) {
+            if (!command.isBlank())
+                process(selectionKey, command);
+        }
+    }
+
     @Override
     public void process(SelectionKey selectionKey, String command) throws Exception {
         LOGGER.info("Received command: " + command.trim());
@@ -41,6 +55,12 @@ public class ECSCommandProcessor implements CommandProcessor {
                 LOGGER.info("Rebalance success.");
                 ecs.rebalance_success(new ServerMessage(KVMessage.StatusType.REBALANCE_SUCCESS, request[1], v.toString(), selectionKey));
                 break;
+            case "rebalance_progress":
+                ecs.rebalanceProgress(new ServerMessage(KVMessage.StatusType.REBALANCE_PROGRESS, request[1], v.toString(), selectionKey));
+                break;
+            case "metadata_request":
+                ecs.metadataRequest(new ServerMessage(KVMessage.StatusType.METADATA_REQUEST, request[1], v.toString(), selectionKey));
+                break;
             case "removeserver":
                 LOGGER.info("Server shutting down.");
                 ecs.removeServer(new ServerMessage(KVMessage.StatusType.REMOVE_SERVER, request[1], v.toString(), selectionKey));
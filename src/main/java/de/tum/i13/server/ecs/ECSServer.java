@@ -5,15 +5,28 @@ import de.tum.i13.server.kv.KVServerCommunicator;
 import de.tum.i13.server.kv.KVServerInfo;
 import de.tum.i13.server.kv.ServerMessage;
 import de.tum.i13.server.nio.SimpleNioServer;
+import de.tum.i13.server.replication.MerkleTree;
 import de.tum.i13.server.stripe.StripedCallable;
 import de.tum.i13.server.stripe.StripedExecutorService;
 import de.tum.i13.shared.B64Util;
+import de.tum.i13.shared.Metadata;
 import de.tum.i13.shared.Util;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.*;
 import java.util.logging.Logger;
@@ -23,21 +36,59 @@ import static de.tum.i13.shared.Constants.TELNET_ENCODING;
 public class ECSServer {
     private Logger LOGGER = Logger.getLogger(ECSServer.class.getName());
 
+    private static final String EPOCH_FILE = "ecs_epoch";
+
     private SimpleNioServer server;
-    // <hash of server, server info object>
+    // <hash of server, server info object>, the maps and waitingTokens are changed by the selector thread, the pool
+    // and the heartbeat, only while holding the monitor
     private TreeMap<String, KVServerInfo> serverMap;
     private TreeMap<String, KVServerInfo> startingServers;
     private TreeMap<String, KVServerInfo> stoppingServers;
+    // tokens of starting servers whose range on the ring is still copied to another starting token, see addToken
+    private final List<KVServerInfo> waitingTokens = new ArrayList<>();
     private ConcurrentHashMap<String, Long> heartBeatTime;
+    private final LoadBalancer balancer;
+    // epoch of the last metadata sent, token -> server info of that ring and address:port -> epoch known by the server
+    private long epoch;
+    // keeps the epoch across restarts, servers and clients ignore metadata older than the epoch they know, may be null
+    private final Path epochFile;
+    private Map<String, String> publishedRing = new TreeMap<>();
+    private final Map<String, Long> serverEpochs = new HashMap<>();
 
     private EcsServerCommunicator communicator;
     private ExecutorService pool;
+    // number of tokens of a server with weight 1 on the ring, see Metadata
+    private final int virtualNodes;
 
     public ECSServer() {
+        this(1);
+    }
+
+    /**
+     * @param virtualNodes number of tokens of a server with weight 1 on the ring, at least 1. Servers get tokens in
+     *                     proportion to their weight.
+     */
+    public ECSServer(int virtualNodes) {
+        this(virtualNodes, null);
+    }
+
+    /**
+     * @param virtualNodes number of tokens of a server with weight 1 on the ring, at least 1. Servers get tokens in
+     *                     proportion to their weight.
+     * @param dataDir      directory the epoch of the metadata is kept in, so it keeps growing after a restart. Null
+     *                     starts every run at epoch 0.
+     */
+    public ECSServer(int virtualNodes, Path dataDir) {
+        if (virtualNodes < 1)
+            throw new IllegalArgumentException("A server needs at least one token");
+        this.virtualNodes = virtualNodes;
+        this.epochFile = dataDir == null ? null : dataDir.resolve(EPOCH_FILE);
+        this.epoch = readEpoch();
         this.serverMap = new TreeMap<>();
         this.startingServers = new TreeMap<>();
         this.stoppingServers = new TreeMap<>();
         this.heartBeatTime = new ConcurrentHashMap<>();
+        this.balancer = new LoadBalancer(System.currentTimeMillis());
         this.pool = new StripedExecutorService();
         this.communicator = new EcsServerCommunicator();
         this.startHeartbeat();
@@ -77,7 +128,7 @@ public class ECSServer {
         return new ServerMessage(KVMessage.StatusType.ECS_ERROR, B64Util.b64encode("unknown"), B64Util.b64encode("command"));
     }
 
-    public KVMessage newServer(KVMessage msg) throws UnsupportedEncodingException {
+    public synchronized KVMessage newServer(KVMessage msg) throws UnsupportedEncodingException {
         // if server is not set, return error
         if (server == null)
             return new ServerMessage(KVMessage.StatusType.ECS_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
@@ -90,21 +141,35 @@ public class ECSServer {
 
         // extract info from message
         String[] payload = B64Util.b64decode(msg.getValue()).split(",");
-        if (payload.length != 3)
+        if (payload.length != 3 && payload.length != 4)
             return new ServerMessage(KVMessage.StatusType.ECS_ERROR, msg.getKey(), B64Util.b64encode("Cant parse payload!"));
         String address = payload[0];
         int port = Integer.parseInt(payload[1]);
         int intraPort = Integer.parseInt(payload[2]);
-        LOGGER.info("New server " + address + ":" + port + " with internal port " + intraPort);
+        // servers without a weight have the default capacity
+        double weight = payload.length == 4 ? Double.parseDouble(payload[3]) : 1;
+        if (!(weight > 0))
+            return new ServerMessage(KVMessage.StatusType.ECS_ERROR, msg.getKey(), B64Util.b64encode("Weight must be positive!"));
+        // the share of the ring grows with the number of tokens
+        int tokens = (int) Math.max(1, Math.round(virtualNodes * weight));
+        LOGGER.info("New server " + address + ":" + port + " with internal port " + intraPort + ", weight " + weight + " and " + tokens + " tokens");
 
         // insert new server into Metadata
-        String hash = Util.calculateHash(address, port);
         if (this.serverMap.isEmpty()) {
             LOGGER.info("Metadata is empty. Adding new server.");
             // no re-calculating, moving of data etc. necessary
-            KVServerInfo info = new KVServerInfo(address, port, hash, hash, intraPort, ((ServerMessage) msg).getSelectionKey());
-            String message = "update_metadata " + B64Util.b64encode(address + ":" + port) + " " + B64Util.b64encode(info.toString()) + "\r\n";
-            this.serverMap.put(hash, info);
+            for (int t = 0; t < tokens; t++) {
+                String hash = Metadata.tokenHash(address, port, t);
+                KVServerInfo info = new KVServerInfo(address, port, hash, hash, intraPort, ((ServerMessage) msg).getSelectionKey());
+                info.setServerKeyHash(hash);
+                info.setWeight(weight);
+                this.serverMap.put(hash, info);
+            }
+            // every token starts at the previous token of the server
+            for (Map.Entry<String, KVServerInfo> e : serverMap.entrySet()) {
+                String previous = serverMap.lowerKey(e.getKey());
+                e.getValue().setStartIndex(previous == null ? serverMap.lastKey() : previous);
+            }
             LOGGER.fine("Server map after put: " + serverMap.toString());
             LOGGER.fine("Starting map: " + startingServers.toString());
             LOGGER.fine("Stopping map: " + stoppingServers.toString());
@@ -112,56 +177,121 @@ public class ECSServer {
             sendMetadataUpdate();
             //server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
         } else {
-            Map.Entry<String, KVServerInfo> prev = this.serverMap.floorEntry(hash);
-            if (prev == null)
-                // no prev server, check last one
-                prev = this.serverMap.lastEntry();
-
-            LOGGER.info("Previous server found. Adding new server.");
-            KVServerInfo info = new KVServerInfo(address, port, prev.getKey(), hash, intraPort, ((ServerMessage) msg).getSelectionKey());
-            //KVServerInfo info = new KVServerInfo(address, port, hash, prev.getKey(), intraPort, ((ServerMessage) msg).getSelectionKey());
-
-            this.startingServers.put(hash, info);
-            LOGGER.fine("Starting map after put: " + startingServers.toString());
-            LOGGER.fine("Server map: " + serverMap.toString());
-            LOGGER.fine("Stopping map: " + stoppingServers.toString());
-
-            Map.Entry<String, KVServerInfo> next = this.serverMap.ceilingEntry(hash);
-            if (next == null)
-                next = this.serverMap.firstEntry();
-            LOGGER.info("Next server found, initiate data transfer.");
-            next.getValue().setStartIndex(hash);
-            // send writelock to next server & transfer data to new server
-            String message = "rebalance " + B64Util.b64encode(address + ":" + intraPort) + " " + B64Util.b64encode(hash) + "\r\n";
-            sendMessage(next.getValue().getAddress(), next.getValue().getPort(), message );
-            //server.send(next.getValue().getSelectionKey(), message.getBytes(TELNET_ENCODING));
-
-            LOGGER.fine("Prev server found initiate replica data transfer");
-            message = message.replace("rebalance", "replicate ");
-            sendMessage(prev.getValue().getAddress(), prev.getValue().getPort(), message);
-            //it is the first time we activate the replication functionality
-            if(serverMap.size() + 1 == 3){
-                String m = "replicate " + B64Util.b64encode(next.getValue().getAddress() + ":" + next.getValue().getIntraPort()) + " " + B64Util.b64encode(next.getKey()) + "\r\n";
-                sendMessage(prev.getValue().getAddress(), prev.getValue().getPort(), m);
+            // every token takes over the part of the range of its successor, the successors copy in parallel
+            for (int t = 0; t < tokens; t++) {
+                String hash = Metadata.tokenHash(address, port, t);
+                if (serverMap.containsKey(hash) || startingServers.containsKey(hash)
+                        || waitingTokens.stream().anyMatch(info -> info.getServerKeyHash().equals(hash)))
+                    continue;
+                addToken(address, port, intraPort, weight, hash, t == 0, ((ServerMessage) msg).getSelectionKey());
             }
+        }
 
-            LOGGER.fine("Second prev server found initiate replica data transfer");
-            Map.Entry<String, KVServerInfo> prevTwoTimes = this.serverMap.floorEntry(prev.getKey());
-            if (prevTwoTimes == null)
-                prevTwoTimes = this.serverMap.lastEntry();
-            sendMessage(prevTwoTimes.getValue().getAddress(), prevTwoTimes.getValue().getPort(), message);
-            //it is the first time we activate the replication functionality
-            if(serverMap.size() + 1 == 3){
-                String m = "replicate " + B64Util.b64encode(prev.getValue().getAddress() + ":" + prev.getValue().getIntraPort()) + " " + B64Util.b64encode(prev.getKey()) + "\r\n";
-                sendMessage(prevTwoTimes.getValue().getAddress(), prevTwoTimes.getValue().getPort(), m);
+        return new ServerMessage(KVMessage.StatusType.ECS_ACCEPT, msg.getValue(), B64Util.b64encode("Accept connection from new server."));
+    }
+
+    /**
+     * Adds a token of a starting server: its successor on the ring copies the range of the token to the new server
+     * and the token is added to the metadata on rebalance_success. A token is only added once no other starting token
+     * lies between its neighbours, otherwise the successor would copy overlapping ranges, e.g. for several tokens of
+     * one server. It waits for the other tokens then, see {@link #addWaitingTokens()}.
+     *
+     * @param seedReplicas true if the predecessors should copy their pairs to the new server as replica.
+     */
+    private void addToken(String address, int port, int intraPort, double weight, String hash, boolean seedReplicas, SelectionKey selectionKey) {
+        Map.Entry<String, KVServerInfo> prev = this.serverMap.floorEntry(hash);
+        if (prev == null)
+            // no prev server, check last one
+            prev = this.serverMap.lastEntry();
+        Map.Entry<String, KVServerInfo> next = this.serverMap.ceilingEntry(hash);
+        if (next == null)
+            next = this.serverMap.firstEntry();
+
+        KVServerInfo info = new KVServerInfo(address, port, prev.getKey(), hash, intraPort, selectionKey);
+        info.setServerKeyHash(hash);
+        info.setWeight(weight);
+        for (String starting : startingServers.keySet()) {
+            if (MerkleTree.inRange(starting, prev.getKey(), next.getKey())) {
+                LOGGER.info("Token " + hash + " waits for starting token " + starting);
+                waitingTokens.add(info);
+                return;
             }
+        }
+
+        LOGGER.info("Previous server found. Adding new server.");
+        //KVServerInfo info = new KVServerInfo(address, port, hash, prev.getKey(), intraPort, ((ServerMessage) msg).getSelectionKey());
+
+        this.startingServers.put(hash, info);
+        LOGGER.fine("Starting map after put: " + startingServers.toString());
+        LOGGER.fine("Server map: " + serverMap.toString());
+        LOGGER.fine("Stopping map: " + stoppingServers.toString());
+
+        LOGGER.info("Next server found, initiate data transfer.");
+        next.getValue().setStartIndex(hash);
+        // send writelock to next server & transfer data to new server
+        String message = "rebalance " + B64Util.b64encode(address + ":" + intraPort) + " " + B64Util.b64encode(hash) + "\r\n";
+        // the start is sent along, the next server may not know the tokens which became active just before
+        sendMessage(next.getValue().getAddress(), next.getValue().getPort(),
+                message.replace("\r\n", " " + B64Util.b64encode(prev.getKey()) + "\r\n"));
+        //server.send(next.getValue().getSelectionKey(), message.getBytes(TELNET_ENCODING));
+
+        // the replicas of the other tokens are filled by anti-entropy
+        if (!seedReplicas)
+            return;
 
+        LOGGER.fine("Prev server found initiate replica data transfer");
+        message = message.replace("rebalance", "replicate ");
+        sendMessage(prev.getValue().getAddress(), prev.getValue().getPort(), message);
+        //it is the first time we activate the replication functionality
+        if(serverCount() + 1 == 3){
+            String m = "replicate " + B64Util.b64encode(next.getValue().getAddress() + ":" + next.getValue().getIntraPort()) + " " + B64Util.b64encode(next.getKey()) + "\r\n";
+            sendMessage(prev.getValue().getAddress(), prev.getValue().getPort(), m);
         }
 
-        return new ServerMessage(KVMessage.StatusType.ECS_ACCEPT, msg.getValue(), B64Util.b64encode("Accept connection from new server."));
+        LOGGER.fine("Second prev server found initiate replica data transfer");
+        Map.Entry<String, KVServerInfo> prevTwoTimes = this.serverMap.floorEntry(prev.getKey());
+        if (prevTwoTimes == null)
+            prevTwoTimes = this.serverMap.lastEntry();
+        sendMessage(prevTwoTimes.getValue().getAddress(), prevTwoTimes.getValue().getPort(), message);
+        //it is the first time we activate the replication functionality
+        if(serverCount() + 1 == 3){
+            String m = "replicate " + B64Util.b64encode(prev.getValue().getAddress() + ":" + prev.getValue().getIntraPort()) + " " + B64Util.b64encode(prev.getKey()) + "\r\n";
+            sendMessage(prevTwoTimes.getValue().getAddress(), prevTwoTimes.getValue().getPort(), m);
+        }
+    }
+
+    /**
+     * @return number of servers on the ring, a server with several tokens counts once.
+     */
+    private int serverCount() {
+        Set<String> servers = new HashSet<>();
+        for (KVServerInfo info : serverMap.values())
+            servers.add(info.getServerId());
+        return servers.size();
+    }
+
+    /**
+     * Adds the waiting tokens whose neighbours have no starting token between them anymore.
+     */
+    private void addWaitingTokens() {
+        List<KVServerInfo> waiting = new ArrayList<>(waitingTokens);
+        waitingTokens.clear();
+        for (KVServerInfo info : waiting) {
+            String hash = info.getServerKeyHash();
+            addToken(info.getAddress(), info.getPort(), info.getIntraPort(), info.getWeight(), hash,
+                    hash.equals(Metadata.tokenHash(info.getAddress(), info.getPort(), 0)), info.getSelectionKey());
+        }
+    }
+
+    /**
+     * Removes all tokens of a server from the ring.
+     */
+    private void removeTokens(String address, int port) {
+        serverMap.values().removeIf(info -> info.getAddress().equals(address) && info.getPort() == port);
+        waitingTokens.removeIf(info -> info.getAddress().equals(address) && info.getPort() == port);
     }
 
-    public KVMessage rebalance_success(KVMessage msg) {
+    public synchronized KVMessage rebalance_success(KVMessage msg) {
         // if server is not set, return error
         if (server == null)
             return new ServerMessage(KVMessage.StatusType.ECS_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
@@ -177,6 +307,7 @@ public class ECSServer {
             serverMap.put(hash, startingServers.remove(hash));
 
             sendMetadataUpdate();
+            addWaitingTokens();
         } else if (stoppingServers.containsKey(hash)) {
             stoppingServers.remove(hash);
             serverMap.remove(hash);
@@ -186,6 +317,26 @@ public class ECSServer {
         return null;
     }
 
+    /**
+     * Logs how far the rebalance for a starting server got, the metadata is only updated on rebalance_success.
+     *
+     * @param msg KVMessage with the encoded address of the starting server as key, its encoded hash, the number of
+     *            transferred pairs and the total number of pairs as value.
+     * @return null
+     */
+    public KVMessage rebalanceProgress(KVMessage msg) {
+        String[] progress = msg.getValue().split(" ");
+        if (progress.length < 3)
+            return new ServerMessage(KVMessage.StatusType.ECS_ERROR, msg.getKey(), B64Util.b64encode("Cant parse progress!"));
+        LOGGER.info(String.format("Rebalance to %s: %s of %s pairs transferred", B64Util.b64decode(msg.getKey()), progress[1], progress[2]));
+        return null;
+    }
+
+    /**
+     * Sends the current ring to all servers. Every change of the ring increases the epoch, servers which know the
+     * previous epoch get only the changed tokens with metadata_diff, all others the full metadata with
+     * update_metadata. Servers which already know the current epoch are skipped.
+     */
     public void sendMetadataUpdate() {
         if (server == null)
             return;
@@ -193,24 +344,71 @@ public class ECSServer {
         pool.submit(new Runnable() {
             @Override
             public void run() {
-                String s = "update_metadata " + B64Util.b64encode("update") + " ";
-                String infos = "";
-                for (KVServerInfo i : serverMap.values())
-                    infos += i.toString() + ";";
-                s += B64Util.b64encode(infos) + "\r\n";
-                for (KVServerInfo i : serverMap.values()) {
-                    try {
-                        //server.send(i.getSelectionKey(), s.getBytes(TELNET_ENCODING));
-                        LOGGER.info("Send metadata update to server: " + i.getAddress() + ":" + i.getPort());
-                        sendMessage(i.getAddress(), i.getPort(), s);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
+                publishMetadata();
             }
         });
     }
 
+    private synchronized void publishMetadata() {
+        TreeMap<String, KVServerInfo> ring = new TreeMap<>(serverMap);
+        // the infos are changed in place, the sent ring is kept as text
+        Map<String, String> current = new TreeMap<>();
+        for (Map.Entry<String, KVServerInfo> e : ring.entrySet())
+            current.put(e.getKey(), e.getValue().toString());
+        String diff = Metadata.diff(publishedRing, current);
+        long base = epoch;
+        if (!diff.isEmpty()) {
+            epoch++;
+            publishedRing = current;
+            // written before anything is sent, so no epoch is sent twice with different rings
+            writeEpoch();
+        }
+
+        Metadata metadata = new Metadata();
+        metadata.setServerMap(ring);
+        LOGGER.info("Ownership of the ring (server, actual, target): " + metadata.getOwnershipReport());
+        String full = "update_metadata " + B64Util.b64encode(String.valueOf(epoch)) + " "
+                + B64Util.b64encode(String.join(";", current.values()) + ";") + "\r\n";
+        String changes = "metadata_diff " + B64Util.b64encode(base + ":" + epoch) + " " + B64Util.b64encode(diff) + "\r\n";
+
+        Set<String> notified = new HashSet<>();
+        for (KVServerInfo i : ring.values()) {
+            // a server with several tokens is notified once
+            if (!notified.add(i.getServerId()))
+                continue;
+            Long known = serverEpochs.get(i.getServerId());
+            if (known != null && known == epoch)
+                continue;
+            try {
+                //server.send(i.getSelectionKey(), s.getBytes(TELNET_ENCODING));
+                boolean sendDiff = known != null && known == base;
+                LOGGER.info("Send metadata " + (sendDiff ? "diff" : "update") + " of epoch " + epoch + " to server: "
+                        + i.getAddress() + ":" + i.getPort());
+                sendMessage(i.getAddress(), i.getPort(), sendDiff ? changes : full);
+                serverEpochs.put(i.getServerId(), epoch);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        serverEpochs.keySet().retainAll(notified);
+    }
+
+    /**
+     * Sends the full metadata to a server which could not apply a diff, e.g. because it missed an epoch.
+     *
+     * @param msg KVMessage with address:port of the server as key.
+     * @return null
+     */
+    public KVMessage metadataRequest(KVMessage msg) {
+        String serverId = B64Util.b64decode(msg.getKey());
+        LOGGER.info("Server " + serverId + " requests the full metadata");
+        synchronized (this) {
+            serverEpochs.remove(serverId);
+        }
+        sendMetadataUpdate();
+        return null;
+    }
+
     public KVMessage removeServer(KVMessage msg) {
         // if server is not set, return error
         if (server == null)
@@ -227,36 +425,18 @@ public class ECSServer {
         pool.submit(new StripedCallable<Void>() {
             public Void call() throws Exception {
 
-                // find next server
-                Map.Entry<String, KVServerInfo> next = serverMap.ceilingEntry(msg.getKey());
-
                 String address = payload[0];
                 int port = Integer.parseInt(payload[1]);
-                int intraPort = Integer.parseInt(payload[2]);
-                String hash = Util.calculateHash(address, port);
 
                 LOGGER.info("Removing process started for server: " + address +":"+ port);
-//                if (next == null)
-//                    next = serverMap.firstEntry();
-//
-//                if (next.getKey().equals(hash)) {
-//                    // server to remove is only KVServer connected
-//
-//                    serverMap.remove(hash);
-//                    sendMetadataUpdate();
-//                    LOGGER.info("Last server shutdown completed.");
-//                } else {
-                    // TODO: recalculate server hash ranges
-                    //stoppingServers.put(hash, serverMap.get(hash));
-                    serverMap.remove(hash);
-                    LOGGER.info("Server removed from serverMap, " + address +":"+ port);
-
-                    sendDataToSuccessor(address, port, msg.getValue());
-                    LOGGER.info("Done send replica items to successor");
-
-                    sendMetadataUpdate();
-                    LOGGER.info("Done update metadata");
-                //}
+                synchronized (ECSServer.this) {
+                    // servers report failed peers, a leaving server reports itself
+                    removeServer(address, port, !"failed".equals(msg.getValue()));
+                }
+                LOGGER.info("Done hand off ranges of removed server");
+
+                sendMetadataUpdate();
+                LOGGER.info("Done update metadata");
                 return null;
             }
 
@@ -268,44 +448,88 @@ public class ECSServer {
         return new ServerMessage(KVMessage.StatusType.ECS_ACCEPT, msg.getKey(), B64Util.b64encode("Successfully removed server"));
     }
 
-    public void sendDataToSuccessor(String listenaddress, int port, String historicPairs) {
-
-        //rebalance send all historic data to successor
-        LOGGER.info("Sending kv replica items, current serverMap size: " + serverMap.size());
-        if (serverMap.size() > 3) {
-            try {
-
-                //find 3rd successor
-                String currentHash = Util.calculateHash(listenaddress,port);
-                String successorHash = null;
-                for (int i = 0; i < 3; i++) {
-
-                    //get successor of the current server
-                    Map.Entry<String, KVServerInfo> successorServer;
-                    successorServer = serverMap.higherEntry(currentHash);
-                    if (successorServer == null)
-                        successorServer = serverMap.firstEntry();
-
-                    successorHash = successorServer.getKey();
-
-                    //do it again for the successor again
-                    currentHash = successorHash;
-                }
-                KVServerInfo next = serverMap.get(successorHash);
-
-                LOGGER.info("Rebalance succesor server:" + next.getAddress() + ":"+ next.getPort());
-
-                String svrmessage = String.format("%s %s %s\r\n", "receive_rebalance", historicPairs, B64Util.b64encode(next.getServerKeyHash()) );
-                LOGGER.info("Message to successor: " + svrmessage);
-
-                sendMessage(next.getAddress(), next.getIntraPort(), svrmessage);
-                LOGGER.info("Notified successor receive historic data.");
+    /**
+     * Removes all tokens of a server and lets the remaining holders copy its ranges to the servers which hold them
+     * from now on, see {@link #planHandoff}. Every source gets handoff &lt;removed server&gt; &lt;ranges&gt; with the
+     * ranges it copies, a leaving server always gets one, so it knows when it may shut down. Must hold the monitor.
+     *
+     * @param graceful true if the server is leaving and still sends its pairs, false if it failed.
+     */
+    private void removeServer(String address, int port, boolean graceful) {
+        String serverId = address + ":" + port;
+        // the ranges of the tokens are merged into the next tokens, compared with the ring before
+        TreeMap<String, KVServerInfo> before = new TreeMap<>(serverMap);
+        removeTokens(address, port);
+        LOGGER.info("Server removed from serverMap, " + serverId);
+
+        Map<String, List<String[]>> plan = planHandoff(before, serverId, graceful);
+        if (graceful)
+            plan.putIfAbsent(serverId, new ArrayList<>());
+        for (Map.Entry<String, List<String[]>> e : plan.entrySet()) {
+            StringBuilder ranges = new StringBuilder();
+            for (String[] range : e.getValue())
+                ranges.append(String.join(",", range)).append(';');
+            LOGGER.info("Server " + e.getKey() + " hands off " + e.getValue().size() + " ranges of " + serverId);
+            String[] source = e.getKey().split(":");
+            sendMessage(source[0], Integer.parseInt(source[1]), "handoff " + B64Util.b64encode(serverId) + " "
+                    + (ranges.length() == 0 ? "null" : B64Util.b64encode(ranges.toString())) + "\r\n");
+        }
+    }
 
-            } catch (Exception e) {
-                LOGGER.info("Exception while stopping server.");
+    /**
+     * Plans how the ranges of a removed server are copied to the servers which hold them from now on. Only ranges the
+     * server held as coordinator or replica change their holders: a range of the server is merged into the range of
+     * the next token of another server, and a range it replicated gets the next server as replica. Each new holder
+     * copies the range from its old coordinator, from the removed server itself if it leaves gracefully, or from the
+     * first remaining replica if it failed. Must hold the monitor.
+     *
+     * @param before   the ring before the tokens of the server were removed.
+     * @param serverId address:port of the removed server.
+     * @param graceful true if the removed server still sends its pairs.
+     * @return address:port of every source -&gt; {address:intra port of a target, start, end} of the ranges it copies.
+     */
+    private Map<String, List<String[]>> planHandoff(TreeMap<String, KVServerInfo> before, String serverId, boolean graceful) {
+        Map<String, List<String[]>> plan = new TreeMap<>();
+        if (serverMap.isEmpty())
+            return plan;
+        Metadata old = new Metadata();
+        old.setServerMap(before);
+        Metadata now = new Metadata();
+        now.setServerMap(new TreeMap<>(serverMap));
+        for (String token : before.keySet()) {
+            Map<String, KVServerInfo> had = holders(old, token);
+            if (!had.containsKey(serverId))
+                continue;
+            String source = before.get(token).getServerId();
+            if (source.equals(serverId) && !graceful)
+                source = had.keySet().stream().filter(id -> !id.equals(serverId)).findFirst().orElse(null);
+            if (source == null) {
+                LOGGER.warning("The range up to " + token + " was only held by " + serverId + " and is lost");
+                continue;
             }
+            for (KVServerInfo target : holders(now, now.getRangeHash(token)).values())
+                if (!had.containsKey(target.getServerId()))
+                    plan.computeIfAbsent(source, s -> new ArrayList<>()).add(new String[]{
+                            target.getAddress() + ":" + target.getIntraPort(), old.getPreviousToken(token), token});
         }
+        return plan;
+    }
 
+    /**
+     * @return address:port -&gt; info of the servers which hold the range of the token: its coordinator and, on rings of
+     * more than two servers, its replicas, see {@link Metadata#getReplicaServers(String)}.
+     */
+    private static Map<String, KVServerInfo> holders(Metadata ring, String token) {
+        Map<String, KVServerInfo> holders = new LinkedHashMap<>();
+        KVServerInfo coordinator = ring.getServerMap().get(token);
+        holders.put(coordinator.getServerId(), coordinator);
+        if (ring.serverCount() > 2) {
+            for (String replica : ring.getReplicaServers(token)) {
+                KVServerInfo info = ring.getServerMap().get(replica);
+                holders.put(info.getServerId(), info);
+            }
+        }
+        return holders;
     }
 
     public KVMessage heartbeat(KVMessage msg) {
@@ -320,7 +544,11 @@ public class ECSServer {
             public Void call() throws Exception {
                 LOGGER.fine("Received heartbeat from " + B64Util.b64decode(msg.getKey()));
                 long unixTimeMillis = System.currentTimeMillis();
-                heartBeatTime.put(B64Util.b64decode(msg.getValue()), unixTimeMillis);
+                // <hash> [<load of the tokens>], see KVServer#respondHeartbeat
+                String[] value = msg.getValue().split(" ");
+                heartBeatTime.put(B64Util.b64decode(value[0]), unixTimeMillis);
+                if (value.length > 1)
+                    balancer.report(B64Util.b64decode(msg.getKey()), B64Util.b64decode(value[1]), unixTimeMillis);
                 return null;
             }
 
@@ -343,28 +571,9 @@ public class ECSServer {
                 if (server == null)
                     return;
 
-                boolean disconnected = false;
-                for (Map.Entry<String, KVServerInfo> e : serverMap.entrySet()) {
-                    long unixTimeMillis = System.currentTimeMillis();
-                    if (heartBeatTime.get(e.getKey()) == null) {
-                        // KVServer never got heartbeat, initializing with current time
-                        heartBeatTime.put(e.getKey(), unixTimeMillis - 500);
-                        LOGGER.info("Initializing heartbeat time of server " + e.getKey());
-                    }
-                    // check for last heartbeat, checking for 1100ms, as there were sometimes issues using 1000ms
-                    if (unixTimeMillis - heartBeatTime.get(e.getKey()) < 300L || unixTimeMillis - heartBeatTime.get(e.getKey()) >= 1100) {
-                        LOGGER.warning("Server " + e.getValue().getAddress() + ":" + e.getValue().getPort() + "failed to respond. Removing...");
-                        serverMap.remove(e.getKey());
-                        disconnected = true;
-                    } else {
-                        LOGGER.info("Heartbeat to " + e.getValue().getAddress());
-                        String message = "ECS_HEARTBEAT " + B64Util.b64encode(e.getValue().getAddress() + ":" + e.getValue().getPort()) + " " + B64Util.b64encode(e.getKey()) + "\r\n";
-                        sendMessage(e.getValue().getAddress(), e.getValue().getPort(), message );
-                    }
+                synchronized (ECSServer.this) {
+                    checkHeartbeats();
                 }
-
-                if (disconnected)
-                    sendMetadataUpdate();
             }
         };
 
@@ -372,6 +581,94 @@ public class ECSServer {
         executor.scheduleAtFixedRate(heartBeat, 0, 1, TimeUnit.SECONDS);
     }
 
+    /**
+     * Removes the servers which missed their heartbeat and sends the next one to all others. Must hold the monitor,
+     * like everything else which changes the ring.
+     */
+    private void checkHeartbeats() {
+        boolean disconnected = false;
+        // heartbeats are sent per server, not per token, servers identify themselves by the hash of address:port
+        Set<String> checked = new HashSet<>();
+        for (KVServerInfo info : new ArrayList<>(serverMap.values())) {
+            String hash = Util.calculateHash(info.getAddress(), info.getPort());
+            if (!checked.add(hash))
+                continue;
+            long unixTimeMillis = System.currentTimeMillis();
+            if (heartBeatTime.get(hash) == null) {
+                // KVServer never got heartbeat, initializing with current time
+                heartBeatTime.put(hash, unixTimeMillis - 500);
+                LOGGER.info("Initializing heartbeat time of server " + hash);
+            }
+            // check for last heartbeat, checking for 1100ms, as there were sometimes issues using 1000ms
+            if (unixTimeMillis - heartBeatTime.get(hash) < 300L || unixTimeMillis - heartBeatTime.get(hash) >= 1100) {
+                LOGGER.warning("Server " + info.getAddress() + ":" + info.getPort() + "failed to respond. Removing...");
+                removeServer(info.getAddress(), info.getPort(), false);
+                disconnected = true;
+            } else {
+                LOGGER.info("Heartbeat to " + info.getAddress());
+                String message = "ECS_HEARTBEAT " + B64Util.b64encode(info.getAddress() + ":" + info.getPort()) + " " + B64Util.b64encode(hash) + "\r\n";
+                sendMessage(info.getAddress(), info.getPort(), message );
+            }
+        }
+
+        if (disconnected)
+            sendMetadataUpdate();
+        else
+            balanceLoad();
+    }
+
+    /**
+     * Gives part of the range of a busy server to the least busy server, see {@link LoadBalancer}. The new token is
+     * added like the token of a joining server, so nothing is moved while servers join or leave. Must hold the
+     * monitor.
+     */
+    private void balanceLoad() {
+        if (!startingServers.isEmpty() || !stoppingServers.isEmpty())
+            return;
+        LoadBalancer.Move move = balancer.nextMove(new TreeMap<>(serverMap), System.currentTimeMillis());
+        if (move == null)
+            return;
+        KVServerInfo target = move.getTarget();
+        LOGGER.info(String.format("Moving the range up to %s from %s to %s to balance the load", move.getToken(),
+                serverMap.get(move.getFrom()).getServerId(), target.getServerId()));
+        addToken(target.getAddress(), target.getPort(), target.getIntraPort(), target.getWeight(), move.getToken(), false, target.getSelectionKey());
+    }
+
+    /**
+     * @return epoch of the last metadata sent to the servers.
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the epoch of the last run, 0 if it is not kept or not known.
+     */
+    private long readEpoch() {
+        if (epochFile == null || !Files.exists(epochFile))
+            return 0;
+        try {
+            long epoch = Long.parseLong(new String(Files.readAllBytes(epochFile), TELNET_ENCODING).trim());
+            LOGGER.info("Continuing with metadata epoch " + epoch);
+            return epoch;
+        } catch (IOException | NumberFormatException e) {
+            LOGGER.warning("Could not read the metadata epoch, starting at 0: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    private void writeEpoch() {
+        if (epochFile == null)
+            return;
+        try {
+            Path temp = epochFile.resolveSibling(EPOCH_FILE + ".tmp");
+            Files.write(temp, String.valueOf(epoch).getBytes(TELNET_ENCODING));
+            Files.move(temp, epochFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warning("Could not keep the metadata epoch " + epoch + ": " + e.getMessage());
+        }
+    }
+
     private void sendMessage(String address, int port, String message){
 
         if (!communicator.isConnected(address + ":" + port)) {
@@ -387,7 +684,7 @@ public class ECSServer {
         } catch (Exception e) {
             if(e.getMessage().contains("Connection reset by peer")){
                 LOGGER.info("Error while sending removing server.. sending new metadata..");
-                serverMap.remove(Util.calculateHash(address,port));
+                removeTokens(address, port);
                 sendMetadataUpdate();
             }
             e.printStackTrace();
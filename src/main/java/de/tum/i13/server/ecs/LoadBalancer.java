@@ -0,0 +1,182 @@
+package de.tum.i13.server.ecs;
+
+import de.tum.i13.server.kv.KVServerInfo;
+import de.tum.i13.server.replication.RangeTransfer;
+import de.tum.i13.shared.Metadata;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Load Balancer
+ * Moves ranges away from servers which receive more requests than their weight suggests. The servers report the
+ * requests and pairs of each of their tokens with every heartbeat, see {@link #report}, and the balancer keeps a
+ * smoothed request rate per token.
+ *
+ * A move splits the busiest token of the busiest server in the middle and gives the lower half to the least busy
+ * server as an additional token, which is copied like the range of a joining token. At most one move is made per
+ * {@link #INTERVAL_MILLIS}, only if the busiest server has {@link #IMBALANCE} times its share of the requests and
+ * only if the move lowers the highest load, so the ring settles instead of moving ranges back and forth.
+ *
+ * @version 0.1
+ * @since   2022-01-21
+ */
+public class LoadBalancer {
+
+    public static final long INTERVAL_MILLIS = 30_000;
+    public static final double IMBALANCE = 1.5;
+    // requests per second of all servers below which the load is not worth moving ranges
+    public static final double MIN_RATE = 50;
+    // a range with fewer pairs is hot because of single keys, splitting it does not spread the load
+    public static final long MIN_PAIRS = 2;
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * A token of the target server at the middle of the range of a busy token.
+     */
+    public static class Move {
+        private final String from;
+        private final String token;
+        private final KVServerInfo target;
+
+        private Move(String from, String token, KVServerInfo target) {
+            this.from = from;
+            this.token = token;
+            this.target = target;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public KVServerInfo getTarget() {
+            return target;
+        }
+    }
+
+    // token -> smoothed requests per second of its range
+    private final ConcurrentHashMap<String, Double> rates = new ConcurrentHashMap<>();
+    // token -> pairs of its range
+    private final ConcurrentHashMap<String, Long> pairs = new ConcurrentHashMap<>();
+    // address:port -> time of the last report
+    private final ConcurrentHashMap<String, Long> reportedAt = new ConcurrentHashMap<>();
+    private long lastMove;
+
+    /**
+     * @param now time the balancer starts in milliseconds, the first move is made an interval later.
+     */
+    public LoadBalancer(long now) {
+        this.lastMove = now;
+    }
+
+    /**
+     * Records the load a server reported with a heartbeat.
+     *
+     * @param serverId address:port of the server.
+     * @param report   token:requests:pairs; for every token of the server, requests since its last report.
+     * @param now      current time in milliseconds.
+     */
+    public void report(String serverId, String report, long now) {
+        Long previous = reportedAt.put(serverId, now);
+        for (String entry : report.split(";")) {
+            String[] load = entry.split(":");
+            if (load.length != 3)
+                continue;
+            try {
+                long requests = Long.parseLong(load[1]);
+                pairs.put(load[0], Long.parseLong(load[2]));
+                // the requests of the first report were counted over an unknown time
+                if (previous == null || now <= previous)
+                    continue;
+                double rate = requests * 1000.0 / (now - previous);
+                rates.merge(load[0], rate, (old, current) -> old + SMOOTHING * (current - old));
+            } catch (NumberFormatException e) {
+                // a malformed entry only costs the load of one token
+            }
+        }
+    }
+
+    /**
+     * @return smoothed requests per second of the range of the token, 0 if it was never reported.
+     */
+    public double getRate(String token) {
+        return rates.getOrDefault(token, 0.0);
+    }
+
+    /**
+     * Decides on the next move. The rates of the split token are halved right away, so the next decision does not
+     * depend on reports from before the move.
+     *
+     * @param ring the tokens of the ring, must not contain starting or stopping tokens.
+     * @param now  current time in milliseconds.
+     * @return the token to add, null if the load is balanced or the last move was too recent.
+     */
+    public synchronized Move nextMove(TreeMap<String, KVServerInfo> ring, long now) {
+        if (now - lastMove < INTERVAL_MILLIS || ring.isEmpty())
+            return null;
+        rates.keySet().retainAll(ring.keySet());
+        pairs.keySet().retainAll(ring.keySet());
+
+        Map<String, Double> load = new HashMap<>();
+        Map<String, KVServerInfo> servers = new HashMap<>();
+        double total = 0;
+        double totalWeight = 0;
+        for (Map.Entry<String, KVServerInfo> e : ring.entrySet()) {
+            String id = e.getValue().getServerId();
+            double rate = getRate(e.getKey());
+            load.merge(id, rate, Double::sum);
+            total += rate;
+            if (servers.putIfAbsent(id, e.getValue()) == null)
+                totalWeight += e.getValue().getWeight();
+        }
+        if (servers.size() < 2 || total < MIN_RATE)
+            return null;
+
+        String hot = null;
+        String cold = null;
+        for (String id : servers.keySet()) {
+            if (hot == null || perWeight(load, servers, id) > perWeight(load, servers, hot))
+                hot = id;
+            if (cold == null || perWeight(load, servers, id) < perWeight(load, servers, cold))
+                cold = id;
+        }
+        if (load.get(hot) < IMBALANCE * total * servers.get(hot).getWeight() / totalWeight)
+            return null;
+
+        String token = null;
+        for (Map.Entry<String, KVServerInfo> e : ring.entrySet())
+            if (e.getValue().getServerId().equals(hot) && pairs.getOrDefault(e.getKey(), 0L) >= MIN_PAIRS
+                    && (token == null || getRate(e.getKey()) > getRate(token)))
+                token = e.getKey();
+        if (token == null)
+            return null;
+        double half = getRate(token) / 2;
+        // the target must not end up busier than the busiest server is now
+        if ((load.get(cold) + half) / servers.get(cold).getWeight() >= perWeight(load, servers, hot))
+            return null;
+
+        Metadata metadata = new Metadata();
+        metadata.setServerMap(ring);
+        String start = metadata.getPreviousToken(token);
+        String middle = RangeTransfer.splitRange(start, token, 2)[1];
+        if (ring.containsKey(middle) || middle.equals(start))
+            return null;
+
+        lastMove = now;
+        rates.put(token, half);
+        rates.put(middle, half);
+        pairs.put(middle, pairs.get(token) / 2);
+        pairs.put(token, pairs.get(token) - pairs.get(middle));
+        return new Move(token, middle, servers.get(cold));
+    }
+
+    private static double perWeight(Map<String, Double> load, Map<String, KVServerInfo> servers, String id) {
+        return load.get(id) / servers.get(id).getWeight();
+    }
+}
@@ -19,7 +19,7 @@ public class StartECS {
         logger.info("Config: " + cfg);
         logger.info("Starting ECS");
 
-        ECSServer ecs = new ECSServer();
+        ECSServer ecs = new ECSServer(cfg.virtualNodes, cfg.dataDir);
         CommandProcessor ecsProcessor = new ECSCommandProcessor(ecs);
         SimpleNioServer sn = new SimpleNioServer(ecsProcessor);
         ecs.setServer(sn);
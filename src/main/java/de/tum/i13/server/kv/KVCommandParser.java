@@ -0,0 +1,303 @@
+package de.tum.i13.server.kv;
+
+import java.io.UnsupportedEncodingException;
+
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+
+/**
+ * Parser for the KVServer text protocol that works directly on the received bytes.
+ *
+ * The parser is a reusable cursor over a buffer which may contain one or more \r\n terminated commands.
+ * {@link #next(boolean)} moves to the next command line, dispatches on the command token without regex or lowercased
+ * copies and remembers the offsets of the key, value and password slices. Strings are only created when a slice
+ * is requested, so a caller only pays for the fields it actually uses.
+ *
+ * A command line may start with an optional request id token of the form #&lt;id&gt;, e.g. "#42 get key". The id is
+ * echoed in the answer, so clients can keep several requests in flight on one connection.
+ *
+ * An instance is not thread-safe, every selector thread should use its own parser.
+ *
+ * @version 0.1
+ * @since   2022-01-10
+ */
+public class KVCommandParser {
+
+    /**
+     * Commands understood by the KVServer.
+     */
+    public enum Command {
+        PUT("put"),
+        PUT_TTL("put_ttl"),
+        GET("get"),
+        DELETE("delete"),
+        KEYRANGE("keyrange"),
+        KEYRANGE_READ("keyrange_read"),
+        KEYRANGE_EPOCH("keyrange_epoch"),
+        ECS_ACCEPT("ecs_accept"),
+        ECS_ERROR("ecs_error"),
+        REBALANCE("rebalance"),
+        RECEIVE_REBALANCE("receive_rebalance"),
+        RECEIVE_SINGLE("receive_single"),
+        UPDATE_METADATA("update_metadata"),
+        METADATA_DIFF("metadata_diff"),
+        ECS_HEARTBEAT("ecs_heartbeat"),
+        HANDLEWITHPASSWORD("handlewithpassword"),
+        RECEIVE_PASSWORD("receive_password"),
+        MGET("mget"),
+        MPUT("mput"),
+        MDELETE("mdelete"),
+        SCAN("scan"),
+        CAS("cas"),
+        INCR("incr"),
+        REPLICATE_BATCH("replicate_batch"),
+        REPLICATE_ACK("replicate_ack"),
+        STATS("stats"),
+        SYNC_TREE("sync_tree"),
+        SYNC_DIFF("sync_diff"),
+        SYNC_LEAVES("sync_leaves"),
+        REBALANCE_CHUNK("rebalance_chunk"),
+        REBALANCE_ACK("rebalance_ack"),
+        REBALANCE_PART("rebalance_part"),
+        REBALANCE_PART_STATUS("rebalance_part_status"),
+        HOT_COPY("hot_copy"),
+        HOTKEYS("hotkeys"),
+        HANDOFF("handoff"),
+        UNKNOWN("");
+
+        private final byte[] token;
+
+        Command(String token) {
+            this.token = token.getBytes();
+        }
+
+        /**
+         * @return true if the command accepts a password as last token when password handling is enabled.
+         */
+        public boolean acceptsPassword() {
+            return this == PUT || this == PUT_TTL || this == GET || this == DELETE;
+        }
+
+        /**
+         * @return true if the command operates on a single key and needs a key token.
+         */
+        public boolean requiresKey() {
+            return acceptsPassword() || this == CAS || this == INCR;
+        }
+    }
+
+    private static final Command[] COMMANDS = Command.values();
+
+    private byte[] buffer;
+    private int position;
+    private int limit;
+
+    private Command command;
+    private int lineStart;
+    private int lineEnd;
+    private int requestIdStart;
+    private int requestIdEnd;
+    private int keyStart;
+    private int keyEnd;
+    private int valueStart;
+    private int valueEnd;
+    private int passwordStart;
+    private int passwordEnd;
+
+    /**
+     * Points the parser to a new buffer. The buffer is not copied, it must not be modified while it is parsed.
+     *
+     * @param buffer buffer containing one or more commands.
+     * @param offset offset of the first command in the buffer.
+     * @param length number of bytes to parse.
+     */
+    public void reset(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.position = offset;
+        this.limit = offset + length;
+        this.command = null;
+    }
+
+    /**
+     * Parses the next command line in the buffer.
+     *
+     * @param withPassword true if the last token of put, get and delete is a password.
+     * @return true if a command was parsed, false if the buffer is exhausted.
+     */
+    public boolean next(boolean withPassword) {
+        if (position >= limit)
+            return false;
+
+        // find end of line, the line delimiter is \n, a preceding \r is treated as whitespace
+        lineStart = position;
+        int eol = lineStart;
+        while (eol < limit && buffer[eol] != '\n')
+            eol++;
+        position = eol + 1;
+        lineEnd = trimEnd(lineStart, eol);
+
+        // optional request id token
+        int cmdStart = lineStart;
+        requestIdStart = requestIdEnd = -1;
+        if (cmdStart < lineEnd && buffer[cmdStart] == '#') {
+            requestIdStart = cmdStart + 1;
+            requestIdEnd = requestIdStart;
+            while (requestIdEnd < lineEnd && !isWhitespace(buffer[requestIdEnd]))
+                requestIdEnd++;
+            cmdStart = skipWhitespace(requestIdEnd, lineEnd);
+        }
+
+        // command token
+        int cmdEnd = cmdStart;
+        while (cmdEnd < lineEnd && !isWhitespace(buffer[cmdEnd]))
+            cmdEnd++;
+        command = dispatch(cmdStart, cmdEnd);
+
+        // key token
+        keyStart = skipWhitespace(cmdEnd, lineEnd);
+        keyEnd = keyStart;
+        while (keyEnd < lineEnd && !isWhitespace(buffer[keyEnd]))
+            keyEnd++;
+
+        // value is the rest of the line after the key
+        valueStart = skipWhitespace(keyEnd, lineEnd);
+        valueEnd = lineEnd;
+        passwordStart = passwordEnd = -1;
+
+        if (withPassword && command.acceptsPassword()) {
+            // password is the last token of the line, the value everything between key and password
+            int start = lineEnd;
+            while (start > keyEnd && !isWhitespace(buffer[start - 1]))
+                start--;
+            if (start > keyEnd) {
+                passwordStart = start;
+                passwordEnd = lineEnd;
+                valueEnd = trimEnd(valueStart, start);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the command of the current line.
+     */
+    public Command command() {
+        return command;
+    }
+
+    /**
+     * @return the request id of the current line, null if the line has no request id.
+     */
+    public String requestId() {
+        return requestIdEnd > requestIdStart ? slice(requestIdStart, requestIdEnd) : null;
+    }
+
+    /**
+     * @return true if the current line contains a key token.
+     */
+    public boolean hasKey() {
+        return keyEnd > keyStart;
+    }
+
+    /**
+     * @return true if the current line contains a value.
+     */
+    public boolean hasValue() {
+        return valueEnd > valueStart;
+    }
+
+    public int keyOffset() {
+        return keyStart;
+    }
+
+    public int keyLength() {
+        return keyEnd - keyStart;
+    }
+
+    public int valueOffset() {
+        return valueStart;
+    }
+
+    public int valueLength() {
+        return valueEnd - valueStart;
+    }
+
+    /**
+     * @return the key of the current line, null if there is no key.
+     */
+    public String key() {
+        return hasKey() ? slice(keyStart, keyEnd) : null;
+    }
+
+    /**
+     * @return the value of the current line, an empty string if there is no value.
+     */
+    public String value() {
+        return slice(valueStart, valueEnd);
+    }
+
+    /**
+     * @return the password of the current line, null if there is no password.
+     */
+    public String password() {
+        return passwordStart < 0 ? null : slice(passwordStart, passwordEnd);
+    }
+
+    /**
+     * @return everything after the command token, e.g. all keys of a batch command.
+     */
+    public String arguments() {
+        return slice(keyStart, lineEnd);
+    }
+
+    /**
+     * @return the whole current line without the line delimiter. Only intended for logging.
+     */
+    public String line() {
+        return slice(lineStart, lineEnd);
+    }
+
+    private Command dispatch(int start, int end) {
+        int length = end - start;
+        for (Command c : COMMANDS) {
+            byte[] token = c.token;
+            if (token.length != length || length == 0)
+                continue;
+            int i = 0;
+            while (i < length && toLower(buffer[start + i]) == token[i])
+                i++;
+            if (i == length)
+                return c;
+        }
+        return Command.UNKNOWN;
+    }
+
+    private String slice(int start, int end) {
+        try {
+            return new String(buffer, start, end - start, TELNET_ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            // ISO-8859-1 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int skipWhitespace(int from, int to) {
+        while (from < to && isWhitespace(buffer[from]))
+            from++;
+        return from;
+    }
+
+    private int trimEnd(int from, int to) {
+        while (to > from && isWhitespace(buffer[to - 1]))
+            to--;
+        return to;
+    }
+
+    private static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    // same character class as the regex \s used before
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+}
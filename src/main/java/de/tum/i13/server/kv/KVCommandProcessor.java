@@ -6,15 +6,17 @@ import de.tum.i13.shared.CommandProcessor;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
-import java.util.StringJoiner;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+
 public class KVCommandProcessor implements CommandProcessor {
     private static final Logger LOGGER = Logger.getLogger(KVCommandProcessor.class.getName());
 
     private KVServer kvStore;
     private boolean inputPassword = false;
+    private final KVCommandParser parser = new KVCommandParser();
 
     public KVCommandProcessor (KVStore kvStore) {
         this.kvStore = (KVServer)kvStore;
@@ -25,70 +27,158 @@ public class KVCommandProcessor implements CommandProcessor {
 
     @Override
     public void process(SelectionKey selectionKey, String command) throws Exception {
-        LOGGER.info("Received command: " + command.trim());
-        String[] request = command.split("\\s");
-        int size = request.length;
-        request[0] = request[0].toLowerCase();
-
-        //TODO check password is enabled or not
-        StringJoiner v = new StringJoiner(" ");
-        String password = null;
-        if(inputPassword && (request[0].equals("put") || request[0].equals("get") || request[0].equals("delete") ) ){
-            for (int i = 2; i < request.length-1; i++) {
-                v.add(request[i]);
-            }
-            password = request[request.length-1];
-        }else {
-            for (int i = 2; i < request.length; i++) {
-                v.add(request[i]);
-            }
+        byte[] data = command.getBytes(TELNET_ENCODING);
+        process(selectionKey, data, 0, data.length);
+    }
+
+    @Override
+    public void process(SelectionKey selectionKey, byte[] data, int offset, int length) throws Exception {
+        parser.reset(data, offset, length);
+        while (parser.next(inputPassword)) {
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.fine("Received command: " + parser.line());
+            dispatch(selectionKey);
         }
+    }
 
-        switch (request[0]) {
-            case "put":
-                kvStore.put(new ServerMessage(KVMessage.StatusType.PUT, request[1], v.toString(), selectionKey, password));
-                LOGGER.info(String.format("Put a key with arguments: %s", String.join(" ", command)));
+    private ServerMessage message(KVMessage.StatusType status, String key, String value, SelectionKey selectionKey, String... password) {
+        ServerMessage msg = new ServerMessage(status, key, value, selectionKey, password);
+        msg.setRequestId(parser.requestId());
+        return msg;
+    }
+
+    /**
+     * Creates a put message from a put_ttl line, which has the format put_ttl &lt;key&gt; &lt;seconds&gt; &lt;value&gt;.
+     * An invalid time to live is marked with a negative ttl and rejected by the KVServer.
+     */
+    private ServerMessage putWithTtl(SelectionKey selectionKey) {
+        String[] ttlAndValue = parser.value().split("\\s+", 2);
+        long ttl;
+        try {
+            ttl = Long.parseLong(ttlAndValue[0]);
+        } catch (NumberFormatException e) {
+            ttl = -1;
+        }
+        String value = ttlAndValue.length > 1 ? ttlAndValue[1] : "";
+        ServerMessage msg = message(KVMessage.StatusType.PUT, parser.key(), value, selectionKey, parser.password());
+        msg.setTtl(ttl <= 0 ? -1 : ttl);
+        return msg;
+    }
+
+    private void dispatch(SelectionKey selectionKey) throws Exception {
+        KVCommandParser.Command command = parser.command();
+        // single key commands need at least a key
+        if (command.requiresKey() && !parser.hasKey())
+            command = KVCommandParser.Command.UNKNOWN;
+
+        switch (command) {
+            case PUT:
+                kvStore.put(message(KVMessage.StatusType.PUT, parser.key(), parser.value(), selectionKey, parser.password()));
+                break;
+            case PUT_TTL:
+                kvStore.put(putWithTtl(selectionKey));
+                break;
+            case GET:
+                kvStore.get(message(KVMessage.StatusType.GET, parser.key(), null, selectionKey, parser.password()));
+                break;
+            case DELETE:
+                kvStore.delete(message(KVMessage.StatusType.DELETE, parser.key(), null, selectionKey, parser.password()));
+                break;
+            case MGET:
+                kvStore.batch(message(KVMessage.StatusType.MGET, null, parser.arguments(), selectionKey));
+                break;
+            case MPUT:
+                kvStore.batch(message(KVMessage.StatusType.MPUT, null, parser.arguments(), selectionKey));
+                break;
+            case MDELETE:
+                kvStore.batch(message(KVMessage.StatusType.MDELETE, null, parser.arguments(), selectionKey));
                 break;
-            case "get":
-                kvStore.get(new ServerMessage(KVMessage.StatusType.GET, request[1], null, selectionKey, password));
-                LOGGER.info(String.format("Get value with arguments: %s", String.join(" ", command)));
+            case CAS:
+                kvStore.cas(message(KVMessage.StatusType.CAS, parser.key(), parser.value(), selectionKey));
                 break;
-            case "delete":
-                kvStore.delete(new ServerMessage(KVMessage.StatusType.DELETE, request[1], null, selectionKey, password));
-                LOGGER.info(String.format("Delete a key with arguments: %s", String.join(" ", command)));
+            case INCR:
+                kvStore.incr(message(KVMessage.StatusType.INCR, parser.key(), parser.value(), selectionKey));
                 break;
-            case "keyrange":
-                kvStore.getKeyRange(new ServerMessage(KVMessage.StatusType.KEY_RANGE, null, null, selectionKey));
-                LOGGER.info(String.format("Get key range of the server"));
+            case SCAN:
+                kvStore.scan(message(KVMessage.StatusType.SCAN, null, parser.arguments(), selectionKey));
                 break;
-            case "keyrange_read":
-                kvStore.getKeyRangeRead(new ServerMessage(KVMessage.StatusType.KEY_RANGE_READ, null, null, selectionKey));
-                LOGGER.info(String.format("Get key range success of the server"));
+            case KEYRANGE:
+                kvStore.getKeyRange(message(KVMessage.StatusType.KEY_RANGE, null, null, selectionKey));
+                LOGGER.fine("Get key range of the server");
                 break;
-            case "ecs_accept":
+            case KEYRANGE_READ:
+                kvStore.getKeyRangeRead(message(KVMessage.StatusType.KEY_RANGE_READ, null, null, selectionKey));
+                LOGGER.fine("Get key range success of the server");
+                break;
+            case KEYRANGE_EPOCH:
+                kvStore.getKeyRange(message(KVMessage.StatusType.KEY_RANGE_EPOCH, null, null, selectionKey));
+                break;
+            case ECS_ACCEPT:
                 LOGGER.info("ECS accepted connection.");
                 break;
-            case "ecs_error":
+            case ECS_ERROR:
                 LOGGER.info("Got error from ECS.");
                 break;
-            case "rebalance":
-                kvStore.rebalance(new ServerMessage(KVMessage.StatusType.REBALANCE, request[1], request[2], selectionKey));
+            case REBALANCE:
+                kvStore.rebalance(message(KVMessage.StatusType.REBALANCE, parser.key(), parser.value(), selectionKey));
+                break;
+            case RECEIVE_REBALANCE:
+                kvStore.receiveRebalance(message(KVMessage.StatusType.RECEIVE_REBALANCE, parser.key(), parser.value(), selectionKey));
+                break;
+            case RECEIVE_SINGLE:
+                kvStore.receiveSingleKV(message(KVMessage.StatusType.RECEIVE_SINGLE, parser.key(), parser.value(), selectionKey));
+                break;
+            case REPLICATE_BATCH:
+                kvStore.receiveReplicateBatch(message(KVMessage.StatusType.REPLICATE_BATCH, parser.key(), parser.value(), selectionKey));
+                break;
+            case REPLICATE_ACK:
+                kvStore.receiveReplicateAck(message(KVMessage.StatusType.REPLICATE_ACK, parser.key(), parser.value(), selectionKey));
+                break;
+            case STATS:
+                kvStore.stats(message(KVMessage.StatusType.STATS, null, null, selectionKey));
+                break;
+            case SYNC_TREE:
+                kvStore.receiveSyncTree(message(KVMessage.StatusType.SYNC_TREE, parser.key(), parser.value(), selectionKey));
                 break;
-            case "receive_rebalance":
-                kvStore.receiveRebalance(new ServerMessage(KVMessage.StatusType.RECEIVE_REBALANCE, request[1], request[2], selectionKey));
+            case SYNC_DIFF:
+                kvStore.receiveSyncDiff(message(KVMessage.StatusType.SYNC_DIFF, parser.key(), parser.value(), selectionKey));
                 break;
-            case "receive_single":
-                kvStore.receiveSingleKV(new ServerMessage(KVMessage.StatusType.RECEIVE_SINGLE, request[1], request[2], selectionKey));
+            case SYNC_LEAVES:
+                kvStore.receiveSyncLeaves(message(KVMessage.StatusType.SYNC_LEAVES, parser.key(), parser.value(), selectionKey));
                 break;
-            case "update_metadata":
+            case REBALANCE_CHUNK:
+                kvStore.receiveRebalanceChunk(message(KVMessage.StatusType.REBALANCE_CHUNK, parser.key(), parser.value(), selectionKey));
+                break;
+            case REBALANCE_ACK:
+                kvStore.receiveRebalanceAck(message(KVMessage.StatusType.REBALANCE_ACK, parser.key(), parser.value(), selectionKey));
+                break;
+            case REBALANCE_PART:
+                kvStore.receiveRebalancePart(message(KVMessage.StatusType.REBALANCE_PART, parser.key(), parser.value(), selectionKey));
+                break;
+            case REBALANCE_PART_STATUS:
+                kvStore.receiveRebalancePartStatus(message(KVMessage.StatusType.REBALANCE_PART_STATUS, parser.key(), parser.value(), selectionKey));
+                break;
+            case HOT_COPY:
+                kvStore.receiveHotCopy(message(KVMessage.StatusType.HOT_COPY, parser.key(), parser.value(), selectionKey));
+                break;
+            case HOTKEYS:
+                kvStore.hotKeys(message(KVMessage.StatusType.HOTKEYS, null, null, selectionKey));
+                break;
+            case HANDOFF:
+                kvStore.handoff(message(KVMessage.StatusType.HANDOFF, parser.key(), parser.value(), selectionKey));
+                break;
+            case UPDATE_METADATA:
                 LOGGER.info("update_metadata request");
-                kvStore.receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA, request[1], request[2], selectionKey));
+                kvStore.receiveMetadata(message(KVMessage.StatusType.UPDATE_METADATA, parser.key(), parser.value(), selectionKey));
+                break;
+            case METADATA_DIFF:
+                kvStore.receiveMetadataDiff(message(KVMessage.StatusType.METADATA_DIFF, parser.key(), parser.value(), selectionKey));
                 break;
-            case "ecs_heartbeat":
-                LOGGER.info("Heartbeat");
-                kvStore.respondHeartbeat(new ServerMessage(KVMessage.StatusType.ECS_HEARTBEAT, request[1], request[2], selectionKey));
+            case ECS_HEARTBEAT:
+                LOGGER.fine("Heartbeat");
+                kvStore.respondHeartbeat(message(KVMessage.StatusType.ECS_HEARTBEAT, parser.key(), parser.value(), selectionKey));
                 break;
-            case "handlewithpassword":
+            case HANDLEWITHPASSWORD:
                 if(!inputPassword){
                     inputPassword = true;
                     LOGGER.info("Password activated");
@@ -99,13 +189,13 @@ public class KVCommandProcessor implements CommandProcessor {
                 }
 
                 break;
-            case "receive_password":
-                kvStore.receivePassword(new ServerMessage(KVMessage.StatusType.PASSWORD, request[1], request[2], selectionKey));
+            case RECEIVE_PASSWORD:
+                kvStore.receivePassword(message(KVMessage.StatusType.PASSWORD, parser.key(), parser.value(), selectionKey));
                 break;
             default:
                 //here handle unknown commands
-                kvStore.unknownCommand(new ServerMessage(KVMessage.StatusType.ERROR, "unknown", "command", selectionKey));
-                LOGGER.info(String.format("Unknown command: %s", String.join(" ", command)));
+                kvStore.unknownCommand(message(KVMessage.StatusType.ERROR, "unknown", "command", selectionKey));
+                LOGGER.info("Unknown command: " + parser.line());
                 break;
         }
 
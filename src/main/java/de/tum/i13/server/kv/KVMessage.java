@@ -23,6 +23,7 @@ public interface KVMessage {
         SERVER_READY,           /* Request cannot be processed - server not ready */
         SERVER_WRITE_LOCK,      /* Put, Delete - request cannot be processed */
         SERVER_NOT_RESPONSIBLE, /* Requested key not in server range */
+        SERVER_BUSY,            /* Request cannot be processed - in-flight budget exhausted, carries a retry-after hint */
         KEY_RANGE,              /* Key range - request */
         KEY_RANGE_READ,  /* Key range success - request */
         KEY_RANGE_SUCCESS,      /* Key range - request successful */
@@ -45,7 +46,38 @@ public interface KVMessage {
         SUBSCRBE_OK,
         UNSUBSCRBE,
         UNSUBSCRBE_OK,
-        UNSUBSCRBE_ERROR
+        UNSUBSCRBE_ERROR,
+        MGET,                   /* Batch get - request */
+        MPUT,                   /* Batch put - request */
+        MDELETE,                /* Batch delete - request */
+        BATCH_RESULT,           /* Combined answer to a batch request */
+        SCAN,                   /* Scan - request */
+        SCAN_ENTRY,             /* Scan - one key-value pair of a page */
+        SCAN_END,               /* Scan - end of a page, carries the continuation token */
+        CAS,                    /* Compare-and-set - request */
+        CAS_SUCCESS,            /* Compare-and-set - value replaced */
+        CAS_FAILED,             /* Compare-and-set - current value differs from the expected value */
+        CAS_ERROR,              /* Compare-and-set - request not successful */
+        INCR,                   /* Increment - request */
+        INCR_SUCCESS,           /* Increment - value incremented */
+        INCR_ERROR,             /* Increment - request not successful */
+        REPLICATE_BATCH,        /* Replication - numbered batch of mutations from a coordinator */
+        REPLICATE_ACK,          /* Replication - replica applied all batches up to a sequence number */
+        STATS,                  /* Stats - request */
+        SYNC_TREE,              /* Anti-entropy - digests of Merkle tree nodes of a coordinator */
+        SYNC_DIFF,              /* Anti-entropy - Merkle tree nodes a replica disagrees on */
+        SYNC_LEAVES,            /* Anti-entropy - all pairs of differing leaves */
+        REBALANCE_CHUNK,        /* Rebalance - numbered chunk of the pairs of a range transfer */
+        REBALANCE_ACK,          /* Rebalance - receiver applied all chunks up to a sequence number */
+        REBALANCE_PART,         /* Rebalance - replica copies a sub-range of its coordinator to a joining server */
+        REBALANCE_PART_STATUS,  /* Rebalance - progress of a sub-range copied by a replica */
+        REBALANCE_PROGRESS,     /* Rebalance - number of pairs transferred so far, reported to the ECS */
+        HOT_COPY,               /* Hot keys - copy of a hot key a server may answer gets with */
+        HOTKEYS,                /* Hot keys - request and answer listing the keys which are currently hot */
+        HANDOFF,                /* Remove server - ranges of a leaving or failed server to copy to their new holders */
+        KEY_RANGE_EPOCH,        /* Key range - request and answer with the epoch of the metadata */
+        METADATA_DIFF,          /* Metadata - changed tokens from one epoch to the next */
+        METADATA_REQUEST        /* Metadata - server missed an epoch and asks the ECS for the full metadata */
     }
 
     /**
@@ -4,10 +4,21 @@ import de.tum.i13.server.cache.Cache;
 import de.tum.i13.server.cache.FirstInFirstOutCache;
 import de.tum.i13.server.cache.LeastFrequentlyUsedCache;
 import de.tum.i13.server.cache.LeastRecentlyUsedCache;
+import de.tum.i13.server.cache.SpaceSaving;
 import de.tum.i13.server.disk.DiskManager;
+import de.tum.i13.server.disk.HintStore;
+import de.tum.i13.server.nio.PeerConnectionPool;
 import de.tum.i13.server.nio.SimpleNioServer;
+import de.tum.i13.server.replication.MerkleTree;
+import de.tum.i13.server.replication.RangeTransfer;
+import de.tum.i13.server.replication.ReplicaState;
+import de.tum.i13.server.replication.ReplicationStream;
+import de.tum.i13.server.replication.TokenBucket;
+import de.tum.i13.server.replication.WriteConsistency;
 import de.tum.i13.server.stripe.StripedCallable;
+import de.tum.i13.server.stripe.FixedStripedExecutorService;
 import de.tum.i13.server.stripe.StripedExecutorService;
+import de.tum.i13.server.ttl.TimingWheel;
 import de.tum.i13.shared.B64Util;
 import de.tum.i13.shared.Metadata;
 import de.tum.i13.shared.Pair;
@@ -19,15 +30,46 @@ import java.net.InetSocketAddress;
 
 import java.nio.channels.SelectionKey;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 import static de.tum.i13.shared.Constants.TELNET_ENCODING;
 
 public class KVServer implements KVStore {
     private static final Logger LOGGER = Logger.getLogger(KVServer.class.getName());
+    private static final int SCAN_PAGE_SIZE = 100;
+    private static final int SCAN_MAX_PAGE_SIZE = 10000;
+    private static final int SCAN_FLUSH_BYTES = 64 * 1024;
+    private static final long EXPIRY_TICK_MILLIS = 100;
+    private static final int EXPIRY_WHEEL_SIZE = 512;
+    private static final long MIN_RETRY_AFTER_MILLIS = 5;
+    private static final long MAX_RETRY_AFTER_MILLIS = 2000;
+    private static final long PEER_FAILURE_TIMEOUT_MILLIS = 50000;
+    private static final String BROKER_ADDRESS = "127.0.0.1";
+    private static final int BROKER_PORT = 5155;
+    private static final long REPLICATION_RETRANSMIT_MILLIS = 1000;
+    private static final long REPLICATION_ACK_TIMEOUT_MILLIS = 5000;
+    private static final long ANTI_ENTROPY_INTERVAL_MILLIS = 30000;
+    private static final int SYNC_LEAVES_BYTES = 64 * 1024;
+    private static final int TRANSFER_PROGRESS_PAIRS = 10000;
+    private static final long HANDOVER_GRACE_MILLIS = 1000;
+    private static final long HANDOVER_CATCH_UP_MILLIS = 2000;
+    private static final long HANDOVER_CATCH_UP_CHECK_MILLIS = 10;
+    private static final long HANDOVER_PART_TIMEOUT_MILLIS = 10000;
+    private static final int HOT_KEY_COUNTERS = 64;
+    private static final long HOT_KEY_INTERVAL_MILLIS = 1000;
+    private static final long HOT_COPY_TTL_MILLIS = 3000;
+    private static final long PAIR_COUNT_INTERVAL_MILLIS = 1000;
+    private static final long LEAVE_TIMEOUT_MILLIS = 30000;
+    // full metadata and diffs are applied one after the other in the order the ECS sent them
+    private static final Object METADATA_STRIPE = new Object();
 
     private Cache cache;
     private SimpleNioServer server;
@@ -38,19 +80,69 @@ public class KVServer implements KVStore {
     private String listenaddress;
     private int port;
     private int intraPort;
+    private double weight;
 
     private boolean serverActive;
     private boolean serverWriteLock;
     private Metadata metadata;
-    private KVServerCommunicator kvServer2ServerCommunicator;
-    private KVServerCommunicator kvServerECSCommunicator;
-    private KVServerCommunicator kvServerBrokerCommunicator;
-    private TreeMap<String, Pair<String, String>> historicPairs;
+    private PeerConnectionPool peers;
+    private ReplicationStream replication;
+    private final ReplicaState replicaState = new ReplicaState();
+    private volatile WriteConsistency writeConsistency = WriteConsistency.ASYNC;
+    private TimingWheel<PendingWrite> ackTimeouts;
+    private final MerkleTree digests = new MerkleTree();
+    private ScheduledExecutorService scheduler;
+    private final ConcurrentHashMap<Long, RangeTransfer> transfers = new ConcurrentHashMap<>();
+    private final AtomicLong transferIds = new AtomicLong(System.currentTimeMillis());
+    private final ReplicaState transferState = new ReplicaState();
+    // hash of the new server -> range handed over to it
+    private final ConcurrentHashMap<String, Handover> handovers = new ConcurrentHashMap<>();
+    // counts down the ranges of this server which are still copied while it leaves, see #handoff
+    private final BlockingQueue<CountDownLatch> leaving = new LinkedBlockingQueue<>();
+    // keys received for ranges this server does not serve yet -> true if the coordinator sent them, see applyTransferred
+    private final ConcurrentHashMap<String, Boolean> joinWrites = new ConcurrentHashMap<>();
+    private volatile TokenBucket transferBandwidth;
+    // own token -> requests to its range since the last heartbeat, see respondHeartbeat
+    private final ConcurrentHashMap<String, LongAdder> tokenRequests = new ConcurrentHashMap<>();
+    // own token -> pairs of its range, counted periodically by countTokenPairs, as counting walks the whole range
+    private volatile Map<String, Integer> tokenPairs = Collections.emptyMap();
+    // most requested own keys of the current interval, see spreadHotKeys
+    private final SpaceSaving hotKeyCounts = new SpaceSaving(HOT_KEY_COUNTERS);
+    private volatile int hotKeyRate;
+    // own keys whose copies are kept on all servers
+    private volatile Set<String> hotKeys = Collections.emptySet();
+    // hot keys of other coordinators -> copy of the pair
+    private final ConcurrentHashMap<String, HotCopy> hotCopies = new ConcurrentHashMap<>();
+    private ConcurrentSkipListMap<String, Pair<String, String>> historicPairs;
     private TreeMap<String, String> keySpecificPasswords;
     private TreeMap<String, ArrayList<SelectionKey>> subscriptionKeys;
+    private ConcurrentHashMap<String, Long> expirations;
+    private TimingWheel<String> expiryWheel;
+    private volatile int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile long avgLatencyMicros;
+    private final ConcurrentHashMap<String, Integer> pendingWrites = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CoalescedPuts> openPuts = new ConcurrentHashMap<>();
 
 
     public KVServer(String cacheType, int cacheSize, InetSocketAddress bootstrap, String listenaddress, int port, int intraPort) {
+        this(cacheType, cacheSize, bootstrap, listenaddress, port, intraPort, new StripedExecutorService());
+    }
+
+    /**
+     * Creates a KVServer which runs its key operations on the given executor. The executor must run tasks implementing
+     * StripedObject with the same stripe in submission order, e.g. a {@link StripedExecutorService} or a
+     * {@link FixedStripedExecutorService}.
+     */
+    public KVServer(String cacheType, int cacheSize, InetSocketAddress bootstrap, String listenaddress, int port, int intraPort, ExecutorService pool) {
+        this(cacheType, cacheSize, bootstrap, listenaddress, port, intraPort, pool, 1);
+    }
+
+    /**
+     * Creates a KVServer with a capacity weight, the ECS gives it a share of the hash ring in proportion to the weight,
+     * see {@link Metadata#getOwnership()}.
+     */
+    public KVServer(String cacheType, int cacheSize, InetSocketAddress bootstrap, String listenaddress, int port, int intraPort, ExecutorService pool, double weight) {
         if (cacheType.equals("LFU")) cache = LeastFrequentlyUsedCache.getInstance();
         else if (cacheType.equals("LRU")) cache = LeastRecentlyUsedCache.getInstance();
         else
@@ -60,21 +152,42 @@ public class KVServer implements KVStore {
         cache.initCache(cacheSize);
 
         this.server = null;
-        this.pool = new StripedExecutorService();
+        this.pool = pool;
         this.disk = DiskManager.getInstance();
 
         this.bootstrap = bootstrap;
         this.listenaddress = listenaddress;
         this.port = port;
         this.intraPort = intraPort;
-        this.kvServer2ServerCommunicator = new KVServerCommunicator();
-        this.kvServerECSCommunicator = new KVServerCommunicator();
-        this.kvServerBrokerCommunicator = new KVServerCommunicator();
+        this.weight = weight;
+        this.peers = new PeerConnectionPool(PEER_FAILURE_TIMEOUT_MILLIS, this::peerFailed);
+        try {
+            this.peers.start();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start peer connection pool", e);
+        }
+        this.replication = new ReplicationStream(listenaddress + ":" + intraPort, peers::send, REPLICATION_RETRANSMIT_MILLIS);
+        this.peers.setReconnectHandler((address, peerPort) -> replication.resend(address + ":" + peerPort));
+        this.replication.start();
+        this.ackTimeouts = new TimingWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SIZE, writes -> writes.forEach(PendingWrite::timeout));
+        this.ackTimeouts.start();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.scheduler.scheduleWithFixedDelay(this::startAntiEntropy, ANTI_ENTROPY_INTERVAL_MILLIS,
+                ANTI_ENTROPY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::retransmitTransfers, REPLICATION_RETRANSMIT_MILLIS,
+                REPLICATION_RETRANSMIT_MILLIS, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::spreadHotKeys, HOT_KEY_INTERVAL_MILLIS,
+                HOT_KEY_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(this::countTokenPairs, PAIR_COUNT_INTERVAL_MILLIS,
+                PAIR_COUNT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
         serverActive = false;
         serverWriteLock = true;
-        this.historicPairs = new TreeMap<>();
+        this.historicPairs = new ConcurrentSkipListMap<>();
         this.keySpecificPasswords = new TreeMap<>();
         this.subscriptionKeys = new TreeMap<>();
+        this.expirations = new ConcurrentHashMap<>();
+        this.expiryWheel = new TimingWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_WHEEL_SIZE, this::expire);
+        this.expiryWheel.start();
 
         this.metadata = new Metadata(new KVServerInfo(listenaddress,port, Util.calculateHash(listenaddress,port), "", intraPort));
         connectECS();
@@ -100,6 +213,46 @@ public class KVServer implements KVStore {
         this.server = server;
     }
 
+    /**
+     * Sets the budget of requests which may be queued or executed at the same time. Requests beyond the budget are
+     * answered with server_busy instead of being queued.
+     *
+     * @param maxInFlight maximum number of requests in flight, 0 disables the admission control.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sets when puts are answered, see {@link WriteConsistency}. Waiting for replicas does not block a worker, the
+     * answer is sent by the thread which receives the last required acknowledgement.
+     *
+     * @param writeConsistency ASYNC, ONE or QUORUM.
+     */
+    public void setWriteConsistency(WriteConsistency writeConsistency) {
+        this.writeConsistency = writeConsistency;
+    }
+
+    /**
+     * Limits the bandwidth of the transfers this server sends when servers join or replicas are added, see
+     * {@link TokenBucket}.
+     *
+     * @param kilobytesPerSecond limit shared by all transfers, 0 disables the limit.
+     */
+    public void setTransferRate(int kilobytesPerSecond) {
+        this.transferBandwidth = kilobytesPerSecond > 0 ? new TokenBucket(kilobytesPerSecond * 1024L) : null;
+    }
+
+    /**
+     * Sets the request rate above which a key is hot: every server keeps a copy of a hot key and answers its gets, so
+     * a single popular key does not saturate its coordinator, see {@link #spreadHotKeys()}.
+     *
+     * @param requestsPerSecond requests a key needs per second to become hot, 0 disables the copies.
+     */
+    public void setHotKeyRate(int requestsPerSecond) {
+        this.hotKeyRate = requestsPerSecond;
+    }
+
     /**
      * Activate/Dis-activate the server to process commands.
      *
@@ -133,88 +286,275 @@ public class KVServer implements KVStore {
         //if ECS process is not done yet, server is not ready to retrieve requests
         if (!serverActive) {
             String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
         }
         //if server locked
         if (serverWriteLock) {
             String message = KVMessage.StatusType.SERVER_WRITE_LOCK.toString().toLowerCase(Locale.ENGLISH) + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_WRITE_LOCK, msg.getKey(), B64Util.b64encode("Server is locked!"));
         }
         //if server is not responsible for given key
         if(!checkServerResponsible(msg.getKey())){
-            String message = KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name().toLowerCase(Locale.ENGLISH) + "\r\n";
+            String message = notResponsible();
             LOGGER.info("Answer to Client: " + message);
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, metadata);
         }
+        countRequest(msg.getKey());
         // if KVMessage does not have put command, return error
         if (msg.getStatus() != KVMessage.StatusType.PUT)
             return new ServerMessage(KVMessage.StatusType.PUT_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
         // if KVMessage does not contain selectionKey, return error
         if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
             return new ServerMessage(KVMessage.StatusType.PUT_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
+        // if the client sent an invalid time to live, return error
+        if (((ServerMessage) msg).getTtl() < 0) {
+            String message = KVMessage.StatusType.PUT_ERROR.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + B64Util.b64encode("Invalid time to live!") + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.PUT_ERROR, msg.getKey(), B64Util.b64encode("Invalid time to live!"));
+        }
 
         if(!checkPassword(msg)){
             String message = KVMessage.StatusType.PASSWORD_WRONG.name().toLowerCase(Locale.ENGLISH) + "\r\n";
             LOGGER.info("Answer to Client: " + message);
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.PASSWORD_WRONG, msg.getKey(), B64Util.b64encode("Password is wrong!"));
         }
 
 
         LOGGER.info(String.format("Client wants to put key: <%s, %s>", msg.getKey(), msg.getValue()));
 
+        KVMessage busy = admit(msg, 1);
+        if (busy != null)
+            return busy;
+
+        // join the queued put of this key if there is one, otherwise queue a new one
+        CoalescedPuts[] created = new CoalescedPuts[1];
+        openPuts.compute(msg.getKey(), (key, open) -> {
+            if (open == null)
+                open = created[0] = new CoalescedPuts(key);
+            open.puts.add(msg);
+            return open;
+        });
+        if (created[0] == null) {
+            LOGGER.fine("Coalesced put with queued put for key " + msg.getKey());
+            return null;
+        }
+
         LOGGER.fine("Submitting new put callable to pool for key " + msg.getKey());
         // queue put command
-        pool.submit(new StripedCallable<Void>() {
-            public Void call() throws Exception {
-                LOGGER.fine(String.format("Putting key into cache: <%s, %s>", msg.getKey(), msg.getValue()));
-                // first, write the kv pair into the cache
-                KVMessage res = cache.put(msg);
-                String message;
-//                if (res.getStatus() == KVMessage.StatusType.PUT_SUCCESS || res.getStatus() == KVMessage.StatusType.PUT_UPDATE) {
-                LOGGER.fine(String.format("Successfully put key into cache, now writing to disk: <%s, %s>", msg.getKey(), msg.getValue()));
-                // successfully written kv pair into cache, now write to disk
-                res = disk.writeContent(msg);
-
-                //add/update to history
-                String hashedKey = Util.calculateHash(msg.getKey());
-                if (!historicPairs.containsKey(hashedKey))
-                    historicPairs.put(hashedKey, new Pair<>(msg.getKey(), msg.getValue()));
-                else historicPairs.replace(hashedKey, new Pair<>(msg.getKey(), msg.getValue()));
-
-                    message = res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + res.getValue() + "\r\n";
-//                } else {
-//                message = res.getStatus().name().toLowerCase() + " " + res.getKey() + "\r\n";
-//                }
+        submitAdmitted(true, created[0]);
 
-                // return answer to client
-                LOGGER.info("Answer to client: " + message);
-                server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+        return null;
+    }
 
+    /**
+     * Consecutive puts of one key that are written as one. A put joins the queued CoalescedPuts of its key as long as
+     * it has not started and no other operation on the key was queued after it, see {@link #submitAdmitted}. Only
+     * the last value is written to cache and disk, published and replicated, but every client gets its own answer:
+     * the first put gets the status of the write, all later puts updated the value of their predecessor and get
+     * put_update.
+     */
+    private class CoalescedPuts implements StripedCallable<Void> {
+        private final String key;
+        // only modified inside openPuts.compute while this is the open entry of the key
+        private final List<KVMessage> puts = new ArrayList<>();
 
-                String smsg =  "subscribe_update" + " " + res.getKey() + " " + res.getValue() + "\r\n";
-                kvServerBrokerCommunicator.send("127.0.0.1:5155", smsg.getBytes(StandardCharsets.UTF_8));
+        private CoalescedPuts(String key) {
+            this.key = key;
+        }
 
+        public Object getStripe() {
+            return key;
+        }
 
-                //TODO: send new kv to replicas
-                if(metadata.getServerMap().size() > 2){
-                    LOGGER.info("Send " +  msg.getKey() + " "+  msg.getValue() + "to replica servers");
-                    sendKVReplicas("put", msg.getKey(), msg.getValue());
+        public Void call() throws Exception {
+            // close this batch, later puts of the key start a new one
+            openPuts.remove(key, this);
+            boolean waiting = false;
+            try {
+                KVMessage last = puts.get(puts.size() - 1);
+                KVMessage res = storePut(last);
+                if (puts.size() > 1)
+                    LOGGER.fine(String.format("Coalesced %d puts for key %s", puts.size(), key));
+
+                List<String> answers = new ArrayList<>(puts.size());
+                for (int i = 0; i < puts.size(); i++) {
+                    KVMessage put = puts.get(i);
+                    if (res.getStatus() == KVMessage.StatusType.PUT_ERROR)
+                        answers.add(res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + res.getValue() + "\r\n");
+                    else if (i == 0)
+                        answers.add(res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + put.getValue() + "\r\n");
+                    else
+                        answers.add(KVMessage.StatusType.PUT_UPDATE.name().toLowerCase() + " " + res.getKey() + " " + put.getValue() + "\r\n");
                 }
 
+                List<String> replicas = res.getStatus() == KVMessage.StatusType.PUT_ERROR ? Collections.emptyList() : replicaTargets(key);
+                int required = writeConsistency.requiredAcks(replicas.size());
+                if (required == 0) {
+                    // return answer to client
+                    for (int i = 0; i < puts.size(); i++) {
+                        LOGGER.info("Answer to client: " + answers.get(i));
+                        reply(puts.get(i), answers.get(i));
+                    }
+                    publishPut(last, res, replicas, null);
+                } else {
+                    // the answers are sent when enough replicas acknowledged the put
+                    PendingWrite pending = new PendingWrite(key, new ArrayList<>(puts), answers, replicas.size(), required);
+                    ackTimeouts.schedule(pending, System.currentTimeMillis() + REPLICATION_ACK_TIMEOUT_MILLIS);
+                    waiting = true;
+                    publishPut(last, res, replicas, pending);
+                }
                 return null;
+            } finally {
+                // every coalesced put was admitted on its own, submitAdmitted only releases one slot. Puts waiting for
+                // their replicas keep all of their slots until the answers are sent, see PendingWrite
+                inFlight.addAndGet(waiting ? 1 : 1 - puts.size());
             }
+        }
+    }
 
+    /**
+     * Answers of a put which wait for replica acknowledgements, see {@link WriteConsistency}. The answers are sent as
+     * soon as the required number of replicas acknowledged the put. If that becomes impossible, because replicas were
+     * dropped, or takes longer than the timeout, the clients get put_error, although the put is applied locally.
+     * Every put keeps its slot of the in-flight budget until its answer is sent.
+     */
+    private class PendingWrite implements ReplicationStream.Listener {
+        private final String key;
+        private final List<KVMessage> requests;
+        private final List<String> answers;
+        private final int replicas;
+        private final int required;
+        private final AtomicInteger acknowledged = new AtomicInteger();
+        private final AtomicInteger dropped = new AtomicInteger();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private PendingWrite(String key, List<KVMessage> requests, List<String> answers, int replicas, int required) {
+            this.key = key;
+            this.requests = requests;
+            this.answers = answers;
+            this.replicas = replicas;
+            this.required = required;
+        }
 
-            public Object getStripe() {
-                return msg.getKey();
+        public void acknowledged(String replica) {
+            if (acknowledged.incrementAndGet() == required)
+                complete(true);
+        }
+
+        public void dropped(String replica) {
+            if (dropped.incrementAndGet() == replicas - required + 1)
+                complete(false);
+        }
+
+        private void timeout() {
+            if (!done.get())
+                LOGGER.warning(String.format("Only %d of %d replicas acknowledged put of key %s in time", acknowledged.get(), required, key));
+            complete(false);
+        }
+
+        private void complete(boolean success) {
+            if (!done.compareAndSet(false, true))
+                return;
+            for (int i = 0; i < requests.size(); i++) {
+                String message = success ? answers.get(i) : KVMessage.StatusType.PUT_ERROR.name().toLowerCase() + " " + key
+                        + " " + B64Util.b64encode("Not enough replicas acknowledged the put!") + "\r\n";
+                try {
+                    LOGGER.info("Answer to client: " + message);
+                    reply(requests.get(i), message);
+                } catch (UnsupportedEncodingException e) {
+                    LOGGER.warning("Could not answer put of key " + key + ": " + e.getMessage());
+                }
             }
-        });
+            inFlight.addAndGet(-requests.size());
+        }
+    }
 
-        return null;
+    /**
+     * Copy of a hot key of another server, dropped when the coordinator stops refreshing it.
+     */
+    private static class HotCopy {
+        private final String value;
+        private final long expiresAt;
+
+        private HotCopy(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * A part of the range of this server which is handed over to a joining server. Until the ECS switched the
+     * metadata this server stays responsible for the part: it keeps accepting writes and forwards them to the new
+     * owner through the transfer which copies the part, see {@link RangeTransfer#forward}. Sub-ranges of the part may
+     * be copied by the replicas of this server in parallel, see {@link HandoverPart}.
+     */
+    private static class Handover {
+        private final String newHash;
+        private final String ownHash;
+        private final String start;
+        private final String target;
+        private final KVMessage request;
+        private final int total;
+        // transfer reference -> sub-range copied by a replica
+        private final ConcurrentHashMap<Long, HandoverPart> parts = new ConcurrentHashMap<>();
+        private final AtomicInteger acked = new AtomicInteger();
+        private final AtomicBoolean reported = new AtomicBoolean();
+        private final AtomicBoolean ending = new AtomicBoolean();
+        private volatile RangeTransfer transfer;
+        private volatile boolean copied;
+
+        private Handover(String newHash, String ownHash, String start, String target, KVMessage request, int total) {
+            this.newHash = newHash;
+            this.ownHash = ownHash;
+            this.start = start;
+            this.target = target;
+            this.request = request;
+            this.total = total;
+        }
+
+        // the new token takes over (previous token, new token] of the range of the own token
+        private boolean moves(String hash) {
+            return MerkleTree.inRange(hash, start, newHash);
+        }
+
+        private boolean copiedByReplica(String hash) {
+            for (HandoverPart part : parts.values())
+                if (!part.fallback.get() && MerkleTree.inRange(hash, part.start, part.end))
+                    return true;
+            return false;
+        }
+
+        // pairs copied so far by this server and the replicas
+        private int progress() {
+            int progress = acked.get();
+            for (HandoverPart part : parts.values())
+                progress += part.acked;
+            return progress;
+        }
+    }
+
+    /**
+     * A sub-range (start, end] of a {@link Handover} which a replica copies to the new server. If the replica does
+     * not report progress in time, this server copies the sub-range itself.
+     */
+    private static class HandoverPart {
+        private final String replica;
+        private final String start;
+        private final String end;
+        private final AtomicBoolean fallback = new AtomicBoolean();
+        private volatile int acked;
+        private volatile long lastProgress = System.currentTimeMillis();
+        private volatile boolean done;
+
+        private HandoverPart(String replica, String start, String end) {
+            this.replica = replica;
+            this.start = start;
+            this.end = end;
+        }
     }
 
     /**
@@ -231,14 +571,23 @@ public class KVServer implements KVStore {
         //if ECS process is not done yet, server is not ready to retrieve requests
         if (!serverActive) {
             String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
         }
+        // hot keys of other coordinators are answered from their copies, protected keys never are
+        HotCopy copy = hotCopies.get(msg.getKey());
+        if (copy != null && copy.expiresAt > System.currentTimeMillis() && !checkServerResponsible(msg.getKey())
+                && msg.getPassword() == null && !keySpecificPasswords.containsKey(msg.getKey())) {
+            String message = KVMessage.StatusType.GET_SUCCESS.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + copy.value + "\r\n";
+            LOGGER.fine("Answer to Client: " + message);
+            reply(msg, message);
+            return null;
+        }
         //if server is not responsible for given key
-        if(!checkServerResponsible(msg.getKey()) &&  metadata.getServerMap().size() < 3){
-            String message = KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name().toLowerCase(Locale.ENGLISH) + "\r\n";
-            LOGGER.info("Answer to Client: " + message);
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+        if(!checkServerResponsible(msg.getKey()) &&  metadata.serverCount() < 3){
+            String message = notResponsible();
+            LOGGER.fine("Answer to Client: " + message);
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, metadata);
         }
         // if KVMessage does not have put command, return error
@@ -248,60 +597,44 @@ public class KVServer implements KVStore {
         if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
             return new ServerMessage(KVMessage.StatusType.GET_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
 
-        boolean isRepRole = metadata.isRoleReplica(msg.getKey());
-        LOGGER.info("is replicate role: " + isRepRole);
         boolean isCoordinator = checkServerResponsible(msg.getKey());
-        LOGGER.info("is replicate role: " + isCoordinator);
 
         if(!checkPassword(msg)){
             String message = KVMessage.StatusType.PASSWORD_WRONG.name().toLowerCase(Locale.ENGLISH) + "\r\n";
-            LOGGER.info("Answer to Client: " + message);
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            LOGGER.fine("Answer to Client: " + message);
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.PASSWORD_WRONG, msg.getKey(), B64Util.b64encode("Password is wrong!"));
         }
+        if (isCoordinator)
+            countRequest(msg.getKey());
 
         if(metadata.isRoleReplica(msg.getKey()) || checkServerResponsible(msg.getKey())) {
-            LOGGER.info("Client wants to get key: " + msg.getKey());
+            LOGGER.fine("Client wants to get key: " + msg.getKey());
+
+            // cache hits are answered right away on the I/O thread, only misses are queued
+            KVMessage hit = loadCached(msg);
+            if (hit != null) {
+                String message = hit.getStatus().name().toLowerCase() + " " + hit.getKey() + " " + hit.getValue() + "\r\n";
+                LOGGER.fine("Answer to Client: " + message);
+                reply(msg, message);
+                return null;
+            }
+
+            KVMessage busy = admit(msg, 1);
+            if (busy != null)
+                return busy;
 
             LOGGER.fine("Submitting new get callable to pool for key " + msg.getKey());
             // queue get command
-            pool.submit(new StripedCallable<Void>() {
+            submitAdmitted(false, new StripedCallable<Void>() {
                 public Void call() throws Exception {
-                    LOGGER.fine("Getting key from cache: " + msg.getKey());
-                    // first, try to get the kv pair from the cache
-                    KVMessage res = null;
-                    try {
-                        res = cache.get(msg);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                    String message;
-                    LOGGER.fine("Result: " + res.getStatus().name());
-                    if (res.getStatus() != KVMessage.StatusType.GET_SUCCESS) {
-                        LOGGER.fine("Key not in cache, try reading from disk: " + msg.getKey());
-                        // key not in cache, try to read from disk
-                        res = disk.readContent(msg);
-
-                        if (res.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
-                            LOGGER.fine(String.format("Successfully read key from disk, put value in cache: <%s, %s>", res.getKey(), res.getValue()));
-                            // successfully got kv pair from disk, put into cache
-                            // ignore result of cache put operation
-                            // worst case is a new cache miss
-                            cache.put(new ServerMessage(KVMessage.StatusType.PUT, res.getKey(), res.getValue()));
-                            message = res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + res.getValue() + "\r\n";
-                        } else {
-                            message = res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + res.getValue() + "\r\n";
-                        }
-
-                    } else {
-                        LOGGER.fine("Key in cache: " + res.getKey() + ", " + res.getValue());
-                        message = res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + res.getValue() + "\r\n";
-                    }
+                    KVMessage res = load(msg);
+                    String message = res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + res.getValue() + "\r\n";
 
                     // return answer to client
 
                     LOGGER.info("Answer to Client: " + message);
-                    server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+                    reply(msg, message);
                     return null;
                 }
 
@@ -312,9 +645,9 @@ public class KVServer implements KVStore {
 
         } else {
 
-            String message = KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name().toLowerCase(Locale.ENGLISH) + "\r\n";
+            String message = notResponsible();
             LOGGER.info("Answer to Client: " + message);
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, metadata);
         }
 
@@ -335,20 +668,21 @@ public class KVServer implements KVStore {
         //if ECS process is not done yet, server is not ready to retrieve requests
         if (!serverActive) {
             String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
         }
         //if server is not responsible for given key
         if (!checkServerResponsible(msg.getKey())) {
-            String message = KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name().toLowerCase(Locale.ENGLISH) + "\r\n";
+            String message = notResponsible();
             LOGGER.info("Answer to Client: " + message);
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_NOT_RESPONSIBLE, metadata);
         }
+        countRequest(msg.getKey());
         //if server locked
         if (serverWriteLock) {
             String message = KVMessage.StatusType.SERVER_WRITE_LOCK.toString().toLowerCase(Locale.ENGLISH) + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.SERVER_WRITE_LOCK, msg.getKey(), B64Util.b64encode("Server is locked!"));
         }
         // if KVMessage does not have put command, return error
@@ -361,41 +695,28 @@ public class KVServer implements KVStore {
         if(!checkPassword(msg)){
             String message = KVMessage.StatusType.PASSWORD_WRONG.name().toLowerCase(Locale.ENGLISH) + "\r\n";
             LOGGER.info("Answer to Client: " + message);
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+            reply(msg, message);
             return new ServerMessage(KVMessage.StatusType.PASSWORD_WRONG, msg.getKey(), B64Util.b64encode("Password is wrong!"));
         }
 
         LOGGER.info("Client wants to delete key: %s" + msg.getKey());
 
+        KVMessage busy = admit(msg, 1);
+        if (busy != null)
+            return busy;
+
         LOGGER.fine("Submitting new delete callable to pool for key " + msg.getKey());
         // queue get command
-        pool.submit(new StripedCallable<Void>() {
+        submitAdmitted(true, new StripedCallable<Void>() {
             public Void call() throws Exception {
-                LOGGER.fine("Deleting key from cache: " + msg.getKey());
-                // Delete kv pair from cache
-                cache.delete(msg);
-                LOGGER.fine("Deleting key from disk: " + msg.getKey());
-                // Delete kv pair from disk
-                KVMessage res = disk.deleteContent(msg);
-
-                //delete from history
-                String hashedKey = Util.calculateHash(msg.getKey());
-                historicPairs.remove(hashedKey);
+                KVMessage res = storeDelete(msg);
 
                 // return answer to client
                 String message = res.getStatus().name().toLowerCase() + " " + res.getKey() + " " + res.getValue() + "\r\n";
                 LOGGER.info("Answer to Client: " + message);
-                server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-
-
-               String smsg =  "subscribe_delete " + res.getKey() + " " + res.getKey() +  "\r\n";
-               kvServerBrokerCommunicator.send("127.0.0.1:5155", smsg.getBytes(StandardCharsets.UTF_8));
-
-
-                //TODO: delete kv from replicas
-                if(metadata.getServerMap().size() > 2)
-                    sendKVReplicas("delete", msg.getKey(), msg.getValue());
+                reply(msg, message);
 
+                publishDelete(msg, res);
                 return null;
             }
 
@@ -406,144 +727,306 @@ public class KVServer implements KVStore {
         return null;
     }
 
-    public void sendKVReplicas(String command, String key, String value){
-        String msg = "receive_single " + B64Util.b64encode(command) + " " + B64Util.b64encode(key + ":" + value) + "\r\n";
-        ArrayList<String> replicaServers = metadata.getReplicaServers(Util.calculateHash(listenaddress,port));
-        LOGGER.info("Message prepared, replica servers calculated, ready to send data: " + key + ":" + value);
+    /**
+     * Executes a batch of puts, gets or deletes (mput, mget, mdelete) and answers with one combined response.
+     *
+     * The operations are grouped by stripe, i.e. by key. Every group is submitted as one callable, so the groups run
+     * in parallel on the pool while operations on the same key keep their order. The last finished group sends the
+     * answer, which has the format
+     * batch_result &lt;status&gt;:&lt;key&gt;:&lt;value&gt; ...
+     * with one entry per key in request order. Keys this server is not responsible for are answered with
+     * server_not_responsible:&lt;key&gt;: so that the client can retry them at the responsible server. Batches carry
+     * no password, so password protected keys are answered with password_wrong.
+     *
+     * @param msg KVMessage with status MGET, MPUT or MDELETE, the value contains the whitespace separated keys
+     *            (key value pairs for MPUT).
+     * @return null
+     */
+    public KVMessage batch(KVMessage msg) throws IOException {
+        KVMessage.StatusType status = msg.getStatus();
+        boolean write = status != KVMessage.StatusType.MGET;
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, null, B64Util.b64encode("Server is not set!"));
+        //if ECS process is not done yet, server is not ready to retrieve requests
+        if (!serverActive) {
+            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, null, B64Util.b64encode("Server is not ready!"));
+        }
+        //if server locked
+        if (write && serverWriteLock) {
+            String message = KVMessage.StatusType.SERVER_WRITE_LOCK.toString().toLowerCase(Locale.ENGLISH) + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_WRITE_LOCK, null, B64Util.b64encode("Server is locked!"));
+        }
+        // if KVMessage does not contain selectionKey, return error
+        if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, null, B64Util.b64encode("KVMessage does not contain selectionKey!"));
+
+        String[] tokens = msg.getValue() == null ? new String[0] : msg.getValue().trim().split("\\s+");
+        int step = status == KVMessage.StatusType.MPUT ? 2 : 1;
+        if (tokens.length == 0 || tokens[0].isEmpty() || tokens.length % step != 0) {
+            String message = "error " + B64Util.b64encode("invalid batch") + "\r\n";
+            LOGGER.info("Answer to client: " + message);
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.ERROR, null, B64Util.b64encode("invalid batch"));
+        }
 
-        replicaServers.forEach((server) -> {
-            try {
-                KVServerInfo repServer = metadata.getServerMap().get(server);
-                sendMessage(repServer.getAddress(), repServer.getIntraPort(), msg);
-                LOGGER.info("Command: " + command + "successfully sent to: " + repServer.getAddress() +":" + repServer.getPort());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
-    }
+        String[] results = new String[tokens.length / step];
+        Map<String, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < results.length; i++) {
+            String key = tokens[i * step];
+            boolean coordinator = checkServerResponsible(key);
+            boolean responsible = coordinator
+                    || (!write && metadata.serverCount() > 2 && metadata.isRoleReplica(key));
+            if (!responsible)
+                results[i] = KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name().toLowerCase(Locale.ENGLISH) + ":" + key + ":";
+            else if (keySpecificPasswords.containsKey(key))
+                results[i] = KVMessage.StatusType.PASSWORD_WRONG.name().toLowerCase(Locale.ENGLISH) + ":" + key + ":";
+            else
+                groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+            if (coordinator)
+                countRequest(key);
+        }
 
-    public void sendPassword(String command){
-        String msg = "receive_password " + "receive_password" + " " + B64Util.b64encode(command)  + "\r\n";
-        ArrayList<String> replicaServers = metadata.getReplicaServers(Util.calculateHash(listenaddress,port));
-        LOGGER.info("Message prepared, replica servers calculated, ready to send passwords");
+        LOGGER.info(String.format("Client sent %s with %d keys in %d stripes", status.name().toLowerCase(Locale.ENGLISH), results.length, groups.size()));
+        if (groups.isEmpty()) {
+            replyBatch(msg, results);
+            return null;
+        }
 
-        replicaServers.forEach((server) -> {
-            try {
-                KVServerInfo repServer = metadata.getServerMap().get(server);
-                sendMessage(repServer.getAddress(), repServer.getIntraPort(), msg);
-                LOGGER.info("Passwords successfully sent to: " + repServer.getAddress() +":" + repServer.getPort());
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
-    }
+        // every group takes one slot of the budget, so a large batch cannot bypass the admission control, a batch
+        // larger than the budget runs alone
+        KVMessage busy = admit(msg, groups.size());
+        if (busy != null)
+            return busy;
 
-    //Password check is only active when password has a non-null value..
-    private boolean checkPassword(KVMessage msg) {
-        String cpass = msg.getPassword();
-        if (cpass!= null) {
-                LOGGER.info(String.format("Password is active, checking correctness of the given password"));
-                if (keySpecificPasswords.size() > 0) {
-                    String password = keySpecificPasswords.get(msg.getKey());
-                    if (password != null) {
-                        //password found check correctness
-                        if (!(Util.calculateHash(cpass).equals(password))) {
-                            LOGGER.info(String.format("Given password is not correct, return error to client"));
-                            return false;
-                        }else {
-                            LOGGER.info(String.format("Given password is correct!"));
-                            return true;
+        AtomicInteger remaining = new AtomicInteger(groups.size());
+        for (Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+            submitAdmitted(write, new StripedCallable<Void>() {
+                public Void call() throws Exception {
+                    List<KVMessage[]> done = new ArrayList<>();
+                    for (int i : group.getValue()) {
+                        String key = tokens[i * step];
+                        try {
+                            KVMessage op;
+                            KVMessage res;
+                            if (status == KVMessage.StatusType.MPUT) {
+                                op = new ServerMessage(KVMessage.StatusType.PUT, key, tokens[i * step + 1]);
+                                res = storePut(op);
+                            } else if (status == KVMessage.StatusType.MDELETE) {
+                                op = new ServerMessage(KVMessage.StatusType.DELETE, key, null);
+                                res = storeDelete(op);
+                            } else {
+                                op = new ServerMessage(KVMessage.StatusType.GET, key, null);
+                                res = load(op);
+                            }
+                            results[i] = res.getStatus().name().toLowerCase(Locale.ENGLISH) + ":" + res.getKey() + ":" + res.getValue();
+                            if (write)
+                                done.add(new KVMessage[]{op, res});
+                        } catch (Exception e) {
+                            LOGGER.warning("Batch operation failed for key " + key + ": " + e.getMessage());
+                            KVMessage.StatusType error = status == KVMessage.StatusType.MPUT ? KVMessage.StatusType.PUT_ERROR
+                                    : status == KVMessage.StatusType.MDELETE ? KVMessage.StatusType.DELETE_ERROR
+                                    : KVMessage.StatusType.GET_ERROR;
+                            results[i] = error.name().toLowerCase(Locale.ENGLISH) + ":" + key + ":" + B64Util.b64encode("Batch operation failed!");
                         }
-                    } else {
-                        //password doesn't exist for given key
-                        keySpecificPasswords.put(msg.getKey(), Util.calculateHash(cpass));
-                        //prepare sending passwords
-                        String kp = preparePasswordString();
-                        sendPassword(kp);
-                        //send passwords to replica nodes
-                        LOGGER.info(String.format("New password is added to given key"));
                     }
-                } else {
-                    //first kv pair with password
-                    keySpecificPasswords.put(msg.getKey(), Util.calculateHash(cpass));
-                    LOGGER.info(String.format("First pair with password added"));
+
+                    // the last group answers the whole batch
+                    if (remaining.decrementAndGet() == 0)
+                        replyBatch(msg, results);
+
+                    for (KVMessage[] d : done) {
+                        if (status == KVMessage.StatusType.MPUT)
+                            publishPut(d[0], d[1]);
+                        else
+                            publishDelete(d[0], d[1]);
+                    }
+                    return null;
                 }
-        } // otherwise password control is not enabled return true
-        return true;
-    }
 
-    private String preparePasswordString(){
-        String kp = "";
-        for (String key: keySpecificPasswords.keySet()) {
-            kp += key + ";=;" + keySpecificPasswords.get(key) + "&=&";
+                public Object getStripe() {
+                    return group.getKey();
+                }
+            });
         }
-        kp= kp.substring(0, kp.length() - 3);
+        return null;
+    }
 
-        return kp;
+    private void replyBatch(KVMessage msg, String[] results) throws UnsupportedEncodingException {
+        StringBuilder message = new StringBuilder(KVMessage.StatusType.BATCH_RESULT.name().toLowerCase(Locale.ENGLISH));
+        for (String result : results)
+            message.append(' ').append(result);
+        message.append("\r\n");
+        LOGGER.info("Answer to client: " + message);
+        reply(msg, message.toString());
     }
+
     /**
-     * Returns error message to client for unknown command.
+     * Streams the key-value pairs this server is responsible for in hash order, one page per request.
      *
-     * @param msg KVMessage containing unknown command.
-     * @return message
+     * Request: scan &lt;after&gt; &lt;to&gt; &lt;limit&gt;, where after is the continuation token of the previous page
+     * (exclusive), to the exclusive upper bound of the hash range and limit the page size. after and to may be "-"
+     * for an open bound, limit may be omitted. If to is not above after, the range wraps around the ring. The answer is one line per pair followed by the continuation token:
+     * scan_entry &lt;key&gt; &lt;value&gt;
+     * ...
+     * scan_end &lt;token&gt;
+     * The token is "-" if the range is exhausted. The scan runs on the ordered history index, so it is weakly
+     * consistent: pairs written during the scan may or may not be returned.
+     *
+     * @param msg KVMessage with status SCAN, the value contains the arguments.
+     * @return null
      */
-    @Override
-    public KVMessage unknownCommand(KVMessage msg) throws UnsupportedEncodingException {
+    public KVMessage scan(KVMessage msg) throws IOException {
         // if server is not set, return error
         if (server == null)
-            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+            return new ServerMessage(KVMessage.StatusType.ERROR, null, B64Util.b64encode("Server is not set!"));
         //if ECS process is not done yet, server is not ready to retrieve requests
         if (!serverActive) {
             String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, null, B64Util.b64encode("Server is not ready!"));
         }
         // if KVMessage does not contain selectionKey, return error
         if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
-            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
+            return new ServerMessage(KVMessage.StatusType.ERROR, null, B64Util.b64encode("KVMessage does not contain selectionKey!"));
+
+        String[] args = msg.getValue() == null ? new String[0] : msg.getValue().trim().split("\\s+");
+        String after = args.length > 0 && !args[0].isEmpty() && !args[0].equals("-") ? args[0] : null;
+        String to = args.length > 1 && !args[1].equals("-") ? args[1] : null;
+        int limit;
+        try {
+            limit = args.length > 2 ? Integer.parseInt(args[2]) : SCAN_PAGE_SIZE;
+        } catch (NumberFormatException e) {
+            limit = -1;
+        }
+        String error = null;
+        if (limit <= 0 || limit > SCAN_MAX_PAGE_SIZE)
+            error = "invalid scan limit";
+        else if ((after != null && !isHash(after)) || (to != null && !isHash(to)))
+            error = "invalid scan bound";
+        if (error != null) {
+            String message = "error " + B64Util.b64encode(error) + "\r\n";
+            LOGGER.info("Answer to client: " + message);
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.ERROR, null, B64Util.b64encode(error));
+        }
+        KVMessage busy = admit(msg, 1);
+        if (busy != null)
+            return busy;
+
+        int pageSize = limit;
+        LOGGER.info(String.format("Client wants to scan after %s to %s, limit %d", after, to, pageSize));
+        // a scan reads many keys, it gets a stripe of its own
+        submitAdmitted(false, new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                String prefix = ((ServerMessage) msg).getRequestId() == null ? "" : "#" + ((ServerMessage) msg).getRequestId() + " ";
+                // a range whose upper bound is not above the token wraps around the ring: (after, end] then [start, to)
+                List<NavigableMap<String, Pair<String, String>>> parts = new ArrayList<>();
+                if (after != null && to != null && after.compareTo(to) >= 0) {
+                    parts.add(historicPairs.tailMap(after, false));
+                    parts.add(historicPairs.headMap(to, false));
+                } else {
+                    NavigableMap<String, Pair<String, String>> range = after == null ? historicPairs : historicPairs.tailMap(after, false);
+                    parts.add(to == null ? range : range.headMap(to, false));
+                }
 
+                StringBuilder page = new StringBuilder();
+                String last = null;
+                int count = 0;
+                Iterator<Map.Entry<String, Pair<String, String>>> entries = parts.stream()
+                        .flatMap(part -> part.entrySet().stream()).iterator();
+                while (entries.hasNext() && count < pageSize) {
+                    Map.Entry<String, Pair<String, String>> entry = entries.next();
+                    // the history may still contain pairs which are handed over to another server
+                    if (!metadata.checkHashResponsible(entry.getKey()))
+                        continue;
+                    page.append(prefix).append(KVMessage.StatusType.SCAN_ENTRY.name().toLowerCase(Locale.ENGLISH))
+                            .append(' ').append(entry.getValue().getKey())
+                            .append(' ').append(entry.getValue().getValue()).append("\r\n");
+                    last = entry.getKey();
+                    count++;
+                    // stream large pages instead of building them completely in memory
+                    if (page.length() > SCAN_FLUSH_BYTES) {
+                        server.send(((ServerMessage) msg).getSelectionKey(), page.toString().getBytes(TELNET_ENCODING));
+                        page.setLength(0);
+                    }
+                }
+                String token = count == pageSize ? last : "-";
+                page.append(prefix).append(KVMessage.StatusType.SCAN_END.name().toLowerCase(Locale.ENGLISH)).append(' ').append(token).append("\r\n");
+                server.send(((ServerMessage) msg).getSelectionKey(), page.toString().getBytes(TELNET_ENCODING));
+                LOGGER.info(String.format("Scan returned %d pairs, continuation token %s", count, token));
+                return null;
+            }
 
-        String message = "error " + B64Util.b64encode("unknown command") + "\r\n";
-        // return answer to client
-        LOGGER.info("Answer to client: " + message);
-        server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-        return new ServerMessage(KVMessage.StatusType.ERROR, B64Util.b64encode("unknown"), B64Util.b64encode("command"));
+            public Object getStripe() {
+                return "scan " + msg.getValue();
+            }
+        });
+        return null;
+    }
 
+    // bounds of a scan are hashes of keys as made by Util#calculateHash
+    private static boolean isHash(String bound) {
+        return bound.length() == 32 && bound.chars().allMatch(c -> (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F'));
     }
 
     /**
-     * Gets keyrange for server.
+     * Compare-and-set: replaces the value of a key only if its current value equals the expected value.
      *
-     * @param msg KVMessage.
-     * @return message
+     * Request: cas &lt;key&gt; &lt;expected&gt; &lt;new&gt;, where expected is "-" if the key must not exist yet. The
+     * comparison and the write run in the stripe of the key, so no other operation on the key can interleave. The
+     * answer is cas_success &lt;key&gt; &lt;new&gt; or cas_failed &lt;key&gt; [&lt;current&gt;]. A successful cas is
+     * published and replicated like an ordinary put.
+     *
+     * @param msg KVMessage containing the key, the value contains expected and new value.
+     * @return null
      */
-    public KVMessage getKeyRange(KVMessage msg) throws IOException {
-        // if server is not set, return error
+    public KVMessage cas(KVMessage msg) throws IOException {
         if (server == null)
-            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
-        //if ECS process is not done yet, server is not ready to retrieve requests
-        if (!serverActive) {
-            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+            return new ServerMessage(KVMessage.StatusType.CAS_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        if (rejectWrite(msg))
+            return null;
+
+        String[] args = msg.getValue() == null ? new String[0] : msg.getValue().trim().split("\\s+");
+        if (args.length != 2) {
+            String message = KVMessage.StatusType.CAS_ERROR.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + B64Util.b64encode("Expected and new value required!") + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.CAS_ERROR, msg.getKey(), B64Util.b64encode("Expected and new value required!"));
         }
-        // if KVMessage does not have put command, return error
-        if (msg.getStatus() != KVMessage.StatusType.KEY_RANGE)
-            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, "", B64Util.b64encode("KVMessage does not have correct status!"));
-        // if KVMessage does not contain selectionKey, return error
-        if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
-            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
+        String expected = args[0].equals("-") ? null : args[0];
+        String update = args[1];
 
-        LOGGER.info("Client wants to get key range");
-        pool.submit(new StripedCallable<Void>() {
+        KVMessage busy = admit(msg, 1);
+        if (busy != null)
+            return busy;
+
+        LOGGER.info(String.format("Client wants to cas key %s from %s to %s", msg.getKey(), expected, update));
+        submitAdmitted(true, new StripedCallable<Void>() {
             public Void call() throws Exception {
-                LOGGER.fine("Calculate key range");
+                KVMessage current = load(new ServerMessage(KVMessage.StatusType.GET, msg.getKey(), null));
+                String currentValue = current.getStatus() == KVMessage.StatusType.GET_SUCCESS ? current.getValue() : null;
+                if (!Objects.equals(expected, currentValue)) {
+                    String message = KVMessage.StatusType.CAS_FAILED.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey()
+                            + (currentValue == null ? "" : " " + currentValue) + "\r\n";
+                    LOGGER.info("Answer to client: " + message);
+                    reply(msg, message);
+                    return null;
+                }
 
-//                String message = KVMessage.StatusType.KEY_RANGE_SUCCESS.name().toLowerCase() + " " + metadata.getServerHashRange() + "\r\n";
-                String message = metadata.getServerHashRange() + "\r\n";
-                LOGGER.info("Answer to Client: " + message);
+                KVMessage op = new ServerMessage(KVMessage.StatusType.PUT, msg.getKey(), update);
+                KVMessage res = storePut(op);
+                if (res.getStatus() == KVMessage.StatusType.PUT_ERROR) {
+                    reply(msg, KVMessage.StatusType.CAS_ERROR.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + res.getValue() + "\r\n");
+                    return null;
+                }
+                String message = KVMessage.StatusType.CAS_SUCCESS.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + update + "\r\n";
+                LOGGER.info("Answer to client: " + message);
+                reply(msg, message);
 
-                server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+                publishPut(op, res);
                 return null;
             }
 
@@ -552,349 +1035,1954 @@ public class KVServer implements KVStore {
             }
         });
         return null;
-
     }
 
     /**
-     * Gets keyrange_read for server.
+     * Atomically adds a delta to the numeric value of a key.
      *
-     * @param msg KVMessage.
-     * @return message
+     * Request: incr &lt;key&gt; &lt;delta&gt;, where delta is a decimal number. The value is stored Base64 encoded
+     * like every value written by the client, a missing key counts as 0. The read and the write run in the stripe
+     * of the key. The answer is incr_success &lt;key&gt; &lt;new value&gt; or incr_error if the current value is not a
+     * number. The new value is published and replicated like an ordinary put.
+     *
+     * @param msg KVMessage containing the key, the value contains the delta.
+     * @return null
+     */
+    public KVMessage incr(KVMessage msg) throws IOException {
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.INCR_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        if (rejectWrite(msg))
+            return null;
+
+        long delta;
+        try {
+            delta = Long.parseLong(msg.getValue().trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            String message = KVMessage.StatusType.INCR_ERROR.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + B64Util.b64encode("Delta is not a number!") + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.INCR_ERROR, msg.getKey(), B64Util.b64encode("Delta is not a number!"));
+        }
+
+        KVMessage busy = admit(msg, 1);
+        if (busy != null)
+            return busy;
+
+        LOGGER.info(String.format("Client wants to increment key %s by %d", msg.getKey(), delta));
+        submitAdmitted(true, new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                KVMessage current = load(new ServerMessage(KVMessage.StatusType.GET, msg.getKey(), null));
+                long value = 0;
+                try {
+                    if (current.getStatus() == KVMessage.StatusType.GET_SUCCESS)
+                        value = Long.parseLong(B64Util.b64decode(current.getValue()).trim());
+                    value = Math.addExact(value, delta);
+                } catch (IllegalArgumentException | ArithmeticException e) {
+                    String message = KVMessage.StatusType.INCR_ERROR.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + B64Util.b64encode("Value is not a number!") + "\r\n";
+                    LOGGER.info("Answer to client: " + message);
+                    reply(msg, message);
+                    return null;
+                }
+
+                KVMessage op = new ServerMessage(KVMessage.StatusType.PUT, msg.getKey(), B64Util.b64encode(Long.toString(value)));
+                KVMessage res = storePut(op);
+                if (res.getStatus() == KVMessage.StatusType.PUT_ERROR) {
+                    reply(msg, KVMessage.StatusType.INCR_ERROR.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + res.getValue() + "\r\n");
+                    return null;
+                }
+                String message = KVMessage.StatusType.INCR_SUCCESS.name().toLowerCase(Locale.ENGLISH) + " " + msg.getKey() + " " + op.getValue() + "\r\n";
+                LOGGER.info("Answer to client: " + message);
+                reply(msg, message);
+
+                publishPut(op, res);
+                return null;
+            }
+
+            public Object getStripe() {
+                return msg.getKey();
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Reserves slots of the in-flight budget for a request. If the budget is exhausted the request is answered with
+     * server_busy &lt;retryAfterMillis&gt; right away, so it is neither queued nor delays the admitted requests. The
+     * retry-after hint is the average time an admitted request currently spends in the server, i.e. roughly the
+     * time until the backlog has drained. A request which needs more slots than the whole budget, e.g. a batch with
+     * many keys, is admitted as soon as nothing else is in flight, and everything else waits until it is done.
+     *
+     * @param msg     the request to admit.
+     * @param permits number of tasks the request submits, every task releases one slot in {@link #submitAdmitted}.
+     * @return null if the request was admitted, otherwise the server_busy answer that was sent.
+     */
+    private KVMessage admit(KVMessage msg, int permits) throws UnsupportedEncodingException {
+        int budget = maxInFlight;
+        int reserved = inFlight.addAndGet(permits);
+        if (reserved <= budget || budget <= 0 || reserved == permits)
+            return null;
+        inFlight.addAndGet(-permits);
+
+        long retryAfter = Math.min(MAX_RETRY_AFTER_MILLIS, Math.max(MIN_RETRY_AFTER_MILLIS, avgLatencyMicros / 1000));
+        String message = KVMessage.StatusType.SERVER_BUSY.name().toLowerCase(Locale.ENGLISH) + " " + retryAfter + "\r\n";
+        LOGGER.fine("Answer to client: " + message);
+        reply(msg, message);
+        return new ServerMessage(KVMessage.StatusType.SERVER_BUSY, msg.getKey(), Long.toString(retryAfter));
+    }
+
+    /**
+     * Submits a task of an admitted request to the pool. The task releases its slot of the in-flight budget when it
+     * is done and updates the average latency used for the retry-after hint. Writes are counted per key until they
+     * are done, so that {@link #loadCached(KVMessage)} does not answer a get before a preceding write. Any other task
+     * than a put closes the queued puts of its key, so a later put cannot be coalesced across it.
+     *
+     * @param write true if the task modifies its key.
+     * @param task  the task, its stripe must be the key.
+     */
+    private void submitAdmitted(boolean write, StripedCallable<Void> task) {
+        String key = (String) task.getStripe();
+        if (!(task instanceof CoalescedPuts))
+            openPuts.remove(key);
+        if (write)
+            pendingWrites.merge(key, 1, Integer::sum);
+        long submitted = System.nanoTime();
+        try {
+            pool.submit(new StripedCallable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        return task.call();
+                    } finally {
+                        if (write)
+                            pendingWrites.computeIfPresent(key, (k, n) -> n == 1 ? null : n - 1);
+                        inFlight.decrementAndGet();
+                        long latency = (System.nanoTime() - submitted) / 1000;
+                        // exponentially weighted moving average, races between tasks only lose single samples
+                        avgLatencyMicros += (latency - avgLatencyMicros) / 8;
+                    }
+                }
+
+                public Object getStripe() {
+                    return key;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (write)
+                pendingWrites.computeIfPresent(key, (k, n) -> n == 1 ? null : n - 1);
+            inFlight.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Answers a write request that this server must not execute: server stopped, write lock, key not in range or
+     * a password protected key (cas and incr carry no password).
+     *
+     * @param msg the write request.
+     * @return true if the request was rejected and answered.
+     */
+    private boolean rejectWrite(KVMessage msg) throws IOException {
+        KVMessage.StatusType status = null;
+        if (!serverActive)
+            status = KVMessage.StatusType.SERVER_STOPPED;
+        else if (serverWriteLock)
+            status = KVMessage.StatusType.SERVER_WRITE_LOCK;
+        else if (!checkServerResponsible(msg.getKey()))
+            status = KVMessage.StatusType.SERVER_NOT_RESPONSIBLE;
+        else if (keySpecificPasswords.containsKey(msg.getKey()))
+            status = KVMessage.StatusType.PASSWORD_WRONG;
+        if (status == null) {
+            countRequest(msg.getKey());
+            return false;
+        }
+
+        String message = status == KVMessage.StatusType.SERVER_NOT_RESPONSIBLE ? notResponsible()
+                : status.name().toLowerCase(Locale.ENGLISH) + "\r\n";
+        LOGGER.info("Answer to client: " + message);
+        reply(msg, message);
+        return true;
+    }
+
+    /**
+     * @return server_not_responsible with the epoch of the metadata of this server, a client with newer metadata
+     * keeps its own instead of fetching the ranges from this server.
+     */
+    private String notResponsible() {
+        return KVMessage.StatusType.SERVER_NOT_RESPONSIBLE.name().toLowerCase(Locale.ENGLISH) + " " + metadata.getEpoch() + "\r\n";
+    }
+
+    /**
+     * Writes a key-value pair into cache, disk and history. Must run in the stripe of the key.
+     *
+     * @param msg KVMessage containing key and value to put.
+     * @return result of the disk write.
+     */
+    private KVMessage storePut(KVMessage msg) throws Exception {
+        LOGGER.fine(String.format("Putting key into cache: <%s, %s>", msg.getKey(), msg.getValue()));
+        // first, write the kv pair into the cache
+        cache.put(msg);
+        LOGGER.fine(String.format("Successfully put key into cache, now writing to disk: <%s, %s>", msg.getKey(), msg.getValue()));
+        // successfully written kv pair into cache, now write to disk
+        KVMessage res = disk.writeContent(msg);
+        if (res.getStatus() != KVMessage.StatusType.PUT_ERROR)
+            digests.put(msg.getKey(), msg.getValue());
+
+        //add/update to history
+        String hashedKey = Util.calculateHash(msg.getKey());
+        if (!historicPairs.containsKey(hashedKey))
+            historicPairs.put(hashedKey, new Pair<>(msg.getKey(), msg.getValue()));
+        else historicPairs.replace(hashedKey, new Pair<>(msg.getKey(), msg.getValue()));
+
+        // a put replaces the expiration of the previous value
+        long ttl = msg instanceof ServerMessage ? ((ServerMessage) msg).getTtl() : 0;
+        if (res.getStatus() != KVMessage.StatusType.PUT_ERROR)
+            storeExpiry(msg.getKey(), ttl > 0 ? System.currentTimeMillis() + ttl * 1000 : 0);
+
+        if (res.getStatus() != KVMessage.StatusType.PUT_ERROR) {
+            handOver(msg.getKey(), msg.getValue());
+            // keys with a time to live or a password are not copied, the copies could outlive the key or leak the value
+            if (hotKeys.contains(msg.getKey()))
+                copyHotKey(msg.getKey(), ttl > 0 || msg.getPassword() != null || keySpecificPasswords.containsKey(msg.getKey())
+                        ? null : msg.getValue());
+        }
+        return res;
+    }
+
+    /**
+     * Sets or removes the expiration of a key on disk and schedules it. Must run in the stripe of the key or, for
+     * pairs written by other servers, in the stripe of their stream.
+     *
+     * @param expiresAt time in milliseconds at which the key expires, 0 if it does not expire.
+     */
+    private void storeExpiry(String key, long expiresAt) {
+        if (expiresAt > 0) {
+            disk.writeExpiry(key, expiresAt);
+            expirations.put(key, expiresAt);
+            expiryWheel.schedule(key, expiresAt);
+        } else if (expirations.remove(key) != null) {
+            disk.writeExpiry(key, 0);
+        }
+    }
+
+    /**
+     * Notifies the broker and the replicas about a put, after the client got its answer.
+     *
+     * @param msg KVMessage containing key and value that were put.
+     * @param res result of {@link #storePut(KVMessage)}.
+     */
+    private void publishPut(KVMessage msg, KVMessage res) throws Exception {
+        publishPut(msg, res, replicaTargets(msg.getKey()), null);
+    }
+
+    /**
+     * Notifies the broker and the given replicas about a put.
+     *
+     * @param replicas address:port of the replicas, see {@link #replicaTargets(String)}.
+     * @param listener notified when the replicas acknowledged the put, may be null.
+     */
+    private void publishPut(KVMessage msg, KVMessage res, List<String> replicas, ReplicationStream.Listener listener) {
+        String smsg =  "subscribe_update" + " " + res.getKey() + " " + res.getValue() + "\r\n";
+        peers.send(BROKER_ADDRESS, BROKER_PORT, smsg.getBytes(StandardCharsets.UTF_8));
+
+        if (!replicas.isEmpty()) {
+            LOGGER.fine("Queue put of " + msg.getKey() + " for replicas " + replicas);
+            replication.put(replicas, msg.getKey(), msg.getValue(), expirations.getOrDefault(msg.getKey(), 0L), listener);
+        }
+    }
+
+    /**
+     * Reads the value of a key, first from the cache, then from disk. Must run in the stripe of the key.
+     *
+     * @param msg KVMessage containing the key to read.
+     * @return GET_SUCCESS with the value or GET_ERROR.
+     */
+    private KVMessage load(KVMessage msg) {
+        // expired values are removed on access, the timing wheel may not have reached them yet
+        if (isExpired(msg.getKey())) {
+            try {
+                expireKey(msg.getKey());
+            } catch (Exception e) {
+                LOGGER.warning("Could not expire key " + msg.getKey() + ": " + e.getMessage());
+            }
+            return new ServerMessage(KVMessage.StatusType.GET_ERROR, msg.getKey(), B64Util.b64encode("Key not in disk!"));
+        }
+
+        LOGGER.fine("Getting key from cache: " + msg.getKey());
+        // first, try to get the kv pair from the cache
+        KVMessage res = null;
+        try {
+            res = cache.get(msg);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        if (res != null && res.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
+            LOGGER.fine("Key in cache: " + res.getKey() + ", " + res.getValue());
+            return res;
+        }
+
+        LOGGER.fine("Key not in cache, try reading from disk: " + msg.getKey());
+        // key not in cache, try to read from disk
+        res = disk.readContent(msg);
+        if (res.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
+            LOGGER.fine(String.format("Successfully read key from disk, put value in cache: <%s, %s>", res.getKey(), res.getValue()));
+            // successfully got kv pair from disk, put into cache
+            // ignore result of cache put operation
+            // worst case is a new cache miss
+            cache.put(new ServerMessage(KVMessage.StatusType.PUT, res.getKey(), res.getValue()));
+        }
+        return res;
+    }
+
+    /**
+     * Looks a key up in the cache only, without touching the disk. Called on the I/O thread, which also submits all
+     * client writes, so a get can never overtake a write of the same connection that is still queued.
+     *
+     * @param msg KVMessage containing the key to get.
+     * @return the cached value, null if the get has to run on the pool: the key is not cached, has expired or a write
+     * on its stripe is queued or running.
+     */
+    private KVMessage loadCached(KVMessage msg) {
+        if (pendingWrites.containsKey(msg.getKey()) || isExpired(msg.getKey()))
+            return null;
+        KVMessage res;
+        try {
+            res = cache.get(msg);
+        } catch (Exception e) {
+            return null;
+        }
+        return res != null && res.getStatus() == KVMessage.StatusType.GET_SUCCESS ? res : null;
+    }
+
+    /**
+     * Deletes a key from cache, disk and history. Must run in the stripe of the key.
+     *
+     * @param msg KVMessage containing the key to delete.
+     * @return result of the disk delete.
+     */
+    private KVMessage storeDelete(KVMessage msg) throws Exception {
+        LOGGER.fine("Deleting key from cache: " + msg.getKey());
+        // Delete kv pair from cache
+        cache.delete(msg);
+        LOGGER.fine("Deleting key from disk: " + msg.getKey());
+        // Delete kv pair from disk
+        KVMessage res = disk.deleteContent(msg);
+        digests.remove(msg.getKey());
+
+        //delete from history
+        String hashedKey = Util.calculateHash(msg.getKey());
+        historicPairs.remove(hashedKey);
+        // the disk manager removes the stored expiration together with the value
+        expirations.remove(msg.getKey());
+
+        if (res.getStatus() == KVMessage.StatusType.DELETE_SUCCESS) {
+            handOver(msg.getKey(), null);
+            if (hotKeys.contains(msg.getKey()))
+                copyHotKey(msg.getKey(), null);
+        }
+        return res;
+    }
+
+    /**
+     * Forwards a write to the servers which take over the range of the key, see {@link Handover}. Must run in the
+     * stripe of the key after the write was applied, so that the forwarded writes of a key keep their order.
+     *
+     * @param key   the key which was written.
+     * @param value the new value, null if the key was deleted.
+     */
+    private void handOver(String key, String value) {
+        if (handovers.isEmpty())
+            return;
+        String hash = Util.calculateHash(key);
+        for (Handover handover : handovers.values())
+            if (handover.moves(hash))
+                handover.transfer.forward(key, value);
+    }
+
+    /**
+     * Loads the expirations stored on disk and schedules them, must be called after the disk manager is initialized.
+     */
+    public void loadExpirations() {
+        Map<String, Long> stored = disk.readExpirations();
+        for (Map.Entry<String, Long> entry : stored.entrySet()) {
+            expirations.put(entry.getKey(), entry.getValue());
+            expiryWheel.schedule(entry.getKey(), entry.getValue());
+        }
+        LOGGER.info(String.format("Loaded %d expirations from disk", stored.size()));
+    }
+
+    /**
+     * Keeps mutations for replicas which are unreachable or too far behind as hints in the given directory and
+     * replays them when the replica catches up, see {@link ReplicationStream}. Without hints such mutations are
+     * dropped.
+     *
+     * @param dir directory of the hint files.
+     */
+    public void setHintDirectory(Path dir) {
+        try {
+            replication.setHintStore(new HintStore(dir));
+        } catch (IOException e) {
+            LOGGER.warning("Could not create hint store in " + dir + ", mutations of lagging replicas are dropped: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the pairs stored on disk to the Merkle tree used for anti-entropy, must be called after the disk manager
+     * is initialized.
+     */
+    public void loadDigests() {
+        disk.forEachContent(digests::put);
+        LOGGER.info(String.format("Loaded %d digests from disk", digests.size()));
+    }
+
+    private boolean isExpired(String key) {
+        Long expiresAt = expirations.get(key);
+        return expiresAt != null && expiresAt <= System.currentTimeMillis();
+    }
+
+    /**
+     * Called by the timing wheel with the keys which expired in one tick. Every key is deleted in its stripe, where
+     * it is checked again, because the key may have been written with a new expiration in the meantime.
+     *
+     * @param keys keys whose expiration time has passed.
+     */
+    private void expire(List<String> keys) {
+        LOGGER.fine(String.format("%d keys expired", keys.size()));
+        for (String key : keys) {
+            pool.submit(new StripedCallable<Void>() {
+                public Void call() throws Exception {
+                    if (isExpired(key))
+                        expireKey(key);
+                    return null;
+                }
+
+                public Object getStripe() {
+                    return key;
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes an expired key through the normal delete path. Must run in the stripe of the key.
+     */
+    private void expireKey(String key) throws Exception {
+        LOGGER.info("Key expired: " + key);
+        KVMessage op = new ServerMessage(KVMessage.StatusType.DELETE, key, null);
+        KVMessage res = storeDelete(op);
+        // replicas expire their copies on their own, only the coordinator publishes the delete
+        if (res.getStatus() == KVMessage.StatusType.DELETE_SUCCESS && checkServerResponsible(key))
+            publishDelete(op, res);
+    }
+
+    /**
+     * Notifies the broker and the replicas about a delete, after the client got its answer.
+     *
+     * @param msg KVMessage containing the key that was deleted.
+     * @param res result of {@link #storeDelete(KVMessage)}.
+     */
+    private void publishDelete(KVMessage msg, KVMessage res) throws Exception {
+        String smsg =  "subscribe_delete " + res.getKey() + " " + res.getKey() +  "\r\n";
+        peers.send(BROKER_ADDRESS, BROKER_PORT, smsg.getBytes(StandardCharsets.UTF_8));
+
+        //TODO: delete kv from replicas
+        if(metadata.serverCount() > 2)
+            sendKVReplicas("delete", msg.getKey(), msg.getValue());
+    }
+
+    /**
+     * Sends an answer to the client of a request. If the request carried a request id, the id is echoed in front
+     * of the answer so that clients with several requests in flight can match the answer.
+     *
+     * @param msg     the request to answer, must be a ServerMessage with a selection key.
+     * @param message the answer including the trailing \r\n.
+     */
+    private void reply(KVMessage msg, String message) throws UnsupportedEncodingException {
+        ServerMessage request = (ServerMessage) msg;
+        if (request.getRequestId() != null)
+            message = "#" + request.getRequestId() + " " + message;
+        server.send(request.getSelectionKey(), message.getBytes(TELNET_ENCODING));
+    }
+
+    /**
+     * Queues a put or delete for the replicas of this server. The replicas receive it asynchronously in a numbered
+     * batch of the {@link ReplicationStream} and acknowledge it with replicate_ack.
+     *
+     * @param command put or delete.
+     * @param key     key of the mutation.
+     * @param value   new value of a put.
+     */
+    public void sendKVReplicas(String command, String key, String value){
+        List<String> replicas = replicaTargets(key);
+        if (replicas.isEmpty())
+            return;
+        LOGGER.fine("Queue " + command + " of " + key + " for replicas " + replicas);
+        if (command.equals("put"))
+            replication.put(replicas, key, value, expirations.getOrDefault(key, 0L), null);
+        else
+            replication.delete(replicas, key);
+    }
+
+    /**
+     * @return address:port of the intra ports of the replicas of the key, empty if the ring is too small for
+     * replication.
+     */
+    private List<String> replicaTargets(String key) {
+        return replicaTargetsOfToken(metadata.getRangeHash(Util.calculateHash(key)));
+    }
+
+    /**
+     * @param token a token of the ring, see {@link Metadata}.
+     * @return address:port of the intra ports of the replicas of the range of the token, empty if the ring is too
+     * small for replication.
+     */
+    private List<String> replicaTargetsOfToken(String token) {
+        if (metadata.serverCount() <= 2)
+            return Collections.emptyList();
+        ArrayList<String> replicas = new ArrayList<>(2);
+        for (String server : metadata.getReplicaServers(token)) {
+            KVServerInfo repServer = metadata.getServerMap().get(server);
+            replicas.add(repServer.getAddress() + ":" + repServer.getIntraPort());
+        }
+        return replicas;
+    }
+
+    public void sendPassword(String command){
+        String msg = "receive_password " + "receive_password" + " " + B64Util.b64encode(command)  + "\r\n";
+        Set<String> replicaServers = metadata.getReplicaServerIds(listenaddress + ":" + port);
+        LOGGER.info("Message prepared, replica servers calculated, ready to send passwords");
+
+        replicaServers.forEach((server) -> {
+            try {
+                KVServerInfo repServer = metadata.getServerMap().get(metadata.getTokens(server).get(0));
+                sendMessage(repServer.getAddress(), repServer.getIntraPort(), msg);
+                LOGGER.info("Passwords successfully sent to: " + repServer.getAddress() +":" + repServer.getPort());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    //Password check is only active when password has a non-null value..
+    private boolean checkPassword(KVMessage msg) {
+        String cpass = msg.getPassword();
+        if (cpass!= null) {
+                LOGGER.fine(String.format("Password is active, checking correctness of the given password"));
+                if (keySpecificPasswords.size() > 0) {
+                    String password = keySpecificPasswords.get(msg.getKey());
+                    if (password != null) {
+                        //password found check correctness
+                        if (!(Util.calculateHash(cpass).equals(password))) {
+                            LOGGER.fine(String.format("Given password is not correct, return error to client"));
+                            return false;
+                        }else {
+                            LOGGER.fine(String.format("Given password is correct!"));
+                            return true;
+                        }
+                    } else {
+                        //password doesn't exist for given key
+                        keySpecificPasswords.put(msg.getKey(), Util.calculateHash(cpass));
+                        //prepare sending passwords
+                        String kp = preparePasswordString();
+                        sendPassword(kp);
+                        //send passwords to replica nodes
+                        LOGGER.fine(String.format("New password is added to given key"));
+                    }
+                } else {
+                    //first kv pair with password
+                    keySpecificPasswords.put(msg.getKey(), Util.calculateHash(cpass));
+                    LOGGER.fine(String.format("First pair with password added"));
+                }
+        } // otherwise password control is not enabled return true
+        return true;
+    }
+
+    private String preparePasswordString(){
+        String kp = "";
+        for (String key: keySpecificPasswords.keySet()) {
+            kp += key + ";=;" + keySpecificPasswords.get(key) + "&=&";
+        }
+        kp= kp.substring(0, kp.length() - 3);
+
+        return kp;
+    }
+    /**
+     * Returns error message to client for unknown command.
+     *
+     * @param msg KVMessage containing unknown command.
+     * @return message
+     */
+    @Override
+    public KVMessage unknownCommand(KVMessage msg) throws UnsupportedEncodingException {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        //if ECS process is not done yet, server is not ready to retrieve requests
+        if (!serverActive) {
+            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+        }
+        // if KVMessage does not contain selectionKey, return error
+        if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
+
+
+        String message = "error " + B64Util.b64encode("unknown command") + "\r\n";
+        // return answer to client
+        LOGGER.info("Answer to client: " + message);
+        reply(msg, message);
+        return new ServerMessage(KVMessage.StatusType.ERROR, B64Util.b64encode("unknown"), B64Util.b64encode("command"));
+
+    }
+
+    /**
+     * Gets keyrange for server, keyrange_epoch answers the epoch of the metadata as well.
+     *
+     * @param msg KVMessage.
+     * @return message
+     */
+    public KVMessage getKeyRange(KVMessage msg) throws IOException {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        //if ECS process is not done yet, server is not ready to retrieve requests
+        if (!serverActive) {
+            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+        }
+        // if KVMessage does not have put command, return error
+        if (msg.getStatus() != KVMessage.StatusType.KEY_RANGE && msg.getStatus() != KVMessage.StatusType.KEY_RANGE_EPOCH)
+            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, "", B64Util.b64encode("KVMessage does not have correct status!"));
+        // if KVMessage does not contain selectionKey, return error
+        if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
+            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
+
+        LOGGER.info("Client wants to get key range");
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                LOGGER.fine("Calculate key range");
+
+//                String message = KVMessage.StatusType.KEY_RANGE_SUCCESS.name().toLowerCase() + " " + metadata.getServerHashRange() + "\r\n";
+                String message;
+                // keyrange_epoch <epoch> <ranges>, clients ignore ranges older than the ones they know
+                if (msg.getStatus() == KVMessage.StatusType.KEY_RANGE_EPOCH)
+                    message = "keyrange_epoch " + metadata.getServerHashRangeWithEpoch() + "\r\n";
+                else
+                    message = metadata.getServerHashRange() + "\r\n";
+                LOGGER.info("Answer to Client: " + message);
+
+                reply(msg, message);
+                return null;
+            }
+
+            public Object getStripe() {
+                return msg.getKey();
+            }
+        });
+        return null;
+
+    }
+
+    /**
+     * Gets keyrange_read for server.
+     *
+     * @param msg KVMessage.
+     * @return message
      */
     public KVMessage getKeyRangeRead(KVMessage msg) throws IOException {
         // if server is not set, return error
         if (server == null)
-            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
-        //if ECS process is not done yet, server is not ready to retrieve requests
-        if (!serverActive) {
-            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
-        }
-        // if KVMessage does not have put command, return error
-        if (msg.getStatus() != KVMessage.StatusType.KEY_RANGE_READ)
-            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, "", B64Util.b64encode("KVMessage does not have correct status!"));
-        // if KVMessage does not contain selectionKey, return error
-        if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
-            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
+            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        //if ECS process is not done yet, server is not ready to retrieve requests
+        if (!serverActive) {
+            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+        }
+        // if KVMessage does not have put command, return error
+        if (msg.getStatus() != KVMessage.StatusType.KEY_RANGE_READ)
+            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, "", B64Util.b64encode("KVMessage does not have correct status!"));
+        // if KVMessage does not contain selectionKey, return error
+        if (!(msg instanceof ServerMessage) || ((ServerMessage) msg).getSelectionKey() == null)
+            return new ServerMessage(KVMessage.StatusType.KEY_RANGE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not contain selectionKey!"));
+
+        LOGGER.info("Client wants to get key range success");
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+
+                if( metadata.serverCount() < 3) {
+                    ServerMessage keyRange = new ServerMessage(KVMessage.StatusType.KEY_RANGE, null, null, ((ServerMessage) msg).getSelectionKey());
+                    keyRange.setRequestId(((ServerMessage) msg).getRequestId());
+                    getKeyRange(keyRange);
+                }
+                else{
+
+                    String message = metadata.getServerHashRangeWithReplicas() + "\r\n";
+                    LOGGER.info("Answer to Client: " + message);
+
+                    reply(msg, message);
+                    return null;
+                }
+
+                return null;
+            }
+
+            public Object getStripe() {
+                return msg.getKey();
+            }
+        });
+        return null;
+
+    }
+
+    /**
+     * Send rebalanced items to corresponding newly added server.
+     *
+     * @param msg KVMessage containing the new server address information.
+     * @return null
+     */
+    public KVMessage rebalance(KVMessage msg) throws Exception {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        //if ECS process is not done yet, server is not ready to retrieve requests
+        if (!serverActive) {
+            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+        }
+        //if server locked
+        if (serverWriteLock) {
+            String message = KVMessage.StatusType.SERVER_WRITE_LOCK.toString().toLowerCase(Locale.ENGLISH) + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_WRITE_LOCK, msg.getKey(), B64Util.b64encode("Server is locked!"));
+        }
+        // if KVMessage does not have put command, return error
+        if (msg.getStatus() != KVMessage.StatusType.REBALANCE)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
+
+        LOGGER.info("Rebalance server key-value according to new server: %s" + msg.getKey());
+
+        LOGGER.fine("Submitting new rebalance callable to pool for key " + msg.getKey());
+
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                LOGGER.fine("Rebalancing key from cache: " + msg.getKey());
+
+                String addressinfo[] = B64Util.b64decode(msg.getKey()).split(":");
+                String[] value = msg.getValue().split(" ");
+                String nsh = B64Util.b64decode(value[0]);
+                // the own token which was responsible for the range of the new token so far
+                String csh = metadata.getRangeHash(nsh);
+                // the ECS sends the start if other starting tokens split that range, see ECSServer#addToken
+                String start = value.length > 1 ? B64Util.b64decode(value[1]) : metadata.getPreviousToken(csh);
+                // progress and success only name the new token
+                KVMessage request = new ServerMessage(KVMessage.StatusType.REBALANCE, msg.getKey(), value[0]);
+
+                // if there is some keys to be send then send passwords as well
+                if (!keySpecificPasswords.isEmpty()) {
+                    String kp = preparePasswordString();
+                    sendPassword(kp);
+                }
+
+                // writes stay available: the pairs are copied from the live history while writes to the moving part
+                // are forwarded, the ECS switches the metadata once the new server caught up
+                String target = addressinfo[0] + ":" + addressinfo[1];
+                int total = (int) historicPairs.keySet().stream().filter(hash -> MerkleTree.inRange(hash, start, nsh)).count();
+                Handover handover = new Handover(nsh, csh, start, target, request, total);
+                // sub-ranges are handed to replicas before the copy starts, the filter runs while the copy is framed
+                Iterator<Pair<String, String>> pairs = historicPairs.entrySet().stream()
+                        .filter(pair -> handover.moves(pair.getKey()) && !handover.copiedByReplica(pair.getKey()))
+                        .map(Map.Entry::getValue).iterator();
+                RangeTransfer transfer = createTransfer(target, pairs, total, new RangeTransfer.Listener() {
+                    public void transferred(List<String> keys, int acked, int total) {
+                        handover.acked.addAndGet(keys.size());
+                        reportProgress(keys.size(), handover.progress(), handover.total, request);
+                    }
+
+                    public void completed() {
+                        handover.copied = true;
+                        reportHandover(handover);
+                    }
+                });
+                handover.transfer = transfer;
+                // registered before the copy starts, so every write is either copied or forwarded
+                handovers.put(nsh, handover);
+                // starts the transfer once the sub-ranges are assigned
+                splitHandover(handover, csh, System.currentTimeMillis() + HANDOVER_CATCH_UP_MILLIS);
+                return null;
+            }
+            public Object getStripe() {
+                return msg.getKey();
+            }
+        });
+
+        //receive update metadata
+
+//        String updateStr = new String(kvServerECSCommunicator.receive(), TELNET_ENCODING);
+//        String[] request = updateStr.split("\\s");
+//        receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA,request[1], request[2], null ));
+
+        return null;
+    }
+
+    /**
+     * Send KV items to corresponding newly added replicate server.
+     *
+     * @param msg KVMessage containing the new server address information.
+     * @return null
+     */
+    public KVMessage replicate(KVMessage msg) throws Exception {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        //if ECS process is not done yet, server is not ready to retrieve requests
+        if (!serverActive) {
+            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+        }
+        //if server locked
+        if (serverWriteLock) {
+            String message = KVMessage.StatusType.SERVER_WRITE_LOCK.toString().toLowerCase(Locale.ENGLISH) + "\r\n";
+            reply(msg, message);
+            return new ServerMessage(KVMessage.StatusType.SERVER_WRITE_LOCK, msg.getKey(), B64Util.b64encode("Server is locked!"));
+        }
+        // if KVMessage does not have put command, return error
+        if (msg.getStatus() != KVMessage.StatusType.REPLICATE)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
+
+        LOGGER.info("Send kv items to new replicate server: %s" + msg.getKey());
+
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+
+                String target = B64Util.b64decode(msg.getKey());
+                RangeTransfer transfer = createTransfer(target, historicPairs.values().iterator(), historicPairs.size(), new RangeTransfer.Listener() {
+                    public void transferred(List<String> keys, int acked, int total) {
+                        if (acked % TRANSFER_PROGRESS_PAIRS < keys.size() || acked == total)
+                            LOGGER.info(String.format("Replicated %d of %d pairs to %s", acked, total, target));
+                    }
+
+                    public void completed() {
+                        LOGGER.info("Items successfully sent.");
+                    }
+                });
+                // later writes reach the replica through the replication stream
+                transfer.close();
+                transfer.start();
+
+                return null;
+            }
+            public Object getStripe() {
+                changeServerWriteLockStatus(false);
+                return msg.getKey();
+            }
+        });
+
+        return null;
+    }
+
+    /**
+     * Creates a {@link RangeTransfer} to another server, the caller starts it. The transfer is forgotten once it is
+     * closed and finished.
+     *
+     * @param target   address:intra port of the receiver.
+     * @param pairs    pairs to transfer, see {@link RangeTransfer}.
+     * @param total    number of pairs, only used to report the progress.
+     * @param listener notified about the progress.
+     */
+    private RangeTransfer createTransfer(String target, Iterator<Pair<String, String>> pairs, int total, RangeTransfer.Listener listener) {
+        RangeTransfer transfer = new RangeTransfer(transferIds.incrementAndGet(), listenaddress + ":" + intraPort, target,
+                pairs, total, peers::send, listener);
+        TokenBucket bandwidth = transferBandwidth;
+        if (bandwidth != null)
+            transfer.setRateLimit(bandwidth);
+        transfer.setExpirations(expirations);
+        transfers.put(transfer.getId(), transfer);
+        LOGGER.info(String.format("Start transfer %d of %d pairs to %s", transfer.getId(), total, target));
+        return transfer;
+    }
+
+    private void retransmitTransfers() {
+        long now = System.currentTimeMillis();
+        for (RangeTransfer transfer : transfers.values()) {
+            if (transfer.isFinished()) {
+                transfers.remove(transfer.getId());
+            } else {
+                transfer.pump();
+                transfer.retransmitIfStale(now, REPLICATION_RETRANSMIT_MILLIS);
+            }
+        }
+        for (Handover handover : handovers.values())
+            for (HandoverPart part : handover.parts.values())
+                if (!part.done && now - part.lastProgress > HANDOVER_PART_TIMEOUT_MILLIS && part.fallback.compareAndSet(false, true))
+                    copyHandoverPart(handover, part);
+    }
+
+    /**
+     * Tells the ECS how far a rebalance got, in the format
+     * rebalance_progress &lt;new server&gt; &lt;new server hash&gt; &lt;transferred pairs&gt; &lt;total pairs&gt;
+     * Reported every {@value #TRANSFER_PROGRESS_PAIRS} pairs and when the last pair was transferred.
+     *
+     * @param msg the rebalance request of the ECS.
+     */
+    private void reportProgress(int chunk, int acked, int total, KVMessage msg) {
+        if (acked % TRANSFER_PROGRESS_PAIRS >= chunk && acked < total)
+            return;
+        LOGGER.info(String.format("Rebalanced %d of %d pairs", acked, total));
+        String message = "rebalance_progress " + msg.getKey() + " " + msg.getValue() + " " + acked + " " + total + "\r\n";
+        sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), message);
+    }
+
+    /**
+     * Lets the replicas of this server copy sub-ranges of a handover in parallel to the copy of this server, then starts
+     * the copy of this server. Only replicas which applied all mutations of this server take part, writes after the
+     * handover was registered are forwarded by this server anyway. As long as a replica lags behind and the deadline
+     * has not passed, the check is repeated on the scheduler instead of blocking a worker. Without replicas, or if the
+     * target already serves other ranges, this server copies the whole range.
+     *
+     * @param deadline time in milliseconds until which lagging replicas may catch up.
+     */
+    private void splitHandover(Handover handover, String csh, long deadline) throws Exception {
+        TreeMap<String, KVServerInfo> servers = metadata.getServerMap();
+        // an active server takes over a range to balance the load, it ignores the h records of replicas
+        if (metadata.serverCount() <= 2 || !rangesOf(handover.target).isEmpty()) {
+            handover.transfer.start();
+            return;
+        }
+        List<String> replicas = new ArrayList<>();
+        boolean caughtUp = true;
+        for (String hash : metadata.getReplicaServers(csh)) {
+            KVServerInfo info = servers.get(hash);
+            if (info == null)
+                continue;
+            String replica = info.getAddress() + ":" + info.getIntraPort();
+            replicas.add(replica);
+            caughtUp &= replication.isCaughtUp(replica);
+        }
+        if (!caughtUp && System.currentTimeMillis() < deadline) {
+            scheduler.schedule(() -> {
+                try {
+                    splitHandover(handover, csh, deadline);
+                } catch (Exception e) {
+                    LOGGER.warning("Could not split handover to " + handover.target + ", copying the whole range: " + e.getMessage());
+                    handover.transfer.start();
+                }
+            }, HANDOVER_CATCH_UP_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+
+        List<String> helpers = new ArrayList<>();
+        for (String replica : replicas) {
+            if (replication.isCaughtUp(replica))
+                helpers.add(replica);
+            else
+                LOGGER.info("Replica " + replica + " lags behind, not copying from it");
+        }
+        if (!helpers.isEmpty()) {
+            String[] bounds = RangeTransfer.splitRange(handover.start, handover.newHash, helpers.size() + 1);
+            for (int i = 0; i < helpers.size(); i++) {
+                long ref = transferIds.incrementAndGet();
+                HandoverPart part = new HandoverPart(helpers.get(i), bounds[i + 1], bounds[i + 2]);
+                handover.parts.put(ref, part);
+                String[] address = part.replica.split(":");
+                sendMessage(address[0], Integer.parseInt(address[1]), "rebalance_part " + B64Util.b64encode(listenaddress + ":" + intraPort)
+                        + " " + ref + " " + B64Util.b64encode(handover.target) + " " + part.start + " " + part.end + "\r\n");
+                LOGGER.info(String.format("Replica %s copies (%s, %s] to %s", part.replica, part.start, part.end, handover.target));
+            }
+        }
+        handover.transfer.start();
+    }
+
+    /**
+     * Copies a sub-range of a handover from this server because its replica did not report progress in time.
+     */
+    private void copyHandoverPart(Handover handover, HandoverPart part) {
+        LOGGER.warning(String.format("Replica %s stalled, copying (%s, %s] to %s", part.replica, part.start, part.end, handover.target));
+        Iterator<Pair<String, String>> pairs = historicPairs.entrySet().stream()
+                .filter(pair -> MerkleTree.inRange(pair.getKey(), part.start, part.end))
+                .map(Map.Entry::getValue).iterator();
+        RangeTransfer transfer = createTransfer(handover.target, pairs, 0, new RangeTransfer.Listener() {
+            public void transferred(List<String> keys, int acked, int total) {
+            }
+
+            public void completed() {
+                part.done = true;
+                reportHandover(handover);
+            }
+        });
+        transfer.close();
+        transfer.start();
+    }
+
+    /**
+     * Sends rebalance_success to the ECS once the new server caught up with the copy of this server and all
+     * sub-ranges copied by replicas.
+     */
+    private void reportHandover(Handover handover) {
+        if (!handover.copied)
+            return;
+        for (HandoverPart part : handover.parts.values())
+            if (!part.done)
+                return;
+        if (!handover.reported.compareAndSet(false, true))
+            return;
+        KVMessage msg = handover.request;
+        String success = "rebalance_success " + msg.getKey() + " " + msg.getValue() + "\r\n";
+        sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), success);
+        LOGGER.info("Rebalance caught up, success send to ECS");
+    }
+
+    /**
+     * Copies a sub-range of the range of a coordinator to a joining server, as requested by the coordinator with
+     * rebalance_part &lt;coordinator&gt; &lt;reference&gt; &lt;new server&gt; &lt;start&gt; &lt;end&gt;
+     * The pairs are sent as h records, so they never overwrite what the coordinator sent, and the progress is
+     * reported with rebalance_part_status &lt;replica&gt; &lt;reference&gt; &lt;copied pairs&gt; &lt;done&gt;.
+     *
+     * @param msg KVMessage with the encoded coordinator as key and the rest of the request as value.
+     * @return null
+     */
+    public KVMessage receiveRebalancePart(KVMessage msg) {
+        String[] tokens = msg.getValue().split(" ");
+        if (msg.getKey() == null || tokens.length < 4)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Malformed request!"));
+        String[] coordinator = B64Util.b64decode(msg.getKey()).split(":");
+
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                List<String> keys = digests.keys(tokens[2], tokens[3]);
+                // values are read while the chunks are framed, keys deleted in the meantime are skipped
+                Iterator<Pair<String, String>> pairs = keys.stream().map(key -> {
+                    KVMessage res = disk.readContent(new ServerMessage(KVMessage.StatusType.GET, key, null));
+                    return res.getStatus() == KVMessage.StatusType.GET_SUCCESS ? new Pair<>(key, res.getValue()) : null;
+                }).filter(Objects::nonNull).iterator();
+                RangeTransfer transfer = createTransfer(B64Util.b64decode(tokens[1]), pairs, keys.size(), new RangeTransfer.Listener() {
+                    public void transferred(List<String> copied, int acked, int total) {
+                        sendPartStatus(acked, false);
+                    }
+
+                    public void completed() {
+                        sendPartStatus(0, true);
+                    }
+                });
+                transfer.setSecondary(true);
+                transfer.close();
+                transfer.start();
+                return null;
+            }
+
+            private void sendPartStatus(int acked, boolean done) {
+                String status = "rebalance_part_status " + B64Util.b64encode(listenaddress + ":" + intraPort) + " "
+                        + tokens[0] + " " + acked + " " + done + "\r\n";
+                peers.send(coordinator[0], Integer.parseInt(coordinator[1]), status.getBytes(StandardCharsets.ISO_8859_1));
+            }
+
+            public Object getStripe() {
+                return msg.getKey() + " " + tokens[0];
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Records the progress of a sub-range copied by a replica, see {@link #receiveRebalancePart(KVMessage)}.
+     *
+     * @param msg KVMessage with the encoded replica as key, reference, copied pairs and done as value.
+     * @return null
+     */
+    public KVMessage receiveRebalancePartStatus(KVMessage msg) {
+        String[] tokens = msg.getValue().split(" ");
+        if (tokens.length < 3)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Malformed status!"));
+        long ref = Long.parseLong(tokens[0]);
+        for (Handover handover : handovers.values()) {
+            HandoverPart part = handover.parts.get(ref);
+            if (part == null)
+                continue;
+            part.lastProgress = System.currentTimeMillis();
+            int acked = Integer.parseInt(tokens[1]);
+            if (acked > part.acked) {
+                int chunk = acked - part.acked;
+                part.acked = acked;
+                reportProgress(chunk, handover.progress(), handover.total, handover.request);
+            }
+            if (Boolean.parseBoolean(tokens[2])) {
+                part.done = true;
+                reportHandover(handover);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Copies ranges to the servers which hold them after a server left or failed, as requested by the ECS with
+     * handoff &lt;removed server&gt; &lt;target&gt;,&lt;start&gt;,&lt;end&gt;;...
+     * where targets are address:intra port and the ranges are "null" if there is nothing to copy. Every range is
+     * sent as c records, so it never overwrites what the target got from the new coordinator, and the progress is
+     * reported to the ECS like a rebalance. A leaving server waits for its copies before it shuts down.
+     *
+     * @param msg KVMessage with the encoded removed server as key and the encoded ranges as value.
+     * @return null
+     */
+    public KVMessage handoff(KVMessage msg) {
+        if (msg.getKey() == null || msg.getValue() == null)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Malformed request!"));
+        String removed = B64Util.b64decode(msg.getKey());
+        List<String[]> ranges = new ArrayList<>();
+        if (!msg.getValue().equals("null"))
+            for (String range : B64Util.b64decode(msg.getValue()).split(";"))
+                if (!range.isEmpty())
+                    ranges.add(range.split(","));
+        LOGGER.info("Handing off " + ranges.size() + " ranges of " + removed);
+
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                CountDownLatch done = new CountDownLatch(ranges.size());
+                for (String[] range : ranges) {
+                    String start = range[1];
+                    String end = range[2];
+                    // progress names the target and the end of the range
+                    KVMessage request = new ServerMessage(KVMessage.StatusType.REBALANCE, B64Util.b64encode(range[0]), B64Util.b64encode(end));
+                    int total = (int) historicPairs.keySet().stream().filter(hash -> MerkleTree.inRange(hash, start, end)).count();
+                    Iterator<Pair<String, String>> pairs = historicPairs.entrySet().stream()
+                            .filter(pair -> MerkleTree.inRange(pair.getKey(), start, end))
+                            .map(Map.Entry::getValue).iterator();
+                    RangeTransfer transfer = createTransfer(range[0], pairs, total, new RangeTransfer.Listener() {
+                        public void transferred(List<String> keys, int acked, int total) {
+                            reportProgress(keys.size(), acked, total, request);
+                        }
+
+                        public void completed() {
+                            done.countDown();
+                        }
+                    });
+                    transfer.setHandoff(true);
+                    // later writes reach the new holders through the new coordinator
+                    transfer.close();
+                    transfer.start();
+                }
+                if (removed.equals(listenaddress + ":" + port))
+                    leaving.add(done);
+                return null;
+            }
+
+            public Object getStripe() {
+                return msg.getKey();
+            }
+        });
+        return null;
+    }
+
+    /**
+     * Applies a record of a {@link RangeTransfer} chunk. For ranges which are not switched to this server yet, it
+     * remembers the keys it received: p and d records of the coordinator always apply, h records copied by replicas
+     * only to keys nobody sent yet. A server with several tokens may already serve some of its ranges while the others
+     * are still copied, so this is decided per key. Once a range is switched to this server, its coordinator finished
+     * the handover and replicas do not copy to it anymore, h records for it are dropped. c records are the ranges of a
+     * removed server, see {@link #handoff(KVMessage)}.
+     *
+     * @param expiresAt expiration time of a put, 0 if the key does not expire.
+     */
+    private void applyTransferred(String tag, String key, String value, long expiresAt) {
+        if (tag.equals("c")) {
+            // the range of a removed server, a value the target has is from the new coordinator and newer
+            if (!historicPairs.containsKey(Util.calculateHash(key)))
+                storeTransferred(key, value, expiresAt);
+            return;
+        }
+        boolean joining = !serverActive || metadata.isEmpty() || !checkServerResponsible(key);
+        if (tag.equals("h")) {
+            if (joining)
+                joinWrites.computeIfAbsent(key, k -> {
+                    storeTransferred(k, value, expiresAt);
+                    return Boolean.FALSE;
+                });
+        } else if (!joining) {
+            storeTransferred(key, tag.equals("d") ? null : value, expiresAt);
+        } else {
+            joinWrites.compute(key, (k, sent) -> {
+                storeTransferred(k, tag.equals("d") ? null : value, expiresAt);
+                return Boolean.TRUE;
+            });
+        }
+    }
+
+    private void storeTransferred(String key, String value, long expiresAt) {
+        if (value == null) {
+            historicPairs.remove(Util.calculateHash(key));
+            cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+            disk.deleteContent(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+            digests.remove(key);
+            expirations.remove(key);
+        } else {
+            historicPairs.put(Util.calculateHash(key), new Pair<>(key, value));
+            cache.put(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+            disk.writeContent(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+            digests.put(key, value);
+            storeExpiry(key, expiresAt);
+        }
+    }
+
+    /**
+     * Applies a chunk of a {@link RangeTransfer}, which has the format
+     * rebalance_chunk &lt;source&gt; &lt;transfer id&gt; &lt;seq&gt; &lt;total pairs&gt; p &lt;key&gt; &lt;value&gt; ...
+     * where a pair may be followed by e &lt;key&gt; &lt;expiration time&gt;. Chunks of one transfer are applied one after the other, every applied or repeated chunk is acknowledged with
+     * rebalance_ack &lt;receiver&gt; &lt;transfer id&gt; &lt;seq&gt;.
+     *
+     * @param msg KVMessage with the encoded source as key and the rest of the chunk as value.
+     * @return null
+     */
+    public KVMessage receiveRebalanceChunk(KVMessage msg) throws Exception {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+
+        String source = msg.getKey();
+        // empty values are encoded as empty tokens
+        String[] tokens = msg.getValue().split(" ", -1);
+        if (source == null || tokens.length < 3)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Malformed chunk!"));
+        String stream = source + " " + tokens[0];
 
-        LOGGER.info("Client wants to get key range success");
         pool.submit(new StripedCallable<Void>() {
             public Void call() throws Exception {
-
-                if( metadata.getServerMap().size() < 3)
-                    getKeyRange(new ServerMessage(KVMessage.StatusType.KEY_RANGE, null, null, ((ServerMessage) msg).getSelectionKey()));
-                else{
-
-                    String message = metadata.getServerHashRangeWithReplicas() + "\r\n";
-                    LOGGER.info("Answer to Client: " + message);
-
-                    server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+                long id = Long.parseLong(tokens[0]);
+                long seq = Long.parseLong(tokens[1]);
+                ReplicaState.Verdict verdict = transferState.check(stream, id, seq, 0);
+                if (verdict == ReplicaState.Verdict.GAP)
                     return null;
+                if (verdict == ReplicaState.Verdict.APPLY) {
+                    for (int i = 3; i + 1 < tokens.length; ) {
+                        String key = B64Util.b64decode(tokens[i + 1]);
+                        if (tokens[i].equals("d")) {
+                            // a delete forwarded during a handover
+                            applyTransferred(tokens[i], key, null, 0);
+                            i += 2;
+                        } else if (tokens[i].equals("e")) {
+                            // applied together with its pair
+                            i += 3;
+                        } else {
+                            applyTransferred(tokens[i], key, B64Util.b64decode(tokens[i + 2]), expiryRecord(tokens, i + 3));
+                            i += 3;
+                        }
+                    }
+                    transferState.applied(stream, seq);
+                    LOGGER.fine(String.format("Applied chunk %d of transfer %d with %s pairs in total", seq, id, tokens[2]));
                 }
 
+                String[] address = B64Util.b64decode(source).split(":");
+                String ack = RangeTransfer.ACK_COMMAND + " " + B64Util.b64encode(listenaddress + ":" + intraPort) + " "
+                        + id + " " + transferState.lastApplied(stream) + "\r\n";
+                sendMessage(address[0], Integer.parseInt(address[1]), ack);
                 return null;
             }
 
             public Object getStripe() {
-                return msg.getKey();
+                return stream;
             }
         });
         return null;
+    }
+
+    /**
+     * Passes the acknowledgement of a chunk to its {@link RangeTransfer}, which sends the next chunks.
+     *
+     * @param msg KVMessage with the encoded receiver as key, transfer id and sequence number as value.
+     * @return null
+     */
+    public KVMessage receiveRebalanceAck(KVMessage msg) {
+        String[] tokens = msg.getValue().split(" ");
+        if (msg.getKey() == null || tokens.length < 2)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Malformed acknowledgement!"));
+        RangeTransfer transfer = transfers.get(Long.parseLong(tokens[0]));
+        if (transfer == null)
+            return null;
+
+        // acknowledged pairs are deleted from disk, which must not happen on the I/O thread
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                transfer.acknowledge(Long.parseLong(tokens[1]));
+                return null;
+            }
 
+            public Object getStripe() {
+                return transfer;
+            }
+        });
+        return null;
     }
 
     /**
-     * Send rebalanced items to corresponding newly added server.
+     * Answers a heartbeat of the ECS with ecs_heartbeat &lt;address:port&gt; &lt;hash&gt; &lt;load&gt;, see
+     * {@link #loadReport()}.
      *
-     * @param msg KVMessage containing the new server address information.
+     * @param msg heartbeat of the ECS.
      * @return null
      */
-    public KVMessage rebalance(KVMessage msg) throws Exception {
+    public KVMessage respondHeartbeat(KVMessage msg) {
+        String message = "ecs_heartbeat " + B64Util.b64encode(listenaddress + ":" + port) + " " + B64Util.b64encode(Util.calculateHash(listenaddress, port))
+                + " " + B64Util.b64encode(loadReport()) + "\r\n";
+        try {
+            LOGGER.info("Responding to heartbeat: " + message);
+            sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), message);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Counts a request of a client to a key this server coordinates.
+     */
+    private void countRequest(String key) {
+        tokenRequests.computeIfAbsent(metadata.getRangeHash(Util.calculateHash(key)), token -> new LongAdder()).increment();
+        if (hotKeyRate > 0)
+            hotKeyCounts.offer(key);
+    }
+
+    /**
+     * Decides which own keys are hot, based on the requests counted in the last interval, and refreshes their copies
+     * on all other servers. A key becomes hot at the configured rate and cools down below half of it, the copies of
+     * a cold key expire after {@link #HOT_COPY_TTL_MILLIS}. Keys with a password or a time to live are never copied.
+     * Called periodically.
+     */
+    private void spreadHotKeys() {
+        try {
+            long now = System.currentTimeMillis();
+            hotCopies.values().removeIf(copy -> copy.expiresAt <= now);
+            if (hotKeyRate <= 0 || !serverActive) {
+                hotKeys = Collections.emptySet();
+                return;
+            }
+            long threshold = hotKeyRate * HOT_KEY_INTERVAL_MILLIS / 1000;
+            Set<String> previous = hotKeys;
+            Set<String> hot = new HashSet<>();
+            for (Pair<String, Long> top : hotKeyCounts.top(Math.max(1, threshold / 2))) {
+                String key = top.getKey();
+                if (top.getValue() < threshold && !previous.contains(key))
+                    continue;
+                if (checkServerResponsible(key) && !keySpecificPasswords.containsKey(key) && !expirations.containsKey(key))
+                    hot.add(key);
+            }
+            hotKeyCounts.clear();
+            for (String key : hot)
+                if (!previous.contains(key))
+                    LOGGER.info("Key " + key + " is hot, copying it to all servers");
+            for (String key : previous)
+                if (!hot.contains(key))
+                    LOGGER.info("Key " + key + " cooled down");
+            hotKeys = hot;
+
+            for (String key : hot) {
+                // refreshed in the stripe of the key, so a refresh never overtakes a newer write
+                pool.submit(new StripedCallable<Void>() {
+                    public Void call() throws Exception {
+                        Pair<String, String> pair = historicPairs.get(Util.calculateHash(key));
+                        copyHotKey(key, pair == null ? null : pair.getValue());
+                        return null;
+                    }
+
+                    public Object getStripe() {
+                        return key;
+                    }
+                });
+            }
+        } catch (Exception e) {
+            // an exception would cancel the periodic task
+            LOGGER.warning("Spreading hot keys failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends hot_copy &lt;source&gt; &lt;key&gt; [&lt;value&gt;] to every other server, all Base64 encoded. Without a
+     * value the servers drop their copy.
+     *
+     * @param key   a hot key of this server.
+     * @param value the current value, null if the key was deleted.
+     */
+    private void copyHotKey(String key, String value) {
+        byte[] line = ("hot_copy " + B64Util.b64encode(listenaddress + ":" + intraPort) + " " + B64Util.b64encode(key)
+                + (value == null ? "" : " " + B64Util.b64encode(value)) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        Set<String> sent = new HashSet<>();
+        for (KVServerInfo info : metadata.getServerMap().values()) {
+            if (info.getServerId().equals(listenaddress + ":" + port) || !sent.add(info.getServerId()))
+                continue;
+            peers.send(info.getAddress(), info.getIntraPort(), line);
+        }
+    }
+
+    /**
+     * Keeps or drops the copy of a hot key of another server, see {@link #copyHotKey}.
+     *
+     * @param msg KVMessage with the encoded source as key, the encoded key and value as value.
+     * @return null
+     */
+    public KVMessage receiveHotCopy(KVMessage msg) {
         // if server is not set, return error
         if (server == null)
-            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
-        //if ECS process is not done yet, server is not ready to retrieve requests
-        if (!serverActive) {
-            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        String[] tokens = msg.getValue().trim().split(" ");
+        if (tokens[0].isEmpty())
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Hot copy without key!"));
+        String key = B64Util.b64decode(tokens[0]);
+        if (tokens.length < 2)
+            hotCopies.remove(key);
+        else
+            hotCopies.put(key, new HotCopy(B64Util.b64decode(tokens[1]), System.currentTimeMillis() + HOT_COPY_TTL_MILLIS));
+        return null;
+    }
+
+    /**
+     * Answers with hotkeys &lt;key&gt; &lt;key&gt; ..., the own hot keys and the hot keys of other servers this server
+     * keeps copies of. Clients may cache the values of these keys for a short time.
+     *
+     * @param msg KVMessage with the selection key of the client.
+     * @return null
+     */
+    public KVMessage hotKeys(KVMessage msg) throws IOException {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+        StringBuilder message = new StringBuilder(KVMessage.StatusType.HOTKEYS.name().toLowerCase(Locale.ENGLISH));
+        for (String key : hotKeys)
+            message.append(' ').append(key);
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, HotCopy> e : hotCopies.entrySet())
+            if (e.getValue().expiresAt > now)
+                message.append(' ').append(e.getKey());
+        message.append("\r\n");
+        reply(msg, message.toString());
+        return null;
+    }
+
+    /**
+     * Describes the load of the own tokens for the ECS, which moves ranges away from busy servers. Resets the request
+     * counters. Called on the selector thread, so the pairs are taken from the last {@link #countTokenPairs()}.
+     *
+     * @return token:requests:pairs; for every own token, with the requests since the last report and the pairs of
+     * its range.
+     */
+    private String loadReport() {
+        StringBuilder report = new StringBuilder();
+        List<String> tokens = metadata.getTokens(listenaddress + ":" + port);
+        tokenRequests.keySet().retainAll(tokens);
+        Map<String, Integer> pairs = tokenPairs;
+        for (String token : tokens) {
+            LongAdder requests = tokenRequests.get(token);
+            report.append(token).append(':').append(requests == null ? 0 : requests.sumThenReset()).append(':')
+                    .append(pairs.getOrDefault(token, 0)).append(';');
         }
-        //if server locked
-        if (serverWriteLock) {
-            String message = KVMessage.StatusType.SERVER_WRITE_LOCK.toString().toLowerCase(Locale.ENGLISH) + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-            return new ServerMessage(KVMessage.StatusType.SERVER_WRITE_LOCK, msg.getKey(), B64Util.b64encode("Server is locked!"));
+        return report.toString();
+    }
+
+    /**
+     * Counts the pairs in the range of every own token for {@link #loadReport()}. Called periodically.
+     */
+    private void countTokenPairs() {
+        try {
+            Map<String, Integer> counts = new HashMap<>();
+            for (String token : metadata.getTokens(listenaddress + ":" + port)) {
+                String start = metadata.getPreviousToken(token);
+                if (start.equals(token))
+                    counts.put(token, historicPairs.size());
+                else if (start.compareTo(token) < 0)
+                    counts.put(token, historicPairs.subMap(start, false, token, true).size());
+                else
+                    counts.put(token, historicPairs.tailMap(start, false).size() + historicPairs.headMap(token, true).size());
+            }
+            tokenPairs = counts;
+        } catch (Exception e) {
+            LOGGER.warning("Could not count the pairs of the own tokens: " + e.getMessage());
         }
+    }
+
+    /**
+     * rebalance.
+     *
+     * @param msg KVMessage containing the map.
+     * @return null
+     */
+    public KVMessage receiveRebalance(KVMessage msg) throws Exception {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+
         // if KVMessage does not have put command, return error
-        if (msg.getStatus() != KVMessage.StatusType.REBALANCE)
+        if (msg.getStatus() != KVMessage.StatusType.RECEIVE_REBALANCE)
             return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
 
         LOGGER.info("Rebalance server key-value according to new server: %s" + msg.getKey());
 
-        LOGGER.fine("Submitting new rebalance callable to pool for key " + msg.getKey());
-
 
-        changeServerWriteLockStatus(true);
         pool.submit(new StripedCallable<Void>() {
             public Void call() throws Exception {
-                LOGGER.fine("Rebalancing key from cache: " + msg.getKey());
 
-                String addressinfo[] = B64Util.b64decode(msg.getKey()).split(":");
-                //get pairs which are smaller than new server hash
-                String nsh = B64Util.b64decode(msg.getValue());
-                String csh = Util.calculateHash(listenaddress, port);
+                if (!msg.getKey().toString().equals("null")) {
 
-                TreeMap<String, Pair<String, String>> sendHist = new TreeMap<>();
+                    LOGGER.fine("Rebalance keys from historic data" + msg.getKey());
+                    String msgKey = B64Util.b64decode(msg.getKey());
+                    TreeMap<String, Pair<String, String>> map = convertStringToMap(msgKey);
+                    historicPairs.putAll(map);
 
-                for (String s : historicPairs.headMap(nsh).keySet()) {
-                    sendHist.put(s, historicPairs.headMap(nsh).get(s));
-                }
-                historicPairs.headMap(nsh).clear();
+                    for (String hKey : convertStringToMap(msgKey).keySet()) {
+                        String key = historicPairs.get(hKey).getKey().toString();
+                        String value = historicPairs.get(hKey).getValue().toString();
+                        LOGGER.fine("Put key,value to cache: " + key + ", " + value);
+                        cache.put(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+                        LOGGER.fine("Put key,value to disk: " + key + ", " + value);
+                        disk.writeContent(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+                        digests.put(key, value);
+                    }
+                    LOGGER.fine("Rebalance done");
 
-                //get pairs which are bigger that current server hash
-                for (String s : historicPairs.tailMap(csh).keySet()) {
-                    sendHist.put(s, historicPairs.tailMap(csh).get(s));
-                }
-                historicPairs.tailMap(csh).clear();
+                 }
 
-                //delete pairs from cache and disk as well
-                for (String hKey : sendHist.keySet()) {
-                    String key = sendHist.get(hKey).getKey().toString();
-                    LOGGER.fine("Deleting key from cache: " + key);
-                    cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
-                    LOGGER.fine("Deleting key from disk: " + key);
-                    // Delete kv pair from disk
-                    disk.deleteContent(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
-                }
+                //serverWriteLock = false;
+                String message = "rebalance_ok" + " " + B64Util.b64encode(listenaddress+":"+port) + " " + msg.getValue() +  "\r\n";
 
-                String message;
-                if (sendHist.isEmpty() || sendHist == null) {
-                    message = KVMessage.StatusType.RECEIVE_REBALANCE.name().toLowerCase(Locale.ENGLISH) + " null " + msg.getValue() + "\r\n";
-                }
-                else{
-                    message = KVMessage.StatusType.RECEIVE_REBALANCE.name().toLowerCase(Locale.ENGLISH) + " " + B64Util.b64encode(convertMapToString(sendHist)) + " " + msg.getValue() + "\r\n";
+                //receive update metadata from ECS
+                //        String updateStr = new String(kvServerECSCommunicator.receive(), TELNET_ENCODING);
+                //        String[] request = updateStr.split("\\s");
+                //        receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA,request[1], request[2], null ));
+                return null;
+            }
+            public Object getStripe() {
+                return msg.getKey();
+            }
+        });
 
-                    // if there is some keys to be send then send passwords as well
-                    String kp = preparePasswordString();
-                    sendPassword(kp);
+        return null;
+    }
 
-                }
+    /**
+     * rebalance.
+     *
+     * @param msg KVMessage containing the map.
+     * @return null
+     */
+    public KVMessage receiveSingleKV(KVMessage msg) throws Exception {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+
+        // if KVMessage does not have put command, return error
+        if (msg.getStatus() != KVMessage.StatusType.RECEIVE_SINGLE)
+            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
 
-                    LOGGER.info("Send handoff data to successor: " + message);
+        LOGGER.info("Single key-value will be: " + B64Util.b64decode(msg.getKey()) + " to/from Server.");
 
-                    //how will I know it's selectionKey? then connect
-                    sendMessage(addressinfo[0], Integer.parseInt(addressinfo[1]), message);
-                    LOGGER.info("Rebalance data sent");
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
 
+                String[] msgValue = B64Util.b64decode(msg.getValue()).split(":");
+                String key = msgValue[0];
+                LOGGER.info("Decoded key: " + key);
+                String value = msgValue[1];
+                LOGGER.info("Decoded value: " + value);
 
+                LOGGER.info("Is received command put?1: " + B64Util.b64decode(msg.getKey()).equals("put"));
+                LOGGER.info("Is received command put?2: " + (B64Util.b64decode(msg.getKey()) == "put"));
 
+                if (B64Util.b64decode(msg.getKey()).equals("put")) {
 
-                //kvServerECSCommunicator.connect(this.bootstrap.getAddress().getHostAddress(), this.bootstrap.getPort());
-                message = "rebalance_success " + msg.getKey() + " " + msg.getValue() + "\r\n";
-                sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), message);
-                LOGGER.info("Rebalance success send to ECS");
+                    LOGGER.fine("Put key,value to cache: " + key + ", " + value);
+                    cache.put(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+                    LOGGER.fine("Put key,value to disk: " + key + ", " + value);
+                    disk.writeContent(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+                    digests.put(key, value);
 
+                } else {
+                    LOGGER.fine("Delete key,value from cache: " + key + ", " + value);
+                    cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, key, value));
+                    LOGGER.fine("Delete key,value from disk: " + key + ", " + value);
+                    disk.deleteContent(new ServerMessage(KVMessage.StatusType.DELETE, key, value));
+                    digests.remove(key);
+                }
                 return null;
             }
             public Object getStripe() {
-                changeServerWriteLockStatus(false);
                 return msg.getKey();
             }
         });
 
-        //receive update metadata
+        return null;
+    }
 
-//        String updateStr = new String(kvServerECSCommunicator.receive(), TELNET_ENCODING);
-//        String[] request = updateStr.split("\\s");
-//        receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA,request[1], request[2], null ));
 
+
+
+    /**
+     * Applies a batch of mutations of a coordinator, which has the format
+     * replicate_batch &lt;source&gt; &lt;incarnation&gt; &lt;seq&gt; &lt;acked&gt; p &lt;key&gt; &lt;value&gt; d &lt;key&gt; ...
+     * where a put may be followed by e &lt;key&gt; &lt;expiration time&gt;. Batches of one coordinator are applied one after the other in its stripe, every applied or repeated batch is
+     * acknowledged with replicate_ack &lt;replica&gt; &lt;incarnation&gt; &lt;seq&gt;.
+     *
+     * @param msg KVMessage with the encoded source as key and the rest of the batch as value.
+     * @return null
+     */
+    public KVMessage receiveReplicateBatch(KVMessage msg) throws Exception {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+
+        String source = msg.getKey();
+        // empty values are encoded as empty tokens
+        String[] tokens = msg.getValue().split(" ", -1);
+        if (source == null || tokens.length < 3)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Malformed batch!"));
+
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                long incarnation = Long.parseLong(tokens[0]);
+                long seq = Long.parseLong(tokens[1]);
+                ReplicaState.Verdict verdict = replicaState.check(source, incarnation, seq, Long.parseLong(tokens[2]));
+                if (verdict == ReplicaState.Verdict.GAP) {
+                    LOGGER.fine("Batch " + seq + " of " + B64Util.b64decode(source) + " arrived out of order, dropped");
+                    return null;
+                }
+                if (verdict == ReplicaState.Verdict.APPLY) {
+                    int i = 3;
+                    while (i + 1 < tokens.length) {
+                        String key = B64Util.b64decode(tokens[i + 1]);
+                        if (tokens[i].equals("p")) {
+                            String value = i + 2 < tokens.length ? B64Util.b64decode(tokens[i + 2]) : "";
+                            cache.put(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+                            disk.writeContent(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+                            digests.put(key, value);
+                            i += 3;
+                            storeExpiry(key, expiryRecord(tokens, i));
+                        } else if (tokens[i].equals("e")) {
+                            // applied together with its put
+                            i += 3;
+                        } else {
+                            cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+                            disk.deleteContent(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+                            digests.remove(key);
+                            expirations.remove(key);
+                            i += 2;
+                        }
+                    }
+                    replicaState.applied(source, seq);
+                }
+
+                String[] address = B64Util.b64decode(source).split(":");
+                String ack = ReplicationStream.ACK_COMMAND + " " + B64Util.b64encode(listenaddress + ":" + intraPort) + " "
+                        + incarnation + " " + replicaState.lastApplied(source) + "\r\n";
+                sendMessage(address[0], Integer.parseInt(address[1]), ack);
+                return null;
+            }
+
+            public Object getStripe() {
+                return source;
+            }
+        });
+        return null;
+    }
+
+    /**
+     * @return the expiration time of an e record at the given index of a batch or chunk, 0 if there is none.
+     */
+    private static long expiryRecord(String[] tokens, int i) {
+        return i + 2 < tokens.length && tokens[i].equals("e") ? Long.parseLong(tokens[i + 2]) : 0;
+    }
+
+    /**
+     * Removes the batches a replica acknowledged from the replication stream, see {@link ReplicationStream}.
+     *
+     * @param msg KVMessage with the encoded replica as key, incarnation and sequence number as value.
+     * @return null
+     */
+    public KVMessage receiveReplicateAck(KVMessage msg) {
+        String[] tokens = msg.getValue().split(" ");
+        if (msg.getKey() == null || tokens.length < 2)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Malformed acknowledgement!"));
+        replication.acknowledge(B64Util.b64decode(msg.getKey()), Long.parseLong(tokens[0]), Long.parseLong(tokens[1]));
+        return null;
+    }
+
+    /**
+     * Answers with the load of the server and how far its replicas are behind, in the format
+     * stats in_flight=&lt;n&gt; max_in_flight=&lt;n&gt; owned=&lt;share&gt; target=&lt;share&gt; replica=&lt;address:port&gt;,seq=..,acked=..,lag_ops=..,lag_ms=..
+     * where owned is the share of the hash ring the server owns and target the share its weight asks for. The answer is sent from the I/O thread, it does not wait behind queued requests.
+     *
+     * @param msg KVMessage of the request.
+     * @return null
+     */
+    public KVMessage stats(KVMessage msg) throws IOException {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+
+        StringBuilder message = new StringBuilder("stats");
+        message.append(" in_flight=").append(inFlight.get());
+        message.append(" max_in_flight=").append(maxInFlight);
+        double[] ownership = metadata.getOwnership().get(listenaddress + ":" + port);
+        if (ownership != null)
+            message.append(String.format(Locale.ROOT, " owned=%.3f target=%.3f", ownership[0], ownership[1]));
+        String lag = replication.lag();
+        if (!lag.isEmpty())
+            message.append(' ').append(lag);
+        message.append("\r\n");
+        reply(msg, message.toString());
         return null;
     }
 
     /**
-     * Send KV items to corresponding newly added replicate server.
+     * Starts an anti-entropy round with every replica which received all replicated mutations, see
+     * {@link #receiveSyncDiff(KVMessage)}. Called periodically, a replica with mutations in flight is skipped because
+     * it would differ anyway.
+     */
+    private void startAntiEntropy() {
+        try {
+            if (!serverActive)
+                return;
+            // every token of this server is compared on its own, its replicas differ from token to token
+            for (String[] range : rangesOf(listenaddress + ":" + intraPort)) {
+                String root = "0:" + Long.toHexString(digests.digest(0, 0, range[0], range[1]));
+                for (String replica : replicaTargetsOfToken(range[1])) {
+                    if (!replication.isCaughtUp(replica))
+                        continue;
+                    String[] address = replica.split(":");
+                    sendMessage(address[0], Integer.parseInt(address[1]), syncLine("sync_tree", range, 0, root));
+                }
+            }
+        } catch (Exception e) {
+            // an exception would cancel the periodic task
+            LOGGER.warning("Anti-entropy round failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Compares nodes of the Merkle tree of a coordinator with the own tree, in the format
+     * sync_tree &lt;source&gt; &lt;start&gt; &lt;end&gt; &lt;level&gt; &lt;index&gt;:&lt;digest&gt; ...
+     * and answers with the indices of the nodes that differ, sync_diff &lt;replica&gt; &lt;start&gt; &lt;end&gt;
+     * &lt;level&gt; &lt;index&gt; ... Nothing is sent if all nodes match. The message is ignored if the range is
+     * not the range of the coordinator in the own metadata, e.g. because the ring changed in the meantime.
      *
-     * @param msg KVMessage containing the new server address information.
+     * @param msg KVMessage with the encoded source as key, range, level and nodes as value.
      * @return null
      */
-    public KVMessage replicate(KVMessage msg) throws Exception {
+    public KVMessage receiveSyncTree(KVMessage msg) throws Exception {
         // if server is not set, return error
         if (server == null)
-            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
-        //if ECS process is not done yet, server is not ready to retrieve requests
-        if (!serverActive) {
-            String message = KVMessage.StatusType.SERVER_STOPPED.toString().toLowerCase() + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-            return new ServerMessage(KVMessage.StatusType.SERVER_STOPPED, msg.getKey(), B64Util.b64encode("Server is not ready!"));
-        }
-        //if server locked
-        if (serverWriteLock) {
-            String message = KVMessage.StatusType.SERVER_WRITE_LOCK.toString().toLowerCase(Locale.ENGLISH) + "\r\n";
-            server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
-            return new ServerMessage(KVMessage.StatusType.SERVER_WRITE_LOCK, msg.getKey(), B64Util.b64encode("Server is locked!"));
-        }
-        // if KVMessage does not have put command, return error
-        if (msg.getStatus() != KVMessage.StatusType.REPLICATE)
-            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
 
-        LOGGER.info("Send kv items to new replicate server: %s" + msg.getKey());
+        String source = msg.getKey();
+        String[] tokens = msg.getValue().split(" ");
+        if (source == null || tokens.length < 4)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Malformed sync message!"));
 
         pool.submit(new StripedCallable<Void>() {
             public Void call() throws Exception {
-
-                String addressinfo[] = B64Util.b64decode(msg.getKey()).split(":");
-
-                String message;
-                if (historicPairs.isEmpty() || historicPairs == null) {
-                    message = KVMessage.StatusType.RECEIVE_REBALANCE.name().toLowerCase(Locale.ENGLISH) + " null " + msg.getValue() + "\r\n";
+                String[] range = {tokens[0], tokens[1]};
+                if (!isReplicaOf(B64Util.b64decode(source), range))
+                    return null;
+                int level = Integer.parseInt(tokens[2]);
+                StringBuilder differing = new StringBuilder();
+                for (int i = 3; i < tokens.length; i++) {
+                    String[] node = tokens[i].split(":");
+                    int index = Integer.parseInt(node[0]);
+                    if (digests.digest(level, index, range[0], range[1]) != Long.parseUnsignedLong(node[1], 16))
+                        differing.append(differing.length() > 0 ? " " : "").append(index);
                 }
-                else message = KVMessage.StatusType.RECEIVE_REBALANCE.name().toLowerCase(Locale.ENGLISH) + " " + B64Util.b64encode(convertMapToString(historicPairs)) + " " + msg.getValue() + "\r\n";
-
-                LOGGER.info("Send KV items to replicate server with this message: " + message);
-
-                sendMessage(addressinfo[0], Integer.parseInt(addressinfo[1]), message);
-                LOGGER.info("Items successfully sent.");
+                if (differing.length() == 0)
+                    return null;
 
+                LOGGER.fine("Differing nodes on level " + level + " with " + B64Util.b64decode(source) + ": " + differing);
+                String[] address = B64Util.b64decode(source).split(":");
+                sendMessage(address[0], Integer.parseInt(address[1]), syncLine("sync_diff", range, level, differing.toString()));
                 return null;
             }
+
             public Object getStripe() {
-                changeServerWriteLockStatus(false);
-                return msg.getKey();
+                return source;
             }
         });
-
-        return null;
-    }
-
-    public KVMessage respondHeartbeat(KVMessage msg) {
-        String message = "ecs_heartbeat " + B64Util.b64encode(listenaddress + ":" + port) + " " + B64Util.b64encode(Util.calculateHash(listenaddress, port)) + "\r\n";
-        try {
-            LOGGER.info("Responding to heartbeat: " + message);
-            sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), message);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
         return null;
     }
 
     /**
-     * rebalance.
+     * Continues an anti-entropy round with the nodes a replica reported as differing. Below inner nodes the digests
+     * of their children are sent with sync_tree, for differing leaves all pairs of the leaves are sent in the format
+     * sync_leaves &lt;source&gt; &lt;start&gt; &lt;end&gt; &lt;leaf&gt;,&lt;leaf&gt;,... p &lt;key&gt; &lt;value&gt; ...
+     * so only the part of the data the replica disagrees on is transferred.
      *
-     * @param msg KVMessage containing the map.
+     * @param msg KVMessage with the encoded replica as key, range, level and differing nodes as value.
      * @return null
      */
-    public KVMessage receiveRebalance(KVMessage msg) throws Exception {
+    public KVMessage receiveSyncDiff(KVMessage msg) throws Exception {
         // if server is not set, return error
         if (server == null)
-            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
-
-        // if KVMessage does not have put command, return error
-        if (msg.getStatus() != KVMessage.StatusType.RECEIVE_REBALANCE)
-            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
-
-        LOGGER.info("Rebalance server key-value according to new server: %s" + msg.getKey());
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
 
+        String replica = msg.getKey();
+        String[] tokens = msg.getValue().split(" ");
+        if (replica == null || tokens.length < 4)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Malformed sync message!"));
 
-        changeServerWriteLockStatus(true);
         pool.submit(new StripedCallable<Void>() {
             public Void call() throws Exception {
-
-                if (!msg.getKey().toString().equals("null")) {
-
-                    LOGGER.fine("Rebalance keys from historic data" + msg.getKey());
-                    String msgKey = B64Util.b64decode(msg.getKey());
-                    TreeMap<String, Pair<String, String>> map = convertStringToMap(msgKey);
-                    historicPairs.putAll(map);
-
-                    for (String hKey : convertStringToMap(msgKey).keySet()) {
-                        String key = historicPairs.get(hKey).getKey().toString();
-                        String value = historicPairs.get(hKey).getValue().toString();
-                        LOGGER.fine("Put key,value to cache: " + key + ", " + value);
-                        cache.put(new ServerMessage(KVMessage.StatusType.PUT, key, value));
-                        LOGGER.fine("Put key,value to disk: " + key + ", " + value);
-                        disk.writeContent(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+                String[] range = null;
+                for (String[] own : rangesOf(listenaddress + ":" + intraPort))
+                    if (own[0].equals(tokens[0]) && own[1].equals(tokens[1]))
+                        range = own;
+                // the round is abandoned if the range changed or mutations are in flight, the next round repairs
+                String target = B64Util.b64decode(replica);
+                if (range == null || !replication.isCaughtUp(target))
+                    return null;
+                String[] address = target.split(":");
+                int level = Integer.parseInt(tokens[2]);
+
+                if (level < MerkleTree.DEPTH) {
+                    StringBuilder children = new StringBuilder();
+                    for (int i = 3; i < tokens.length; i++) {
+                        int first = Integer.parseInt(tokens[i]) * MerkleTree.FANOUT;
+                        for (int child = first; child < first + MerkleTree.FANOUT; child++)
+                            children.append(children.length() > 0 ? " " : "").append(child).append(':')
+                                    .append(Long.toHexString(digests.digest(level + 1, child, range[0], range[1])));
                     }
-                    LOGGER.fine("Rebalance done,write lock released");
-
-                 }
-
-                //serverWriteLock = false;
-                String message = "rebalance_ok" + " " + B64Util.b64encode(listenaddress+":"+port) + " " + msg.getValue() +  "\r\n";
-                //server.send(((ServerMessage) msg).getSelectionKey(), message.getBytes(TELNET_ENCODING));
+                    sendMessage(address[0], Integer.parseInt(address[1]), syncLine("sync_tree", range, level + 1, children.toString()));
+                    return null;
+                }
 
-                //receive update metadata from ECS
-                //        String updateStr = new String(kvServerECSCommunicator.receive(), TELNET_ENCODING);
-                //        String[] request = updateStr.split("\\s");
-                //        receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA,request[1], request[2], null ));
+                // leaves are sent in messages of limited size, every message lists the leaves it contains completely
+                StringBuilder leaves = new StringBuilder();
+                StringBuilder pairs = new StringBuilder();
+                int sent = 0;
+                for (int i = 3; i < tokens.length; i++) {
+                    int leaf = Integer.parseInt(tokens[i]);
+                    for (String key : digests.keys(leaf, range[0], range[1])) {
+                        KVMessage stored = disk.readContent(new ServerMessage(KVMessage.StatusType.GET, key, null));
+                        if (stored.getStatus() != KVMessage.StatusType.GET_SUCCESS)
+                            continue;
+                        pairs.append(" p ").append(B64Util.b64encode(key)).append(' ').append(B64Util.b64encode(stored.getValue()));
+                        sent++;
+                    }
+                    leaves.append(leaves.length() > 0 ? "," : "").append(leaf);
+                    if (pairs.length() >= SYNC_LEAVES_BYTES || i == tokens.length - 1) {
+                        sendMessage(address[0], Integer.parseInt(address[1]), syncLine("sync_leaves", range, -1, leaves.toString() + pairs));
+                        leaves.setLength(0);
+                        pairs.setLength(0);
+                    }
+                }
+                LOGGER.info(String.format("Anti-entropy sent %d pairs of %d leaves to %s", sent, tokens.length - 3, target));
                 return null;
             }
+
             public Object getStripe() {
-                changeServerWriteLockStatus(false);
-                return msg.getKey();
+                return replica;
             }
         });
-
         return null;
     }
 
     /**
-     * rebalance.
+     * Replaces the content of the leaves of a coordinator's range with the pairs sent by the coordinator, pairs of
+     * these leaves which the coordinator did not send are deleted.
      *
-     * @param msg KVMessage containing the map.
+     * @param msg KVMessage with the encoded source as key, range, leaves and pairs as value.
      * @return null
      */
-    public KVMessage receiveSingleKV(KVMessage msg) throws Exception {
+    public KVMessage receiveSyncLeaves(KVMessage msg) throws Exception {
         // if server is not set, return error
         if (server == null)
-            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
-
-        // if KVMessage does not have put command, return error
-        if (msg.getStatus() != KVMessage.StatusType.RECEIVE_SINGLE)
-            return new ServerMessage(KVMessage.StatusType.REBALANCE_ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
 
-        LOGGER.info("Single key-value will be: " + B64Util.b64decode(msg.getKey()) + " to/from Server.");
+        String source = msg.getKey();
+        // empty values are encoded as empty tokens
+        String[] tokens = msg.getValue().split(" ", -1);
+        if (source == null || tokens.length < 3)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Malformed sync message!"));
 
         pool.submit(new StripedCallable<Void>() {
             public Void call() throws Exception {
+                String[] range = {tokens[0], tokens[1]};
+                if (!isReplicaOf(B64Util.b64decode(source), range))
+                    return null;
 
-                String[] msgValue = B64Util.b64decode(msg.getValue()).split(":");
-                String key = msgValue[0];
-                LOGGER.info("Decoded key: " + key);
-                String value = msgValue[1];
-                LOGGER.info("Decoded value: " + value);
-
-                LOGGER.info("Is received command put?1: " + B64Util.b64decode(msg.getKey()).equals("put"));
-                LOGGER.info("Is received command put?2: " + (B64Util.b64decode(msg.getKey()) == "put"));
-
-                if (B64Util.b64decode(msg.getKey()).equals("put")) {
-
-                    LOGGER.fine("Put key,value to cache: " + key + ", " + value);
+                Set<String> received = new HashSet<>();
+                for (int i = 3; i + 2 < tokens.length; i += 3) {
+                    String key = B64Util.b64decode(tokens[i + 1]);
+                    String value = B64Util.b64decode(tokens[i + 2]);
                     cache.put(new ServerMessage(KVMessage.StatusType.PUT, key, value));
-                    LOGGER.fine("Put key,value to disk: " + key + ", " + value);
                     disk.writeContent(new ServerMessage(KVMessage.StatusType.PUT, key, value));
-
-                } else {
-                    LOGGER.fine("Delete key,value from cache: " + key + ", " + value);
-                    cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, key, value));
-                    LOGGER.fine("Delete key,value from disk: " + key + ", " + value);
-                    disk.deleteContent(new ServerMessage(KVMessage.StatusType.DELETE, key, value));
+                    digests.put(key, value);
+                    received.add(key);
+                }
+                int deleted = 0;
+                for (String leaf : tokens[2].split(",")) {
+                    for (String key : digests.keys(Integer.parseInt(leaf), range[0], range[1])) {
+                        if (received.contains(key))
+                            continue;
+                        cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+                        disk.deleteContent(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+                        digests.remove(key);
+                        deleted++;
+                    }
                 }
+                LOGGER.info(String.format("Anti-entropy repaired %d pairs and deleted %d pairs of %s", received.size(),
+                        deleted, B64Util.b64decode(source)));
                 return null;
             }
+
             public Object getStripe() {
-                return msg.getKey();
+                return source;
             }
         });
-
         return null;
     }
 
+    /**
+     * @param command sync_tree, sync_diff or sync_leaves.
+     * @param level   level of the nodes, negative for sync_leaves which carries no level.
+     * @param rest    nodes or leaves and pairs.
+     * @return the line of a sync message of this server.
+     */
+    private String syncLine(String command, String[] range, int level, String rest) {
+        return command + " " + B64Util.b64encode(listenaddress + ":" + intraPort) + " " + range[0] + " " + range[1]
+                + (level >= 0 ? " " + level : "") + " " + rest + "\r\n";
+    }
+
+    /**
+     * @param intraAddress address:intra port of a server.
+     * @return the hash ranges (start, end] of the tokens of the server in the own metadata, empty if the server is
+     * unknown.
+     */
+    private List<String[]> rangesOf(String intraAddress) {
+        List<String[]> ranges = new ArrayList<>();
+        TreeMap<String, KVServerInfo> servers = metadata.getServerMap();
+        for (Map.Entry<String, KVServerInfo> e : servers.entrySet())
+            if ((e.getValue().getAddress() + ":" + e.getValue().getIntraPort()).equals(intraAddress))
+                ranges.add(new String[]{metadata.getPreviousToken(e.getKey()), e.getKey()});
+        return ranges;
+    }
 
+    /**
+     * @return true if this server is a replica of the coordinator and the range is one of the coordinator's ranges in
+     * the own metadata.
+     */
+    private boolean isReplicaOf(String coordinator, String[] range) {
+        if (metadata.serverCount() <= 2)
+            return false;
+        for (String[] known : rangesOf(coordinator))
+            if (known[0].equals(range[0]) && known[1].equals(range[1]))
+                return isReplicaOfToken(range[1]);
+        return false;
+    }
 
+    /**
+     * @return true if this server is one of the replicas of the range of the token.
+     */
+    private boolean isReplicaOfToken(String token) {
+        for (String replica : metadata.getReplicaServers(token))
+            if (metadata.getServerMap().get(replica).getServerId().equals(listenaddress + ":" + port))
+                return true;
+        return false;
+    }
 
     /**
-     * Reads data from the socket using {@link KVCommunicator#receive()} and decodes it into Metadata.
+     * Reads data from the socket using {@link KVCommunicator#receive()} and decodes it into Metadata. The key is the
+     * epoch of the metadata, metadata older than the known epoch is ignored.
      *
      * @throws Exception if there is an Exception during read.
      */
@@ -907,17 +2995,21 @@ public class KVServer implements KVStore {
         if (msg.getStatus() != KVMessage.StatusType.UPDATE_METADATA)
             return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("KVMessage does not have correct status!"));
 
-        changeServerWriteLockStatus(true);
-
-
         pool.submit(new StripedCallable<Void>() {
             public Void call() throws Exception {
-                LOGGER.info("Metadata received. ");
+                long epoch = parseEpoch(B64Util.b64decode(msg.getKey()));
+                if (epoch < metadata.getEpoch()) {
+                    LOGGER.info("Ignoring metadata of epoch " + epoch + ", epoch " + metadata.getEpoch() + " is known");
+                    return null;
+                }
+                LOGGER.info("Metadata of epoch " + epoch + " received. ");
 
                 String serverInfo = B64Util.b64decode(msg.getValue());
                 if(serverInfo.split(";").length == 1)
                     metadata = new Metadata(new KVServerInfo(serverInfo));
-                metadata.updateMetadata(serverInfo);
+                metadata.updateMetadata(serverInfo, epoch);
+                pruneJoinWrites();
+                finishHandovers();
 
 //                changeServerStatus(true);
 //                changeServerWriteLockStatus(false);
@@ -926,7 +3018,7 @@ public class KVServer implements KVStore {
             public Object getStripe() {
                 changeServerStatus(true);
                 serverWriteLock = false;
-                return msg.getKey();
+                return METADATA_STRIPE;
             }
         });
 
@@ -935,6 +3027,121 @@ public class KVServer implements KVStore {
 
     }
 
+    /**
+     * Applies the changed tokens from one epoch of the metadata to the next, see {@link Metadata#diff}. The key is
+     * &lt;base epoch&gt;:&lt;epoch&gt;. If this server does not know the base epoch, e.g. because it missed an update,
+     * it asks the ECS for the full metadata with metadata_request.
+     */
+    public KVMessage receiveMetadataDiff(KVMessage msg) {
+        // if server is not set, return error
+        if (server == null)
+            return new ServerMessage(KVMessage.StatusType.ERROR, msg.getKey(), B64Util.b64encode("Server is not set!"));
+
+        pool.submit(new StripedCallable<Void>() {
+            public Void call() throws Exception {
+                String[] epochs = B64Util.b64decode(msg.getKey()).split(":");
+                if (epochs.length != 2) {
+                    LOGGER.warning("Malformed metadata diff: " + B64Util.b64decode(msg.getKey()));
+                    return null;
+                }
+                long base = parseEpoch(epochs[0]);
+                long epoch = parseEpoch(epochs[1]);
+                if (epoch <= metadata.getEpoch())
+                    return null;
+                if (!metadata.applyDiff(base, epoch, msg.getValue() == null ? "" : B64Util.b64decode(msg.getValue()))) {
+                    LOGGER.info("Metadata diff from epoch " + base + " does not apply to epoch " + metadata.getEpoch()
+                            + ", requesting the full metadata");
+                    String message = "metadata_request " + B64Util.b64encode(listenaddress + ":" + port) + " "
+                            + B64Util.b64encode(String.valueOf(metadata.getEpoch())) + "\r\n";
+                    sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), message);
+                    return null;
+                }
+                LOGGER.info("Metadata diff applied, epoch " + epoch);
+                pruneJoinWrites();
+                finishHandovers();
+                return null;
+            }
+
+            public Object getStripe() {
+                return METADATA_STRIPE;
+            }
+        });
+        return null;
+    }
+
+    /**
+     * @return the epoch, 0 for metadata of an ECS without epochs.
+     */
+    private static long parseEpoch(String epoch) {
+        try {
+            return Long.parseLong(epoch);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Forgets the keys received for ranges which are switched to this server now, the join of these ranges is
+     * complete. Keys of ranges which are still copied are kept, see {@link #applyTransferred}.
+     */
+    private void pruneJoinWrites() {
+        joinWrites.keySet().removeIf(this::checkServerResponsible);
+    }
+
+    /**
+     * Ends the handovers whose new server caught up and appears in the metadata. Writes which were admitted before
+     * the switch may still be queued, so they are forwarded for another {@value #HANDOVER_GRACE_MILLIS} ms before
+     * the transfer is closed.
+     */
+    private void finishHandovers() {
+        for (Handover handover : handovers.values()) {
+            if (!handover.reported.get() || !metadata.getServerMap().containsKey(handover.newHash))
+                continue;
+            if (handover.ending.compareAndSet(false, true))
+                scheduler.schedule(() -> endHandover(handover), HANDOVER_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes the transfer of a handover and removes the pairs of the handed over range from the history, so this server
+     * neither scans nor transfers them anymore. The pairs are also deleted from cache and disk, unless this server is a
+     * replica of the new server. Every pair is removed in its stripe and only if this server is still not responsible.
+     */
+    private void endHandover(Handover handover) {
+        if (!handovers.remove(handover.newHash, handover))
+            return;
+        handover.transfer.close();
+        boolean replica = metadata.serverCount() > 2 && isReplicaOfToken(handover.newHash);
+
+        int removed = 0;
+        for (Map.Entry<String, Pair<String, String>> pair : historicPairs.entrySet()) {
+            if (!handover.moves(pair.getKey()))
+                continue;
+            String key = pair.getValue().getKey();
+            pool.submit(new StripedCallable<Void>() {
+                public Void call() throws Exception {
+                    if (checkServerResponsible(key))
+                        return null;
+                    historicPairs.remove(Util.calculateHash(key));
+                    if (replica)
+                        return null;
+                    cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+                    disk.deleteContent(new ServerMessage(KVMessage.StatusType.DELETE, key, null));
+                    digests.remove(key);
+                    expirations.remove(key);
+                    return null;
+                }
+
+                public Object getStripe() {
+                    return key;
+                }
+            });
+            removed++;
+        }
+        LOGGER.info(String.format("Handover to %s ended, %s %d pairs", handover.transfer,
+                replica ? "keeping as replica" : "deleting", removed));
+    }
+
     public KVMessage receivePassword(KVMessage msg) throws Exception {
 
         // if server is not set, return error
@@ -997,16 +3204,6 @@ public class KVServer implements KVStore {
     }
 
 
-    public String convertMapToString(TreeMap<String, Pair<String, String>> map) {
-
-        String mapAsString = "";
-        for (String i : map.keySet())
-            mapAsString += i.toString() + "&=&" + map.get(i).getKey().toString() + "&=&" + map.get(i).getValue().toString() + ",";
-        mapAsString += mapAsString + "\r\n";
-
-        return mapAsString;
-    }
-
     public TreeMap<String, Pair<String, String>> convertStringToMap(String mapAsString) {
         TreeMap<String, Pair<String, String>> map = new TreeMap<>();
         mapAsString = mapAsString.replace("\r\n", "");
@@ -1021,45 +3218,20 @@ public class KVServer implements KVStore {
 
     public void connectECS(){
         LOGGER.info("Connecting to ECS");
-        try {
-            //connect to ECS
-
-            kvServerECSCommunicator.connect(this.bootstrap.getAddress().getHostAddress(), this.bootstrap.getPort());
-            //TODO: set time out if it fails connect to spare ECS
-            kvServerECSCommunicator.receive(this.bootstrap.getAddress().getHostAddress()+":"+this.bootstrap.getPort());
-
-
-            //notify ECS that new server added
-            // NEWSERVER <encoded info: address,port,intraport>
-            String command = "newserver ";
-            String b64Value = B64Util.b64encode(String.format("%s,%s,%s", this.listenaddress, this.port, this.intraPort));
-            String message = String.format("%s %s\r\n", command.toUpperCase(), b64Value);
-            LOGGER.info("Message to server: " + message);
-
-            LOGGER.info("Notify ECS that new server added");
-            kvServerECSCommunicator.send(this.bootstrap.getAddress().getHostAddress()+":"+this.bootstrap.getPort(), message.getBytes(TELNET_ENCODING));
-
-//            String msg = new String(kvServerECSCommunicator.receive(), TELNET_ENCODING);
-//            String[] request = msg.substring(0, msg.length() - 2).split("\\s");
-//            kvStore.receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA, request[1], request[2]));
-
-//            kvServerECSCommunicator.disconnect();
-
-        }catch (Exception e){
-            LOGGER.info("Exception while connecting ECS ");
-        }
+        //notify ECS that new server added
+        // NEWSERVER <encoded info: address,port,intraport,weight>
+        String command = "newserver ";
+        String b64Value = B64Util.b64encode(String.format("%s,%s,%s,%s", this.listenaddress, this.port, this.intraPort, this.weight));
+        String message = String.format("%s %s\r\n", command.toUpperCase(), b64Value);
+        LOGGER.info("Message to server: " + message);
+
+        LOGGER.info("Notify ECS that new server added");
+        sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), message);
     }
 
     public void connectBroker(){
-        LOGGER.info("Connecting to Broker");
-        try {
-            //connect to Broker
-            kvServerBrokerCommunicator.connect("127.0.0.1", 5155);
-            kvServerBrokerCommunicator.receive("127.0.0.1:5155");
-
-        }catch (Exception e){
-            LOGGER.info("Exception while connecting ECS ");
-        }
+        // the connection is opened by the first notification, the broker does not expect a handshake
+        LOGGER.info("Broker at " + BROKER_ADDRESS + ":" + BROKER_PORT);
     }
 
     private void addShutDownHook(){
@@ -1069,17 +3241,18 @@ public class KVServer implements KVStore {
                 LOGGER.info("Notify ECS gracefully shut down.");
                 try {
 
-                    String message = "";
-                    if (historicPairs.isEmpty() || historicPairs == null) {
-                        message = String.format("%s %s %s\r\n", "removeserver", B64Util.b64encode(String.format("%s,%s,%s", listenaddress, port, intraPort)), "null");
-                        LOGGER.info("historic data null " + message);
-                    } else{
-                        message = String.format("%s %s %s\r\n", "removeserver", B64Util.b64encode(String.format("%s,%s,%s", listenaddress, port, intraPort)), B64Util.b64encode(convertMapToString(historicPairs)));
-                        LOGGER.info("historic data not null " + message);
-                    }
-//                  String message = "removeserver " + B64Util.b64encode(convertMapToString(historicPairs)) + " " + B64Util.b64encode(Util.calculateHash(listenaddress, port));
+                    // writes would not reach the servers which take over the ranges
+                    serverWriteLock = true;
+                    String message = String.format("%s %s %s\r\n", "removeserver", B64Util.b64encode(String.format("%s,%s,%s", listenaddress, port, intraPort)), "leave");
                     LOGGER.info("Message to ECS: " + message);
-                    kvServerECSCommunicator.send(bootstrap.getAddress().getHostAddress()+":"+ bootstrap.getPort(), message.getBytes(TELNET_ENCODING));
+                    sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), message);
+                    // only the ECS has to learn about the shut down, the broker may not even run
+                    if (!peers.flush(5000, bootstrap.getAddress().getHostAddress() + ":" + bootstrap.getPort()))
+                        LOGGER.warning("Removal of the server was not sent to the ECS before shut down");
+                    // the ECS answers with the ranges to copy, the pairs are only lost once this server is gone
+                    CountDownLatch done = leaving.poll(LEAVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (done == null || !done.await(LEAVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS))
+                        LOGGER.warning("Ranges of the server were not handed off before shut down");
 //                    LOGGER.info("Notified ECS gracefully shut down. Waiting for answer...");
 //                    System.out.println(kvServerECSCommunicator.receive(bootstrap.getAddress().getHostAddress()+":"+ bootstrap.getPort()));
 //                    kvServerECSCommunicator.disconnect(bootstrap.getAddress().getHostAddress()+":"+ bootstrap.getPort());
@@ -1097,74 +3270,46 @@ public class KVServer implements KVStore {
 
 
     private void sendMessageECS(String address, int port, String message){
-        if (!kvServerECSCommunicator.isConnected(address + ":" + port)) {
-            try {
-                kvServerECSCommunicator.connect(address, port);
-                LOGGER.info("Connected to: " + address + ":" + port);
-                byte[] data = kvServerECSCommunicator.receive(address + ":" + port);
-                LOGGER.info(String.format("Received string: \"%s\"", new String(data, StandardCharsets.ISO_8859_1)));
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
         try {
-            kvServerECSCommunicator.send(address + ":" + port, message.getBytes(TELNET_ENCODING));
-            LOGGER.info("Successfully sent message: " + message);
-        } catch (Exception e) {
+            peers.send(address, port, message.getBytes(TELNET_ENCODING));
+            LOGGER.info("Queued message to ECS: " + message);
+        } catch (UnsupportedEncodingException e) {
             e.printStackTrace();
         }
     }
 
-
-
+    /**
+     * Queues a message to another KVServer, see {@link PeerConnectionPool}. Messages to the same server are delivered
+     * in the order they were queued.
+     */
     private void sendMessage(String address, int port, String message) throws Exception {
+        peers.send(address, port, message.getBytes(TELNET_ENCODING));
+        LOGGER.info("Queued message to " + address + ":" + port + ": " + message);
+    }
 
-        if (!kvServer2ServerCommunicator.isConnected(address + ":" + port)) {
-
-            StripedExecutorService executorService = new StripedExecutorService();
-            String finalMessage = message;
-            Future<?> future = executorService.submit(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            kvServer2ServerCommunicator.connect(address, port);
-                            byte[] data = kvServer2ServerCommunicator.receive(address + ":" + port);
-                            //LOGGER.info(String.format("Received string: \"%s\"", new String(data[0], StandardCharsets.ISO_8859_1)));
-                            LOGGER.info("Connected to: " + address + ":" + port);
-                            kvServer2ServerCommunicator.send(address + ":" + port, finalMessage.getBytes(TELNET_ENCODING));
-                            LOGGER.info("Successfully sent message: " + finalMessage);
-                        } catch (Exception e) {
-                            LOGGER.info("Exeption while server rebalance: " + e.getMessage());
-                        }
-                    }
-                });
-
-            executorService.shutdown();
-
-            try {
-                future.get(50, TimeUnit.SECONDS);
-            } catch (InterruptedException e) {
-                LOGGER.info("job was interrupted");
-            } catch (ExecutionException e) {
-                LOGGER.info("caught exception: " + e.getCause());
-            } catch (TimeoutException e) {
-                future.cancel(true);
-                LOGGER.info("timeout");
-                String sendMessage = String.format("%s %s %s\r\n", "removeserver", B64Util.b64encode(String.format("%s,%s,%s", address, port, port)), B64Util.b64encode(convertMapToString(historicPairs)));
-                kvServerECSCommunicator.send(bootstrap.getAddress().getHostAddress()+":"+ bootstrap.getPort(), sendMessage.getBytes(TELNET_ENCODING));
-                LOGGER.info("Timeout server information sent to ECS");
-            }
-
-        } else {
-
-            try {
-                kvServer2ServerCommunicator.send(address + ":" + port, message.getBytes(TELNET_ENCODING));
-                LOGGER.info("Successfully sent message: " + message);
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+    /**
+     * Called by the peer connection pool if a peer was unreachable for longer than the failure timeout. A failed
+     * KVServer is reported to the ECS, so that the ECS removes it from the ring.
+     */
+    private void peerFailed(String address, int port) {
+        if (address.equals(bootstrap.getAddress().getHostAddress()) && port == bootstrap.getPort()) {
+            LOGGER.severe("ECS is unreachable");
+            return;
         }
-
+        if (address.equals(BROKER_ADDRESS) && port == BROKER_PORT) {
+            LOGGER.warning("Broker is unreachable, notifications were dropped");
+            return;
+        }
+        LOGGER.info("Timeout while sending to " + address + ":" + port);
+        // the ECS removes the server from the ring and lets the remaining holders copy its ranges
+        replication.drop(address + ":" + port);
+        // peers are known by their intra port, the ECS by the client port
+        int clientPort = metadata.getServerMap().values().stream()
+                .filter(info -> info.getAddress().equals(address) && info.getIntraPort() == port)
+                .map(KVServerInfo::getPort).findFirst().orElse(port);
+        String sendMessage = String.format("%s %s %s\r\n", "removeserver", B64Util.b64encode(String.format("%s,%s,%s", address, clientPort, port)), "failed");
+        sendMessageECS(bootstrap.getAddress().getHostAddress(), bootstrap.getPort(), sendMessage);
+        LOGGER.info("Timeout server information sent to ECS");
     }
 
 }
@@ -14,12 +14,17 @@ import static de.tum.i13.shared.Constants.TELNET_ENCODING;
 
 public class KVServerInfo {
 
+    // text between quotes of an attribute of toString()
+    private static final Pattern QUOTED = Pattern.compile("(?<=\\\")(.*?)(?=\\\")");
+
     private String address;
     private int port;
     private int intraPort;
     private String startIndex;
     private String endIndex;
     private String serverKeyHash;
+    // capacity of the server relative to the other servers, see Metadata#getOwnership()
+    private double weight = 1;
     private SelectionKey selectionKey;
 
     public KVServerInfo(String address, int port, String startIndex, String endIndex, int intraPort, SelectionKey selectionKey){
@@ -47,9 +52,9 @@ public class KVServerInfo {
             String[] att = attribute.split("=");
             if (att.length != 2)
                 continue;
-            Matcher m = Pattern.compile("(?<=\\\")(.*?)(?=\\\")").matcher(att[0]);
+            Matcher m = QUOTED.matcher(att[0]);
             String key = m.find() ? m.group(0) : "";
-            m = Pattern.compile("(?<=\\\")(.*?)(?=\\\")").matcher(att[1]);
+            m = QUOTED.matcher(att[1]);
             String value = m.find() ? m.group(0) : att[1];
             setAttribute(key, value);
         }
@@ -88,6 +93,9 @@ public class KVServerInfo {
             case "serverKeyHash":
                 this.serverKeyHash = value;
                 break;
+            case "weight":
+                this.weight = Double.parseDouble(value);
+                break;
         }
     }
 
@@ -117,6 +125,15 @@ public class KVServerInfo {
 
     public int getIntraPort() { return intraPort; }
 
+    public double getWeight() { return weight; }
+
+    public void setWeight(double weight) { this.weight = weight; }
+
+    /**
+     * @return address:port, identifies the server behind all of its tokens.
+     */
+    public String getServerId() { return address + ":" + port; }
+
     public String getStartIndex() {
         return startIndex;
     }
@@ -155,8 +172,9 @@ public class KVServerInfo {
                 "\"intraPort\"=%d, " +
                 "\"startIndex\"=\"%s\", " +
                 "\"endIndex\"=\"%s\", " +
+                "\"weight\"=%s, " +
                 "\"serverKeyHash\"=\"%s\"" +
-                "}", address, port, intraPort, startIndex, endIndex, serverKeyHash);
+                "}", address, port, intraPort, startIndex, endIndex, weight, serverKeyHash);
     }
 
 }
@@ -13,6 +13,8 @@ public class ServerMessage implements KVMessage {
     private final SelectionKey selectionKey;
     private final Metadata metadata;
     private String password = null;
+    private String requestId = null;
+    private long ttl = 0;
 
 
     public ServerMessage (StatusType status, String key, String value) {
@@ -89,4 +91,26 @@ public class ServerMessage implements KVMessage {
      */
     public String getPassword() { return password;}
 
+    /**
+     * @return the request id the client attached to this message,
+     * null if the client did not send a request id.
+     */
+    public String getRequestId() { return requestId; }
+
+    /**
+     * @param requestId request id to echo in the answer to this message.
+     */
+    public void setRequestId(String requestId) { this.requestId = requestId; }
+
+    /**
+     * @return time to live of the value in seconds, 0 if the value does not expire, negative if the client sent an
+     * invalid time to live.
+     */
+    public long getTtl() { return ttl; }
+
+    /**
+     * @param ttl time to live of the value in seconds.
+     */
+    public void setTtl(long ttl) { this.ttl = ttl; }
+
 }
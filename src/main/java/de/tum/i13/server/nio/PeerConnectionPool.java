@@ -0,0 +1,337 @@
+package de.tum.i13.server.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Peer Connection Pool
+ * Keeps one persistent, non-blocking connection per peer (other KVServers, the ECS and the broker) and sends
+ * messages over it. {@link #send(String, int, byte[])} only queues the message and returns, a single selector thread
+ * connects, writes and reconnects, so any number of threads can send concurrently without blocking on the network.
+ * Messages to one peer are written in the order they were queued.
+ *
+ * Peers only receive on these connections, everything they send back (e.g. the greeting of a KVServer) is read and
+ * discarded. If a connection fails, the message that was being written is sent again from its start on the next
+ * connection, which is attempted with exponential backoff. If a peer stays unreachable for longer than the failure
+ * timeout, its queued messages are dropped and the failure handler is notified.
+ *
+ * @version 0.1
+ * @since   2022-01-16
+ */
+public class PeerConnectionPool {
+
+    private static final Logger LOGGER = Logger.getLogger(PeerConnectionPool.class.getName());
+    private static final long MIN_BACKOFF_MILLIS = 50;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    /**
+     * Connection to one peer. The queue is filled by the senders, all other fields are only used by the selector
+     * thread, failingSince is also read by {@link #flush}.
+     */
+    private static class Peer {
+        private final String host;
+        private final int port;
+        private final Queue<ByteBuffer> outgoing = new ConcurrentLinkedQueue<>();
+
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected;
+        private boolean wasConnected;
+        private long backoff;
+        private long retryAt;
+        private volatile long failingSince;
+
+        private Peer(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    private final Queue<Peer> pendingPeers = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private final long failureTimeoutMillis;
+    private final BiConsumer<String, Integer> failureHandler;
+    private volatile BiConsumer<String, Integer> reconnectHandler;
+
+    private Selector selector;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates a new pool, no connection is opened until a message is sent.
+     *
+     * @param failureTimeoutMillis time in milliseconds a peer may be unreachable before its messages are dropped.
+     * @param failureHandler       called with host and port of a peer that exceeded the failure timeout, may be null.
+     */
+    public PeerConnectionPool(long failureTimeoutMillis, BiConsumer<String, Integer> failureHandler) {
+        this.failureTimeoutMillis = failureTimeoutMillis;
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Sets a handler which is called on the selector thread with host and port of a peer whenever a connection to the
+     * peer was re-established, e.g. to send messages again which the peer may not have processed.
+     *
+     * @param reconnectHandler the handler, may be null.
+     */
+    public void setReconnectHandler(BiConsumer<String, Integer> reconnectHandler) {
+        this.reconnectHandler = reconnectHandler;
+    }
+
+    /**
+     * Starts the selector thread.
+     *
+     * @throws IOException if the selector cannot be opened.
+     */
+    public synchronized void start() throws IOException {
+        if (running)
+            return;
+        selector = Selector.open();
+        running = true;
+        thread = new Thread(this::run, "PeerConnectionPool");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the selector thread and closes all connections, queued messages are dropped.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (selector != null)
+            selector.wakeup();
+    }
+
+    /**
+     * Queues a message for a peer and connects to the peer if necessary. Can be called from any thread.
+     *
+     * @param host address of the peer.
+     * @param port port of the peer.
+     * @param data the message including the trailing \r\n.
+     */
+    public void send(String host, int port, byte[] data) {
+        Peer peer = peers.computeIfAbsent(host + ":" + port, k -> new Peer(host, port));
+        peer.outgoing.add(ByteBuffer.wrap(data));
+        pendingPeers.add(peer);
+        selector.wakeup();
+    }
+
+    /**
+     * Waits until the messages queued for the given peers are written to the network, e.g. before the server shuts
+     * down. Peers which are currently unreachable are not waited for, their messages would only be written after the
+     * next successful connection.
+     *
+     * @param timeoutMillis maximum time to wait in milliseconds.
+     * @param targets       host:port of the peers to wait for, all peers if none are given.
+     * @return true if all messages were written or their peers are unreachable, false on timeout.
+     */
+    public boolean flush(long timeoutMillis, String... targets) throws InterruptedException {
+        long waitUntil = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            boolean empty = true;
+            if (targets.length == 0) {
+                for (Peer peer : peers.values())
+                    empty &= isFlushed(peer);
+            } else {
+                for (String target : targets)
+                    empty &= isFlushed(peers.get(target));
+            }
+            if (empty)
+                return true;
+            if (System.currentTimeMillis() >= waitUntil)
+                return false;
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean isFlushed(Peer peer) {
+        return peer == null || peer.outgoing.isEmpty() || peer.failingSince != 0;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                long now = System.currentTimeMillis();
+                Peer peer;
+                while ((peer = pendingPeers.poll()) != null)
+                    activate(peer, now);
+                long nextRetry = retryPeers(now);
+
+                selector.select(nextRetry == Long.MAX_VALUE ? 0 : Math.max(1, nextRetry - now));
+
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    handle(key);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Selector of the peer connection pool failed", e);
+            }
+        }
+
+        for (Peer peer : peers.values())
+            close(peer);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.fine("Could not close selector: " + e.getMessage());
+        }
+    }
+
+    // a peer got new messages: connect or start writing
+    private void activate(Peer peer, long now) {
+        if (peer.channel == null) {
+            if (now >= peer.retryAt)
+                connect(peer, now);
+        } else if (peer.connected && peer.key.isValid()) {
+            peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // reconnects peers whose backoff has passed, returns the time of the next retry
+    private long retryPeers(long now) {
+        long nextRetry = Long.MAX_VALUE;
+        for (Peer peer : peers.values()) {
+            if (peer.channel != null || peer.outgoing.isEmpty())
+                continue;
+            if (peer.retryAt <= now)
+                connect(peer, now);
+            if (peer.channel == null)
+                nextRetry = Math.min(nextRetry, peer.retryAt);
+        }
+        return nextRetry;
+    }
+
+    private void connect(Peer peer, long now) {
+        try {
+            peer.channel = SocketChannel.open();
+            peer.channel.configureBlocking(false);
+            peer.connected = peer.channel.connect(new InetSocketAddress(peer.host, peer.port));
+            peer.key = peer.channel.register(selector, peer.connected ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT, peer);
+            if (peer.connected)
+                connected(peer);
+        } catch (IOException e) {
+            fail(peer, now, e);
+        }
+    }
+
+    private void connected(Peer peer) {
+        LOGGER.info("Connected to peer " + peer);
+        peer.backoff = 0;
+        peer.failingSince = 0;
+        BiConsumer<String, Integer> handler = reconnectHandler;
+        if (peer.wasConnected && handler != null)
+            handler.accept(peer.host, peer.port);
+        peer.wasConnected = true;
+    }
+
+    private void handle(SelectionKey key) {
+        Peer peer = (Peer) key.attachment();
+        if (!key.isValid())
+            return;
+        try {
+            if (key.isConnectable()) {
+                peer.channel.finishConnect();
+                peer.connected = true;
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                connected(peer);
+                return;
+            }
+            if (key.isReadable() && !read(peer))
+                return;
+            if (key.isValid() && key.isWritable())
+                write(peer);
+        } catch (IOException e) {
+            fail(peer, System.currentTimeMillis(), e);
+        }
+    }
+
+    // discards everything the peer sends, returns false if the peer closed the connection
+    private boolean read(Peer peer) throws IOException {
+        readBuffer.clear();
+        int numRead = peer.channel.read(readBuffer);
+        if (numRead == -1) {
+            LOGGER.info("Peer " + peer + " closed the connection");
+            close(peer);
+            // reconnect right away if there is something to send
+            peer.retryAt = 0;
+            return false;
+        }
+        return true;
+    }
+
+    private void write(Peer peer) throws IOException {
+        ByteBuffer buf;
+        while ((buf = peer.outgoing.peek()) != null) {
+            peer.channel.write(buf);
+            if (buf.remaining() > 0)
+                return;
+            peer.outgoing.poll();
+        }
+        // senders queue the message before they wake us up, so a message queued now is not lost
+        peer.key.interestOps(SelectionKey.OP_READ);
+        if (!peer.outgoing.isEmpty())
+            peer.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void fail(Peer peer, long now, IOException e) {
+        LOGGER.warning("Connection to peer " + peer + " failed: " + e.getMessage());
+        close(peer);
+        if (peer.outgoing.isEmpty()) {
+            // nothing to deliver, the next message connects again right away
+            peer.retryAt = 0;
+            peer.backoff = 0;
+            peer.failingSince = 0;
+            return;
+        }
+        peer.backoff = peer.backoff == 0 ? MIN_BACKOFF_MILLIS : Math.min(MAX_BACKOFF_MILLIS, peer.backoff * 2);
+        peer.retryAt = now + peer.backoff;
+        if (peer.failingSince == 0)
+            peer.failingSince = now;
+
+        if (now - peer.failingSince >= failureTimeoutMillis) {
+            LOGGER.warning(String.format("Peer %s unreachable for %d ms, dropping %d messages", peer, now - peer.failingSince, peer.outgoing.size()));
+            peer.outgoing.clear();
+            peer.backoff = 0;
+            peer.failingSince = 0;
+            if (failureHandler != null)
+                failureHandler.accept(peer.host, peer.port);
+        }
+    }
+
+    private void close(Peer peer) {
+        if (peer.channel != null) {
+            try {
+                peer.channel.close();
+            } catch (IOException e) {
+                LOGGER.fine("Could not close connection to " + peer + ": " + e.getMessage());
+            }
+        }
+        peer.channel = null;
+        peer.key = null;
+        peer.connected = false;
+        // the message that was being written is sent again from its start
+        ByteBuffer head = peer.outgoing.peek();
+        if (head != null)
+            head.rewind();
+    }
+}
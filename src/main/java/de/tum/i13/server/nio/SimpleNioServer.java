@@ -27,10 +27,11 @@ public class SimpleNioServer {
     private final Logger LOGGER = Logger.getLogger(SimpleNioServer.class.getName());
 
     private Queue<ChangeRequest> pendingChanges;
-    private Map<SelectionKey, List<ByteBuffer>> pendingWrites;
+    private Map<SelectionKey, Queue<ByteBuffer>> pendingWrites;
     private Map<SelectionKey, byte[]> pendingReads;
 
     private Selector selector;
+    private volatile Thread selectorThread;
     private ServerSocketChannel serverChannel;
     private ServerSocketChannel serverIntraChannel;
 
@@ -87,12 +88,15 @@ public class SimpleNioServer {
     }
 
     public void start() throws IOException {
+        this.selectorThread = Thread.currentThread();
         while (true) {
-            // Process queued interest changes
-            for (ChangeRequest change : this.pendingChanges) {
-                change.selectionKey.interestOps(change.ops);
+            // Process queued interest changes, polling so that changes queued concurrently by workers are not lost
+            ChangeRequest change;
+            while ((change = this.pendingChanges.poll()) != null) {
+                // the connection might have been closed since the change was queued
+                if (change.selectionKey.isValid())
+                    change.selectionKey.interestOps(change.ops);
             }
-            this.pendingChanges.clear();
 
             // Wait for an event one of the registered channels
             this.selector.select();
@@ -158,6 +162,8 @@ public class SimpleNioServer {
             // the selection key and close the channel.
             key.cancel();
             socketChannel.close();
+            this.pendingReads.remove(key);
+            this.pendingWrites.remove(key);
 
             return;
         }
@@ -170,6 +176,8 @@ public class SimpleNioServer {
             // same from our end and cancel the channel.
             key.channel().close();
             key.cancel();
+            this.pendingReads.remove(key);
+            this.pendingWrites.remove(key);
 
             return;
         }
@@ -179,64 +187,44 @@ public class SimpleNioServer {
         //System.out.println("#tempdata:" + new String(dataCopy, Constants.TELNET_ENCODING));
 
         // If we have already received some data, we add this to our buffer
+        byte[] data = dataCopy;
         if (this.pendingReads.containsKey(key)) {
-            byte[] existingBytes = pendingReads.get(key);
+            byte[] existingBytes = pendingReads.remove(key);
 
-            byte[] concatenated = new byte[existingBytes.length + dataCopy.length];
-            System.arraycopy(existingBytes, 0, concatenated, 0, existingBytes.length);
-            System.arraycopy(dataCopy, 0, concatenated, existingBytes.length, dataCopy.length);
+            data = new byte[existingBytes.length + dataCopy.length];
+            System.arraycopy(existingBytes, 0, data, 0, existingBytes.length);
+            System.arraycopy(dataCopy, 0, data, existingBytes.length, dataCopy.length);
 
             //If somebody funny sends us veeerry long requests, we just close the connection
-            if(concatenated.length > 1000000) {
-                this.pendingReads.remove(key);
+            if(data.length > 1000000) {
+                this.pendingWrites.remove(key);
                 socketChannel.close();
-            }
-
-            // In case we have now finally reached all characters
-            if (checkIfFinished(concatenated)) {
-                String data = new String(concatenated, TELNET_ENCODING);
-                this.pendingReads.remove(key);
-                handleRequest(key, data);
-            } else {
-                this.pendingReads.put(key, concatenated);
-            }
-        } else {
-            // In case we got already the whole request within one step we don't
-            // have to wait again
-            // In this case no buffering in the hashtable and start direct
-            // handling the request
-            if (checkIfFinished(dataCopy)) {
-                String data = new String(dataCopy, TELNET_ENCODING);
-                handleRequest(key, data);
-            } else {
-                // in case it is the first request we
-                if (this.pendingReads.containsKey(key)) {
-                    byte[] existingBytes = this.pendingReads.get(key);
-                    byte[] concatenated = new byte[existingBytes.length + dataCopy.length];
-                    System.arraycopy(existingBytes, 0, concatenated, 0, existingBytes.length);
-                    System.arraycopy(dataCopy, 0, concatenated, existingBytes.length, dataCopy.length);
-
-                    this.pendingReads.put(key, concatenated);
-                } else {
-                    this.pendingReads.put(key, dataCopy);
-                }
+                return;
             }
         }
+
+        // Clients may pipeline requests, so the data can contain several complete requests followed by the
+        // beginning of the next one. Handle everything up to the last \r\n and keep the rest for the next read.
+        int complete = completeLength(data);
+        if (complete < data.length)
+            this.pendingReads.put(key, complete == 0 ? data : Arrays.copyOfRange(data, complete, data.length));
+        if (complete > 0)
+            handleRequest(key, data, complete);
     }
 
     private void write(SelectionKey key) throws IOException {
         SocketChannel socketChannel = (SocketChannel) key.channel();
-        List<ByteBuffer> queue = this.pendingWrites.get(key);
+        Queue<ByteBuffer> queue = this.pendingWrites.get(key);
 
         // Write until there's no more data left ...
         while (!queue.isEmpty()) {
-            ByteBuffer buf = queue.get(0);
+            ByteBuffer buf = queue.peek();
             socketChannel.write(buf);
             if (buf.remaining() > 0) {
                 // ... or the selectionKey's buffer fills up
                 break;
             }
-            queue.remove(0);
+            queue.poll();
         }
 
         if (queue.isEmpty()) {
@@ -249,46 +237,47 @@ public class SimpleNioServer {
 
     // This is telnet specific, maybe you have to change it according to your
     // protocol
-    private boolean checkIfFinished(byte[] data) {
-        int length = data.length;
-        if (length < 3) {
-            return false;
-        } else {
-            if (data[length - 1] == '\n') {
-                if (data[length - 2] == '\r') {
-                    return true;
-                }
-            }
-            return false;
+    // Returns the length of the data up to and including the last \r\n, 0 if there is no complete request.
+    private int completeLength(byte[] data) {
+        for (int i = data.length - 1; i > 0; i--) {
+            if (data[i] == '\n' && data[i - 1] == '\r')
+                return i + 1;
         }
+        return 0;
     }
 
-    private void handleRequest(SelectionKey selectionKey, String request) {
+    private void handleRequest(SelectionKey selectionKey, byte[] request, int length) {
         try {
-            cmdProcessor.process(selectionKey, request);
+            cmdProcessor.process(selectionKey, request, 0, length);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     public void send(SelectionKey selectionKey, byte[] data) {
+        // Queue the data we want written, this has to happen before the change request, otherwise the selector
+        // could switch back to OP_READ between the change and the data being queued
+        queueForWrite(selectionKey, data);
+
+        // Answers created while handling a request on the selecting thread itself, e.g. cache hits, can change the
+        // interest ops directly, there is nobody to wake up
+        if (Thread.currentThread() == this.selectorThread) {
+            if (selectionKey.isValid())
+                selectionKey.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+
         // Indicate we want the interest ops set changed
         this.pendingChanges.add(new ChangeRequest(selectionKey, SelectionKey.OP_WRITE));
 
-        // And queue the data we want written
-        queueForWrite(selectionKey, data);
-
         // Finally, wake up our selecting thread, so it can make the required
         // changes
         this.selector.wakeup();
     }
 
     private void queueForWrite(SelectionKey selectionKey, byte[] data) {
-        List<ByteBuffer> queue = this.pendingWrites.get(selectionKey);
-        if (queue == null) {
-            queue = new ArrayList<>();
-            this.pendingWrites.put(selectionKey, queue);
-        }
+        // answers are sent concurrently by the worker threads, so the queue has to be thread-safe
+        Queue<ByteBuffer> queue = this.pendingWrites.computeIfAbsent(selectionKey, k -> new ConcurrentLinkedQueue<>());
         queue.add(ByteBuffer.wrap(data));
     }
 }
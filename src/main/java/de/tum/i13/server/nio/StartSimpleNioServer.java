@@ -4,10 +4,14 @@ import de.tum.i13.server.disk.DiskManager;
 import de.tum.i13.server.kv.KVCommandProcessor;
 import de.tum.i13.server.kv.KVServer;
 import de.tum.i13.server.kv.KVStore;
+import de.tum.i13.server.replication.WriteConsistency;
+import de.tum.i13.server.stripe.FixedStripedExecutorService;
+import de.tum.i13.server.stripe.StripedExecutorService;
 import de.tum.i13.shared.CommandProcessor;
 import de.tum.i13.shared.Config;
 
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 import static de.tum.i13.shared.Config.parseCommandlineArgs;
@@ -28,11 +32,25 @@ public class StartSimpleNioServer {
         logger.info("starting server");
 
         int intraPort = getFreePort(); //5551;
-        KVStore kvStore = new KVServer(cfg.cacheStrategy, cfg.cacheSize, cfg.bootstrap, cfg.listenaddr, cfg.port, intraPort);
+        ExecutorService pool;
+        if (cfg.executor.equals("FIXED"))
+            pool = new FixedStripedExecutorService(cfg.workers);
+        else if (cfg.executor.equals("VIRTUAL"))
+            pool = StripedExecutorService.withVirtualThreads();
+        else
+            pool = new StripedExecutorService();
+        KVStore kvStore = new KVServer(cfg.cacheStrategy, cfg.cacheSize, cfg.bootstrap, cfg.listenaddr, cfg.port, intraPort, pool, cfg.weight);
+        ((KVServer) kvStore).setMaxInFlight(cfg.maxInFlight);
+        ((KVServer) kvStore).setWriteConsistency(WriteConsistency.valueOf(cfg.writeConsistency));
+        ((KVServer) kvStore).setTransferRate(cfg.transferRate);
+        ((KVServer) kvStore).setHotKeyRate(cfg.hotKeyRate);
         CommandProcessor kvProcessor = new KVCommandProcessor(kvStore);
 
         DiskManager disk = DiskManager.getInstance();
         disk.initDiskManager(cfg.dataDir.toString());
+        ((KVServer) kvStore).loadExpirations();
+        ((KVServer) kvStore).loadDigests();
+        ((KVServer) kvStore).setHintDirectory(cfg.dataDir.resolve("hints"));
 
         SimpleNioServer sn = new SimpleNioServer(kvProcessor);
         ((KVServer) kvStore).setServer(sn);
@@ -0,0 +1,184 @@
+package de.tum.i13.server.replication;
+
+import de.tum.i13.shared.Util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Merkle Tree
+ * Summarizes the pairs a server stores, so that a coordinator and a replica find the pairs they disagree on without
+ * sending all of them. The tree has a fixed shape over the hash ring: every node has {@link #FANOUT} children and the
+ * {@value #LEAVES} leaves are identified by the first {@link #DEPTH} hex digits of the key hash.
+ *
+ * Every pair contributes a 64 bit digest of key and value, the digest of a node is the XOR of the digests of all pairs
+ * below it. A put or delete therefore updates its leaf in constant time and the tree never has to be rebuilt. Digests
+ * are always taken over a hash range (start, end], so a server which stores the ranges of several coordinators can
+ * compare each range separately. A range with start equal to end covers the whole ring.
+ *
+ * @version 0.1
+ * @since   2022-01-19
+ */
+public class MerkleTree {
+
+    public static final int FANOUT = 16;
+    public static final int DEPTH = 3;
+    private static final int LEAVES = 4096;
+    private static final int HASH_LENGTH = 32;
+
+    private static class Entry {
+        private final String key;
+        private final long digest;
+
+        private Entry(String key, long digest) {
+            this.key = key;
+            this.digest = digest;
+        }
+    }
+
+    // key hash -> key and digest of the pair
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final long[] leaves = new long[LEAVES];
+
+    /**
+     * Adds a pair or replaces the value of its key.
+     */
+    public void put(String key, String value) {
+        String hash = Util.calculateHash(key);
+        long digest = digest(key, value);
+        synchronized (this) {
+            Entry old = entries.put(hash, new Entry(key, digest));
+            leaves[leaf(hash)] ^= digest ^ (old == null ? 0 : old.digest);
+        }
+    }
+
+    /**
+     * Removes the pair of a key, nothing happens if the key is unknown.
+     */
+    public void remove(String key) {
+        String hash = Util.calculateHash(key);
+        synchronized (this) {
+            Entry old = entries.remove(hash);
+            if (old != null)
+                leaves[leaf(hash)] ^= old.digest;
+        }
+    }
+
+    /**
+     * @return number of pairs in the tree.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @param level level of the node, 0 is the root and {@link #DEPTH} the leaves.
+     * @param index index of the node within its level.
+     * @param start exclusive start of the hash range.
+     * @param end   inclusive end of the hash range.
+     * @return digest of all pairs below the node whose key hash lies in the range.
+     */
+    public long digest(int level, int index, String start, String end) {
+        int span = span(level);
+        int partialStart = leaf(start);
+        int partialEnd = leaf(end);
+        long digest = 0;
+        synchronized (this) {
+            for (int leaf = index * span; leaf < (index + 1) * span; leaf++) {
+                if (start.equals(end)) {
+                    digest ^= leaves[leaf];
+                } else if (leaf == partialStart || leaf == partialEnd) {
+                    // the range starts or ends within this leaf, only some of its pairs count
+                    for (Map.Entry<String, Entry> e : entries.subMap(low(leaf), true, high(leaf), true).entrySet())
+                        if (inRange(e.getKey(), start, end))
+                            digest ^= e.getValue().digest;
+                } else if (inRange(low(leaf), start, end)) {
+                    digest ^= leaves[leaf];
+                }
+            }
+        }
+        return digest;
+    }
+
+    /**
+     * @return the keys of all pairs in a leaf whose key hash lies in the range (start, end].
+     */
+    public List<String> keys(int leaf, String start, String end) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.subMap(low(leaf), true, high(leaf), true).entrySet())
+            if (inRange(e.getKey(), start, end))
+                keys.add(e.getValue().key);
+        return keys;
+    }
+
+    /**
+     * @return the keys of all pairs whose key hash lies in the range (start, end].
+     */
+    public List<String> keys(String start, String end) {
+        List<String> keys = new ArrayList<>();
+        for (Map.Entry<String, Entry> e : entries.entrySet())
+            if (inRange(e.getKey(), start, end))
+                keys.add(e.getValue().key);
+        return keys;
+    }
+
+    /**
+     * @return true if the hash lies in the range (start, end], which wraps around the ring if start is not smaller
+     * than end.
+     */
+    public static boolean inRange(String hash, String start, String end) {
+        int cmp = start.compareTo(end);
+        if (cmp == 0)
+            return true;
+        if (cmp < 0)
+            return hash.compareTo(start) > 0 && hash.compareTo(end) <= 0;
+        return hash.compareTo(start) > 0 || hash.compareTo(end) <= 0;
+    }
+
+    /**
+     * @return number of leaves below a node of the level.
+     */
+    private static int span(int level) {
+        int span = 1;
+        for (int i = level; i < DEPTH; i++)
+            span *= FANOUT;
+        return span;
+    }
+
+    private static int leaf(String hash) {
+        return Integer.parseInt(hash.substring(0, DEPTH), 16);
+    }
+
+    private static String low(int leaf) {
+        return prefix(leaf) + "0".repeat(HASH_LENGTH - DEPTH);
+    }
+
+    private static String high(int leaf) {
+        return prefix(leaf) + "F".repeat(HASH_LENGTH - DEPTH);
+    }
+
+    private static String prefix(int leaf) {
+        String prefix = Integer.toHexString(leaf).toUpperCase();
+        return "0".repeat(DEPTH - prefix.length()) + prefix;
+    }
+
+    private static long digest(String key, String value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            // keys never contain whitespace, the separator keeps key and value apart
+            byte[] hash = md.digest((key + " " + value).getBytes(StandardCharsets.UTF_8));
+            long digest = 0;
+            for (int i = 0; i < 8; i++)
+                digest = (digest << 8) | (hash[i] & 0xFF);
+            return digest;
+        } catch (NoSuchAlgorithmException e) {
+            // MD5 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
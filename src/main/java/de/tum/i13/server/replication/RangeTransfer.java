@@ -0,0 +1,357 @@
+package de.tum.i13.server.replication;
+
+import de.tum.i13.shared.B64Util;
+import de.tum.i13.shared.Pair;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Range Transfer
+ * Streams the pairs of a hash range to another server, e.g. when a server joins the ring and takes over part of the
+ * range of its successor. The pairs are sent in numbered chunks of bounded size
+ *
+ * rebalance_chunk &lt;source&gt; &lt;transfer id&gt; &lt;seq&gt; &lt;total pairs&gt; p &lt;key&gt; &lt;value&gt; d &lt;key&gt; ...
+ *
+ * where source, keys and values are Base64 encoded, p records put a pair and d records delete a key. A pair with a
+ * time to live is followed by e &lt;key&gt; &lt;expiration time in milliseconds&gt;, see {@link #setExpirations}. The receiver
+ * applies every chunk as it arrives and answers with rebalance_ack &lt;receiver&gt; &lt;transfer id&gt; &lt;seq&gt;,
+ * applying the chunks of a transfer in order like the batches of a {@link ReplicationStream}, see
+ * {@link ReplicaState}. Only {@link #WINDOW} chunks are unacknowledged at a time, so neither side has to hold the
+ * whole range in one message, and unacknowledged chunks are sent again after the retransmit timeout.
+ *
+ * The source may keep writing the range while the pairs are copied: mutations passed to {@link #forward} are sent
+ * after the last copied pair, so they always overwrite what the copy sent. The transfer is completed as soon as the
+ * receiver caught up, but keeps forwarding until it is closed.
+ *
+ * A joining server may copy parts of a range from the replicas of its coordinator, whose copies can lag behind. Such
+ * secondary transfers send h records instead of p records, the receiver only applies them to keys the coordinator did
+ * not send. When a server leaves or fails, the servers which hold its ranges from now on copy them from the remaining
+ * holders with c records, which the receiver only applies to keys it has no value for. A {@link TokenBucket} limits
+ * the bandwidth of the transfers of a server.
+ *
+ * @version 0.1
+ * @since   2022-01-19
+ */
+public class RangeTransfer {
+
+    private static final Logger LOGGER = Logger.getLogger(RangeTransfer.class.getName());
+
+    public static final String CHUNK_COMMAND = "rebalance_chunk";
+    public static final String ACK_COMMAND = "rebalance_ack";
+
+    private static final int MAX_CHUNK_BYTES = 64 * 1024;
+    private static final int WINDOW = 4;
+
+    /**
+     * Learns about the progress of a transfer. The methods are called on the thread which processed the
+     * acknowledgement.
+     */
+    public interface Listener {
+        /**
+         * The receiver applied a chunk with copied pairs.
+         *
+         * @param keys  keys of the pairs in the chunk.
+         * @param acked number of pairs the receiver applied so far.
+         * @param total number of pairs of the transfer.
+         */
+        void transferred(List<String> keys, int acked, int total);
+
+        /**
+         * The receiver applied all pairs of the transfer.
+         */
+        void completed();
+    }
+
+    private static class Chunk {
+        private final long seq;
+        private final String payload;
+        private final List<String> keys;
+
+        private Chunk(long seq, String payload, List<String> keys) {
+            this.seq = seq;
+            this.payload = payload;
+            this.keys = keys;
+        }
+    }
+
+    private final long id;
+    private final String source;
+    private final String host;
+    private final int port;
+    private final ReplicationStream.Transport transport;
+    private final Listener listener;
+    private final Iterator<Pair<String, String>> pairs;
+    private final int total;
+    private final ArrayDeque<Chunk> unacked = new ArrayDeque<>();
+    // encoded records of forwarded mutations, framed after the last pair
+    private final ArrayDeque<String> forwarded = new ArrayDeque<>();
+    private long nextSeq = 1;
+    private int acked;
+    private long lastSentAt;
+    private boolean started;
+    private boolean completed;
+    private boolean closed;
+    private TokenBucket bandwidth;
+    private boolean secondary;
+    private boolean handoff;
+    private Map<String, Long> expirations;
+
+    /**
+     * Creates a transfer, nothing is sent until {@link #start()} is called.
+     *
+     * @param id        identifies the transfer, must be unique for the source.
+     * @param source    address:port the receiver sends its acknowledgements to.
+     * @param target    address:port of the receiver.
+     * @param pairs     pairs to transfer, may be a live view: every pair is sent with the value it has when its
+     *                  chunk is framed, changes of pairs the iterator already passed must be forwarded.
+     * @param total     number of pairs, only used to report the progress.
+     * @param transport used to send the chunks.
+     * @param listener  notified about the progress.
+     */
+    public RangeTransfer(long id, String source, String target, Iterator<Pair<String, String>> pairs, int total,
+                         ReplicationStream.Transport transport, Listener listener) {
+        this.id = id;
+        this.source = B64Util.b64encode(source);
+        int colon = target.lastIndexOf(':');
+        this.host = target.substring(0, colon);
+        this.port = Integer.parseInt(target.substring(colon + 1));
+        this.transport = transport;
+        this.listener = listener;
+        this.pairs = pairs;
+        this.total = total;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Limits the bandwidth of the transfer, must be called before {@link #start()}.
+     *
+     * @param bandwidth bucket shared by all transfers of the server.
+     */
+    public synchronized void setRateLimit(TokenBucket bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Sends the pairs as h records, see above. Must be called before {@link #start()}.
+     */
+    public synchronized void setSecondary(boolean secondary) {
+        this.secondary = secondary;
+    }
+
+    /**
+     * Sends the pairs as c records, see above. Must be called before {@link #start()}.
+     */
+    public synchronized void setHandoff(boolean handoff) {
+        this.handoff = handoff;
+    }
+
+    /**
+     * Sends the expiration of every pair and forwarded put whose key has one, must be called before {@link #start()}.
+     *
+     * @param expirations key -> time in milliseconds at which it expires, read when a record is framed.
+     */
+    public synchronized void setExpirations(Map<String, Long> expirations) {
+        this.expirations = expirations;
+    }
+
+    /**
+     * Splits the hash range (start, end] into contiguous parts of about the same size. A range with start equal to
+     * end covers the whole ring.
+     *
+     * @param parts number of parts, at least 1.
+     * @return parts + 1 bounds, part i is (bounds[i], bounds[i + 1]].
+     */
+    public static String[] splitRange(String start, String end, int parts) {
+        BigInteger ring = BigInteger.ONE.shiftLeft(128);
+        BigInteger low = new BigInteger(start, 16);
+        BigInteger length = new BigInteger(end, 16).subtract(low).mod(ring);
+        if (length.signum() == 0)
+            length = ring;
+        String[] bounds = new String[parts + 1];
+        bounds[0] = start;
+        bounds[parts] = end;
+        for (int i = 1; i < parts; i++) {
+            String hex = low.add(length.multiply(BigInteger.valueOf(i)).divide(BigInteger.valueOf(parts))).mod(ring)
+                    .toString(16).toUpperCase();
+            bounds[i] = "0".repeat(32 - hex.length()) + hex;
+        }
+        return bounds;
+    }
+
+    /**
+     * Sends the first chunks, a transfer without pairs completes immediately.
+     */
+    public void start() {
+        boolean done;
+        synchronized (this) {
+            started = true;
+            fillWindow();
+            done = checkCompleted();
+        }
+        if (done)
+            listener.completed();
+    }
+
+    /**
+     * Sends the next chunks if the bandwidth limit held them back, called periodically.
+     */
+    public void pump() {
+        boolean done;
+        synchronized (this) {
+            fillWindow();
+            done = checkCompleted();
+        }
+        if (done)
+            listener.completed();
+    }
+
+    /**
+     * Removes all chunks up to the acknowledged sequence number and sends the next chunks.
+     *
+     * @param seq highest sequence number the receiver applied.
+     */
+    public void acknowledge(long seq) {
+        List<Chunk> applied = new ArrayList<>();
+        boolean done;
+        synchronized (this) {
+            while (!unacked.isEmpty() && unacked.peekFirst().seq <= seq)
+                applied.add(unacked.pollFirst());
+            fillWindow();
+            done = checkCompleted();
+        }
+        for (Chunk chunk : applied) {
+            if (chunk.keys.isEmpty())
+                continue;
+            int progress;
+            synchronized (this) {
+                acked += chunk.keys.size();
+                progress = acked;
+            }
+            listener.transferred(chunk.keys, progress, total);
+        }
+        if (done)
+            listener.completed();
+    }
+
+    /**
+     * Sends a mutation of the range after the copied pairs, nothing happens once the transfer is closed.
+     *
+     * @param key   the key which was written.
+     * @param value the new value, null if the key was deleted.
+     */
+    public void forward(String key, String value) {
+        boolean done;
+        synchronized (this) {
+            if (closed)
+                return;
+            forwarded.addLast(value == null ? " d " + B64Util.b64encode(key)
+                    : " p " + B64Util.b64encode(key) + " " + B64Util.b64encode(value) + expiry(key));
+            fillWindow();
+            done = checkCompleted();
+        }
+        if (done)
+            listener.completed();
+    }
+
+    /**
+     * Stops forwarding mutations, chunks already framed are still delivered.
+     */
+    public synchronized void close() {
+        closed = true;
+    }
+
+    /**
+     * @return true if the transfer is closed and the receiver applied everything that was sent.
+     */
+    public synchronized boolean isFinished() {
+        return closed && unacked.isEmpty() && forwarded.isEmpty() && !pairs.hasNext();
+    }
+
+    /**
+     * Sends the unacknowledged chunks again if no acknowledgement arrived in time.
+     *
+     * @param now              current time in milliseconds.
+     * @param retransmitMillis time after which chunks are sent again.
+     */
+    public synchronized void retransmitIfStale(long now, long retransmitMillis) {
+        if (unacked.isEmpty() || now - lastSentAt < retransmitMillis)
+            return;
+        LOGGER.fine("No acknowledgement for transfer " + id + ", sending chunks again");
+        lastSentAt = now;
+        for (Chunk chunk : unacked)
+            send(chunk);
+    }
+
+    /**
+     * @return true if the receiver applied all pairs and all mutations forwarded so far.
+     */
+    public synchronized boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Describes the progress of the transfer, e.g. for logging.
+     */
+    @Override
+    public synchronized String toString() {
+        return "transfer " + id + " to " + host + ":" + port + ", " + acked + " of " + total + " pairs";
+    }
+
+    // frames chunks until the window is full or everything was framed, must hold the monitor
+    private void fillWindow() {
+        if (!started)
+            return;
+        while (unacked.size() < WINDOW && (pairs.hasNext() || !forwarded.isEmpty())
+                && (bandwidth == null || bandwidth.available(System.nanoTime()))) {
+            StringBuilder payload = new StringBuilder();
+            List<String> keys = new ArrayList<>();
+            while (payload.length() < MAX_CHUNK_BYTES) {
+                if (pairs.hasNext()) {
+                    Pair<String, String> pair = pairs.next();
+                    payload.append(secondary ? " h " : handoff ? " c " : " p ").append(B64Util.b64encode(pair.getKey())).append(' ')
+                            .append(B64Util.b64encode(pair.getValue())).append(expiry(pair.getKey()));
+                    keys.add(pair.getKey());
+                } else if (!forwarded.isEmpty()) {
+                    payload.append(forwarded.pollFirst());
+                } else {
+                    break;
+                }
+            }
+            if (bandwidth != null)
+                bandwidth.take(payload.length());
+            Chunk chunk = new Chunk(nextSeq++, payload.toString(), keys);
+            unacked.addLast(chunk);
+            lastSentAt = System.currentTimeMillis();
+            send(chunk);
+        }
+    }
+
+    // e record of the key, empty if it does not expire, must hold the monitor
+    private String expiry(String key) {
+        Long expiresAt = expirations == null ? null : expirations.get(key);
+        return expiresAt == null ? "" : " e " + B64Util.b64encode(key) + " " + expiresAt;
+    }
+
+    // must hold the monitor, returns true only once
+    private boolean checkCompleted() {
+        if (!started || completed || !unacked.isEmpty() || !forwarded.isEmpty() || pairs.hasNext())
+            return false;
+        completed = true;
+        return true;
+    }
+
+    private void send(Chunk chunk) {
+        String line = CHUNK_COMMAND + " " + source + " " + id + " " + chunk.seq + " " + total + chunk.payload + "\r\n";
+        transport.send(host, port, line.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,76 @@
+package de.tum.i13.server.replication;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Replica State
+ * Remembers, per coordinator, the last batch of its {@link ReplicationStream} this server applied, and decides whether
+ * a received batch is applied, is a duplicate or arrived before a batch it depends on.
+ *
+ * The first batch of an unknown coordinator or of a new incarnation continues after the acked mark it carries, since
+ * everything up to that mark was already applied before (e.g. before this server restarted) or was dropped by the
+ * coordinator. Batches of one coordinator must be checked and applied one after the other.
+ *
+ * @version 0.1
+ * @since   2022-01-17
+ */
+public class ReplicaState {
+
+    /**
+     * What to do with a received batch.
+     */
+    public enum Verdict {
+        APPLY,     /* next batch of the stream, apply and acknowledge it */
+        DUPLICATE, /* already applied, only acknowledge it again */
+        GAP        /* an earlier batch is missing, drop it, the coordinator sends it again */
+    }
+
+    private static class Stream {
+        private long incarnation;
+        private long applied;
+    }
+
+    private final Map<String, Stream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * Checks a received batch.
+     *
+     * @param source      coordinator which sent the batch.
+     * @param incarnation incarnation of the stream.
+     * @param seq         sequence number of the batch.
+     * @param acked       acked mark of the batch.
+     * @return what to do with the batch.
+     */
+    public Verdict check(String source, long incarnation, long seq, long acked) {
+        Stream stream = streams.computeIfAbsent(source, s -> new Stream());
+        if (stream.incarnation != incarnation) {
+            stream.incarnation = incarnation;
+            stream.applied = acked;
+        }
+        if (seq <= stream.applied)
+            return Verdict.DUPLICATE;
+        return seq == stream.applied + 1 ? Verdict.APPLY : Verdict.GAP;
+    }
+
+    /**
+     * Marks a batch as applied, must follow a {@link #check} that returned APPLY.
+     *
+     * @param source coordinator which sent the batch.
+     * @param seq    sequence number of the batch.
+     */
+    public void applied(String source, long seq) {
+        Stream stream = streams.get(source);
+        if (stream != null && seq == stream.applied + 1)
+            stream.applied = seq;
+    }
+
+    /**
+     * @param source coordinator of the stream.
+     * @return the sequence number of the last applied batch, 0 if none was applied.
+     */
+    public long lastApplied(String source) {
+        Stream stream = streams.get(source);
+        return stream == null ? 0 : stream.applied;
+    }
+}
@@ -0,0 +1,575 @@
+package de.tum.i13.server.replication;
+
+import de.tum.i13.server.disk.HintStore;
+import de.tum.i13.shared.B64Util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Replication Stream
+ * Sends the mutations of a coordinator to its replicas in numbered batches. Writers only queue a mutation per replica
+ * and return, a single sender thread frames everything queued for a replica into one batch line
+ *
+ * replicate_batch &lt;source&gt; &lt;incarnation&gt; &lt;seq&gt; &lt;acked&gt; p &lt;key&gt; &lt;value&gt; d &lt;key&gt; ...
+ *
+ * where source, keys and values are Base64 encoded. A put of a key with a time to live is followed by
+ * e &lt;key&gt; &lt;expiration time in milliseconds&gt;, a put without it removes the expiration of the key on the replica.
+ * Batches of one replica carry consecutive sequence numbers, acked
+ * is the highest sequence number the replica acknowledged when the batch was framed. The replica applies a batch only
+ * if it directly follows the last one it applied and answers with replicate_ack, see {@link ReplicaState}.
+ *
+ * A batch stays in the stream until it is acknowledged. All unacknowledged batches of a replica are sent again when
+ * the connection to the replica is re-established. If no acknowledgement arrived within the retransmit timeout, only
+ * the oldest batch is sent again as a probe, so an unreachable replica does not get all of its batches queued again
+ * and again, and the other batches follow once the probe is acknowledged.
+ * If a replica falls too far behind, its oldest batches are dropped and the stream starts a new incarnation, so the
+ * replica continues with the next batch instead of waiting for the dropped ones.
+ *
+ * With a {@link HintStore}, mutations are not dropped. Once too many mutations of a replica are unacknowledged, e.g.
+ * because the replica is unreachable, every further batch is appended to the hints of the replica instead of being
+ * sent. The hints are replayed in order as new batches, with only a limited number of mutations unacknowledged at a
+ * time, and mutations are sent directly again as soon as the last hint was replayed.
+ *
+ * A writer which wants to know when its mutation reached a replica passes a {@link Listener}, the stream itself never
+ * waits for acknowledgements.
+ *
+ * @version 0.1
+ * @since   2022-01-17
+ */
+public class ReplicationStream {
+
+    private static final Logger LOGGER = Logger.getLogger(ReplicationStream.class.getName());
+
+    public static final String BATCH_COMMAND = "replicate_batch";
+    public static final String ACK_COMMAND = "replicate_ack";
+
+    private static final int MAX_BATCH_OPS = 512;
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final int MAX_UNACKED_OPS = 100000;
+    private static final int HINT_THRESHOLD_OPS = 10000;
+    private static final int REPLAY_WINDOW_OPS = 8 * MAX_BATCH_OPS;
+
+    /**
+     * Sends a message to a peer without blocking, e.g. {@link de.tum.i13.server.nio.PeerConnectionPool#send}.
+     */
+    public interface Transport {
+        void send(String host, int port, byte[] data);
+    }
+
+    /**
+     * Learns whether a mutation reached a replica. The methods are called on the thread which processed the
+     * acknowledgement or dropped the replica, so they must not block.
+     */
+    public interface Listener {
+        /**
+         * The replica applied the mutation.
+         */
+        void acknowledged(String replica);
+
+        /**
+         * The mutation will never be acknowledged by the replica, because the replica was dropped or fell too far
+         * behind.
+         */
+        void dropped(String replica);
+    }
+
+    /**
+     * A queued mutation and the listener of its writer, if any.
+     */
+    private static class Op {
+        private final String text;
+        private final Listener listener;
+
+        private Op(String text, Listener listener) {
+            this.text = text;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * A batch waiting for its acknowledgement. The header is framed on every send, since incarnation and acked mark
+     * may have changed in the meantime.
+     */
+    private static class Batch {
+        private final long seq;
+        private final int ops;
+        private final long createdAt;
+        private final String payload;
+        private final List<Listener> listeners;
+
+        private Batch(long seq, int ops, long createdAt, String payload, List<Listener> listeners) {
+            this.seq = seq;
+            this.ops = ops;
+            this.createdAt = createdAt;
+            this.payload = payload;
+            this.listeners = listeners;
+        }
+    }
+
+    /**
+     * Stream to one replica. The queue and the counter are filled by the writers, the batches are guarded by the
+     * monitor of the replica.
+     */
+    private static class Replica {
+        private final String host;
+        private final int port;
+        private final Queue<Op> queued = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger queuedOps = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final ArrayDeque<Batch> unacked = new ArrayDeque<>();
+        private long incarnation = System.currentTimeMillis();
+        private long nextSeq = 1;
+        private long acked;
+        private int unackedOps;
+        private long lastSentAt;
+        // the oldest batch was sent again as a probe, see retransmitIfStale
+        private boolean probing;
+        private long oldestQueuedAt;
+        private volatile boolean hinted;
+        private int hintedOps;
+
+        private Replica(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final String source;
+    private final Transport transport;
+    private final long retransmitMillis;
+    private final Map<String, Replica> replicas = new ConcurrentHashMap<>();
+    private final BlockingQueue<Replica> pendingReplicas = new LinkedBlockingQueue<>();
+
+    private volatile HintStore hints;
+    private Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates a stream, nothing is sent until {@link #start()} is called.
+     *
+     * @param source           address:port the replicas send their acknowledgements to.
+     * @param transport        used to send the batches.
+     * @param retransmitMillis time in milliseconds after which unacknowledged batches are sent again.
+     */
+    public ReplicationStream(String source, Transport transport, long retransmitMillis) {
+        this.source = B64Util.b64encode(source);
+        this.transport = transport;
+        this.retransmitMillis = retransmitMillis;
+    }
+
+    /**
+     * Keeps the mutations of replicas which are too far behind in the given store instead of dropping them. Must be
+     * called before mutations are queued.
+     *
+     * @param hints store for the hints, null to drop mutations.
+     */
+    public void setHintStore(HintStore hints) {
+        this.hints = hints;
+    }
+
+    /**
+     * Starts the sender thread.
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this::run, "ReplicationStream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the sender thread, queued and unacknowledged mutations are dropped.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Queues a put for the given replicas. Mutations queued by one thread reach every replica in the same order.
+     *
+     * @param replicas address:port of the replicas.
+     * @param key      key that was put.
+     * @param value    new value of the key.
+     */
+    public void put(Collection<String> replicas, String key, String value) {
+        put(replicas, key, value, null);
+    }
+
+    /**
+     * Queues a put for the given replicas and tells the listener when it reached each of them.
+     *
+     * @param replicas address:port of the replicas.
+     * @param key      key that was put.
+     * @param value    new value of the key.
+     * @param listener notified once per replica, may be null.
+     */
+    public void put(Collection<String> replicas, String key, String value, Listener listener) {
+        put(replicas, key, value, 0, listener);
+    }
+
+    /**
+     * Queues a put of a key with a time to live for the given replicas.
+     *
+     * @param replicas  address:port of the replicas.
+     * @param key       key that was put.
+     * @param value     new value of the key.
+     * @param expiresAt time in milliseconds at which the key expires, 0 if it does not expire.
+     * @param listener  notified once per replica, may be null.
+     */
+    public void put(Collection<String> replicas, String key, String value, long expiresAt, Listener listener) {
+        String text = "p " + B64Util.b64encode(key) + " " + B64Util.b64encode(value);
+        if (expiresAt > 0)
+            text += " e " + B64Util.b64encode(key) + " " + expiresAt;
+        queue(replicas, text, listener);
+    }
+
+    /**
+     * Queues a delete for the given replicas.
+     *
+     * @param replicas address:port of the replicas.
+     * @param key      key that was deleted.
+     */
+    public void delete(Collection<String> replicas, String key) {
+        queue(replicas, "d " + B64Util.b64encode(key), null);
+    }
+
+    private void queue(Collection<String> targets, String text, Listener listener) {
+        Op op = new Op(text, listener);
+        long now = System.currentTimeMillis();
+        for (String target : targets) {
+            Replica replica = replicas.computeIfAbsent(target, ReplicationStream::newReplica);
+            if (replica.queuedOps.getAndIncrement() == 0)
+                replica.oldestQueuedAt = now;
+            replica.queued.add(op);
+            if (replica.scheduled.compareAndSet(false, true))
+                pendingReplicas.add(replica);
+        }
+    }
+
+    private static Replica newReplica(String target) {
+        int colon = target.lastIndexOf(':');
+        return new Replica(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+    }
+
+    /**
+     * Removes all batches up to the acknowledged sequence number. Acknowledgements of an older incarnation are
+     * ignored.
+     *
+     * @param replica     address:port of the replica.
+     * @param incarnation incarnation the acknowledgement belongs to.
+     * @param seq         highest sequence number the replica applied.
+     */
+    public void acknowledge(String replica, long incarnation, long seq) {
+        Replica r = replicas.get(replica);
+        if (r == null)
+            return;
+        List<Listener> acknowledged = new ArrayList<>();
+        synchronized (r) {
+            if (incarnation != r.incarnation || seq <= r.acked)
+                return;
+            r.acked = seq;
+            while (!r.unacked.isEmpty() && r.unacked.peekFirst().seq <= seq) {
+                Batch batch = r.unacked.pollFirst();
+                r.unackedOps -= batch.ops;
+                if (batch.listeners != null)
+                    acknowledged.addAll(batch.listeners);
+            }
+            // the replica answers again, the batches after the probe may have been lost as well
+            if (r.probing) {
+                r.probing = false;
+                r.lastSentAt = System.currentTimeMillis();
+                for (Batch batch : r.unacked)
+                    send(r, batch);
+            }
+        }
+        // the acknowledgement made room for the next hints
+        if (r.hinted && r.scheduled.compareAndSet(false, true))
+            pendingReplicas.add(r);
+        for (Listener listener : acknowledged)
+            listener.acknowledged(replica);
+    }
+
+    /**
+     * Sends all unacknowledged batches of a replica again, e.g. after its connection was re-established. Batches the
+     * replica already applied are acknowledged again without being applied twice.
+     *
+     * @param replica address:port of the replica.
+     */
+    public void resend(String replica) {
+        Replica r = replicas.get(replica);
+        if (r != null)
+            resend(r, System.currentTimeMillis());
+    }
+
+    /**
+     * Drops the stream to a replica, e.g. because the replica left the ring.
+     *
+     * @param replica address:port of the replica.
+     */
+    public void drop(String replica) {
+        Replica r = replicas.remove(replica);
+        if (r == null)
+            return;
+        LOGGER.info("Dropped replication stream to " + replica);
+        List<Listener> dropped = new ArrayList<>();
+        synchronized (r) {
+            for (Batch batch : r.unacked) {
+                if (batch.listeners != null)
+                    dropped.addAll(batch.listeners);
+            }
+            r.unacked.clear();
+            r.unackedOps = 0;
+            r.hinted = false;
+            r.hintedOps = 0;
+        }
+        HintStore store = hints;
+        if (store != null)
+            store.discard(replica);
+        Op op;
+        while ((op = r.queued.poll()) != null) {
+            if (op.listener != null)
+                dropped.add(op.listener);
+        }
+        for (Listener listener : dropped)
+            listener.dropped(replica);
+    }
+
+    /**
+     * Describes how far every replica is behind, one token per replica:
+     * replica=address:port,seq=&lt;last sent&gt;,acked=&lt;last acknowledged&gt;,lag_ops=&lt;mutations not acknowledged&gt;,lag_ms=&lt;age of the oldest&gt;
+     *
+     * @return the tokens separated by spaces, an empty string if there is no replica.
+     */
+    public String lag() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        for (Replica r : replicas.values()) {
+            long seq, acked, oldest;
+            int ops;
+            synchronized (r) {
+                seq = r.nextSeq - 1;
+                acked = r.acked;
+                ops = r.unackedOps + r.queuedOps.get() + r.hintedOps;
+                oldest = !r.unacked.isEmpty() ? r.unacked.peekFirst().createdAt
+                        : r.queuedOps.get() > 0 ? r.oldestQueuedAt : now;
+            }
+            if (sb.length() > 0)
+                sb.append(' ');
+            sb.append("replica=").append(r).append(",seq=").append(seq).append(",acked=").append(acked)
+                    .append(",lag_ops=").append(ops).append(",lag_ms=").append(Math.max(0, now - oldest));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param replica address:port of the replica.
+     * @return true if the replica acknowledged every mutation queued for it.
+     */
+    public boolean isCaughtUp(String replica) {
+        Replica r = replicas.get(replica);
+        if (r == null)
+            return true;
+        synchronized (r) {
+            return r.unacked.isEmpty() && r.queuedOps.get() == 0 && !r.hinted;
+        }
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Replica replica = pendingReplicas.poll(retransmitMillis, TimeUnit.MILLISECONDS);
+                if (replica != null)
+                    flush(replica);
+                long now = System.currentTimeMillis();
+                for (Replica r : replicas.values()) {
+                    retransmitIfStale(r, now);
+                    replay(r);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Replication stream failed", e);
+            }
+        }
+    }
+
+    // frames everything queued for the replica into batches and sends them
+    private void flush(Replica replica) {
+        // the replica may have been dropped, its mutations are discarded with it
+        if (replicas.get(replica.toString()) != replica)
+            return;
+        // writers schedule the replica again for mutations queued from now on
+        replica.scheduled.set(false);
+        // hints are older than everything queued
+        replay(replica);
+        while (!replica.queued.isEmpty()) {
+            StringBuilder ops = new StringBuilder();
+            List<Listener> listeners = null;
+            int count = 0;
+            Op op;
+            while (count < MAX_BATCH_OPS && ops.length() < MAX_BATCH_BYTES && (op = replica.queued.poll()) != null) {
+                ops.append(' ').append(op.text);
+                if (op.listener != null) {
+                    if (listeners == null)
+                        listeners = new ArrayList<>();
+                    listeners.add(op.listener);
+                }
+                count++;
+            }
+            if (count == 0)
+                return;
+            long now = System.currentTimeMillis();
+            replica.queuedOps.addAndGet(-count);
+            if (replica.queuedOps.get() > 0)
+                replica.oldestQueuedAt = now;
+
+            synchronized (replica) {
+                if (hint(replica, count, ops.toString(), listeners))
+                    continue;
+                if (replica.unackedOps + count > MAX_UNACKED_OPS)
+                    shed(replica);
+                Batch batch = new Batch(replica.nextSeq++, count, now, ops.toString(), listeners);
+                replica.unacked.addLast(batch);
+                replica.unackedOps += count;
+                replica.lastSentAt = now;
+                send(replica, batch);
+            }
+        }
+    }
+
+    // appends the batch to the hints instead of sending it if the replica is too far behind, must hold the monitor
+    private boolean hint(Replica replica, int count, String ops, List<Listener> listeners) {
+        HintStore store = hints;
+        if (store == null || (!replica.hinted && replica.unackedOps + count <= HINT_THRESHOLD_OPS))
+            return false;
+        try {
+            store.append(replica.toString(), count + ops);
+        } catch (IOException e) {
+            // later batches must not overtake the hints, so the hints are dropped as a whole
+            LOGGER.warning(String.format("Could not write hints of %s, dropped %d mutations: %s", replica,
+                    replica.hintedOps, e.getMessage()));
+            store.discard(replica.toString());
+            replica.hinted = false;
+            replica.hintedOps = 0;
+            return false;
+        }
+        if (!replica.hinted)
+            LOGGER.info(String.format("Replica %s is too far behind, keeping its mutations as hints", replica));
+        replica.hinted = true;
+        replica.hintedOps += count;
+        // a hinted mutation is not acknowledged in time
+        if (listeners != null) {
+            for (Listener listener : listeners)
+                listener.dropped(replica.toString());
+        }
+        return true;
+    }
+
+    // sends hints as new batches while the replica has room for them, runs on the sender thread only
+    private void replay(Replica replica) {
+        HintStore store = hints;
+        if (store == null || !replica.hinted)
+            return;
+        synchronized (replica) {
+            while (replica.hinted && replica.unackedOps < REPLAY_WINDOW_OPS) {
+                String hint;
+                try {
+                    hint = store.poll(replica.toString());
+                } catch (IOException e) {
+                    LOGGER.warning(String.format("Could not read hints of %s, dropped %d mutations: %s", replica,
+                            replica.hintedOps, e.getMessage()));
+                    hint = null;
+                }
+                if (hint == null) {
+                    LOGGER.info("Replayed all hints of " + replica);
+                    replica.hinted = false;
+                    replica.hintedOps = 0;
+                    return;
+                }
+                int space = hint.indexOf(' ');
+                int count = Integer.parseInt(hint.substring(0, space));
+                long now = System.currentTimeMillis();
+                Batch batch = new Batch(replica.nextSeq++, count, now, hint.substring(space), null);
+                replica.unacked.addLast(batch);
+                replica.unackedOps += count;
+                replica.hintedOps -= count;
+                replica.lastSentAt = now;
+                send(replica, batch);
+            }
+        }
+    }
+
+    // drops the oldest half of the unacknowledged batches, must hold the monitor of the replica
+    private void shed(Replica replica) {
+        int dropped = 0;
+        while (!replica.unacked.isEmpty() && replica.unackedOps > MAX_UNACKED_OPS / 2) {
+            Batch batch = replica.unacked.pollFirst();
+            replica.unackedOps -= batch.ops;
+            dropped += batch.ops;
+            if (batch.listeners != null) {
+                for (Listener listener : batch.listeners)
+                    listener.dropped(replica.toString());
+            }
+        }
+        // the replica cannot catch up with the dropped batches, let it continue after them
+        replica.incarnation++;
+        replica.acked = replica.unacked.isEmpty() ? replica.nextSeq - 1 : replica.unacked.peekFirst().seq - 1;
+        LOGGER.warning(String.format("Replica %s is too far behind, dropped %d mutations", replica, dropped));
+        // the remaining batches were sent with the old incarnation
+        for (Batch batch : replica.unacked)
+            send(replica, batch);
+    }
+
+    private void retransmitIfStale(Replica replica, long now) {
+        synchronized (replica) {
+            if (replica.unacked.isEmpty() || now - replica.lastSentAt < retransmitMillis)
+                return;
+            LOGGER.fine("No acknowledgement from " + replica + ", sending the oldest batch again");
+            replica.probing = true;
+            replica.lastSentAt = now;
+            send(replica, replica.unacked.peekFirst());
+        }
+    }
+
+    private void resend(Replica replica, long now) {
+        synchronized (replica) {
+            replica.probing = false;
+            replica.lastSentAt = now;
+            for (Batch batch : replica.unacked)
+                send(replica, batch);
+        }
+    }
+
+    // frames the batch with the current incarnation and acked mark, must hold the monitor of the replica
+    private void send(Replica replica, Batch batch) {
+        String line = BATCH_COMMAND + " " + source + " " + replica.incarnation + " " + batch.seq + " " + replica.acked
+                + batch.payload + "\r\n";
+        transport.send(replica.host, replica.port, line.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
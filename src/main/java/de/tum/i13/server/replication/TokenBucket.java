@@ -0,0 +1,50 @@
+package de.tum.i13.server.replication;
+
+/**
+ * Token Bucket
+ * Limits the bandwidth of the transfers a server sends, see {@link RangeTransfer}. All transfers of a server share
+ * one bucket, which holds up to one second worth of bytes and is refilled continuously. A chunk may be sent as long
+ * as the bucket is not empty and its size is taken afterwards, so a large chunk can overdraw the bucket and delays
+ * the next chunk accordingly.
+ *
+ * @version 0.1
+ * @since   2022-01-20
+ */
+public class TokenBucket {
+
+    private final long bytesPerSecond;
+    private double tokens;
+    private long refilledAt;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param bytesPerSecond bandwidth limit, must be positive.
+     */
+    public TokenBucket(long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Bandwidth must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * @param nowNanos current time from {@link System#nanoTime()}.
+     * @return true if the bucket is not empty, i.e. the next chunk may be sent.
+     */
+    public synchronized boolean available(long nowNanos) {
+        tokens = Math.min(bytesPerSecond, tokens + (nowNanos - refilledAt) * bytesPerSecond / 1e9);
+        refilledAt = nowNanos;
+        return tokens > 0;
+    }
+
+    /**
+     * Takes the size of a sent chunk from the bucket.
+     *
+     * @param bytes size of the chunk.
+     */
+    public synchronized void take(long bytes) {
+        tokens -= bytes;
+    }
+}
@@ -0,0 +1,30 @@
+package de.tum.i13.server.replication;
+
+/**
+ * Write Consistency
+ * Determines when a coordinator answers a put: right after its own write, or after replicas acknowledged the write.
+ *
+ * @version 0.1
+ * @since   2022-01-18
+ */
+public enum WriteConsistency {
+    ASYNC,  /* answer after the local write, replicas receive the put in the background */
+    ONE,    /* answer after one replica acknowledged the put */
+    QUORUM; /* answer after a majority of coordinator and replicas applied the put */
+
+    /**
+     * @param replicas number of replicas the put is sent to.
+     * @return number of replica acknowledgements the coordinator waits for.
+     */
+    public int requiredAcks(int replicas) {
+        switch (this) {
+            case ONE:
+                return Math.min(1, replicas);
+            case QUORUM:
+                // the coordinator itself counts towards the majority
+                return (replicas + 1) / 2;
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package de.tum.i13.server.stripe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixed Striped Executor Service
+ * Executes all tasks of a stripe consecutively, like the {@link StripedExecutorService}, but without a map of
+ * SerialExecutors. The stripes are hashed onto a fixed number of workers, every worker owns one queue and is its only
+ * consumer. Tasks of the same stripe always land in the same queue and thus keep their order, tasks of different
+ * stripes may share a worker.
+ *
+ * Submitting a task only locks the queue of its worker, there is no global lock and no allocation per stripe.
+ * Tasks which do not implement StripedObject are distributed round robin over the workers.
+ *
+ * @version 0.1
+ * @since   2022-01-15
+ */
+public class FixedStripedExecutorService extends AbstractExecutorService {
+
+    private static final Logger LOGGER = Logger.getLogger(FixedStripedExecutorService.class.getName());
+
+    /**
+     * Marks the end of a worker queue after shutdown.
+     */
+    private static final Runnable POISON = () -> { };
+
+    /**
+     * Wrappers like the ExecutorCompletionService hide our StripedFutureTask inside their own future before they call
+     * execute(), so newTaskFor() also leaves the stripe in this ThreadLocal. execute() always removes it again.
+     */
+    private static final ThreadLocal<Object> stripes = new ThreadLocal<>();
+
+    private final Worker[] workers;
+    private final AtomicInteger nextUnstriped = new AtomicInteger();
+    private volatile boolean shutdown;
+
+    /**
+     * Creates an executor with one worker per available processor.
+     */
+    public FixedStripedExecutorService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an executor with the given number of workers.
+     *
+     * @param numberOfWorkers number of worker threads and queues.
+     */
+    public FixedStripedExecutorService(int numberOfWorkers) {
+        if (numberOfWorkers <= 0)
+            throw new IllegalArgumentException("numberOfWorkers must be positive");
+        workers = new Worker[numberOfWorkers];
+        for (int i = 0; i < numberOfWorkers; i++) {
+            workers[i] = new Worker("FixedStripedWorker-" + i);
+            workers[i].thread.start();
+        }
+    }
+
+    /**
+     * Keeps the stripe of the task, since AbstractExecutorService wraps the task into a FutureTask.
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        return new StripedFutureTask<>(runnable, value, saveStripe(runnable));
+    }
+
+    /**
+     * Keeps the stripe of the task, since AbstractExecutorService wraps the task into a FutureTask.
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        return new StripedFutureTask<>(callable, saveStripe(callable));
+    }
+
+    /**
+     * Executes the command on the worker of its stripe.
+     *
+     * @throws RejectedExecutionException if the executor is shut down.
+     */
+    @Override
+    public void execute(Runnable command) {
+        Object stripe = stripeOf(command);
+        Object saved = stripes.get();
+        if (saved != null) {
+            stripes.remove();
+            if (stripe == null)
+                stripe = saved;
+        }
+        int slot;
+        if (stripe == null) {
+            slot = Math.floorMod(nextUnstriped.getAndIncrement(), workers.length);
+        } else {
+            int h = stripe.hashCode();
+            slot = Math.floorMod(h ^ (h >>> 16), workers.length);
+        }
+        workers[slot].enqueue(command);
+    }
+
+    /**
+     * Rejects new tasks, tasks already queued are still executed.
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker : workers)
+            worker.close();
+    }
+
+    /**
+     * Rejects new tasks and returns the tasks which did not start yet. Running tasks are interrupted.
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown();
+        List<Runnable> result = new ArrayList<>();
+        for (Worker worker : workers) {
+            worker.tasks.drainTo(result);
+            worker.thread.interrupt();
+        }
+        result.removeIf(task -> task == POISON);
+        return result;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        if (!shutdown)
+            return false;
+        for (Worker worker : workers) {
+            if (worker.thread.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long waitUntil = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker worker : workers) {
+            long remaining = waitUntil - System.nanoTime();
+            if (remaining <= 0)
+                return isTerminated();
+            TimeUnit.NANOSECONDS.timedJoin(worker.thread, remaining);
+        }
+        return isTerminated();
+    }
+
+    private static Object saveStripe(Object task) {
+        Object stripe = stripeOf(task);
+        if (stripe != null)
+            stripes.set(stripe);
+        return stripe;
+    }
+
+    private static Object stripeOf(Object task) {
+        return task instanceof StripedObject ? ((StripedObject) task).getStripe() : null;
+    }
+
+    /**
+     * FutureTask which remembers the stripe of the wrapped task.
+     */
+    private static class StripedFutureTask<T> extends FutureTask<T> implements StripedObject {
+        private final Object stripe;
+
+        private StripedFutureTask(Runnable runnable, T value, Object stripe) {
+            super(runnable, value);
+            this.stripe = stripe;
+        }
+
+        private StripedFutureTask(Callable<T> callable, Object stripe) {
+            super(callable);
+            this.stripe = stripe;
+        }
+
+        public Object getStripe() {
+            return stripe;
+        }
+    }
+
+    /**
+     * A worker thread and the queue it consumes. The monitor of the worker only orders enqueue against close, so
+     * that no task can be queued behind the end marker.
+     */
+    private class Worker implements Runnable {
+        private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+        private final Thread thread;
+        private boolean closed;
+
+        private Worker(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        private synchronized void enqueue(Runnable task) {
+            if (closed)
+                throw new RejectedExecutionException("executor not running");
+            tasks.add(task);
+        }
+
+        private synchronized void close() {
+            if (!closed) {
+                closed = true;
+                tasks.add(POISON);
+            }
+        }
+
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    if (shutdown && tasks.isEmpty())
+                        return;
+                    continue;
+                }
+                if (task == POISON)
+                    return;
+                try {
+                    task.run();
+                } catch (RuntimeException | Error e) {
+                    LOGGER.log(Level.WARNING, "Task failed on " + thread.getName(), e);
+                }
+            }
+        }
+    }
+}
@@ -1,12 +1,13 @@
 package de.tum.i13.server.stripe;
 
 import java.util.ArrayList;
-import java.util.IdentityHashMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
 
 /**
  * From https://www.javaspecialists.eu/archive/Issue206-Striped-Executor-Service.html
@@ -29,6 +30,9 @@ import java.util.concurrent.locks.ReentrantLock;
  * @author Dr Heinz M. Kabutz
  */
 public class StripedExecutorService extends AbstractExecutorService {
+    private static final Logger LOGGER =
+            Logger.getLogger(StripedExecutorService.class.getName());
+
     /**
      * The wrapped ExecutorService that will actually execute our
      * tasks.
@@ -37,7 +41,7 @@ public class StripedExecutorService extends AbstractExecutorService {
 
     /**
      * The lock prevents shutdown from being called in the middle
-     * of a submit.  It also guards the executors IdentityHashMap.
+     * of a submit.  It also guards the executors HashMap.
      */
     private final ReentrantLock lock = new ReentrantLock();
 
@@ -49,12 +53,15 @@ public class StripedExecutorService extends AbstractExecutorService {
 
     /**
      * Whenever a new StripedObject is submitted to the pool, it
-     * is added to this IdentityHashMap.  As soon as the
-     * SerialExecutor is empty, the entry is removed from the map,
-     * in order to avoid a memory leak.
+     * is added to this HashMap.  As soon as the SerialExecutor is
+     * empty, the entry is removed from the map, in order to avoid
+     * a memory leak.  In contrast to the original version we use
+     * equality instead of identity of the stripes, since the
+     * KVServer uses the keys of the requests as stripes and every
+     * request carries its own String instance of the key.
      */
     private final Map<Object, SerialExecutor> executors =
-            new IdentityHashMap<>();
+            new HashMap<>();
 
     /**
      * The default submit() method creates a new FutureTask and
@@ -105,6 +112,39 @@ public class StripedExecutorService extends AbstractExecutorService {
         this(Executors.newFixedThreadPool(numberOfThreads));
     }
 
+    /**
+     * This constructs a StripedExecutorService that starts a new
+     * virtual thread for every task.  Tasks of a stripe are still
+     * executed consecutively by their SerialExecutor, but a task
+     * blocking on disk or socket I/O only parks its virtual
+     * thread instead of occupying an OS thread.
+     *
+     * Virtual threads are available from Java 21 on.  Since we
+     * compile for an older release, the factory method is looked
+     * up reflectively.  On older runtimes we fall back to a
+     * cached thread pool, which behaves like the default
+     * constructor.
+     */
+    public static StripedExecutorService withVirtualThreads() {
+        return new StripedExecutorService(newVirtualThreadExecutor());
+    }
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor() if the
+     * runtime supports it, otherwise a cached thread pool.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.warning("Virtual threads are not supported by " +
+                    "this runtime, using a cached thread pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
     /**
      * If the runnable also implements StripedObject, we store the
      * stripe object in a thread local, since the actual runnable
@@ -0,0 +1,156 @@
+package de.tum.i13.server.ttl;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed Timing Wheel
+ * Schedules items for expiration in O(1). The wheel is an array of buckets, each bucket covers one tick. An item is
+ * placed into the bucket of its deadline together with the number of full rotations left until it is due, so
+ * deadlines far in the future do not need a larger wheel. A single thread advances the wheel once per tick and hands
+ * all items that became due in this tick to the expiration handler as one batch.
+ *
+ * Items are never removed from the wheel. If an item is rescheduled or should not expire anymore, the handler has to
+ * check whether the expiration is still valid, e.g. by comparing the deadline with its own bookkeeping.
+ *
+ * @version 0.1
+ * @since   2022-01-14
+ */
+public class TimingWheel<T> {
+
+    private static final Logger LOGGER = Logger.getLogger(TimingWheel.class.getName());
+
+    private static class Entry<T> {
+        private final T item;
+        private final long deadline;
+        private long rounds;
+
+        private Entry(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final List<List<Entry<T>>> buckets;
+    private final Queue<Entry<T>> scheduled;
+    private final Consumer<List<T>> handler;
+
+    private long startTime;
+    private long tick;
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * Creates a new timing wheel, the wheel does not run until {@link #start()} is called.
+     *
+     * @param tickMillis duration of one tick in milliseconds, the precision of the expiration.
+     * @param wheelSize  number of buckets, rounded up to a power of two.
+     * @param handler    receives the items which expired in one tick, called by the wheel thread.
+     */
+    public TimingWheel(long tickMillis, int wheelSize, Consumer<List<T>> handler) {
+        if (tickMillis <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("tickMillis and wheelSize must be positive");
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++)
+            buckets.add(new ArrayList<>());
+        this.scheduled = new ConcurrentLinkedQueue<>();
+        this.handler = handler;
+    }
+
+    /**
+     * Starts the wheel thread.
+     */
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        startTime = System.currentTimeMillis();
+        worker = new Thread(this::run, "TimingWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stops the wheel thread, scheduled items are dropped.
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null)
+            worker.interrupt();
+    }
+
+    /**
+     * Schedules an item for expiration. Can be called from any thread.
+     *
+     * @param item     the item to expire.
+     * @param deadline time of the expiration in milliseconds since the epoch.
+     */
+    public void schedule(T item, long deadline) {
+        scheduled.add(new Entry<>(item, deadline));
+    }
+
+    private void run() {
+        while (running) {
+            long tickDeadline = startTime + (tick + 1) * tickMillis;
+            long sleep = tickDeadline - System.currentTimeMillis();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+
+            transferScheduled();
+            List<T> expired = expireBucket(buckets.get((int) (tick & mask)), tickDeadline);
+            tick++;
+
+            if (!expired.isEmpty()) {
+                try {
+                    handler.accept(expired);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Expiration handler failed", e);
+                }
+            }
+        }
+    }
+
+    // moves newly scheduled items into their buckets, only called by the wheel thread
+    private void transferScheduled() {
+        Entry<T> entry;
+        while ((entry = scheduled.poll()) != null) {
+            long ticks = Math.max((entry.deadline - startTime) / tickMillis, tick);
+            entry.rounds = (ticks - tick) / buckets.size();
+            buckets.get((int) (ticks & mask)).add(entry);
+        }
+    }
+
+    private List<T> expireBucket(List<Entry<T>> bucket, long now) {
+        List<T> expired = new ArrayList<>();
+        Iterator<Entry<T>> it = bucket.iterator();
+        while (it.hasNext()) {
+            Entry<T> entry = it.next();
+            if (entry.rounds <= 0 && entry.deadline <= now) {
+                it.remove();
+                expired.add(entry.item);
+            } else if (entry.rounds > 0) {
+                entry.rounds--;
+            }
+        }
+        return expired;
+    }
+}
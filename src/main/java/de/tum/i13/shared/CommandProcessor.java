@@ -4,10 +4,20 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.channels.SelectionKey;
 
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+
 public interface CommandProcessor {
 
     void process(SelectionKey selectionKey, String command) throws Exception;
 
+    /**
+     * Processes the raw bytes of a request. Processors that can parse the bytes directly should override this,
+     * by default the bytes are decoded and passed to {@link #process(SelectionKey, String)}.
+     */
+    default void process(SelectionKey selectionKey, byte[] data, int offset, int length) throws Exception {
+        process(selectionKey, new String(data, offset, length, TELNET_ENCODING));
+    }
+
     String connectionAccepted(InetSocketAddress address, InetSocketAddress remoteAddress);
 
     void connectionClosed(InetAddress address);
@@ -47,6 +47,30 @@ public class Config {
     @CommandLine.Option(names = "-s", description = "Set cache displacement strategy", defaultValue = "FIFO")
     public String cacheStrategy;
 
+    @CommandLine.Option(names = "-e", description = "Set executor for key operations", defaultValue = "STRIPED")
+    public String executor;
+
+    @CommandLine.Option(names = "-w", description = "Set number of workers of the fixed executor, 0 uses one per processor", defaultValue = "0")
+    public int workers;
+
+    @CommandLine.Option(names = "-q", description = "Set budget of requests in flight, 0 disables admission control", defaultValue = "10000")
+    public int maxInFlight;
+
+    @CommandLine.Option(names = "-wc", description = "Set write consistency, when puts are answered", defaultValue = "ASYNC")
+    public String writeConsistency;
+
+    @CommandLine.Option(names = "-tr", description = "Set bandwidth limit of outgoing range transfers in KB/s, 0 disables the limit", defaultValue = "0")
+    public int transferRate;
+
+    @CommandLine.Option(names = "-vn", description = "Set number of tokens every server occupies on the hash ring, used by the ECS", defaultValue = "1")
+    public int virtualNodes;
+
+    @CommandLine.Option(names = "-wt", description = "Set capacity weight of the server, the ECS gives it a share of the hash ring in proportion", defaultValue = "1")
+    public double weight;
+
+    @CommandLine.Option(names = "-hk", description = "Set requests per second at which a key is copied to all servers, 0 disables the copies", defaultValue = "1000")
+    public int hotKeyRate;
+
     public static Config parseCommandlineArgs(String[] args) {
         Config cfg = new Config();
         CommandLine.ParseResult parseResult = new CommandLine(cfg).registerConverter(InetSocketAddress.class, new InetSocketAddressTypeConverter()).parseArgs(args);
@@ -81,6 +105,54 @@ public class Config {
             System.exit(-1);
         }
 
+        //checks for executor
+        ArrayList<String> executorList = new ArrayList<>( Arrays.asList("STRIPED", "FIXED", "VIRTUAL"));
+        cfg.executor = cfg.executor.toUpperCase(Locale.ROOT);
+        if(cfg.executor.isEmpty() || !executorList.contains(cfg.executor)){
+            System.out.println("Executor not found");
+            System.exit(-1);
+        }
+
+        //checks for worker count
+        if(cfg.workers < 0){
+            System.out.println("Number of workers must not be negative");
+            System.exit(-1);
+        }
+        if(cfg.workers == 0)
+            cfg.workers = Runtime.getRuntime().availableProcessors();
+
+        //checks for in-flight budget
+        if(cfg.maxInFlight < 0){
+            System.out.println("Budget of requests in flight must not be negative");
+            System.exit(-1);
+        }
+
+        //checks for write consistency
+        ArrayList<String> consistencyList = new ArrayList<>( Arrays.asList("ASYNC", "ONE", "QUORUM"));
+        cfg.writeConsistency = cfg.writeConsistency.toUpperCase(Locale.ROOT);
+        if(cfg.writeConsistency.isEmpty() || !consistencyList.contains(cfg.writeConsistency)){
+            System.out.println("Write consistency not found");
+            System.exit(-1);
+        }
+
+        //checks for virtual nodes
+        if(cfg.virtualNodes < 1){
+            System.out.println("Number of virtual nodes must be at least 1");
+            System.exit(-1);
+        }
+
+        //checks for weight
+        if(!(cfg.weight > 0)){
+            System.out.println("Weight must be positive");
+            System.exit(-1);
+        }
+
+        //checks for hot key rate
+        if(cfg.hotKeyRate < 0){
+            System.out.println("Hot key rate must not be negative");
+            System.exit(-1);
+        }
+
         //arrange loglevel
         ArrayList<String> logLevelList = new ArrayList<>( Arrays.asList("ALL", "CONFIG", "FINE", "FINEST","INFO", "OFF", "SEVERE","WARNING"));
         cfg.loglevel = cfg.loglevel.toUpperCase(Locale.ROOT);
@@ -133,6 +205,14 @@ public class Config {
                 ", logLevel=" + loglevel +
                 ", cacheSize=" + cacheSize +
                 ", cacheStrategy=" + cacheStrategy +
+                ", executor=" + executor +
+                ", workers=" + workers +
+                ", maxInFlight=" + maxInFlight +
+                ", writeConsistency=" + writeConsistency +
+                ", transferRate=" + transferRate +
+                ", virtualNodes=" + virtualNodes +
+                ", weight=" + weight +
+                ", hotKeyRate=" + hotKeyRate +
                 ", usagehelp=" + usagehelp +
                 '}';
     }
@@ -160,6 +240,31 @@ public class Config {
         System.out.println("-s <strategy> - Sets cache displacement strategy to the specified strategy");
         System.out.println("\t<strategy> - One of the following cache strategy: "
                 + "(FIFO|LFU|LRU).");
+        System.out.println("-e <executor> - Sets the executor which runs the key operations");
+        System.out.println("\t<executor> - STRIPED creates one serial executor per key, "
+                + "FIXED hashes keys onto a fixed number of workers, "
+                + "VIRTUAL runs every task of a key on a virtual thread (Java 21+), default=STRIPED.");
+        System.out.println("-w <workers> - Sets number of workers of the FIXED executor");
+        System.out.println("\t<workers> - integer value, default=0 uses one worker per processor.");
+        System.out.println("-q <budget> - Sets number of requests the server queues or executes at the same time");
+        System.out.println("\t<budget> - integer value, further requests are answered with server_busy, "
+                + "default=10000, 0 disables the limit.");
+        System.out.println("-wc <consistency> - Sets when the server answers a put");
+        System.out.println("\t<consistency> - ASYNC answers after the local write, "
+                + "ONE after one replica acknowledged the put, "
+                + "QUORUM after a majority of coordinator and replicas applied the put, default=ASYNC.");
+        System.out.println("-tr <rate> - Sets the bandwidth limit of the data a server sends when servers join");
+        System.out.println("\t<rate> - integer value in KB/s, shared by all transfers of the server, "
+                + "default=0 disables the limit.");
+        System.out.println("-vn <tokens> - Sets the number of positions every server occupies on the hash ring (ECS only)");
+        System.out.println("\t<tokens> - integer value, more tokens spread the keys and the data moved on joins more evenly, "
+                + "default=1.");
+        System.out.println("-wt <weight> - Sets the capacity of the server relative to the other servers");
+        System.out.println("\t<weight> - positive number, a server with weight 2 gets twice the tokens and keys of a server "
+                + "with weight 1, default=1.");
+        System.out.println("-hk <rate> - Sets the requests per second at which a key is hot and every server answers its gets");
+        System.out.println("\t<rate> - integer value, hot keys are copied to all servers until they cool down, "
+                + "default=1000, 0 disables the copies.");
         System.out.println("-h Prints this help message");
     }
 }
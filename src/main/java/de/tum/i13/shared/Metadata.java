@@ -5,17 +5,43 @@ import de.tum.i13.client.TestStore;
 import de.tum.i13.server.kv.KVServerInfo;
 
 import java.io.Serializable;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
 import java.util.NoSuchElementException;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
 
+/**
+ * Metadata
+ * The hash ring of the servers. A server may occupy several positions (tokens, virtual nodes) on the ring, every
+ * token is an entry of the server map and is responsible for the range (previous token, token]. The first token of a
+ * server is the hash of address:port, see {@link #tokenHash(String, int, int)}. Replicas of a range are the servers of
+ * the next tokens on the ring, skipping tokens of servers which were already chosen.
+ *
+ * Servers with a larger weight get proportionally more tokens, {@link #getOwnership()} compares the share of the ring
+ * a server owns with the share its weight asks for.
+ *
+ * Every change of the ring increases its epoch. The ECS sends servers which know the previous epoch only the changed
+ * tokens, see {@link #diff(Map, Map)} and {@link #applyDiff(long, long, String)}. Updates replace the server map
+ * instead of changing it, so readers see either the old or the new ring.
+ */
 public class Metadata implements Serializable {
 
-    // <hash of server, server info object>
-    private TreeMap<String, KVServerInfo> serverMap;
+    // number of replicas of every range
+    private static final int REPLICAS = 2;
+
+    // <token of server, server info object>
+    private volatile TreeMap<String, KVServerInfo> serverMap;
+    // version of the ring, 0 if it is not known
+    private volatile long epoch;
     // only needed if instantiated in KVServer
     private KVServerInfo serverInfo;
     private static final Logger LOGGER = Logger.getLogger(TestStore.class.getName());
@@ -52,20 +78,89 @@ public class Metadata implements Serializable {
 
     public void updateClientMetadata(String toParse){
         String[] parse = toParse.split(";");
-        this.serverMap.clear();
+        TreeMap<String, KVServerInfo> ring = new TreeMap<>();
         for (String s : parse) {
             String[] serverInfo = s.split(",");
             KVServerInfo i = new KVServerInfo(serverInfo[0], serverInfo[1], serverInfo[2]);
-            serverMap.put(i.getServerKeyHash(), i);
+            // a server with several tokens appears once per range
+            i.setServerKeyHash(i.getEndIndex());
+            ring.put(i.getServerKeyHash(), i);
         }
+        this.serverMap = ring;
     }
     public void updateMetadata(String toParse) {
         String[] parse = toParse.split(";");
-        this.serverMap.clear();
+        TreeMap<String, KVServerInfo> ring = new TreeMap<>();
         for (String s : parse) {
             KVServerInfo i = new KVServerInfo(s);
-            serverMap.put(i.getServerKeyHash(), i);
+            ring.put(i.getServerKeyHash(), i);
         }
+        this.serverMap = ring;
+    }
+
+    /**
+     * Replaces the ring with the full metadata of an epoch.
+     *
+     * @return false if the epoch is older than the known one, the ring is not changed then.
+     */
+    public synchronized boolean updateMetadata(String toParse, long epoch) {
+        if (epoch < this.epoch)
+            return false;
+        updateMetadata(toParse);
+        this.epoch = epoch;
+        return true;
+    }
+
+    /**
+     * Applies the changes from one epoch of the ring to the next.
+     *
+     * @param base epoch the diff was made against.
+     * @param diff changes made by {@link #diff(Map, Map)}.
+     * @return false if the known epoch is not the base, the full metadata is needed then.
+     */
+    public synchronized boolean applyDiff(long base, long epoch, String diff) {
+        if (base != this.epoch)
+            return false;
+        TreeMap<String, KVServerInfo> ring = new TreeMap<>(serverMap);
+        for (String change : diff.split(";")) {
+            if (change.startsWith("+")) {
+                KVServerInfo i = new KVServerInfo(change.substring(1));
+                ring.put(i.getServerKeyHash(), i);
+            } else if (change.startsWith("-")) {
+                ring.remove(change.substring(1));
+            }
+        }
+        this.serverMap = ring;
+        this.epoch = epoch;
+        return true;
+    }
+
+    /**
+     * @param from token -&gt; {@link KVServerInfo#toString()} of every token of the older ring.
+     * @param to   the same for the newer ring.
+     * @return +&lt;server info&gt; for every added or changed token and -&lt;token&gt; for every removed token,
+     * separated by ;. Empty if the rings are the same.
+     */
+    public static String diff(Map<String, String> from, Map<String, String> to) {
+        StringJoiner diff = new StringJoiner(";");
+        for (Map.Entry<String, String> e : to.entrySet())
+            if (!e.getValue().equals(from.get(e.getKey())))
+                diff.add("+" + e.getValue());
+        for (String token : from.keySet())
+            if (!to.containsKey(token))
+                diff.add("-" + token);
+        return diff.toString();
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the epoch and the ranges of {@link #getServerHashRange()} of the same ring: &lt;epoch&gt; &lt;ranges&gt;
+     */
+    public synchronized String getServerHashRangeWithEpoch() {
+        return epoch + " " + getServerHashRange();
     }
 
     /**
@@ -97,25 +192,108 @@ public class Metadata implements Serializable {
     }
 
     public boolean checkServerResponsible(String keyHash){
+        return checkHashResponsible(calculateHash(keyHash));
+    }
 
-        String key = serverMap.ceilingKey(calculateHash(keyHash));
+    /**
+     * @param hash hash of a key.
+     * @return true if one of the tokens of this server is responsible for the hash.
+     */
+    public boolean checkHashResponsible(String hash) {
+        String key = serverMap.ceilingKey(hash);
 
         if(key == null || key.isEmpty())
             key = serverMap.firstKey();
 
-        return key.equals(serverInfo.getServerKeyHash());
+        return serverMap.get(key).getServerId().equals(serverInfo.getServerId());
+    }
+
+    /**
+     * @return number of servers on the ring, a server with several tokens counts once.
+     */
+    public int serverCount() {
+        Set<String> servers = new LinkedHashSet<>();
+        for (KVServerInfo info : serverMap.values())
+            servers.add(info.getServerId());
+        return servers.size();
+    }
+
+    /**
+     * @param serverId address:port of a server.
+     * @return the tokens of the server in ring order.
+     */
+    public List<String> getTokens(String serverId) {
+        List<String> tokens = new ArrayList<>();
+        for (Map.Entry<String, KVServerInfo> e : serverMap.entrySet())
+            if (e.getValue().getServerId().equals(serverId))
+                tokens.add(e.getKey());
+        return tokens;
+    }
+
+    /**
+     * @param token a token of the ring.
+     * @return the previous token on the ring, the token itself if it is the only one.
+     */
+    public String getPreviousToken(String token) {
+        String previous = serverMap.lowerKey(token);
+        return previous == null ? serverMap.lastKey() : previous;
+    }
+
+    /**
+     * @return address:port of every server -&gt; {share of the ring its tokens own, share of its weight in the sum of
+     * all weights}, both between 0 and 1.
+     */
+    public Map<String, double[]> getOwnership() {
+        BigInteger ring = BigInteger.ONE.shiftLeft(128);
+        Map<String, BigInteger> owned = new LinkedHashMap<>();
+        Map<String, Double> weights = new LinkedHashMap<>();
+        for (Map.Entry<String, KVServerInfo> e : serverMap.entrySet()) {
+            BigInteger width = new BigInteger(e.getKey(), 16).subtract(new BigInteger(getPreviousToken(e.getKey()), 16)).mod(ring);
+            // a single token owns the whole ring
+            if (width.signum() == 0)
+                width = ring;
+            owned.merge(e.getValue().getServerId(), width, BigInteger::add);
+            weights.putIfAbsent(e.getValue().getServerId(), e.getValue().getWeight());
+        }
+        double total = weights.values().stream().mapToDouble(Double::doubleValue).sum();
+        Map<String, double[]> ownership = new LinkedHashMap<>();
+        for (Map.Entry<String, BigInteger> e : owned.entrySet()) {
+            double actual = e.getValue().shiftLeft(32).divide(ring).longValue() / (double) (1L << 32);
+            ownership.put(e.getKey(), new double[]{actual, weights.get(e.getKey()) / total});
+        }
+        return ownership;
+    }
+
+    /**
+     * @return the ownership of every server, e.g. for logging:
+     * &lt;ip:port&gt;,&lt;actual share&gt;,&lt;target share&gt;;...
+     */
+    public String getOwnershipReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, double[]> e : getOwnership().entrySet())
+            report.append(e.getKey()).append(String.format(Locale.ROOT, ",%.3f,%.3f;", e.getValue()[0], e.getValue()[1]));
+        return report.toString();
+    }
+
+    /**
+     * @return the hash of the i-th token of a server. The first token is the hash of address:port, so a ring with one
+     * token per server looks like a ring without virtual nodes.
+     */
+    public static String tokenHash(String address, int port, int index) {
+        if (index == 0)
+            return Util.calculateHash(address, port);
+        return Util.calculateHash(address + ":" + port + "#" + index);
     }
 
 
     public String getServerHashRange(){
 
         //<range_from>,<range_to>,<ip:port>;
-        String message = "";
-        for(String s : serverMap.keySet()){
-            KVServerInfo serverInfo = serverMap.get(s);
-            message += serverInfo.getStartIndex() + "," + serverInfo.getEndIndex() + "," + serverInfo.getAddress() + ":" + serverInfo.getPort() + ";";
-        }
-        return message;
+        StringBuilder message = new StringBuilder();
+        for (KVServerInfo serverInfo : serverMap.values())
+            message.append(serverInfo.getStartIndex()).append(',').append(serverInfo.getEndIndex()).append(',')
+                    .append(serverInfo.getAddress()).append(':').append(serverInfo.getPort()).append(';');
+        return message.toString();
     }
 
     public String getServerHashRangeWithReplicas(){
@@ -126,7 +304,7 @@ public class Metadata implements Serializable {
             KVServerInfo serverInfo = serverMap.get(s);
             message += serverInfo.getStartIndex() + "," + serverInfo.getEndIndex() + "," + serverInfo.getAddress() + ":" + serverInfo.getPort() + ";";
 
-            if(serverMap.size() > 2){
+            if(serverCount() > 2){
             ArrayList<String> replicaServers = getReplicaServers(s);
 
                 for(int i=0; i<replicaServers.size(); i++){
@@ -159,44 +337,58 @@ public class Metadata implements Serializable {
     }
 
 
+    /**
+     * @param serverInfo token of the coordinator of a range.
+     * @return the tokens of the replicas of the range: the next tokens on the ring which belong to other servers than
+     * the coordinator and each other. Rings of up to two servers have no replicas, the other server is returned.
+     */
     public ArrayList<String> getReplicaServers(String serverInfo) {
         ArrayList<String> replicas = new ArrayList<>();
+        KVServerInfo coordinator = serverMap.get(serverInfo);
+        if (coordinator == null)
+            return replicas;
+        Set<String> chosen = new LinkedHashSet<>();
+        chosen.add(coordinator.getServerId());
         String currentHash = serverInfo;
-        String successorHash = null;
-        if (serverMap.size() > 2) {
-            for (int i = 0; i < 2; i++) {
-
-                //get successor of the current server
-                Map.Entry<String, KVServerInfo> successorServer;
-                successorServer = serverMap.higherEntry(currentHash);
-                if (successorServer == null)
-                    successorServer = serverMap.firstEntry();
+        for (int i = 1; i < serverMap.size() && replicas.size() < REPLICAS; i++) {
 
-                successorHash = successorServer.getKey();
-                replicas.add(successorHash);
+            //get successor of the current token
+            Map.Entry<String, KVServerInfo> successorServer = serverMap.higherEntry(currentHash);
+            if (successorServer == null)
+                successorServer = serverMap.firstEntry();
+            currentHash = successorServer.getKey();
 
-                //do it again for the successor again
-                currentHash = successorHash;
-            }
-        }else{
-            for (String key: serverMap.keySet()) {
-                if(key != serverInfo)
-                    replicas.add(key);
-            }
+            // tokens of a server which already holds the range are skipped
+            if (chosen.add(successorServer.getValue().getServerId()))
+                replicas.add(currentHash);
         }
 
         return replicas;
     }
 
+    /**
+     * @return address:port of the servers which replicate a range of the server, i.e. the replicas of all its tokens.
+     */
+    public Set<String> getReplicaServerIds(String serverId) {
+        Set<String> replicas = new LinkedHashSet<>();
+        for (String token : getTokens(serverId))
+            for (String replica : getReplicaServers(token))
+                replicas.add(serverMap.get(replica).getServerId());
+        return replicas;
+    }
+
 
     public boolean isRoleReplica(String keyHash) {
         String responsibleServer =  serverMap.ceilingKey(calculateHash(keyHash));
         if (responsibleServer == null) {
             responsibleServer = serverMap.firstKey();
         }
-        if(serverMap.size() > 2) {
+        if(serverCount() > 2) {
             LOGGER.info("serverMap size is > than 2 so checking replica servers");
-            return getReplicaServers(responsibleServer).contains(serverInfo.getServerKeyHash());
+            for (String replica : getReplicaServers(responsibleServer))
+                if (serverMap.get(replica).getServerId().equals(serverInfo.getServerId()))
+                    return true;
+            return false;
         }else{
             LOGGER.info("serverMap size is < than 2, returning true as deafult..");
             return true;
@@ -209,11 +401,10 @@ public class Metadata implements Serializable {
 
     @Override
     public String toString() {
-        String s = "";
+        StringJoiner s = new StringJoiner(";");
         for (KVServerInfo info : serverMap.values())
-            s += info.toString() + ";";
-
-        return s.substring(0, s.length() - 1);
+            s.add(info.toString());
+        return s.toString();
     }
 
     public void setServerMap(TreeMap<String, KVServerInfo> serverMap) {
@@ -14,6 +14,8 @@ import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 import static de.tum.i13.shared.Constants.TELNET_ENCODING;
 import static org.hamcrest.CoreMatchers.*;
@@ -27,7 +29,9 @@ public class KVIntegrationTest {
     public static Integer port = 5155;
 
     @BeforeAll
-    private static void startServer() throws InterruptedException{
+    private static void startServer() throws InterruptedException, IOException {
+        // pairs of earlier runs must not change the answers
+        Path dir = Files.createTempDirectory("kvintegration");
         Thread th = new Thread() {
             @Override
             public void run() {
@@ -45,7 +49,8 @@ public class KVIntegrationTest {
             @Override
             public void run() {
                 try {
-                    de.tum.i13.server.nio.StartSimpleNioServer.main(new String[]{"-a", "127.0.0.1", "-p", "5155", "-b", "127.0.0.1:5153"});
+                    de.tum.i13.server.nio.StartSimpleNioServer.main(new String[]{"-a", "127.0.0.1", "-p", "5155", "-b", "127.0.0.1:5153",
+                            "-d", dir.resolve("data") + "/"});
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
@@ -92,7 +97,7 @@ public class KVIntegrationTest {
 
         String command = "PUT newkey202 newvalue202";
         String response = doRequest(command);
-        assertThat(response, is(equalTo("put_success newkey202")));
+        assertThat(response, is(equalTo("put_success newkey202 newvalue202")));
 
     }
 
@@ -101,7 +106,7 @@ public class KVIntegrationTest {
 
         String command = "PUT elephant one two three";
         String response = doRequest(command);
-        assertThat(response, is(equalTo("put_success elephant")));
+        assertThat(response, is(equalTo("put_success elephant one two three")));
 
     }
 
@@ -110,7 +115,7 @@ public class KVIntegrationTest {
 
         String command = "put @12347 -/() abc def";
         String response = doRequest(command);
-        assertThat(response, is(equalTo("put_success @12347")));
+        assertThat(response, is(equalTo("put_success @12347 -/() abc def")));
 
     }
 
@@ -0,0 +1,92 @@
+package de.tum.i13.Performance;
+
+import de.tum.i13.server.kv.KVCommandParser;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.UnsupportedEncodingException;
+import java.util.StringJoiner;
+import java.util.concurrent.TimeUnit;
+
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+
+/**
+ * Compares the regex based command parsing previously done in KVCommandProcessor with the byte based
+ * {@link KVCommandParser}.
+ *
+ * Run the main method after mvn test-compile, or java -cp <test classpath> org.openjdk.jmh.Main CommandParserBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+
+    @Param({"PUT a2V5MTIz dmFsdWUgd2l0aCBzb21lIGxlbmd0aA== \r\n", "GET a2V5MTIz \r\n"})
+    public String command;
+
+    private byte[] data;
+    private KVCommandParser parser;
+
+    @Setup
+    public void setup() throws UnsupportedEncodingException {
+        data = command.getBytes(TELNET_ENCODING);
+        parser = new KVCommandParser();
+    }
+
+    /**
+     * The parsing path of KVCommandProcessor before the byte parser: decode, regex split, lowercase, join the value
+     * and format a log line.
+     */
+    @Benchmark
+    public void regexSplit(Blackhole bh) throws UnsupportedEncodingException {
+        String received = new String(data, TELNET_ENCODING);
+        String[] request = received.split("\\s");
+        request[0] = request[0].toLowerCase();
+
+        StringJoiner v = new StringJoiner(" ");
+        for (int i = 2; i < request.length; i++) {
+            v.add(request[i]);
+        }
+
+        switch (request[0]) {
+            case "put":
+                bh.consume(request[1]);
+                bh.consume(v.toString());
+                break;
+            case "get":
+                bh.consume(request[1]);
+                break;
+        }
+        bh.consume(String.format("Put a key with arguments: %s", String.join(" ", received)));
+    }
+
+    @Benchmark
+    public void byteParser(Blackhole bh) {
+        parser.reset(data, 0, data.length);
+        while (parser.next(false)) {
+            switch (parser.command()) {
+                case PUT:
+                    bh.consume(parser.key());
+                    bh.consume(parser.value());
+                    break;
+                case GET:
+                    bh.consume(parser.key());
+                    break;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CommandParserBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,180 @@
+package de.tum.i13;
+
+import de.tum.i13.server.ecs.ECSServer;
+import de.tum.i13.server.kv.KVMessage;
+import de.tum.i13.server.kv.ServerMessage;
+import de.tum.i13.server.nio.SimpleNioServer;
+import de.tum.i13.shared.B64Util;
+import de.tum.i13.shared.Metadata;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+
+public class TestECSServer {
+
+    @TempDir
+    Path dir;
+
+    // an ECS on the directory which got a server join, the metadata is published in the pool
+    private static ECSServer join(Path dir, int port) throws Exception {
+        ECSServer ecs = new ECSServer(1, dir);
+        ecs.setServer(mock(SimpleNioServer.class));
+        long before = ecs.getEpoch();
+        ecs.newServer(new ServerMessage(KVMessage.StatusType.NEW_SERVER, B64Util.b64encode("new"),
+                B64Util.b64encode("127.0.0.1," + port + "," + (port + 1000)), mock(SelectionKey.class)));
+        for (int i = 0; i < 100 && ecs.getEpoch() == before; i++)
+            Thread.sleep(10);
+        assertEquals(before + 1, ecs.getEpoch());
+        return ecs;
+    }
+
+    @Test
+    public void continuesEpochAfterRestart() throws Exception {
+        assertEquals(1, join(dir, 7301).getEpoch());
+        // a restarted ECS starts at the epoch of the last run, its first metadata is newer than everything sent
+        ECSServer restarted = new ECSServer(1, dir);
+        assertEquals(1, restarted.getEpoch());
+        assertEquals(2, join(dir, 7302).getEpoch());
+        assertEquals("2", Files.readString(dir.resolve("ecs_epoch")));
+    }
+
+    @Test
+    public void startsAtZeroWithoutReadableEpoch() throws Exception {
+        assertEquals(0, new ECSServer(1, dir).getEpoch());
+        Files.writeString(dir.resolve("ecs_epoch"), "not an epoch");
+        assertEquals(0, new ECSServer(1, dir).getEpoch());
+        assertEquals(0, new ECSServer(1, null).getEpoch());
+    }
+
+    // a port which greets like a KVServer and records the lines it receives
+    private static BlockingQueue<String> listen(List<ServerSocket> sockets, int port) throws Exception {
+        ServerSocket socket = new ServerSocket(port);
+        sockets.add(socket);
+        BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket client = socket.accept();
+                    OutputStream out = client.getOutputStream();
+                    out.write("hello\r\n".getBytes(TELNET_ENCODING));
+                    out.flush();
+                    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.ISO_8859_1));
+                    new Thread(() -> {
+                        try {
+                            for (String line = in.readLine(); line != null; line = in.readLine())
+                                lines.add(line);
+                        } catch (Exception ignored) {
+                        }
+                    }).start();
+                }
+            } catch (Exception ignored) {
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return lines;
+    }
+
+    private static String next(BlockingQueue<String> lines, String command) throws Exception {
+        for (String line = lines.poll(5, TimeUnit.SECONDS); line != null; line = lines.poll(5, TimeUnit.SECONDS))
+            if (line.startsWith(command + " "))
+                return line;
+        return null;
+    }
+
+    // an ECS with four servers of one token each, from the first port on, by token: port
+    private static TreeMap<String, Integer> ring(ECSServer ecs, List<ServerSocket> sockets, int first,
+                                                 Map<Integer, BlockingQueue<String>> lines) throws Exception {
+        TreeMap<String, Integer> ring = new TreeMap<>();
+        for (int port = first; port < first + 4; port++) {
+            lines.put(port, listen(sockets, port));
+            listen(sockets, port + 1000);
+            String token = Metadata.tokenHash("127.0.0.1", port, 0);
+            ring.put(token, port);
+            ecs.newServer(new ServerMessage(KVMessage.StatusType.NEW_SERVER, B64Util.b64encode("new"),
+                    B64Util.b64encode("127.0.0.1," + port + "," + (port + 1000)), mock(SelectionKey.class)));
+            ecs.rebalance_success(new ServerMessage(KVMessage.StatusType.REBALANCE_SUCCESS, B64Util.b64encode("ok"),
+                    B64Util.b64encode(token), mock(SelectionKey.class)));
+        }
+        return ring;
+    }
+
+    private static String handoff(int removed, String... ranges) {
+        return "handoff " + B64Util.b64encode("127.0.0.1:" + removed) + " "
+                + (ranges.length == 0 ? "null" : B64Util.b64encode(String.join("", ranges)));
+    }
+
+    private static String range(int target, String start, String end) {
+        return "127.0.0.1:" + (target + 1000) + "," + start + "," + end + ";";
+    }
+
+    @Test
+    public void handsRangesOfLeavingServerToNewHolders() throws Exception {
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            ECSServer ecs = new ECSServer(1, dir);
+            ecs.setServer(mock(SimpleNioServer.class));
+            Map<Integer, BlockingQueue<String>> lines = new TreeMap<>();
+            TreeMap<String, Integer> ring = ring(ecs, sockets, 7311, lines);
+            List<String> t = new ArrayList<>(ring.keySet());
+            int a = ring.get(t.get(0)), b = ring.get(t.get(1)), c = ring.get(t.get(2)), d = ring.get(t.get(3));
+
+            ecs.removeServer(new ServerMessage(KVMessage.StatusType.REMOVE_SERVER,
+                    B64Util.b64encode("127.0.0.1," + b + "," + (b + 1000)), "leave", mock(SelectionKey.class)));
+
+            // the leaving server copies its own range to the new replica, the coordinators of the ranges it
+            // replicated copy them to the next servers
+            assertEquals(handoff(b, range(a, t.get(0), t.get(1))), next(lines.get(b), "handoff"));
+            assertEquals(handoff(b, range(d, t.get(3), t.get(0))), next(lines.get(a), "handoff"));
+            assertEquals(handoff(b, range(c, t.get(2), t.get(3))), next(lines.get(d), "handoff"));
+        } finally {
+            for (ServerSocket socket : sockets)
+                socket.close();
+        }
+    }
+
+    @Test
+    public void copiesRangesOfFailedServerFromRemainingHolders() throws Exception {
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            ECSServer ecs = new ECSServer(1, dir);
+            ecs.setServer(mock(SimpleNioServer.class));
+            Map<Integer, BlockingQueue<String>> lines = new TreeMap<>();
+            TreeMap<String, Integer> ring = ring(ecs, sockets, 7321, lines);
+            List<String> t = new ArrayList<>(ring.keySet());
+            int a = ring.get(t.get(0)), b = ring.get(t.get(1)), c = ring.get(t.get(2)), d = ring.get(t.get(3));
+
+            ecs.removeServer(new ServerMessage(KVMessage.StatusType.REMOVE_SERVER,
+                    B64Util.b64encode("127.0.0.1," + b + "," + (b + 1000)), "failed", mock(SelectionKey.class)));
+
+            // the first replica of the failed server copies its range
+            assertEquals(handoff(b, range(a, t.get(0), t.get(1))), next(lines.get(c), "handoff"));
+            assertEquals(handoff(b, range(d, t.get(3), t.get(0))), next(lines.get(a), "handoff"));
+            assertEquals(handoff(b, range(c, t.get(2), t.get(3))), next(lines.get(d), "handoff"));
+            assertNull(lines.get(b).stream().filter(line -> line.startsWith("handoff")).findAny().orElse(null));
+        } finally {
+            for (ServerSocket socket : sockets)
+                socket.close();
+        }
+    }
+}
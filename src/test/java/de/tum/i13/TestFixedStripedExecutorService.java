@@ -0,0 +1,126 @@
+package de.tum.i13;
+
+import de.tum.i13.server.stripe.FixedStripedExecutorService;
+import de.tum.i13.server.stripe.StripedCallable;
+import de.tum.i13.server.stripe.StripedRunnable;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestFixedStripedExecutorService {
+
+    @Test
+    public void testMultipleStripesKeepOrder() throws InterruptedException {
+        final ExecutorService pool = new FixedStripedExecutorService(4);
+        final AtomicBoolean outOfSequence = new AtomicBoolean();
+        ExecutorService producerPool = Executors.newCachedThreadPool();
+        for (int i = 0; i < 20; i++) {
+            producerPool.submit(() -> {
+                Object stripe = new Object();
+                AtomicInteger actual = new AtomicInteger(0);
+                for (int j = 0; j < 1000; j++)
+                    pool.submit(new SequenceRunnable(stripe, actual, j, outOfSequence));
+            });
+        }
+        producerPool.shutdown();
+        assertTrue(producerPool.awaitTermination(1, TimeUnit.MINUTES));
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        assertTrue(pool.isTerminated());
+        assertFalse(outOfSequence.get(), "Expected no out-of-sequence runnables to execute");
+    }
+
+    @Test
+    public void testCallableWithCompletionService() throws InterruptedException, ExecutionException {
+        ExecutorService pool = new FixedStripedExecutorService(4);
+        CompletionService<Integer> cs = new ExecutorCompletionService<>(pool);
+        Object stripe = new Object();
+        for (int i = 0; i < 100; i++) {
+            final int expected = i;
+            cs.submit(new StripedCallable<Integer>() {
+                public Object getStripe() {
+                    return stripe;
+                }
+
+                public Integer call() {
+                    return expected;
+                }
+            });
+        }
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, cs.take().get().intValue());
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+    }
+
+    @Test
+    public void testShutdownNow() throws InterruptedException {
+        ExecutorService pool = new FixedStripedExecutorService(2);
+        Object stripe = new Object();
+        AtomicInteger actual = new AtomicInteger(0);
+        AtomicBoolean outOfSequence = new AtomicBoolean();
+        for (int i = 0; i < 100; i++) {
+            final int expected = i;
+            pool.submit(new StripedRunnable() {
+                public Object getStripe() {
+                    return stripe;
+                }
+
+                public void run() {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    if (actual.getAndIncrement() != expected)
+                        outOfSequence.set(true);
+                }
+            });
+        }
+        Thread.sleep(200);
+        List<Runnable> unfinished = pool.shutdownNow();
+
+        assertTrue(pool.isShutdown());
+        assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        assertTrue(pool.isTerminated());
+        assertFalse(unfinished.isEmpty());
+        assertEquals(100, unfinished.size() + actual.intValue());
+        assertFalse(outOfSequence.get());
+        assertThrows(RejectedExecutionException.class, () -> pool.submit(() -> { }));
+    }
+
+    private static class SequenceRunnable implements StripedRunnable {
+        private final Object stripe;
+        private final AtomicInteger stripeSequence;
+        private final int expected;
+        private final AtomicBoolean outOfSequence;
+
+        private SequenceRunnable(Object stripe, AtomicInteger stripeSequence, int expected, AtomicBoolean outOfSequence) {
+            this.stripe = stripe;
+            this.stripeSequence = stripeSequence;
+            this.expected = expected;
+            this.outOfSequence = outOfSequence;
+        }
+
+        public Object getStripe() {
+            return stripe;
+        }
+
+        public void run() {
+            if (stripeSequence.getAndIncrement() != expected)
+                outOfSequence.set(true);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package de.tum.i13;
+
+import de.tum.i13.server.disk.HintStore;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestHintStore {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void returnsHintsInOrder() throws IOException {
+        HintStore store = new HintStore(dir);
+        assertNull(store.poll("127.0.0.1:5000"));
+        store.append("127.0.0.1:5000", "1 p a b");
+        store.append("127.0.0.1:5000", "1 d a");
+        store.append("127.0.0.1:5001", "1 p c d");
+        assertEquals(2, store.size("127.0.0.1:5000"));
+        assertTrue(Files.exists(dir.resolve("127.0.0.1_5000.hints")));
+
+        assertEquals("1 p a b", store.poll("127.0.0.1:5000"));
+        // hints appended while reading are returned after the older ones
+        store.append("127.0.0.1:5000", "1 p e f");
+        assertEquals("1 d a", store.poll("127.0.0.1:5000"));
+        assertEquals("1 p e f", store.poll("127.0.0.1:5000"));
+        assertNull(store.poll("127.0.0.1:5000"));
+        assertEquals(0, store.size("127.0.0.1:5000"));
+        assertFalse(Files.exists(dir.resolve("127.0.0.1_5000.hints")));
+
+        store.discard("127.0.0.1:5001");
+        assertNull(store.poll("127.0.0.1:5001"));
+        assertFalse(Files.exists(dir.resolve("127.0.0.1_5001.hints")));
+    }
+
+    @Test
+    public void deletesHintsOfPreviousRun() throws IOException {
+        Files.write(dir.resolve("127.0.0.1_5000.hints"), "1 p a b\n".getBytes());
+        HintStore store = new HintStore(dir);
+        assertNull(store.poll("127.0.0.1:5000"));
+        assertFalse(Files.exists(dir.resolve("127.0.0.1_5000.hints")));
+    }
+}
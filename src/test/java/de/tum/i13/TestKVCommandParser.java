@@ -0,0 +1,97 @@
+package de.tum.i13;
+
+import de.tum.i13.server.kv.KVCommandParser;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestKVCommandParser {
+
+    private KVCommandParser parse(String command, boolean withPassword) {
+        KVCommandParser parser = new KVCommandParser();
+        byte[] data = command.getBytes();
+        parser.reset(data, 0, data.length);
+        assertTrue(parser.next(withPassword));
+        return parser;
+    }
+
+    @Test
+    public void parsesPutWithValueContainingSpaces() {
+        KVCommandParser parser = parse("PuT key hello world \r\n", false);
+        assertEquals(KVCommandParser.Command.PUT, parser.command());
+        assertEquals("key", parser.key());
+        assertEquals("hello world", parser.value());
+        assertNull(parser.password());
+    }
+
+    @Test
+    public void parsesPassword() {
+        KVCommandParser parser = parse("put key value secret\r\n", true);
+        assertEquals("key", parser.key());
+        assertEquals("value", parser.value());
+        assertEquals("secret", parser.password());
+
+        parser = parse("get key secret\r\n", true);
+        assertEquals(KVCommandParser.Command.GET, parser.command());
+        assertEquals("", parser.value());
+        assertEquals("secret", parser.password());
+    }
+
+    @Test
+    public void unknownCommand() {
+        KVCommandParser parser = parse("hello key\r\n", false);
+        assertEquals(KVCommandParser.Command.UNKNOWN, parser.command());
+        parser = parse("\r\n", false);
+        assertEquals(KVCommandParser.Command.UNKNOWN, parser.command());
+        assertFalse(parser.hasKey());
+    }
+
+    @Test
+    public void parsesMultipleCommands() {
+        KVCommandParser parser = parse("get a\r\nkeyrange_read\r\n", false);
+        assertEquals(KVCommandParser.Command.GET, parser.command());
+        assertEquals("a", parser.key());
+        assertTrue(parser.next(false));
+        assertEquals(KVCommandParser.Command.KEYRANGE_READ, parser.command());
+        assertFalse(parser.next(false));
+    }
+
+    @Test
+    public void parsesRequestId() {
+        KVCommandParser parser = parse("#42 get key\r\n", false);
+        assertEquals("42", parser.requestId());
+        assertEquals(KVCommandParser.Command.GET, parser.command());
+        assertEquals("key", parser.key());
+
+        parser = parse("get key\r\n", false);
+        assertNull(parser.requestId());
+    }
+
+    @Test
+    public void parsesBatchArguments() {
+        KVCommandParser parser = parse("mput a 1 b 2\r\n", true);
+        assertEquals(KVCommandParser.Command.MPUT, parser.command());
+        assertEquals("a 1 b 2", parser.arguments());
+        assertNull(parser.password());
+    }
+
+    @Test
+    public void parsesCasAndIncr() {
+        KVCommandParser parser = parse("cas key - new\r\n", false);
+        assertEquals(KVCommandParser.Command.CAS, parser.command());
+        assertEquals("key", parser.key());
+        assertEquals("- new", parser.value());
+
+        // cas and incr carry no password, the last token stays part of the value
+        parser = parse("CAS key old new\r\n", true);
+        assertEquals("old new", parser.value());
+        assertNull(parser.password());
+
+        parser = parse("incr counter -5\r\n", true);
+        assertEquals(KVCommandParser.Command.INCR, parser.command());
+        assertEquals("counter", parser.key());
+        assertEquals("-5", parser.value());
+        assertTrue(KVCommandParser.Command.CAS.requiresKey());
+        assertTrue(KVCommandParser.Command.INCR.requiresKey());
+    }
+}
@@ -0,0 +1,501 @@
+package de.tum.i13;
+
+import de.tum.i13.server.disk.DiskManager;
+import de.tum.i13.server.kv.KVMessage;
+import de.tum.i13.server.kv.KVServer;
+import de.tum.i13.server.kv.KVServerInfo;
+import de.tum.i13.server.kv.ServerMessage;
+import de.tum.i13.server.nio.SimpleNioServer;
+import de.tum.i13.server.replication.WriteConsistency;
+import de.tum.i13.shared.B64Util;
+import de.tum.i13.shared.Metadata;
+import de.tum.i13.shared.Util;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static de.tum.i13.shared.Constants.TELNET_ENCODING;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class TestKVServer {
+
+    @TempDir
+    Path dir;
+
+    // answers the server sent to clients, in the order they were sent
+    private final BlockingQueue<String> answers = new LinkedBlockingQueue<>();
+    // while gate is set, answers sent from the pool wait for it and keep their request in flight
+    private volatile CountDownLatch gate;
+    private final Semaphore held = new Semaphore(0);
+    private Thread testThread;
+
+    private static String ring(int... ports) {
+        StringJoiner ring = new StringJoiner(";");
+        for (int port : ports)
+            ring.add(new KVServerInfo("127.0.0.1", port, "", Metadata.tokenHash("127.0.0.1", port, 0), port + 1000).toString());
+        return ring.toString();
+    }
+
+    // a server on the given port of a ring of the given servers, its answers are collected in answers
+    private KVServer server(int port, int... ring) throws Exception {
+        DiskManager.getInstance().initDiskManager(dir.toString());
+        // the ECS is not running, the server is activated with the metadata below
+        KVServer kv = new KVServer("FIFO", 100, new InetSocketAddress("127.0.0.1", 1), "127.0.0.1", port, port + 1000);
+        SimpleNioServer nio = mock(SimpleNioServer.class);
+        testThread = Thread.currentThread();
+        doAnswer(invocation -> {
+            CountDownLatch gate = this.gate;
+            if (gate != null && Thread.currentThread() != testThread) {
+                held.release();
+                gate.await();
+            }
+            return answers.add(new String((byte[]) invocation.getArgument(1), TELNET_ENCODING).trim());
+        }).when(nio).send(any(), any());
+        kv.setServer(nio);
+        kv.receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA, B64Util.b64encode("1"),
+                B64Util.b64encode(ring(ring.length == 0 ? new int[]{port} : ring))));
+        awaitEpoch(kv, 1);
+        return kv;
+    }
+
+    // the metadata is applied in its own stripe, the keyrange requests may overtake it
+    private void awaitEpoch(KVServer kv, long epoch) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            kv.getKeyRange(request(KVMessage.StatusType.KEY_RANGE_EPOCH, null, null));
+            if (answer().startsWith("keyrange_epoch " + epoch + " "))
+                return;
+            Thread.sleep(10);
+        }
+        fail("metadata was never applied");
+    }
+
+    private static ServerMessage request(KVMessage.StatusType status, String key, String value) {
+        return new ServerMessage(status, key, value, mock(SelectionKey.class));
+    }
+
+    private String answer() throws InterruptedException {
+        String answer = answers.poll(5, TimeUnit.SECONDS);
+        assertNotNull(answer, "no answer");
+        return answer;
+    }
+
+    // a key of the range of the server on the given port in a ring of the given servers
+    private static String keyOf(int port, String prefix, int... ring) {
+        Metadata metadata = new Metadata(new KVServerInfo("127.0.0.1", port, "", "", port + 1000), ring(ring));
+        for (int i = 0; ; i++)
+            if (metadata.checkHashResponsible(Util.calculateHash(prefix + i)))
+                return prefix + i;
+    }
+
+    @Test
+    public void answersMixedBatches() throws Exception {
+        KVServer kv = server(7101);
+        kv.batch(request(KVMessage.StatusType.MPUT, null, "a 1 b 2 a 3"));
+        assertEquals("batch_result put_success:a:1 put_success:b:2 put_update:a:3", answer());
+
+        kv.batch(request(KVMessage.StatusType.MGET, null, "a b c"));
+        String[] gets = answer().split(" ");
+        assertEquals("batch_result", gets[0]);
+        assertEquals("get_success:a:3", gets[1]);
+        assertEquals("get_success:b:2", gets[2]);
+        assertTrue(gets[3].startsWith("get_error:c:"), gets[3]);
+
+        kv.batch(request(KVMessage.StatusType.MDELETE, null, "b c"));
+        String[] deletes = answer().split(" ");
+        assertTrue(deletes[1].startsWith("delete_success:b"), deletes[1]);
+        assertTrue(deletes[2].startsWith("delete_error:c:"), deletes[2]);
+
+        kv.batch(request(KVMessage.StatusType.MGET, null, "b"));
+        assertTrue(answer().startsWith("batch_result get_error:b:"));
+
+        kv.batch(request(KVMessage.StatusType.MPUT, null, "a"));
+        assertTrue(answer().startsWith("error "));
+    }
+
+    @Test
+    public void answersKeysOfOtherServersPerEntry() throws Exception {
+        KVServer kv = server(7111, 7111, 7112);
+        String own = keyOf(7111, "own", 7111, 7112);
+        String other = keyOf(7112, "other", 7111, 7112);
+
+        kv.batch(request(KVMessage.StatusType.MPUT, null, other + " x " + own + " y"));
+        assertEquals("batch_result server_not_responsible:" + other + ": put_success:" + own + ":y", answer());
+
+        kv.batch(request(KVMessage.StatusType.MGET, null, own + " " + other));
+        assertEquals("batch_result get_success:" + own + ":y server_not_responsible:" + other + ":", answer());
+
+        // a batch of foreign keys only is answered without touching the store
+        kv.batch(request(KVMessage.StatusType.MDELETE, null, other));
+        assertEquals("batch_result server_not_responsible:" + other + ":", answer());
+    }
+
+    @Test
+    public void comparesAndSets() throws Exception {
+        KVServer kv = server(7121);
+        // - expects a missing key
+        kv.cas(request(KVMessage.StatusType.CAS, "casKey", "- v1"));
+        assertEquals("cas_success casKey v1", answer());
+        kv.cas(request(KVMessage.StatusType.CAS, "casKey", "- v2"));
+        assertEquals("cas_failed casKey v1", answer());
+        kv.cas(request(KVMessage.StatusType.CAS, "casKey", "v0 v2"));
+        assertEquals("cas_failed casKey v1", answer());
+        kv.cas(request(KVMessage.StatusType.CAS, "casKey", "v1 v2"));
+        assertEquals("cas_success casKey v2", answer());
+        kv.get(request(KVMessage.StatusType.GET, "casKey", null));
+        assertEquals("get_success casKey v2", answer());
+
+        // a missing key has no current value
+        kv.cas(request(KVMessage.StatusType.CAS, "casMissing", "v1 v2"));
+        assertEquals("cas_failed casMissing", answer());
+        kv.cas(request(KVMessage.StatusType.CAS, "casKey", "v2"));
+        assertTrue(answer().startsWith("cas_error casKey "));
+    }
+
+    @Test
+    public void incrementsNumbers() throws Exception {
+        KVServer kv = server(7131);
+        // a missing key counts as 0, values are Base64 encoded like the values of the client
+        kv.incr(request(KVMessage.StatusType.INCR, "counter", "5"));
+        assertEquals("incr_success counter " + B64Util.b64encode("5"), answer());
+        kv.incr(request(KVMessage.StatusType.INCR, "counter", "-7"));
+        assertEquals("incr_success counter " + B64Util.b64encode("-2"), answer());
+
+        kv.put(request(KVMessage.StatusType.PUT, "word", B64Util.b64encode("hello")));
+        answer();
+        kv.incr(request(KVMessage.StatusType.INCR, "word", "1"));
+        assertTrue(answer().startsWith("incr_error word "));
+        kv.get(request(KVMessage.StatusType.GET, "word", null));
+        assertEquals("get_success word " + B64Util.b64encode("hello"), answer());
+
+        kv.incr(request(KVMessage.StatusType.INCR, "counter", "one"));
+        assertTrue(answer().startsWith("incr_error counter "));
+    }
+
+    // polls the stats until no admitted request is in flight anymore
+    private void awaitIdle(KVServer kv) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            kv.stats(request(KVMessage.StatusType.STATS, null, null));
+            if (answer().startsWith("stats in_flight=0 "))
+                return;
+            Thread.sleep(10);
+        }
+        fail("requests are still in flight");
+    }
+
+    // polls the key until the server has it, pairs of other servers are applied asynchronously
+    private void awaitValue(KVServer kv, String key, String value) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            kv.get(request(KVMessage.StatusType.GET, key, null));
+            if (answer().equals("get_success " + key + " " + value))
+                return;
+            Thread.sleep(20);
+        }
+        fail("key " + key + " never arrived");
+    }
+
+    @Test
+    public void keepsExpirationsOfTransferredPairs() throws Exception {
+        KVServer kv = server(7141);
+        long expiresAt = System.currentTimeMillis() + 500;
+        String source = B64Util.b64encode("127.0.0.1:7142");
+        kv.receiveRebalanceChunk(new ServerMessage(KVMessage.StatusType.REBALANCE_CHUNK, source, "1 1 3"
+                + " p " + B64Util.b64encode("moved") + " " + B64Util.b64encode("v")
+                + " e " + B64Util.b64encode("moved") + " " + expiresAt
+                + " p " + B64Util.b64encode("gone") + " " + B64Util.b64encode("v")
+                + " e " + B64Util.b64encode("gone") + " 1"
+                + " p " + B64Util.b64encode("kept") + " " + B64Util.b64encode("v")));
+        awaitValue(kv, "kept", "v");
+        kv.get(request(KVMessage.StatusType.GET, "gone", null));
+        assertTrue(answer().startsWith("get_error gone "));
+        kv.get(request(KVMessage.StatusType.GET, "moved", null));
+        assertEquals("get_success moved v", answer());
+
+        Thread.sleep(Math.max(0, expiresAt - System.currentTimeMillis() + 50));
+        kv.get(request(KVMessage.StatusType.GET, "moved", null));
+        assertTrue(answer().startsWith("get_error moved "));
+        kv.get(request(KVMessage.StatusType.GET, "kept", null));
+        assertEquals("get_success kept v", answer());
+    }
+
+    @Test
+    public void keepsExpirationsOfReplicatedPairs() throws Exception {
+        KVServer kv = server(7151);
+        String source = B64Util.b64encode("127.0.0.1:7152");
+        kv.receiveReplicateBatch(new ServerMessage(KVMessage.StatusType.REPLICATE_BATCH, source, "1 1 0"
+                + " p " + B64Util.b64encode("replicaTtl") + " " + B64Util.b64encode("v")
+                + " e " + B64Util.b64encode("replicaTtl") + " 1"
+                + " p " + B64Util.b64encode("replicaKept") + " " + B64Util.b64encode("v")));
+        awaitValue(kv, "replicaKept", "v");
+        kv.get(request(KVMessage.StatusType.GET, "replicaTtl", null));
+        assertTrue(answer().startsWith("get_error replicaTtl "));
+
+        // a put without expiration removes the expiration of the previous value
+        kv.receiveReplicateBatch(new ServerMessage(KVMessage.StatusType.REPLICATE_BATCH, source, "1 2 1"
+                + " p " + B64Util.b64encode("replicaTtl") + " " + B64Util.b64encode("w")));
+        awaitValue(kv, "replicaTtl", "w");
+    }
+
+    @Test
+    public void admitsBatchesWithinTheBudget() throws Exception {
+        KVServer kv = server(7161);
+        kv.setMaxInFlight(2);
+        // more keys than the budget, admitted because nothing else is in flight
+        kv.batch(request(KVMessage.StatusType.MPUT, null, "budget1 1 budget2 2 budget3 3"));
+        assertEquals("batch_result put_success:budget1:1 put_success:budget2:2 put_success:budget3:3", answer());
+
+        // a put and a batch waiting for their answers keep the budget busy
+        awaitIdle(kv);
+        CountDownLatch release = new CountDownLatch(1);
+        gate = release;
+        kv.put(request(KVMessage.StatusType.PUT, "budgetHeld", "v"));
+        assertTrue(held.tryAcquire(5, TimeUnit.SECONDS));
+        kv.batch(request(KVMessage.StatusType.MGET, null, "budget1"));
+        assertTrue(held.tryAcquire(5, TimeUnit.SECONDS));
+        gate = null;
+        kv.batch(request(KVMessage.StatusType.MGET, null, "budget2"));
+        assertTrue(answer().startsWith("server_busy "));
+        kv.batch(request(KVMessage.StatusType.MGET, null, "budget1 budget2 budget3"));
+        assertTrue(answer().startsWith("server_busy "));
+
+        release.countDown();
+        Set<String> released = new HashSet<>(Arrays.asList(answer(), answer()));
+        assertEquals(new HashSet<>(Arrays.asList("put_success budgetHeld v", "batch_result get_success:budget1:1")), released);
+        // the slots are free once the answers are sent
+        awaitIdle(kv);
+        kv.batch(request(KVMessage.StatusType.MGET, null, "budget1 budget2 budget3"));
+        assertEquals("batch_result get_success:budget1:1 get_success:budget2:2 get_success:budget3:3", answer());
+    }
+
+    @Test
+    public void answersCachedReadsOnTheCallingThread() throws Exception {
+        KVServer kv = server(7171);
+        kv.put(request(KVMessage.StatusType.PUT, "cachedKey", "v1"));
+        assertEquals("put_success cachedKey v1", answer());
+        awaitIdle(kv);
+
+        // a cached key is answered right away, without the pool
+        kv.get(request(KVMessage.StatusType.GET, "cachedKey", null));
+        assertEquals("get_success cachedKey v1", answers.poll());
+
+        // while a write of the key is pending, the get runs after it in the stripe of the key
+        CountDownLatch release = new CountDownLatch(1);
+        gate = release;
+        kv.put(request(KVMessage.StatusType.PUT, "cachedKey", "v2"));
+        assertTrue(held.tryAcquire(5, TimeUnit.SECONDS));
+        gate = null;
+        kv.get(request(KVMessage.StatusType.GET, "cachedKey", null));
+        assertNull(answers.poll());
+        release.countDown();
+        assertEquals("put_update cachedKey v2", answer());
+        assertEquals("get_success cachedKey v2", answer());
+    }
+
+    @Test
+    public void coalescesQueuedPutsOfOneKey() throws Exception {
+        KVServer kv = server(7181);
+        // counts the disk writes of the key
+        List<String> writes = new CopyOnWriteArrayList<>();
+        Handler handler = new Handler() {
+            public void publish(LogRecord record) {
+                if (record.getMessage().startsWith("Put into disk: <coalesced,"))
+                    writes.add(record.getMessage());
+            }
+
+            public void flush() {
+            }
+
+            public void close() {
+            }
+        };
+        Logger disk = Logger.getLogger(DiskManager.class.getName());
+        disk.addHandler(handler);
+        try {
+            // the first put occupies the stripe of the key, the next ones queue up behind it
+            CountDownLatch release = new CountDownLatch(1);
+            gate = release;
+            kv.put(request(KVMessage.StatusType.PUT, "coalesced", "v0"));
+            assertTrue(held.tryAcquire(5, TimeUnit.SECONDS));
+            gate = null;
+            kv.put(request(KVMessage.StatusType.PUT, "coalesced", "v1"));
+            kv.put(request(KVMessage.StatusType.PUT, "coalesced", "v2"));
+            kv.put(request(KVMessage.StatusType.PUT, "coalesced", "v3"));
+            release.countDown();
+
+            assertEquals("put_success coalesced v0", answer());
+            assertEquals("put_update coalesced v1", answer());
+            assertEquals("put_update coalesced v2", answer());
+            assertEquals("put_update coalesced v3", answer());
+            kv.get(request(KVMessage.StatusType.GET, "coalesced", null));
+            assertEquals("get_success coalesced v3", answer());
+            assertEquals(Arrays.asList("Put into disk: <coalesced, v0>", "Put into disk: <coalesced, v3>"), writes);
+        } finally {
+            disk.removeHandler(handler);
+        }
+    }
+
+    @Test
+    public void keepsSlotsOfPutsWaitingForReplicas() throws Exception {
+        KVServer kv = server(7191, 7191, 7192, 7193);
+        kv.setWriteConsistency(WriteConsistency.ONE);
+        String key = keyOf(7191, "replicated", 7191, 7192, 7193);
+        // the replicas listen on their intra ports
+        try (ServerSocket replica = new ServerSocket(8192); ServerSocket other = new ServerSocket(8193)) {
+            kv.put(request(KVMessage.StatusType.PUT, key, "v"));
+            assertNull(answers.poll(200, TimeUnit.MILLISECONDS));
+            kv.stats(request(KVMessage.StatusType.STATS, null, null));
+            assertTrue(answer().startsWith("stats in_flight=1 "));
+
+            replica.setSoTimeout(5000);
+            Socket connection = replica.accept();
+            connection.setSoTimeout(5000);
+            String batch = new BufferedReader(new InputStreamReader(connection.getInputStream(), TELNET_ENCODING)).readLine();
+            String[] tokens = batch.split(" ");
+            assertEquals("replicate_batch", tokens[0]);
+            kv.receiveReplicateAck(new ServerMessage(KVMessage.StatusType.REPLICATE_ACK, B64Util.b64encode("127.0.0.1:8192"),
+                    tokens[2] + " " + tokens[3]));
+            assertEquals("put_success " + key + " v", answer());
+            awaitIdle(kv);
+        }
+    }
+
+    // a token of the server on the given port, the hash starts with the given digit
+    private static String token(int port, String digit) {
+        KVServerInfo token = new KVServerInfo("127.0.0.1", port, "", digit + "0".repeat(31), port + 1000);
+        token.setServerKeyHash(token.getEndIndex());
+        return token.toString();
+    }
+
+    // reads the acknowledgement of a chunk the server sent to the source of a transfer
+    private static String acknowledgement(ServerSocket source) throws IOException {
+        source.setSoTimeout(5000);
+        Socket connection = source.accept();
+        connection.setSoTimeout(5000);
+        return new BufferedReader(new InputStreamReader(connection.getInputStream(), TELNET_ENCODING)).readLine();
+    }
+
+    @Test
+    public void keepsCopiesOfReplicasForRangesStillJoining() throws Exception {
+        // 7201 serves its first token already, the range of its second token is still copied from 7202
+        KVServer kv = server(7201, 7201, 7202);
+        String first = token(7201, "4") + ";" + token(7202, "8");
+        String joined = first + ";" + token(7201, "6");
+        kv.receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA, B64Util.b64encode("2"), B64Util.b64encode(first)));
+        awaitEpoch(kv, 2);
+        Metadata after = new Metadata(new KVServerInfo("127.0.0.1", 7201, "", "", 8201), joined);
+        Metadata before = new Metadata(new KVServerInfo("127.0.0.1", 7201, "", "", 8201), first);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 1000 && keys.size() < 2; i++) {
+            String hash = Util.calculateHash("joining" + i);
+            if (after.checkHashResponsible(hash) && !before.checkHashResponsible(hash))
+                keys.add("joining" + i);
+        }
+
+        // the coordinator 7202 sends one key, a replica copies both keys with older values
+        try (ServerSocket coordinator = new ServerSocket(8202); ServerSocket replica = new ServerSocket(8203)) {
+            kv.receiveRebalanceChunk(new ServerMessage(KVMessage.StatusType.REBALANCE_CHUNK, B64Util.b64encode("127.0.0.1:8202"),
+                    "11 1 1 p " + B64Util.b64encode(keys.get(0)) + " " + B64Util.b64encode("new")));
+            assertTrue(acknowledgement(coordinator).startsWith("rebalance_ack "));
+            kv.receiveRebalanceChunk(new ServerMessage(KVMessage.StatusType.REBALANCE_CHUNK, B64Util.b64encode("127.0.0.1:8203"),
+                    "12 1 2 h " + B64Util.b64encode(keys.get(0)) + " " + B64Util.b64encode("old")
+                            + " h " + B64Util.b64encode(keys.get(1)) + " " + B64Util.b64encode("copied")));
+            assertTrue(acknowledgement(replica).startsWith("rebalance_ack "));
+        }
+
+        kv.receiveMetadata(new ServerMessage(KVMessage.StatusType.UPDATE_METADATA, B64Util.b64encode("3"), B64Util.b64encode(joined)));
+        awaitEpoch(kv, 3);
+        kv.get(request(KVMessage.StatusType.GET, keys.get(0), null));
+        assertEquals("get_success " + keys.get(0) + " new", answer());
+        kv.get(request(KVMessage.StatusType.GET, keys.get(1), null));
+        assertEquals("get_success " + keys.get(1) + " copied", answer());
+    }
+
+    @Test
+    public void answersCopiesOfHotKeysOnlyWithoutPassword() throws Exception {
+        KVServer kv = server(7211, 7211, 7212);
+        String key = keyOf(7212, "hot", 7211, 7212);
+        kv.receiveHotCopy(new ServerMessage(KVMessage.StatusType.HOT_COPY, B64Util.b64encode("127.0.0.1:8212"),
+                B64Util.b64encode(key) + " " + B64Util.b64encode("copy")));
+        kv.get(request(KVMessage.StatusType.GET, key, null));
+        assertEquals("get_success " + key + " copy", answer());
+
+        // a request with a password is never answered from a copy, the coordinator checks it
+        kv.get(new ServerMessage(KVMessage.StatusType.GET, key, null, mock(SelectionKey.class), "secret"));
+        assertTrue(answer().startsWith("server_not_responsible"));
+    }
+
+    @Test
+    public void scansRangesWrappingAroundTheRing() throws Exception {
+        KVServer kv = server(7221);
+        kv.batch(request(KVMessage.StatusType.MPUT, null, "scan0 1 scan1 2 scan2 3 scan3 4"));
+        answer();
+        List<String> hashes = new ArrayList<>();
+        for (String key : new String[]{"scan0", "scan1", "scan2", "scan3"})
+            hashes.add(Util.calculateHash(key));
+        hashes.sort(null);
+
+        // from after the third hash over the end of the ring up to the second one
+        kv.scan(request(KVMessage.StatusType.SCAN, null, hashes.get(2) + " " + hashes.get(1) + " 10"));
+        String[] page = answer().split("\r\n");
+        assertEquals(3, page.length);
+        assertTrue(page[0].startsWith("scan_entry ") && page[1].startsWith("scan_entry "));
+        assertEquals("scan_end -", page[2]);
+
+        kv.scan(request(KVMessage.StatusType.SCAN, null, "not-a-hash - 10"));
+        assertTrue(answer().startsWith("error "));
+    }
+
+    @Test
+    public void handsOffRangesAsCopiesWhichKeepNewerValues() throws Exception {
+        KVServer kv = server(7231);
+        kv.put(request(KVMessage.StatusType.PUT, "handoff0", "v"));
+        assertEquals("put_success handoff0 v", answer());
+        String token = Metadata.tokenHash("127.0.0.1", 7231, 0);
+
+        // the whole ring is copied to the new holder as c records
+        try (ServerSocket target = new ServerSocket(8232)) {
+            kv.handoff(new ServerMessage(KVMessage.StatusType.HANDOFF, B64Util.b64encode("127.0.0.1:7232"),
+                    B64Util.b64encode("127.0.0.1:8232," + token + "," + token + ";")));
+            String chunk = acknowledgement(target);
+            assertTrue(chunk.startsWith("rebalance_chunk "), chunk);
+            assertTrue(chunk.contains(" c " + B64Util.b64encode("handoff0") + " " + B64Util.b64encode("v")), chunk);
+        }
+
+        // copies only fill keys the holder has no value for
+        try (ServerSocket source = new ServerSocket(8233)) {
+            kv.receiveRebalanceChunk(new ServerMessage(KVMessage.StatusType.REBALANCE_CHUNK, B64Util.b64encode("127.0.0.1:8233"),
+                    "21 1 2 c " + B64Util.b64encode("handoff0") + " " + B64Util.b64encode("old")
+                            + " c " + B64Util.b64encode("handoff1") + " " + B64Util.b64encode("copied")));
+            assertTrue(acknowledgement(source).startsWith("rebalance_ack "));
+        }
+        kv.get(request(KVMessage.StatusType.GET, "handoff0", null));
+        assertEquals("get_success handoff0 v", answer());
+        kv.get(request(KVMessage.StatusType.GET, "handoff1", null));
+        assertEquals("get_success handoff1 copied", answer());
+    }
+}
@@ -0,0 +1,49 @@
+package de.tum.i13;
+
+import de.tum.i13.server.cache.Cache;
+import de.tum.i13.server.cache.LeastRecentlyUsedCache;
+import de.tum.i13.server.kv.KVMessage;
+import de.tum.i13.server.kv.ServerMessage;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestLeastRecentlyUsedCache {
+
+    private static KVMessage get(Cache cache, String key) {
+        return cache.get(new ServerMessage(KVMessage.StatusType.GET, key, null));
+    }
+
+    private static KVMessage put(Cache cache, String key, String value) {
+        return cache.put(new ServerMessage(KVMessage.StatusType.PUT, key, value));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedKey() {
+        // the cache is a singleton, no other test uses it
+        Cache cache = LeastRecentlyUsedCache.getInstance();
+        cache.initCache(3);
+        assertEquals(KVMessage.StatusType.PUT_SUCCESS, put(cache, "a", "1").getStatus());
+        put(cache, "b", "2");
+        put(cache, "c", "3");
+
+        // reading a makes b the least recently used key
+        assertEquals("1", get(cache, "a").getValue());
+        put(cache, "d", "4");
+        assertEquals(KVMessage.StatusType.GET_ERROR, get(cache, "b").getStatus());
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, get(cache, "c").getStatus());
+
+        // updating a key keeps the size and makes it the most recently used one
+        assertEquals(KVMessage.StatusType.PUT_UPDATE, put(cache, "d", "5").getStatus());
+        put(cache, "e", "6");
+        assertEquals(KVMessage.StatusType.GET_ERROR, get(cache, "a").getStatus());
+        assertEquals("5", get(cache, "d").getValue());
+
+        assertEquals(KVMessage.StatusType.DELETE_SUCCESS, cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, "c", null)).getStatus());
+        assertEquals(KVMessage.StatusType.DELETE_ERROR, cache.delete(new ServerMessage(KVMessage.StatusType.DELETE, "c", null)).getStatus());
+        put(cache, "f", "7");
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, get(cache, "d").getStatus());
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, get(cache, "e").getStatus());
+        assertEquals(KVMessage.StatusType.GET_SUCCESS, get(cache, "f").getStatus());
+    }
+}
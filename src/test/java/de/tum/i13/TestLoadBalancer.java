@@ -0,0 +1,103 @@
+package de.tum.i13;
+
+import de.tum.i13.server.ecs.LoadBalancer;
+import de.tum.i13.server.kv.KVServerInfo;
+import de.tum.i13.server.replication.MerkleTree;
+import de.tum.i13.shared.Metadata;
+import org.junit.jupiter.api.Test;
+
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestLoadBalancer {
+
+    private static TreeMap<String, KVServerInfo> ring(int servers) {
+        TreeMap<String, KVServerInfo> map = new TreeMap<>();
+        for (int s = 0; s < servers; s++) {
+            String token = Metadata.tokenHash("127.0.0.1", 5000 + s, 0);
+            KVServerInfo info = new KVServerInfo("127.0.0.1", 5000 + s, "", token, 6000 + s);
+            info.setServerKeyHash(token);
+            map.put(token, info);
+        }
+        return map;
+    }
+
+    private static String token(int server) {
+        return Metadata.tokenHash("127.0.0.1", 5000 + server, 0);
+    }
+
+    // every server reports at 0 and at 1000, the second report sets the rate
+    private static void report(LoadBalancer balancer, int server, long requests, long pairs) {
+        String id = "127.0.0.1:" + (5000 + server);
+        balancer.report(id, token(server) + ":0:" + pairs + ";", 0);
+        balancer.report(id, token(server) + ":" + requests + ":" + pairs + ";", 1000);
+    }
+
+    @Test
+    public void movesHalfOfBusiestRangeToIdleServer() {
+        TreeMap<String, KVServerInfo> ring = ring(3);
+        LoadBalancer balancer = new LoadBalancer(0);
+        report(balancer, 0, 900, 100);
+        report(balancer, 1, 50, 100);
+        report(balancer, 2, 10, 100);
+        assertEquals(900, balancer.getRate(token(0)), 1e-9);
+
+        // nothing moves within the first interval
+        assertNull(balancer.nextMove(ring, LoadBalancer.INTERVAL_MILLIS - 1));
+        LoadBalancer.Move move = balancer.nextMove(ring, LoadBalancer.INTERVAL_MILLIS);
+        assertNotNull(move);
+        assertEquals(token(0), move.getFrom());
+        assertEquals("127.0.0.1:5002", move.getTarget().getServerId());
+        String start = ring.lowerKey(token(0)) == null ? ring.lastKey() : ring.lowerKey(token(0));
+        assertTrue(MerkleTree.inRange(move.getToken(), start, token(0)));
+        assertEquals(450, balancer.getRate(token(0)), 1e-9);
+        assertEquals(450, balancer.getRate(move.getToken()), 1e-9);
+
+        // one move per interval
+        assertNull(balancer.nextMove(ring, LoadBalancer.INTERVAL_MILLIS + 1));
+    }
+
+    @Test
+    public void leavesBalancedOrIdleRingAlone() {
+        TreeMap<String, KVServerInfo> ring = ring(3);
+        LoadBalancer balanced = new LoadBalancer(0);
+        for (int s = 0; s < 3; s++)
+            report(balanced, s, 300, 100);
+        assertNull(balanced.nextMove(ring, LoadBalancer.INTERVAL_MILLIS));
+
+        // the imbalance does not matter at a few requests per second
+        LoadBalancer idle = new LoadBalancer(0);
+        report(idle, 0, 20, 100);
+        assertNull(idle.nextMove(ring, LoadBalancer.INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void respectsWeights() {
+        TreeMap<String, KVServerInfo> ring = ring(2);
+        ring.get(token(0)).setWeight(3);
+        LoadBalancer balancer = new LoadBalancer(0);
+        // three quarters of the requests are the share of a server with three times the weight
+        report(balancer, 0, 750, 100);
+        report(balancer, 1, 250, 100);
+        assertNull(balancer.nextMove(ring, LoadBalancer.INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void doesNotSplitSingleHotKey() {
+        TreeMap<String, KVServerInfo> ring = ring(3);
+        LoadBalancer balancer = new LoadBalancer(0);
+        report(balancer, 0, 900, 1);
+        report(balancer, 1, 50, 100);
+        report(balancer, 2, 50, 100);
+        assertNull(balancer.nextMove(ring, LoadBalancer.INTERVAL_MILLIS));
+    }
+
+    @Test
+    public void smoothesRates() {
+        LoadBalancer balancer = new LoadBalancer(0);
+        report(balancer, 0, 1000, 10);
+        balancer.report("127.0.0.1:5000", token(0) + ":0:10;garbage;", 2000);
+        assertEquals(700, balancer.getRate(token(0)), 1e-9);
+    }
+}
@@ -0,0 +1,86 @@
+package de.tum.i13;
+
+import de.tum.i13.server.replication.MerkleTree;
+import de.tum.i13.shared.Util;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMerkleTree {
+
+    private static final String ALL = "00000000000000000000000000000000";
+
+    @Test
+    public void updatesDigestsIncrementally() {
+        MerkleTree tree = new MerkleTree();
+        assertEquals(0, tree.digest(0, 0, ALL, ALL));
+        tree.put("a", "1");
+        long one = tree.digest(0, 0, ALL, ALL);
+        tree.put("a", "2");
+        assertNotEquals(one, tree.digest(0, 0, ALL, ALL));
+        tree.put("a", "1");
+        assertEquals(one, tree.digest(0, 0, ALL, ALL));
+        tree.remove("a");
+        tree.remove("unknown");
+        assertEquals(0, tree.digest(0, 0, ALL, ALL));
+        assertEquals(0, tree.size());
+    }
+
+    @Test
+    public void restrictsDigestsToRange() {
+        MerkleTree tree = new MerkleTree();
+        for (int i = 0; i < 1000; i++)
+            tree.put("key" + i, "value" + i);
+        String start = Util.calculateHash("key1");
+        String end = Util.calculateHash("key2");
+
+        // a pair outside the range does not change the digest, a pair inside does
+        MerkleTree other = new MerkleTree();
+        for (int i = 0; i < 1000; i++) {
+            if (MerkleTree.inRange(Util.calculateHash("key" + i), start, end))
+                other.put("key" + i, "value" + i);
+        }
+        assertEquals(tree.digest(0, 0, start, end), other.digest(0, 0, start, end));
+        assertNotEquals(tree.digest(0, 0, ALL, ALL), other.digest(0, 0, ALL, ALL));
+        // the wrapping complement of the range
+        long rest = tree.digest(0, 0, end, start);
+        assertEquals(tree.digest(0, 0, ALL, ALL), tree.digest(0, 0, start, end) ^ rest);
+    }
+
+    @Test
+    public void findsDifferingLeaves() {
+        MerkleTree coordinator = new MerkleTree();
+        MerkleTree replica = new MerkleTree();
+        for (int i = 0; i < 5000; i++) {
+            coordinator.put("key" + i, "value" + i);
+            replica.put("key" + i, "value" + i);
+        }
+        replica.put("key17", "stale");
+        replica.remove("key42");
+        replica.put("orphan", "value");
+
+        // descend from the root into the nodes whose digests differ
+        List<Integer> differing = List.of(0);
+        for (int level = 1; level <= MerkleTree.DEPTH; level++) {
+            List<Integer> next = new ArrayList<>();
+            for (int node : differing)
+                for (int child = node * MerkleTree.FANOUT; child < (node + 1) * MerkleTree.FANOUT; child++)
+                    if (coordinator.digest(level, child, ALL, ALL) != replica.digest(level, child, ALL, ALL))
+                        next.add(child);
+            differing = next;
+        }
+        assertTrue(differing.size() <= 3);
+        Set<String> keys = new HashSet<>();
+        for (int leaf : differing) {
+            keys.addAll(coordinator.keys(leaf, ALL, ALL));
+            keys.addAll(replica.keys(leaf, ALL, ALL));
+        }
+        assertTrue(keys.containsAll(List.of("key17", "key42", "orphan")));
+        assertTrue(keys.size() < 20);
+    }
+}
@@ -0,0 +1,192 @@
+package de.tum.i13;
+
+import de.tum.i13.server.kv.KVServerInfo;
+import de.tum.i13.shared.Metadata;
+import de.tum.i13.shared.Util;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestMetadata {
+
+    private static Metadata ring(int servers, int tokens, int self) {
+        return ring(new int[servers], tokens, self);
+    }
+
+    // server i gets tokens * (extra[i] + 1) tokens and weight extra[i] + 1
+    private static Metadata ring(int[] extra, int tokens, int self) {
+        TreeMap<String, KVServerInfo> map = new TreeMap<>();
+        for (int s = 0; s < extra.length; s++) {
+            for (int t = 0; t < tokens * (extra[s] + 1); t++) {
+                String token = Metadata.tokenHash("127.0.0.1", 5000 + s, t);
+                KVServerInfo info = new KVServerInfo("127.0.0.1", 5000 + s, "", token, 6000 + s);
+                info.setServerKeyHash(token);
+                info.setWeight(extra[s] + 1);
+                map.put(token, info);
+            }
+        }
+        Metadata metadata = new Metadata(new KVServerInfo("127.0.0.1", 5000 + self, "", "", 6000 + self));
+        metadata.setServerMap(map);
+        return metadata;
+    }
+
+    @Test
+    public void firstTokenIsServerHash() {
+        assertEquals(Util.calculateHash("127.0.0.1", 5000), Metadata.tokenHash("127.0.0.1", 5000, 0));
+        assertNotEquals(Metadata.tokenHash("127.0.0.1", 5000, 0), Metadata.tokenHash("127.0.0.1", 5000, 1));
+    }
+
+    @Test
+    public void choosesReplicasOnOtherServers() {
+        Metadata metadata = ring(4, 16, 0);
+        assertEquals(64, metadata.getServerMap().size());
+        assertEquals(4, metadata.serverCount());
+        assertEquals(16, metadata.getTokens("127.0.0.1:5001").size());
+        for (String token : metadata.getServerMap().keySet()) {
+            List<String> replicas = metadata.getReplicaServers(token);
+            assertEquals(2, replicas.size());
+            Set<String> servers = new HashSet<>();
+            servers.add(metadata.getServerMap().get(token).getServerId());
+            for (String replica : replicas)
+                assertTrue(servers.add(metadata.getServerMap().get(replica).getServerId()));
+        }
+        // every server replicates some range of every other server
+        assertEquals(3, metadata.getReplicaServerIds("127.0.0.1:5000").size());
+    }
+
+    @Test
+    public void spreadsKeysOverServers() {
+        Metadata metadata = ring(4, 64, 0);
+        Map<String, Integer> keys = new HashMap<>();
+        int own = 0;
+        for (int i = 0; i < 40000; i++) {
+            String key = "key" + i;
+            String token = metadata.getRangeHash(Util.calculateHash(key));
+            keys.merge(metadata.getServerMap().get(token).getServerId(), 1, Integer::sum);
+            if (metadata.checkServerResponsible(key))
+                own++;
+        }
+        assertEquals(4, keys.size());
+        // with 64 tokens per server every server gets about a quarter of the keys
+        keys.values().forEach(count -> assertTrue(count > 7000 && count < 13000, "unbalanced: " + keys));
+        assertEquals(keys.get("127.0.0.1:5000").intValue(), own);
+    }
+
+    @Test
+    public void smallRingHasNoReplicas() {
+        Metadata metadata = ring(2, 8, 0);
+        assertEquals(2, metadata.serverCount());
+        // the other server is returned, but rings of two servers do not replicate
+        String token = metadata.getTokens("127.0.0.1:5000").get(0);
+        assertEquals(1, metadata.getReplicaServers(token).size());
+        assertTrue(metadata.isRoleReplica("key"));
+    }
+
+    @Test
+    public void reportsOwnershipByWeight() {
+        // a server of weight 3 next to two servers of weight 1
+        Metadata metadata = ring(new int[]{2, 0, 0}, 64, 0);
+        Map<String, double[]> ownership = metadata.getOwnership();
+        assertEquals(3, ownership.size());
+        assertEquals(0.6, ownership.get("127.0.0.1:5000")[1], 1e-9);
+        assertEquals(0.2, ownership.get("127.0.0.1:5001")[1], 1e-9);
+        double total = 0;
+        for (double[] share : ownership.values()) {
+            assertEquals(share[1], share[0], 0.1);
+            total += share[0];
+        }
+        assertEquals(1.0, total, 1e-6);
+
+        // the weight survives the metadata string the ECS sends
+        Metadata parsed = new Metadata();
+        parsed.updateMetadata(metadata.toString());
+        String token = Metadata.tokenHash("127.0.0.1", 5000, 0);
+        assertEquals(3.0, parsed.getServerMap().get(token).getWeight());
+        assertEquals(metadata.getOwnershipReport(), parsed.getOwnershipReport());
+    }
+
+    @Test
+    public void singleTokenOwnsWholeRing() {
+        Metadata metadata = ring(1, 1, 0);
+        assertEquals(1.0, metadata.getOwnership().get("127.0.0.1:5000")[0], 1e-9);
+        assertEquals("127.0.0.1:5000,1.000,1.000;", metadata.getOwnershipReport());
+    }
+
+    // token -> server info as the ECS keeps the sent ring
+    private static Map<String, String> text(Metadata metadata) {
+        Map<String, String> text = new TreeMap<>();
+        for (Map.Entry<String, KVServerInfo> e : metadata.getServerMap().entrySet())
+            text.put(e.getKey(), e.getValue().toString());
+        return text;
+    }
+
+    @Test
+    public void appliesDiffBetweenEpochs() {
+        Metadata before = ring(3, 4, 0);
+        Metadata after = ring(4, 4, 0);
+        // server 2 leaves, server 3 joins and a range changes its start
+        for (String token : after.getTokens("127.0.0.1:5002"))
+            after.removeEntry(token);
+        after.getServerMap().get(Metadata.tokenHash("127.0.0.1", 5000, 0)).setStartIndex("0");
+
+        String diff = Metadata.diff(text(before), text(after));
+        assertEquals(4 + 4 + 1, diff.split(";").length);
+        assertEquals("", Metadata.diff(text(after), text(after)));
+
+        Metadata server = new Metadata();
+        assertTrue(server.updateMetadata(before.toString(), 1));
+        assertTrue(server.applyDiff(1, 2, diff));
+        assertEquals(2, server.getEpoch());
+        assertEquals(text(after), text(server));
+        assertEquals(3, server.serverCount());
+    }
+
+    @Test
+    public void rejectsStaleEpochs() {
+        Metadata before = ring(3, 4, 0);
+        Metadata after = ring(4, 4, 0);
+        String diff = Metadata.diff(text(before), text(after));
+
+        Metadata server = new Metadata();
+        assertTrue(server.updateMetadata(after.toString(), 5));
+        // an older full update and a diff against another epoch are not applied
+        assertFalse(server.updateMetadata(before.toString(), 4));
+        assertFalse(server.applyDiff(3, 4, diff));
+        assertFalse(server.applyDiff(6, 7, diff));
+        assertEquals(5, server.getEpoch());
+        assertEquals(text(after), text(server));
+        assertTrue(server.getServerHashRangeWithEpoch().startsWith("5 "));
+    }
+
+    @Test
+    public void appliesDiffsArrivingOutOfOrder() {
+        Metadata first = ring(2, 4, 0);
+        Metadata second = ring(3, 4, 0);
+        Metadata third = ring(4, 4, 0);
+        String toSecond = Metadata.diff(text(first), text(second));
+        String toThird = Metadata.diff(text(second), text(third));
+
+        Metadata server = new Metadata();
+        assertTrue(server.updateMetadata(first.toString(), 1));
+        // the diff of the next epoch is not applied before the one it builds on
+        assertFalse(server.applyDiff(2, 3, toThird));
+        assertEquals(text(first), text(server));
+        assertTrue(server.applyDiff(1, 2, toSecond));
+        assertTrue(server.applyDiff(2, 3, toThird));
+        // a late copy of an applied diff does not change the ring again
+        assertFalse(server.applyDiff(1, 2, toSecond));
+        assertEquals(3, server.getEpoch());
+        assertEquals(text(third), text(server));
+
+        // the ECS keeps counting after a restart, its first full update is newer than everything known
+        assertTrue(server.updateMetadata(second.toString(), 4));
+        assertEquals(text(second), text(server));
+    }
+}
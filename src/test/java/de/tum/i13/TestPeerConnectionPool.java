@@ -0,0 +1,136 @@
+package de.tum.i13;
+
+import de.tum.i13.server.nio.PeerConnectionPool;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestPeerConnectionPool {
+
+    private static byte[] line(String text) {
+        return (text + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static BufferedReader accept(ServerSocket listener) throws IOException {
+        listener.setSoTimeout(5000);
+        Socket socket = listener.accept();
+        socket.setSoTimeout(5000);
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+    }
+
+    // a port nothing listens on
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void sendsMessagesOfOnePeerInOrder() throws Exception {
+        PeerConnectionPool pool = new PeerConnectionPool(10000, null);
+        pool.start();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            int port = listener.getLocalPort();
+            for (int i = 0; i < 1000; i++)
+                pool.send("127.0.0.1", port, line("message " + i));
+            BufferedReader in = accept(listener);
+            for (int i = 0; i < 1000; i++)
+                assertEquals("message " + i, in.readLine());
+            assertTrue(pool.flush(1000));
+        } finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void reconnectsAndSendsQueuedMessagesCompletely() throws Exception {
+        BlockingQueue<Integer> reconnected = new LinkedBlockingQueue<>();
+        PeerConnectionPool pool = new PeerConnectionPool(10000, null);
+        pool.setReconnectHandler((host, port) -> reconnected.add(port));
+        pool.start();
+        int port = freePort();
+        try {
+            // the peer is down, the messages wait for the next connection
+            pool.send("127.0.0.1", port, line("first"));
+            pool.send("127.0.0.1", port, line("second"));
+            Thread.sleep(200);
+            try (ServerSocket listener = new ServerSocket()) {
+                listener.setReuseAddress(true);
+                listener.bind(new InetSocketAddress("127.0.0.1", port));
+                BufferedReader in = accept(listener);
+                assertEquals("first", in.readLine());
+                assertEquals("second", in.readLine());
+                // the first successful connection is no reconnect
+                assertNull(reconnected.poll(100, TimeUnit.MILLISECONDS));
+
+                // the peer closes the connection, the next message opens a new one
+                in.close();
+                Thread.sleep(200);
+                pool.send("127.0.0.1", port, line("third"));
+                BufferedReader again = accept(listener);
+                assertEquals("third", again.readLine());
+                assertEquals(port, reconnected.poll(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void sendsInterruptedMessageAgainFromItsStart() throws Exception {
+        PeerConnectionPool pool = new PeerConnectionPool(10000, null);
+        pool.start();
+        // larger than the socket buffers, so the connection breaks while the message is written
+        String large = "x".repeat(8 * 1024 * 1024);
+        try (ServerSocket listener = new ServerSocket(0)) {
+            int port = listener.getLocalPort();
+            pool.send("127.0.0.1", port, line(large));
+            listener.setSoTimeout(5000);
+            Socket first = listener.accept();
+            assertTrue(first.getInputStream().read(new byte[1024]) > 0);
+            // reset instead of a graceful close
+            first.setSoLinger(true, 0);
+            first.close();
+
+            assertEquals(large, accept(listener).readLine());
+        } finally {
+            pool.stop();
+        }
+    }
+
+    @Test
+    public void dropsMessagesOfUnreachablePeerAfterTimeout() throws Exception {
+        BlockingQueue<Integer> failed = new LinkedBlockingQueue<>();
+        PeerConnectionPool pool = new PeerConnectionPool(300, (host, port) -> failed.add(port));
+        pool.start();
+        int down = freePort();
+        try (ServerSocket listener = new ServerSocket(0)) {
+            int up = listener.getLocalPort();
+            pool.send("127.0.0.1", down, line("lost"));
+            pool.send("127.0.0.1", up, line("delivered"));
+            assertEquals("delivered", accept(listener).readLine());
+
+            // an unreachable peer does not hold up a flush
+            long start = System.currentTimeMillis();
+            assertTrue(pool.flush(5000));
+            assertTrue(pool.flush(5000, "127.0.0.1:" + down, "127.0.0.1:" + up));
+            assertTrue(System.currentTimeMillis() - start < 1000);
+
+            assertEquals(down, failed.poll(5, TimeUnit.SECONDS));
+            assertNull(failed.poll(200, TimeUnit.MILLISECONDS));
+        } finally {
+            pool.stop();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package de.tum.i13;
+
+import de.tum.i13.server.replication.MerkleTree;
+import de.tum.i13.server.replication.RangeTransfer;
+import de.tum.i13.server.replication.TokenBucket;
+import de.tum.i13.shared.Pair;
+import de.tum.i13.shared.Util;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestRangeTransfer {
+
+    private static TreeMap<String, Pair<String, String>> map(int count, int valueLength) {
+        TreeMap<String, Pair<String, String>> pairs = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = "key" + i;
+            pairs.put(Util.calculateHash(key), new Pair<>(key, "v".repeat(valueLength)));
+        }
+        return pairs;
+    }
+
+    private static class Recorder implements RangeTransfer.Listener {
+        private final List<String> keys = new ArrayList<>();
+        private int acked;
+        private int completed;
+
+        public void transferred(List<String> k, int acked, int total) {
+            keys.addAll(k);
+            this.acked = acked;
+        }
+
+        public void completed() {
+            completed++;
+        }
+    }
+
+    @Test
+    public void streamsChunksWithinWindow() {
+        List<String> sent = new ArrayList<>();
+        Recorder recorder = new Recorder();
+        // 400 pairs of more than 1KB each do not fit into four chunks of at most 64KB
+        RangeTransfer transfer = new RangeTransfer(7, "127.0.0.1:5000", "127.0.0.1:5001", map(400, 1000).values().iterator(), 400,
+                (host, port, data) -> sent.add(new String(data, StandardCharsets.ISO_8859_1)), recorder);
+        transfer.start();
+        assertEquals(4, sent.size());
+        for (String line : sent) {
+            assertTrue(line.startsWith(RangeTransfer.CHUNK_COMMAND + " "));
+            assertTrue(line.endsWith("\r\n"));
+            assertTrue(line.length() < 70 * 1024);
+            assertEquals("7", line.split(" ")[2]);
+            assertEquals("400", line.split(" ")[4]);
+        }
+
+        transfer.acknowledge(2);
+        assertEquals(6, sent.size());
+        assertEquals("6", sent.get(5).split(" ")[3]);
+        assertTrue(recorder.acked > 0 && recorder.acked < 400);
+        assertEquals(0, recorder.completed);
+
+        // acknowledging the latest chunk again and again drains the transfer
+        for (int i = 0; i < 100 && !transfer.isCompleted(); i++)
+            transfer.acknowledge(Long.parseLong(sent.get(sent.size() - 1).split(" ")[3]));
+        transfer.acknowledge(sent.size());
+        assertEquals(400, recorder.acked);
+        assertEquals(400, recorder.keys.size());
+        assertEquals(1, recorder.completed);
+        assertTrue(transfer.isCompleted());
+    }
+
+    @Test
+    public void completesEmptyTransferImmediately() {
+        List<String> sent = new ArrayList<>();
+        Recorder recorder = new Recorder();
+        RangeTransfer transfer = new RangeTransfer(1, "127.0.0.1:5000", "127.0.0.1:5001", Collections.emptyIterator(), 0,
+                (host, port, data) -> sent.add(new String(data, StandardCharsets.ISO_8859_1)), recorder);
+        transfer.start();
+        assertTrue(sent.isEmpty());
+        assertEquals(1, recorder.completed);
+        assertTrue(transfer.isCompleted());
+    }
+
+    @Test
+    public void retransmitsUnacknowledgedChunks() {
+        List<String> sent = new ArrayList<>();
+        RangeTransfer transfer = new RangeTransfer(1, "127.0.0.1:5000", "127.0.0.1:5001", map(10, 10).values().iterator(), 10,
+                (host, port, data) -> sent.add(new String(data, StandardCharsets.ISO_8859_1)), new Recorder());
+        transfer.start();
+        assertEquals(1, sent.size());
+
+        transfer.retransmitIfStale(System.currentTimeMillis(), 60_000);
+        assertEquals(1, sent.size());
+        transfer.retransmitIfStale(System.currentTimeMillis() + 60_000, 60_000);
+        assertEquals(2, sent.size());
+        assertEquals(sent.get(0), sent.get(1));
+
+        transfer.acknowledge(1);
+        transfer.retransmitIfStale(System.currentTimeMillis() + 120_000, 60_000);
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void forwardsMutationsAfterCopiedPairs() {
+        List<String> sent = new ArrayList<>();
+        Recorder recorder = new Recorder();
+        RangeTransfer transfer = new RangeTransfer(1, "127.0.0.1:5000", "127.0.0.1:5001", map(400, 1000).values().iterator(), 400,
+                (host, port, data) -> sent.add(new String(data, StandardCharsets.ISO_8859_1)), recorder);
+        transfer.start();
+        // a write during the copy is framed after the last pair
+        transfer.forward("key0", "new");
+        transfer.forward("key1", null);
+        for (int i = 0; i < 100 && !transfer.isCompleted(); i++)
+            transfer.acknowledge(Long.parseLong(sent.get(sent.size() - 1).split(" ")[3]));
+        assertEquals(1, recorder.completed);
+        assertEquals(400, recorder.acked);
+        String last = sent.get(sent.size() - 1);
+        assertTrue(last.endsWith(" p a2V5MA== bmV3 d a2V5MQ==\r\n"));
+        assertFalse(transfer.isFinished());
+
+        // forwarding goes on after the receiver caught up, until the transfer is closed
+        int chunks = sent.size();
+        transfer.forward("key2", "v");
+        assertEquals(chunks + 1, sent.size());
+        assertTrue(sent.get(chunks).endsWith(" p a2V5Mg== dg==\r\n"));
+        assertFalse(transfer.isFinished());
+        transfer.close();
+        transfer.forward("key3", "v");
+        transfer.acknowledge(Long.parseLong(sent.get(sent.size() - 1).split(" ")[3]));
+        assertTrue(transfer.isFinished());
+        assertEquals(1, recorder.completed);
+    }
+
+    @Test
+    public void splitsRangeIntoContiguousParts() {
+        String start = "F0000000000000000000000000000000";
+        String end = "10000000000000000000000000000000";
+        String[] bounds = RangeTransfer.splitRange(start, end, 4);
+        assertArrayEquals(new String[]{start, "F8000000000000000000000000000000", "00000000000000000000000000000000",
+                "08000000000000000000000000000000", end}, bounds);
+        for (int i = 0; i < 100; i++) {
+            String hash = Util.calculateHash("key" + i);
+            int parts = 0;
+            for (int j = 0; j < 4; j++)
+                if (MerkleTree.inRange(hash, bounds[j], bounds[j + 1]))
+                    parts++;
+            assertEquals(MerkleTree.inRange(hash, start, end) ? 1 : 0, parts);
+        }
+        assertEquals(2, RangeTransfer.splitRange(start, start, 1).length);
+    }
+
+    @Test
+    public void sendsSecondaryPairsWithinBandwidth() {
+        List<String> sent = new ArrayList<>();
+        RangeTransfer transfer = new RangeTransfer(1, "127.0.0.1:5000", "127.0.0.1:5001", map(400, 1000).values().iterator(), 400,
+                (host, port, data) -> sent.add(new String(data, StandardCharsets.ISO_8859_1)), new Recorder());
+        transfer.setSecondary(true);
+        // the first chunk overdraws the bucket for about a minute
+        transfer.setRateLimit(new TokenBucket(1000));
+        transfer.start();
+        assertEquals(1, sent.size());
+        assertEquals("h", sent.get(0).split(" ")[5]);
+        transfer.pump();
+        assertEquals(1, sent.size());
+    }
+
+    @Test
+    public void sendsExpirationsWithPairsAndForwardedPuts() {
+        List<String> sent = new ArrayList<>();
+        RangeTransfer transfer = new RangeTransfer(1, "127.0.0.1:5000", "127.0.0.1:5001", map(2, 1).values().iterator(), 2,
+                (host, port, data) -> sent.add(new String(data, StandardCharsets.ISO_8859_1)), new Recorder());
+        Map<String, Long> expirations = new HashMap<>();
+        expirations.put("key0", 1234L);
+        expirations.put("key2", 5678L);
+        transfer.setExpirations(expirations);
+        transfer.start();
+        assertEquals(1, sent.size());
+        assertTrue(sent.get(0).contains(" p a2V5MA== dg== e a2V5MA== 1234"));
+        assertTrue(sent.get(0).contains(" p a2V5MQ== dg==\r\n") || sent.get(0).contains(" p a2V5MQ== dg== p "));
+
+        transfer.forward("key2", "v");
+        assertTrue(sent.get(1).endsWith(" p a2V5Mg== dg== e a2V5Mg== 5678\r\n"));
+    }
+}
@@ -0,0 +1,47 @@
+package de.tum.i13;
+
+import de.tum.i13.client.ReadBalancer;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestReadBalancer {
+
+    private static final String RANGES = "40,80,127.0.0.1:5001;40,80,127.0.0.1:5002;40,80,127.0.0.1:5003;"
+            + "80,40,127.0.0.1:5002;80,40,127.0.0.1:5003;80,40,127.0.0.1:5001;";
+
+    @Test
+    public void findsCoordinatorAndReplicasOfKey() {
+        ReadBalancer balancer = new ReadBalancer();
+        assertTrue(balancer.isEmpty());
+        balancer.update(RANGES);
+        assertEquals(List.of("127.0.0.1:5001", "127.0.0.1:5002", "127.0.0.1:5003"), balancer.servers("50"));
+        // the range of the first server wraps around the ring
+        assertEquals("127.0.0.1:5002", balancer.servers("90").get(0));
+        assertEquals("127.0.0.1:5002", balancer.servers("10").get(0));
+        balancer.clear();
+        assertNull(balancer.choose("50", server -> 0));
+    }
+
+    @Test
+    public void spreadsReadsOverServers() {
+        ReadBalancer balancer = new ReadBalancer();
+        balancer.update(RANGES);
+
+        // equally loaded servers are chosen round robin
+        Map<String, Integer> chosen = new HashMap<>();
+        for (int i = 0; i < 300; i++)
+            chosen.merge(balancer.choose("50", server -> 0), 1, Integer::sum);
+        assertEquals(3, chosen.size());
+        chosen.values().forEach(count -> assertEquals(100, count));
+
+        // the server with the fewest outstanding requests wins
+        Map<String, Integer> outstanding = Map.of("127.0.0.1:5001", 5, "127.0.0.1:5002", 1, "127.0.0.1:5003", 3);
+        for (int i = 0; i < 10; i++)
+            assertEquals("127.0.0.1:5002", balancer.choose("50", outstanding::get));
+    }
+}
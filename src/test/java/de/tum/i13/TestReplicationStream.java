@@ -0,0 +1,201 @@
+package de.tum.i13;
+
+import de.tum.i13.server.disk.HintStore;
+import de.tum.i13.server.replication.ReplicaState;
+import de.tum.i13.server.replication.ReplicationStream;
+import de.tum.i13.server.replication.WriteConsistency;
+import de.tum.i13.shared.B64Util;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestReplicationStream {
+
+    private static final List<String> REPLICA = List.of("127.0.0.1:5000");
+
+    @Test
+    public void batchesQueuedMutations() throws InterruptedException {
+        BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+        ReplicationStream stream = new ReplicationStream("127.0.0.1:4000", (host, port, data) ->
+                sent.add(new String(data, StandardCharsets.ISO_8859_1)), 10000);
+        for (int i = 0; i < 100; i++)
+            stream.put(REPLICA, "key" + i, "value" + i);
+        stream.delete(REPLICA, "key0");
+        stream.start();
+
+        String batch = sent.poll(2, TimeUnit.SECONDS);
+        stream.stop();
+        assertNotNull(batch);
+        String[] tokens = batch.trim().split(" ");
+        assertEquals(ReplicationStream.BATCH_COMMAND, tokens[0]);
+        assertEquals("1", tokens[3]);
+        assertEquals("0", tokens[4]);
+        // 100 puts with key and value, one delete with key
+        assertEquals(5 + 100 * 3 + 2, tokens.length);
+        assertTrue(sent.isEmpty());
+    }
+
+    @Test
+    public void retransmitsUntilAcknowledged() throws InterruptedException {
+        BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+        ReplicationStream stream = new ReplicationStream("127.0.0.1:4000", (host, port, data) ->
+                sent.add(new String(data, StandardCharsets.ISO_8859_1)), 50);
+        stream.start();
+        stream.put(REPLICA, "key", "value");
+
+        String first = sent.poll(2, TimeUnit.SECONDS);
+        String again = sent.poll(2, TimeUnit.SECONDS);
+        assertNotNull(first);
+        assertEquals(first, again);
+        assertTrue(stream.lag().contains("lag_ops=1"));
+
+        long incarnation = Long.parseLong(first.split(" ")[2]);
+        stream.acknowledge(REPLICA.get(0), incarnation, 1);
+        sent.clear();
+        assertNull(sent.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(stream.lag().contains("acked=1,lag_ops=0"));
+        stream.stop();
+    }
+
+    @Test
+    public void probesWithOldestBatchUntilReplicaAnswers() throws InterruptedException {
+        BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+        ReplicationStream stream = new ReplicationStream("127.0.0.1:4000", (host, port, data) ->
+                sent.add(new String(data, StandardCharsets.ISO_8859_1)), 50);
+        // three batches of at most 512 mutations
+        for (int i = 0; i < 1200; i++)
+            stream.put(REPLICA, "key" + i, "value" + i);
+        stream.start();
+        List<String> first = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            first.add(sent.poll(2, TimeUnit.SECONDS).split(" ")[3]);
+        assertEquals(List.of("1", "2", "3"), first);
+
+        // while the replica does not answer, only the oldest batch is sent again
+        Thread.sleep(300);
+        List<String> probes = new ArrayList<>();
+        sent.drainTo(probes);
+        assertFalse(probes.isEmpty());
+        for (String probe : probes)
+            assertEquals("1", probe.split(" ")[3]);
+
+        // the answer to the probe brings the other batches
+        long incarnation = Long.parseLong(probes.get(0).split(" ")[2]);
+        stream.acknowledge(REPLICA.get(0), incarnation, 1);
+        stream.stop();
+        List<String> rest = new ArrayList<>();
+        sent.drainTo(rest);
+        assertTrue(rest.stream().anyMatch(line -> line.split(" ")[3].equals("2")));
+        assertTrue(rest.stream().anyMatch(line -> line.split(" ")[3].equals("3")));
+
+        // a reconnect sends everything unacknowledged, the stopped sender thread no longer probes
+        Thread.sleep(100);
+        sent.clear();
+        stream.resend(REPLICA.get(0));
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void notifiesListenersOfAcknowledgedAndDroppedPuts() throws InterruptedException {
+        Map<Integer, String> sent = new ConcurrentHashMap<>();
+        ReplicationStream stream = new ReplicationStream("127.0.0.1:4000", (host, port, data) ->
+                sent.put(port, new String(data, StandardCharsets.ISO_8859_1)), 10000);
+        Map<String, String> outcome = new ConcurrentHashMap<>();
+        ReplicationStream.Listener listener = new ReplicationStream.Listener() {
+            public void acknowledged(String replica) {
+                outcome.put(replica, "acknowledged");
+            }
+
+            public void dropped(String replica) {
+                outcome.put(replica, "dropped");
+            }
+        };
+        stream.start();
+        stream.put(List.of("127.0.0.1:5000", "127.0.0.1:5001"), "key", "value", listener);
+        for (int i = 0; i < 100 && sent.size() < 2; i++)
+            Thread.sleep(20);
+        assertEquals(2, sent.size());
+
+        stream.acknowledge("127.0.0.1:5000", Long.parseLong(sent.get(5000).split(" ")[2]), 1);
+        stream.drop("127.0.0.1:5001");
+        stream.stop();
+        assertEquals("acknowledged", outcome.get("127.0.0.1:5000"));
+        assertEquals("dropped", outcome.get("127.0.0.1:5001"));
+    }
+
+    @Test
+    public void countsRequiredAcknowledgements() {
+        assertEquals(0, WriteConsistency.ASYNC.requiredAcks(2));
+        assertEquals(1, WriteConsistency.ONE.requiredAcks(2));
+        assertEquals(1, WriteConsistency.QUORUM.requiredAcks(2));
+        assertEquals(2, WriteConsistency.QUORUM.requiredAcks(4));
+        // without replicas nobody has to acknowledge
+        assertEquals(0, WriteConsistency.ONE.requiredAcks(0));
+    }
+
+    @Test
+    public void replaysHintsOfLaggingReplicaInOrder(@TempDir Path dir) throws IOException, InterruptedException {
+        BlockingQueue<String> sent = new LinkedBlockingQueue<>();
+        ReplicationStream stream = new ReplicationStream("127.0.0.1:4000", (host, port, data) ->
+                sent.add(new String(data, StandardCharsets.ISO_8859_1)), 10000);
+        stream.setHintStore(new HintStore(dir));
+        int puts = 30000;
+        for (int i = 0; i < puts; i++)
+            stream.put(REPLICA, "key" + i, "value" + i);
+        stream.start();
+        for (int i = 0; i < 100 && !Files.exists(dir.resolve("127.0.0.1_5000.hints")); i++)
+            Thread.sleep(20);
+        Thread.sleep(100);
+        // nothing is dropped, mutations beyond the threshold are kept as hints
+        assertTrue(stream.lag().contains("lag_ops=" + puts), stream.lag());
+        assertFalse(stream.isCaughtUp(REPLICA.get(0)));
+
+        // the replica acknowledges every batch, hints follow as new batches
+        List<String> applied = new ArrayList<>();
+        long lastSeq = 0;
+        String batch;
+        while (applied.size() < puts && (batch = sent.poll(2, TimeUnit.SECONDS)) != null) {
+            String[] tokens = batch.trim().split(" ");
+            long seq = Long.parseLong(tokens[3]);
+            if (seq != lastSeq + 1)
+                continue;
+            for (int i = 6; i < tokens.length; i += 3)
+                applied.add(tokens[i]);
+            lastSeq = seq;
+            stream.acknowledge(REPLICA.get(0), Long.parseLong(tokens[2]), seq);
+        }
+        stream.stop();
+        assertEquals(puts, applied.size());
+        for (int i = 0; i < puts; i++)
+            assertEquals(B64Util.b64encode("key" + i), applied.get(i));
+        assertTrue(stream.isCaughtUp(REPLICA.get(0)));
+    }
+
+    @Test
+    public void replicaAppliesBatchesInOrder() {
+        ReplicaState state = new ReplicaState();
+        // an unknown stream continues after its acked mark
+        assertEquals(ReplicaState.Verdict.GAP, state.check("a", 1, 6, 4));
+        assertEquals(ReplicaState.Verdict.APPLY, state.check("a", 1, 5, 4));
+        state.applied("a", 5);
+        assertEquals(ReplicaState.Verdict.DUPLICATE, state.check("a", 1, 5, 4));
+        assertEquals(ReplicaState.Verdict.APPLY, state.check("a", 1, 6, 4));
+        state.applied("a", 6);
+        assertEquals(6, state.lastApplied("a"));
+        // a new incarnation, e.g. after the coordinator restarted, starts over
+        assertEquals(ReplicaState.Verdict.APPLY, state.check("a", 2, 1, 0));
+    }
+}
@@ -0,0 +1,72 @@
+package de.tum.i13;
+
+import de.tum.i13.server.cache.SpaceSaving;
+import de.tum.i13.shared.Pair;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestSpaceSaving {
+
+    @Test
+    public void countsExactlyWithinCapacity() {
+        SpaceSaving sketch = new SpaceSaving(4);
+        for (int i = 0; i < 5; i++)
+            sketch.offer("a");
+        sketch.offer("b");
+        sketch.offer("b");
+        sketch.offer("c");
+        assertEquals(5, sketch.guaranteed("a"));
+        assertEquals(2, sketch.guaranteed("b"));
+        assertEquals(0, sketch.guaranteed("d"));
+
+        List<Pair<String, Long>> top = sketch.top(2);
+        assertEquals(2, top.size());
+        assertEquals("a", top.get(0).getKey());
+        assertEquals("b", top.get(1).getKey());
+    }
+
+    @Test
+    public void findsHotKeysAmongManyColdKeys() {
+        // every key with more than 100000 / 64 requests is counted
+        SpaceSaving sketch = new SpaceSaving(64);
+        Random random = new Random(7);
+        long hot = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (random.nextInt(10) == 0) {
+                sketch.offer("hot");
+                hot++;
+            } else if (random.nextInt(20) == 0) {
+                sketch.offer("warm");
+            } else {
+                sketch.offer("cold" + random.nextInt(50000));
+            }
+        }
+        List<Pair<String, Long>> top = sketch.top(2000);
+        assertEquals("hot", top.get(0).getKey());
+        assertEquals("warm", top.get(1).getKey());
+        // the guaranteed count never exceeds the true count
+        assertTrue(top.get(0).getValue() <= hot);
+        for (Pair<String, Long> key : top)
+            assertFalse(key.getKey().startsWith("cold"));
+    }
+
+    @Test
+    public void forgetsCountsOnClear() {
+        SpaceSaving sketch = new SpaceSaving(2);
+        sketch.offer("a");
+        sketch.offer("b");
+        sketch.offer("c");
+        // c took over the counter of a, its count of 2 includes the request of a
+        assertEquals(1, sketch.guaranteed("c"));
+        assertEquals(0, sketch.guaranteed("a"));
+        assertEquals(2, sketch.top(1).size());
+        sketch.clear();
+        assertTrue(sketch.top(1).isEmpty());
+        sketch.offer("c");
+        assertEquals(1, sketch.guaranteed("c"));
+    }
+}
@@ -198,6 +198,34 @@ public class TestStripedExecutorService {
     }
 
 
+    @Test
+    public void testMultipleStripesWithVirtualThreads() throws InterruptedException {
+        final ExecutorService pool = StripedExecutorService.withVirtualThreads();
+        ExecutorService producerPool = Executors.newCachedThreadPool();
+        for (int i = 0; i < 20; i++) {
+            producerPool.submit(new Runnable() {
+                public void run() {
+                    Object stripe = new Object();
+                    AtomicInteger actual = new AtomicInteger(0);
+                    for (int i = 0; i < 100; i++) {
+                        pool.submit(new TestRunnable(stripe, actual, i));
+                    }
+                }
+            });
+        }
+        producerPool.shutdown();
+
+        while (!producerPool.awaitTermination(1, TimeUnit.MINUTES)) {
+            System.out.print("."); // checkstyle
+        }
+
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(1, TimeUnit.DAYS));
+        assertFalse(TestRunnable.outOfSequence,
+                "Expected no out-of-sequence runnables to execute");
+    }
+
+
     public static class TestRunnable implements StripedRunnable {
         private final Object stripe;
         private final AtomicInteger stripeSequence;
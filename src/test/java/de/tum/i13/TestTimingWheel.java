@@ -0,0 +1,59 @@
+package de.tum.i13;
+
+import de.tum.i13.server.ttl.TimingWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestTimingWheel {
+
+    @Test
+    public void expiresItemsAfterDeadline() throws InterruptedException {
+        Map<String, Long> expiredAt = new ConcurrentHashMap<>();
+        CountDownLatch latch = new CountDownLatch(2);
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, items -> {
+            for (String item : items) {
+                expiredAt.put(item, System.currentTimeMillis());
+                latch.countDown();
+            }
+        });
+        wheel.start();
+
+        long now = System.currentTimeMillis();
+        wheel.schedule("short", now + 30);
+        // longer than one rotation of the wheel (8 * 10 ms)
+        wheel.schedule("long", now + 250);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        wheel.stop();
+        assertTrue(expiredAt.get("short") >= now + 30);
+        assertTrue(expiredAt.get("long") >= now + 250);
+    }
+
+    @Test
+    public void batchesItemsOfOneTick() throws InterruptedException {
+        List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+        CountDownLatch latch = new CountDownLatch(1);
+        TimingWheel<Integer> wheel = new TimingWheel<>(50, 16, items -> {
+            batches.add(items);
+            latch.countDown();
+        });
+        wheel.start();
+
+        long deadline = System.currentTimeMillis() + 100;
+        for (int i = 0; i < 100; i++)
+            wheel.schedule(i, deadline);
+
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        wheel.stop();
+        assertEquals(1, batches.size());
+        assertEquals(100, batches.get(0).size());
+    }
+}
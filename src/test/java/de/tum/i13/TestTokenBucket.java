@@ -0,0 +1,30 @@
+package de.tum.i13;
+
+import de.tum.i13.server.replication.TokenBucket;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TestTokenBucket {
+
+    @Test
+    public void refillsAtConfiguredRate() {
+        TokenBucket bucket = new TokenBucket(1000);
+        long now = System.nanoTime();
+        assertTrue(bucket.available(now));
+        // a large chunk overdraws the bucket
+        bucket.take(1500);
+        assertFalse(bucket.available(now));
+        assertFalse(bucket.available(now + 400_000_000L));
+        assertTrue(bucket.available(now + 600_000_000L));
+
+        // the bucket never holds more than one second worth of bytes
+        bucket.take(bucket.available(now + 10_000_000_000L) ? 1000 : 0);
+        assertFalse(bucket.available(now + 10_000_000_000L));
+    }
+
+    @Test
+    public void rejectsNonPositiveRate() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0));
+    }
+}